@@ -34,6 +34,7 @@ import d2d.testing.R;
 import d2d.testing.gui.MainActivity;
 import d2d.testing.gui.StreamActivity;
 import d2d.testing.gui.ViewStreamActivity;
+import d2d.testing.streaming.StreamCatalog;
 import d2d.testing.streaming.Streaming;
 import d2d.testing.streaming.StreamingRecord;
 import d2d.testing.streaming.StreamingRecordObserver;
@@ -45,6 +46,8 @@ public class MainFragment extends Fragment implements StreamingRecordObserver, R
     private TextView myStatus;
     private TextView numStreams;
     private ArrayList<StreamDetail> streamList;
+    // Stream que se ha pedido a un vecino desde la lista, se abre cuando llegue
+    private String mPendingOpen;
     private StreamListAdapter arrayAdapter;
     @Inject
     BasicViewModel mViewModel;
@@ -157,19 +160,22 @@ public class MainFragment extends Fragment implements StreamingRecordObserver, R
 
 
     public void updateList(boolean on_off, String uuid, String name, String ip, int port, boolean download){
-        removeDefaultItemList();
         if(!ip.equals("0.0.0.0")) {
-            StreamDetail detail = new StreamDetail(uuid, name, ip, port, download);
-            if (on_off) {
-                if (!streamList.contains(detail))
-                    streamList.add(detail);
-            } else {
-                streamList.remove(detail);
-            }
-            numStreams.setText(getString(R.string.dispositivos_encontrados, streamList.size()));
-            if(streamList.size() == 0) addDefaultItemList();
-            arrayAdapter.setStreamsData(streamList);
+            updateList(on_off, new StreamDetail(uuid, name, ip, port, download));
+        }
+    }
+
+    private void updateList(boolean on_off, StreamDetail detail){
+        removeDefaultItemList();
+        if (on_off) {
+            if (!streamList.contains(detail))
+                streamList.add(detail);
+        } else {
+            streamList.remove(detail);
         }
+        numStreams.setText(getString(R.string.dispositivos_encontrados, streamList.size()));
+        if(streamList.size() == 0) addDefaultItemList();
+        arrayAdapter.setStreamsData(streamList);
     }
 
     public void putStreamDownloading(String uuid, boolean isDownload){
@@ -182,7 +188,19 @@ public class MainFragment extends Fragment implements StreamingRecordObserver, R
         }
     }
 
+    /**
+     * Si el stream solo lo anuncia un vecino se le pide, y se abre cuando llegue (ver streamingAvailable()).
+     */
     public void openStreamActivity(String uuid) {
+        if(!StreamingRecord.getInstance().streamingExist(UUID.fromString(uuid))) {
+            if(StreamCatalog.getInstance().requestStream(UUID.fromString(uuid))) {
+                mPendingOpen = uuid;
+                Toast.makeText(getContext(), "Pidiendo el stream a los vecinos...", Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(getContext(), "El stream ya no esta disponible", Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
         openViewStreamActivity(getActivity(), uuid);
     }
 
@@ -247,6 +265,33 @@ public class MainFragment extends Fragment implements StreamingRecordObserver, R
                         streaming.getReceiveSession().getDestinationAddress().toString(),
                         streaming.getReceiveSession().getDestinationPort(),
                         streaming.isDownloading());
+                if(path.equals(mPendingOpen)) {
+                    mPendingOpen = null;
+                    openViewStreamActivity(getActivity(), path);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void remoteStreamingAvailable(final StreamCatalog.Entry entry) {
+        final String path = entry.getUUID().toString();
+        requireActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                // Si ha cambiado el numero de saltos se sustituye la fila
+                StreamDetail detail = new StreamDetail(path, entry.getName(), entry.getHops());
+                streamList.remove(detail);
+                updateList(true, detail);
+            }
+        });
+    }
+
+    @Override
+    public void remoteStreamingUnavailable(final StreamCatalog.Entry entry) {
+        final String path = entry.getUUID().toString();
+        requireActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                updateList(false, new StreamDetail(path, entry.getName(), entry.getHops()));
             }
         });
     }
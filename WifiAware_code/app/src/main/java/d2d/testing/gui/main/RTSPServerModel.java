@@ -1,11 +1,9 @@
 package d2d.testing.gui.main;
 
 import android.net.ConnectivityManager;
-import android.net.Network;
 import android.util.Log;
 
 import java.io.IOException;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -17,6 +15,7 @@ import java.util.Map;
 
 import d2d.testing.net.threads.selectors.ChangeRequest;
 import d2d.testing.net.threads.selectors.RTSPServerSelector;
+import d2d.testing.streaming.rtcp.RtcpStatistics;
 
 public class RTSPServerModel {
     public static final String TAG = "RTSPServerModel";
@@ -38,6 +37,7 @@ public class RTSPServerModel {
 
     public void startServer(){
         mServer.start();
+        RtcpStatistics.getInstance().startLogging();
     }
 
     public void addChangeRequest(ChangeRequest changeRequest) {
@@ -45,6 +45,7 @@ public class RTSPServerModel {
     }
 
     public void stopServer(){
+        RtcpStatistics.getInstance().stopLogging();
         mServer.stop();
     }
 
@@ -68,7 +69,7 @@ public class RTSPServerModel {
             try {
                 socketChannel = serverChan.accept();
                 socketChannel.configureBlocking(false);// Accept the connection and make it non-blocking
-                socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                socketChannel.register(selector, SelectionKey.OP_READ, mServer);
 
             } catch (IOException e) {
                 mServerChannelsMap.remove(serverChan);
@@ -84,7 +85,6 @@ public class RTSPServerModel {
     }
 
     public void onServerRelease() {}
-    public synchronized Network getChannelNetwork(SelectableChannel chan){return null;}
 
     public void addServerSocketChannel(ServerSocketChannel serverSocketChannel) {
         mServerChannelsMap.put(serverSocketChannel, new Connection(serverSocketChannel));
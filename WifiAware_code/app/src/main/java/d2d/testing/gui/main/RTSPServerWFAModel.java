@@ -5,7 +5,6 @@ import android.net.Network;
 import android.net.wifi.aware.PeerHandle;
 
 import java.io.IOException;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -79,7 +78,7 @@ public class RTSPServerWFAModel extends RTSPServerModel {
             try {
                 socketChannel = serverChan.accept();
                 socketChannel.configureBlocking(false);// Accept the connection and make it non-blocking
-                socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                socketChannel.register(selector, SelectionKey.OP_READ, mServer);
                 conn.mComChannels.add(socketChannel);
 
             } catch (IOException e) {
@@ -107,21 +106,6 @@ public class RTSPServerWFAModel extends RTSPServerModel {
         mServerChannelsMap.clear();
     }
 
-    @Override
-    public synchronized Network getChannelNetwork(SelectableChannel chan){
-        for(Map.Entry<ServerSocketChannel, Connection> entry : mServerChannelsMap.entrySet()){
-            if(entry.getKey().equals(chan)){
-                return entry.getValue().net;
-            }
-            for(Object sockChan : entry.getValue().mComChannels){
-                if(sockChan.equals(chan)){
-                    return entry.getValue().net;
-                }
-            }
-        }
-        return null;
-    }
-
     public void addClient(PeerHandle peerHandle, RtspClientWFA rtspClientWFA) {
         mClients.put(peerHandle, rtspClientWFA);
     }
@@ -13,6 +13,9 @@ public class StreamDetail implements Parcelable {
     private String name;
     private int port;
     private boolean download;
+    // El stream no ha llegado a este dispositivo, solo se conoce por el catalogo (ver StreamCatalog)
+    private boolean remote;
+    private int hops;
 
     private SaveStream saveStream;
 
@@ -25,6 +28,22 @@ public class StreamDetail implements Parcelable {
         this.saveStream = null;
     }
 
+    /** Stream que anuncia un vecino en el catalogo, a hops saltos de este dispositivo. No tiene ip ni puerto */
+    public StreamDetail(String uuid, String name, int hops){
+        this(uuid, name, "", 0, false);
+        this.remote = true;
+        this.hops = hops;
+    }
+
+    /** El stream no ha llegado a este dispositivo, solo lo anuncia un vecino */
+    public boolean isRemote() {
+        return remote;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
     public String getUuid() {
         return uuid;
     }
@@ -77,7 +96,7 @@ public class StreamDetail implements Parcelable {
     public boolean equals(Object o) {
         if(o instanceof StreamDetail) {
             StreamDetail streamDetail = (StreamDetail) o;
-            return streamDetail.uuid.equals(this.uuid) && streamDetail.ip.equals(this.ip);
+            return streamDetail.uuid.equals(this.uuid) && streamDetail.remote == this.remote && streamDetail.ip.equals(this.ip);
         }
         return false;
     }
@@ -94,5 +113,7 @@ public class StreamDetail implements Parcelable {
         dest.writeString(name);
         dest.writeInt(port);
         dest.writeBoolean(download);
+        dest.writeBoolean(remote);
+        dest.writeInt(hops);
     }
 }
@@ -86,6 +86,10 @@ public class StreamListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHol
             realHolder.stream_download.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
+                    if(sd.isRemote()){
+                        Toast.makeText(mContext, "Abre el stream para que llegue a este dispositivo antes de descargarlo", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
                     if(!sd.isDownload()){
                         StreamingRecord.getInstance().startStreamDownload(mContext, UUID.fromString(sd.getUuid()));
                         sd.setDownload(true);
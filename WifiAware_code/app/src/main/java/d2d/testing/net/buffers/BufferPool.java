@@ -0,0 +1,198 @@
+package d2d.testing.net.buffers;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool de buffers directos de tamaño fijo que usan los selectores para leer de los canales.
+ * Se reserva un unico slab con ByteBuffer.allocateDirect() y se trocea en buffers de mBufferSize bytes,
+ * de esta forma los datagramas RTP y los mensajes RTSP se leen sin crear un byte[] nuevo por lectura.
+ *
+ * Los buffers se piden con acquire() y vuelven al pool cuando su contador de referencias llega a 0
+ * (ver PooledBuffer.release()). Si el pool esta agotado se crea un buffer en el heap que no vuelve al pool,
+ * asi que el sistema sigue funcionando aunque algun consumidor se retrase, y se contabiliza como agotamiento.
+ *
+ * Para lo que no cabe en mBufferSize (respuestas DESCRIBE con la prueba en Base64) hay clases de tamaño mayor
+ * (LARGE_BUFFER_SIZES) con pocos buffers cada una, su slab se reserva la primera vez que se pide uno.
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_BUFFER_COUNT = 128;
+    public static final int[] LARGE_BUFFER_SIZES = {32 * 1024, 64 * 1024};
+    public static final int LARGE_BUFFER_COUNT = 4;
+
+    static private BufferPool INSTANCE = null;
+
+    private final int mBufferSize;
+    private final int mBufferCount;
+    private final ConcurrentLinkedQueue<PooledBuffer> mFreeBuffers;
+    private final SizeClass[] mLargeClasses;
+
+    private final AtomicInteger mInUse = new AtomicInteger(0);
+    private final AtomicLong mRequests = new AtomicLong(0);
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mExhausted = new AtomicLong(0);
+    private final AtomicLong mOversized = new AtomicLong(0);
+
+    public static synchronized BufferPool getInstance(){
+        if(INSTANCE == null) {
+            INSTANCE = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+        }
+        return INSTANCE;
+    }
+
+    public BufferPool(int bufferSize, int bufferCount) {
+        if(bufferSize <= 0 || bufferCount <= 0) throw new IllegalArgumentException("Buffer size and count must be positive");
+        mBufferSize = bufferSize;
+        mBufferCount = bufferCount;
+        mFreeBuffers = new ConcurrentLinkedQueue<>();
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * bufferCount);
+        for(int i = 0; i < bufferCount; i++){
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            mFreeBuffers.add(new PooledBuffer(slab.slice(), this));
+        }
+
+        mLargeClasses = new SizeClass[LARGE_BUFFER_SIZES.length];
+        for(int i = 0; i < mLargeClasses.length; i++){
+            mLargeClasses[i] = new SizeClass(LARGE_BUFFER_SIZES[i], LARGE_BUFFER_COUNT);
+        }
+    }
+
+    /**
+     * Devuelve un buffer vacio (position 0, limit = capacidad) con una referencia.
+     * Nunca devuelve null, si no quedan buffers libres se crea uno temporal en el heap.
+     */
+    public PooledBuffer acquire() {
+        mRequests.incrementAndGet();
+        PooledBuffer buffer = mFreeBuffers.poll();
+        if(buffer == null){
+            mExhausted.incrementAndGet();
+            return new PooledBuffer(ByteBuffer.allocate(mBufferSize), null);
+        }
+        mHits.incrementAndGet();
+        mInUse.incrementAndGet();
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Igual que acquire() pero garantiza al menos minCapacity bytes. Si no cabe en un buffer del pool
+     * (p.e. una respuesta DESCRIBE con la prueba en Base64) se usa la clase mas pequeña en la que quepa.
+     * Solo lo que no cabe en ninguna, o si la clase esta agotada, se reserva en un buffer que no vuelve al pool.
+     */
+    public PooledBuffer acquire(int minCapacity) {
+        if(minCapacity <= mBufferSize) return acquire();
+        mRequests.incrementAndGet();
+        for(SizeClass sizeClass : mLargeClasses){
+            if(minCapacity > sizeClass.mSize) continue;
+            PooledBuffer buffer = sizeClass.poll(this);
+            if(buffer == null){
+                mExhausted.incrementAndGet();
+                return new PooledBuffer(ByteBuffer.allocate(sizeClass.mSize), null);
+            }
+            mHits.incrementAndGet();
+            mInUse.incrementAndGet();
+            buffer.reset();
+            return buffer;
+        }
+        mOversized.incrementAndGet();
+        return new PooledBuffer(ByteBuffer.allocateDirect(minCapacity), null);
+    }
+
+    void recycle(PooledBuffer buffer) {
+        ByteBuffer data = buffer.getBuffer();
+        data.clear();
+        mInUse.decrementAndGet();
+        if(data.capacity() == mBufferSize){
+            mFreeBuffers.offer(buffer);
+            return;
+        }
+        for(SizeClass sizeClass : mLargeClasses){
+            if(data.capacity() == sizeClass.mSize){
+                sizeClass.mFreeBuffers.offer(buffer);
+                return;
+            }
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    public int getInUse() {
+        return mInUse.get();
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getExhaustedCount() {
+        return mExhausted.get();
+    }
+
+    /** Buffers pedidos con acquire(int) que no cabian en el pool */
+    public long getOversizedCount() {
+        return mOversized.get();
+    }
+
+    /** Porcentaje de peticiones servidas con un buffer del pool, entre 0 y 1 */
+    public double getHitRate() {
+        long requests = mRequests.get();
+        return requests == 0 ? 1.0 : (double) mHits.get() / requests;
+    }
+
+    /** Buffers libres de la clase de tamaño size (0 si la clase no existe o aun no se ha usado) */
+    public int getFreeCount(int size) {
+        if(size == mBufferSize) return mFreeBuffers.size();
+        for(SizeClass sizeClass : mLargeClasses){
+            if(sizeClass.mSize == size) return sizeClass.mFreeBuffers.size();
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "BufferPool[size=%d, count=%d, inUse=%d, requests=%d, hitRate=%.3f, exhausted=%d, oversized=%d]",
+                mBufferSize, mBufferCount, getInUse(), getRequests(), getHitRate(), getExhaustedCount(), getOversizedCount());
+    }
+
+    /** Buffers de un tamaño mayor que mBufferSize, el slab se reserva cuando se pide el primero */
+    private static class SizeClass {
+        private final int mSize;
+        private final int mCount;
+        private final ConcurrentLinkedQueue<PooledBuffer> mFreeBuffers = new ConcurrentLinkedQueue<>();
+        private volatile boolean mAllocated;
+
+        SizeClass(int size, int count) {
+            mSize = size;
+            mCount = count;
+        }
+
+        PooledBuffer poll(BufferPool pool) {
+            if(!mAllocated){
+                synchronized (this) {
+                    if(!mAllocated){
+                        ByteBuffer slab = ByteBuffer.allocateDirect(mSize * mCount);
+                        for(int i = 0; i < mCount; i++){
+                            slab.limit((i + 1) * mSize);
+                            slab.position(i * mSize);
+                            mFreeBuffers.add(new PooledBuffer(slab.slice(), pool));
+                        }
+                        mAllocated = true;
+                    }
+                }
+            }
+            return mFreeBuffers.poll();
+        }
+    }
+}
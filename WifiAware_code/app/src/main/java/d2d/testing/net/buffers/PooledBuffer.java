@@ -0,0 +1,77 @@
+package d2d.testing.net.buffers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffer con contador de referencias. Lo crea el BufferPool (o wrap() para datos que no vienen del pool).
+ * Quien recibe un PooledBuffer es responsable de llamar a release() una vez cuando deje de usarlo.
+ * Si hay que pasarlo a otro consumidor (p.e. el writer de cada canal al que se reenvia un datagrama)
+ * se usa retainedDuplicate(), que comparte los datos y el contador pero tiene su propia position/limit.
+ */
+public class PooledBuffer {
+    private final ByteBuffer mBuffer;
+    private final PooledBuffer mRoot;
+    private final BufferPool mPool;
+    private final AtomicInteger mRefCount;
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+        mBuffer = buffer;
+        mRoot = this;
+        mPool = pool;
+        mRefCount = new AtomicInteger(1);
+    }
+
+    private PooledBuffer(ByteBuffer view, PooledBuffer root) {
+        mBuffer = view;
+        mRoot = root;
+        mPool = null;
+        mRefCount = null;
+    }
+
+    /** Envuelve un array que no pertenece a ningun pool, release() no hace nada con el */
+    public static PooledBuffer wrap(byte[] data) {
+        return new PooledBuffer(ByteBuffer.wrap(data), (BufferPool) null);
+    }
+
+    void reset() {
+        mBuffer.clear();
+        mRefCount.set(1);
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int remaining() {
+        return mBuffer.remaining();
+    }
+
+    public PooledBuffer retain() {
+        mRoot.mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /** Vista independiente de los mismos bytes (desde position hasta limit) que cuenta como una referencia mas */
+    public PooledBuffer retainedDuplicate() {
+        mRoot.mRefCount.incrementAndGet();
+        return new PooledBuffer(mBuffer.duplicate(), mRoot);
+    }
+
+    public void release() {
+        int refs = mRoot.mRefCount.decrementAndGet();
+        if(refs == 0 && mRoot.mPool != null) {
+            mRoot.mPool.recycle(mRoot);
+        } else if(refs < 0) {
+            throw new IllegalStateException("PooledBuffer released more times than retained");
+        }
+    }
+
+    /** Copia los bytes entre position y limit, sin modificarlos, a un array nuevo */
+    public byte[] toArray() {
+        ByteBuffer view = mBuffer.duplicate();
+        byte[] data = new byte[view.remaining()];
+        view.get(data);
+        return data;
+    }
+}
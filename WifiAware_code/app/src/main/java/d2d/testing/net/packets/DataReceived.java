@@ -1,18 +1,26 @@
 package d2d.testing.net.packets;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 
+import d2d.testing.net.buffers.PooledBuffer;
 import d2d.testing.net.threads.selectors.AbstractSelector;
 
 public class DataReceived {
     private final AbstractSelector mSelector;
     private final SelectableChannel mChannel;
-    private final byte[] mData;
+    private final PooledBuffer mBuffer;
+    private byte[] mData;
 
     public DataReceived(AbstractSelector selector, SelectableChannel socket, byte[] data) {
+        this(selector, socket, PooledBuffer.wrap(data));
+        this.mData = data;
+    }
+
+    public DataReceived(AbstractSelector selector, SelectableChannel socket, PooledBuffer buffer) {
         this.mSelector = selector;
         this.mChannel = socket;
-        this.mData = data;
+        this.mBuffer = buffer;
     }
 
     public AbstractSelector getSelector() {
@@ -23,7 +31,26 @@ public class DataReceived {
         return mChannel;
     }
 
+    /**
+     * Devuelve una copia de los datos en un array. Solo se usa en los workers que necesitan
+     * tratar el contenido como texto (RTSP), el reenvio de datagramas usa getBuffer() directamente.
+     */
     public byte[] getData() {
+        if(mData == null) mData = mBuffer.toArray();
         return mData;
     }
+
+    /** Buffer del pool con los datos leidos, sin copiar. No debe usarse despues de release() */
+    public PooledBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public ByteBuffer getReadOnlyBuffer() {
+        return mBuffer.getBuffer().asReadOnlyBuffer();
+    }
+
+    /** Devuelve el buffer al pool, lo llama el worker despues de parsePackets() */
+    public void release() {
+        mBuffer.release();
+    }
 }
@@ -0,0 +1,90 @@
+package d2d.testing.net.threads.queues;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cola circular acotada sin locks para varios productores y un unico consumidor.
+ * Los productores (threads de los selectores) reservan una posicion con un CAS sobre mProducerIndex
+ * y publican el elemento con lazySet. El consumidor (thread del worker) es el unico que avanza mConsumerIndex,
+ * por lo que no necesita CAS y puede vaciar varios elementos de una vez con drainTo().
+ *
+ * La capacidad se redondea a la siguiente potencia de 2 para calcular la posicion con una mascara.
+ */
+public class MpscRingQueue<E> {
+    private final AtomicReferenceArray<E> mBuffer;
+    private final int mMask;
+    private final int mCapacity;
+
+    private final AtomicLong mProducerIndex = new AtomicLong(0);
+    private final AtomicLong mConsumerIndex = new AtomicLong(0);
+
+    public MpscRingQueue(int capacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        int actualCapacity = Integer.highestOneBit(capacity);
+        if(actualCapacity < capacity) actualCapacity <<= 1;
+        mCapacity = actualCapacity;
+        mMask = actualCapacity - 1;
+        mBuffer = new AtomicReferenceArray<>(actualCapacity);
+    }
+
+    /**
+     * Inserta el elemento si hay sitio. Puede llamarse desde cualquier thread.
+     * @return false si la cola esta llena
+     */
+    public boolean offer(E e) {
+        if(e == null) throw new NullPointerException();
+        long index;
+        do {
+            index = mProducerIndex.get();
+            if(index - mConsumerIndex.get() >= mCapacity) {
+                return false;
+            }
+        } while(!mProducerIndex.compareAndSet(index, index + 1));
+        mBuffer.lazySet((int) index & mMask, e);
+        return true;
+    }
+
+    /** Solo puede llamarlo el thread consumidor */
+    public E poll() {
+        long index = mConsumerIndex.get();
+        int offset = (int) index & mMask;
+        E e = mBuffer.get(offset);
+        if(e == null) {
+            if(index == mProducerIndex.get()) return null;
+            // Un productor ha reservado la posicion pero todavia no ha publicado el elemento
+            do {
+                e = mBuffer.get(offset);
+            } while(e == null);
+        }
+        mBuffer.lazySet(offset, null);
+        mConsumerIndex.lazySet(index + 1);
+        return e;
+    }
+
+    /**
+     * Saca hasta batch.length elementos de la cola y los deja en batch. Solo puede llamarlo el thread consumidor.
+     * @return numero de elementos copiados en batch
+     */
+    public int drainTo(E[] batch) {
+        int count = 0;
+        E e;
+        while(count < batch.length && (e = poll()) != null) {
+            batch[count++] = e;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mConsumerIndex.get() == mProducerIndex.get();
+    }
+
+    public int size() {
+        long size = mProducerIndex.get() - mConsumerIndex.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+}
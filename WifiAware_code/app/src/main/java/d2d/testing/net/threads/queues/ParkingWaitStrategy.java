@@ -0,0 +1,29 @@
+package d2d.testing.net.threads.queues;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Aparca el thread consumidor con LockSupport.park() en cuanto la cola esta vacia.
+ * No consume CPU mientras espera, es la adecuada para trafico de control como el RTSP.
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+    private volatile Thread mWaiter;
+
+    @Override
+    public void await(MpscRingQueue<?> queue, AtomicBoolean running) {
+        if(!queue.isEmpty()) return;
+        mWaiter = Thread.currentThread();
+        // mWaiter se publica antes de volver a comprobar la cola, asi el productor que inserte despues siempre lo ve
+        while(queue.isEmpty() && running.get() && !Thread.currentThread().isInterrupted()) {
+            LockSupport.park(this);
+        }
+        mWaiter = null;
+    }
+
+    @Override
+    public void signal() {
+        Thread waiter = mWaiter;
+        if(waiter != null) LockSupport.unpark(waiter);
+    }
+}
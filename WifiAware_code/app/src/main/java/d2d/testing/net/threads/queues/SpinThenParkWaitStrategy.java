@@ -0,0 +1,37 @@
+package d2d.testing.net.threads.queues;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Antes de aparcar el thread comprueba la cola durante mSpins iteraciones y luego cede la CPU mYields veces.
+ * Si los paquetes llegan seguidos (RTP de video) el consumidor los recoge sin pasar por el planificador,
+ * a cambio de gastar algo de CPU cuando el flujo se para.
+ */
+public class SpinThenParkWaitStrategy extends ParkingWaitStrategy {
+    public static final int DEFAULT_SPINS = 1000;
+    public static final int DEFAULT_YIELDS = 100;
+
+    private final int mSpins;
+    private final int mYields;
+
+    public SpinThenParkWaitStrategy() {
+        this(DEFAULT_SPINS, DEFAULT_YIELDS);
+    }
+
+    public SpinThenParkWaitStrategy(int spins, int yields) {
+        mSpins = spins;
+        mYields = yields;
+    }
+
+    @Override
+    public void await(MpscRingQueue<?> queue, AtomicBoolean running) {
+        for(int i = 0; i < mSpins; i++) {
+            if(!queue.isEmpty() || !running.get()) return;
+        }
+        for(int i = 0; i < mYields; i++) {
+            if(!queue.isEmpty() || !running.get()) return;
+            Thread.yield();
+        }
+        super.await(queue, running);
+    }
+}
@@ -0,0 +1,15 @@
+package d2d.testing.net.threads.queues;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Define como espera el consumidor de una MpscRingQueue cuando esta vacia y como lo despiertan los productores.
+ * Cada worker tiene su propia instancia porque guarda el thread que esta esperando.
+ */
+public interface WaitStrategy {
+    /** Bloquea el thread consumidor hasta que la cola tenga datos, se desactive running o se interrumpa el thread */
+    void await(MpscRingQueue<?> queue, AtomicBoolean running);
+
+    /** Lo llama el productor despues de insertar en la cola */
+    void signal();
+}
@@ -15,19 +15,18 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
+import d2d.testing.net.buffers.BufferPool;
+import d2d.testing.net.buffers.PooledBuffer;
 import d2d.testing.utils.Logger;
 import d2d.testing.net.threads.workers.AbstractWorker;
 
@@ -51,37 +50,47 @@ import static java.lang.Thread.sleep;
  * --Write – when the server is ready to write to the channel. Represented by SelectionKey.OP_WRITE
  *
  * Esta clase representa el trabajo general que deben realizar todos los selectores.
- * Cuando se inicializa crea un Selector y cuando se arranque el thread y se ejectute run se llamara a la funcion abstracta initiateConnection().
- * Esta funcion se utiliza en el RSTPServerSelector para crear el ServerSocketChannel y añadirlo al Selector.
- * El bucle del thread se encarga de procesar las ChangeRequest, que especifican un canal y los eventos que se deben escuchar sobre el, añadiendolos al selector
- * y ejecutando la funcion select
- * Esta devuelve un conjunto de claves que identifican los canales que tienen eventos a procesar. Se procesan y se vuelve a empezar.
+ * Los selectores no tienen thread propio, cada uno se asigna a uno de los Reactor del ReactorPool (uno por nucleo) y registra
+ * sus canales en el Selector de ese reactor, con el propio AbstractSelector como attachment de la SelectionKey.
+ * Al llamar a start() se ejecuta en el thread del reactor la funcion abstracta initiateConnection().
+ * Esta funcion se utiliza en el UDPServerSelector para crear el DatagramChannel y añadirlo al Selector.
+ * Las ChangeRequest, que especifican un canal y los eventos que se deben escuchar sobre el, se procesan tambien en el thread del reactor.
+ * El reactor ejecuta select y pasa a processKey() las claves de los canales de este selector que tienen eventos a procesar.
+ *
+ * Las escrituras tambien se hacen desde el thread del selector. Cada canal tiene una OutboundQueue y solo se registra OP_WRITE
+ * mientras su cola tiene datos, cuando el canal es escribible se vacia todo lo que acepte sin bloquear.
+ *
+ * Las lecturas se hacen sobre buffers directos del BufferPool compartido. El buffer leido se pasa al worker sin copiarlo
+ * y vuelve al pool cuando el worker y los writers de todos los canales a los que se reenvia han terminado con el (PooledBuffer.release()).
  *
  * TODO: Estudiar si se pueden integrar los sockets, que devuelven los canales, con WifiAware. Para cada conexion entre dos dispositivos por WifiAware, en principio,
  * TODO: hay que asociar el serversocket y el socket del cliente a un objeto Network, que lo aisla de la comunicacion con otros sockets no asociados. Hay que ver si se puede integrar esto con el Selector y los canales.
  * TODO: Si no hay que cambiar a una metodologia multithread.
  */
-public abstract class AbstractSelector implements Runnable{
+public abstract class AbstractSelector {
     private static final String TAG = "AbstractSelector";
 
-    private static final int BUFFER_SIZE = 8192;
-
     //protected static final int PORT_TCP = 3462;
     //protected static final int PORT_UDP = 3463;
 
+    private static final long STOP_TIMEOUT_MS = 2000;
+
     protected static final int STATUS_DISCONNECTED = 0;
     protected static final int STATUS_LISTENING = 1;
     protected static final int STATUS_CONNECTING = 2;
     protected static final int STATUS_CONNECTED = 4;
 
+    protected final Reactor mReactor;
     protected final Selector mSelector;
     protected ConnectivityManager mConManager;
 
     // A list of ChangeRequest instances and Data/socket map
-    protected final List<SelectableChannel> mConnections = new ArrayList<>();
+    protected final List<SelectableChannel> mConnections = new CopyOnWriteArrayList<>();
     protected final List<ChangeRequest> mPendingChangeRequests = new LinkedList<>();
-    protected final Map<SelectableChannel, Queue<ByteBuffer>> mPendingData = new HashMap<>();
-    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    protected final Map<SelectableChannel, OutboundQueue> mPendingData = new ConcurrentHashMap<>();
+    // Lecturas que el worker no ha podido encolar, el canal no se vuelve a leer hasta que entren (ver pauseReading())
+    private final Map<SelectableChannel, PooledBuffer> mPausedReads = new ConcurrentHashMap<>();
+    protected final BufferPool mBufferPool = BufferPool.getInstance();
 
     //protected int mPortTCP = PORT_TCP;
 
@@ -91,8 +100,18 @@ public abstract class AbstractSelector implements Runnable{
 
 
     protected AbstractWorker mWorker;
-    private Thread mSelectorThread;
-    private WriterThread mWriterThread;
+    private final Runnable mChangeRequestsTask = new Runnable() {
+        @Override
+        public void run() {
+            processChangeRequests();
+        }
+    };
+    private final Runnable mResumeReadingTask = new Runnable() {
+        @Override
+        public void run() {
+            resumePausedReads();
+        }
+    };
 
     public abstract void send(byte[] data);
     protected abstract void initiateConnection();
@@ -102,95 +121,135 @@ public abstract class AbstractSelector implements Runnable{
         mConManager = connManager;
         mEnabled = new AtomicBoolean(false);
 
-        this.mSelector = SelectorProvider.provider().openSelector();
-        //Lo mismo que Selector.open();
-        //this.initiateConnectionUDP();
+        this.mReactor = ReactorPool.getInstance().getReactor(this);
+        this.mSelector = mReactor.getSelector();
     }
 
 
+    /**
+     * Libera el selector en el thread de su reactor. Desde un thread externo se espera como mucho STOP_TIMEOUT_MS a que
+     * termine, desde otro reactor no se espera: dos reactores parando cada uno un selector del otro se bloquearian.
+     */
     public void stop(){
         if(mEnabled.compareAndSet(true, false)){
-            mWriterThread.stop();
-            mWriterThread = null;
-            mSelectorThread.interrupt();
+            if(mReactor.inReactorThread()){
+                release();
+                return;
+            }
+            final CountDownLatch released = new CountDownLatch(1);
+            mReactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    release();
+                    released.countDown();
+                }
+            });
+            if(Reactor.isReactorThread()) return;
             try {
-                mSelectorThread.join();
-            } catch (InterruptedException ignored) {}
-            mSelectorThread = null;
+                if(!released.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Selector not released after " + STOP_TIMEOUT_MS + " ms, releasing in background");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     public void start() {
         if(mEnabled.compareAndSet(false, true)) {
-            mWriterThread = new WriterThread(this);
-            mWriterThread.start();
-            mSelectorThread = new Thread(this);
-            mSelectorThread.start();
+            mReactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initiateConnection();
+                    processChangeRequests();
+                    checkStatus();
+                }
+            });
         }
     }
 
-
-    public void run(){
-        try {
-            this.initiateConnection();
-            while (mEnabled.get() && (mStatusTCP != STATUS_DISCONNECTED || mStatusUDP != STATUS_DISCONNECTED)) {
-                this.processChangeRequests();
-
-                mSelector.select();
-
-                Iterator<SelectionKey> itKeys = mSelector.selectedKeys().iterator();
-                while (itKeys.hasNext()) {
-                    SelectionKey myKey = itKeys.next();
-                    itKeys.remove();
-                    if (!myKey.isValid()) {
-                        continue;
-                    }
-                    try{
-                        if (myKey.isAcceptable()) {
-                            this.accept(myKey);
-                        } else if (myKey.isConnectable()) {
-                            this.finishConnection(myKey);
-                        } else if (myKey.isReadable()) {
-                            this.read(myKey);
-                        } else if (myKey.isWritable()) {
-                            synchronized (mPendingData){
-                                Queue<ByteBuffer> queue = mPendingData.get(myKey.channel());
-                                if(queue != null && !queue.isEmpty()) this.write(myKey);
-                            }
-                        }
-                    }catch (IOException ex){
-                        removeClient(myKey.channel());
-                    }
+    /**
+     * Lo llama el Reactor, en su thread, con cada evento de un canal registrado por este selector.
+     */
+    void processKey(SelectionKey key){
+        if(!mEnabled.get()) return;
+        try{
+            if (key.isAcceptable()) {
+                this.accept(key);
+            } else if (key.isConnectable()) {
+                this.finishConnection(key);
+            } else {
+                if (key.isReadable()) {
+                    this.read(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    this.write(key);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            onServerRelease();
-            processChangeRequests();
-
-            for (SelectionKey key : mSelector.keys()) {
-                removeClient(key.channel(), true, false);
-            }
+        }catch (IOException ex){
+            removeClient(key.channel());
+        }
+        checkStatus();
+    }
 
-            mWorker.stop();
+    /** Si ya no queda ningun canal activo se liberan los recursos, como cuando terminaba el bucle del thread del selector */
+    private void checkStatus(){
+        if(mStatusTCP == STATUS_DISCONNECTED && mStatusUDP == STATUS_DISCONNECTED && mEnabled.compareAndSet(true, false)){
+            release();
+        }
+    }
 
-            try {
-                mSelector.close();
-            } catch (IOException ignored) {}
+    private void release(){
+        onServerRelease();
+        processChangeRequests();
 
+        for (SelectionKey key : new ArrayList<>(mSelector.keys())) {
+            if (key.attachment() == this) removeClient(key.channel(), true, false);
         }
+
+        mWorker.stop();
+        Logger.d(TAG + ": selector released, " + mBufferPool);
     }
 
 
     public void send(SelectableChannel socket, byte[] data) {
-        synchronized (mPendingData) {
-            Queue<ByteBuffer> queue = mPendingData.get(socket);
-            if (queue == null) {
-                queue = new LinkedList<>();
-                mPendingData.put(socket, queue);
-            }
-            queue.add(ByteBuffer.wrap(data));
+        send(socket, PooledBuffer.wrap(data));
+    }
+
+    /**
+     * Encola el buffer para enviarlo por el canal. El selector se queda con la referencia del buffer
+     * y la libera cuando se ha escrito completamente o se descarta.
+     */
+    public void send(SelectableChannel socket, PooledBuffer buffer) {
+        send(socket, buffer, null);
+    }
+
+    /** Como send(socket, buffer), para un DatagramChannel sin conectar, el datagrama se envia a target */
+    public void send(SelectableChannel socket, PooledBuffer buffer, SocketAddress target) {
+        OutboundQueue queue = mPendingData.get(socket);
+        if (queue == null) {
+            queue = new OutboundQueue(socket);
+            OutboundQueue current = mPendingData.putIfAbsent(socket, queue);
+            if (current != null) queue = current;
+        }
+        if (queue.add(buffer, target)) {
+            this.addChangeRequest(new ChangeRequest(socket, ChangeRequest.ADD_OPS, SelectionKey.OP_WRITE));
+        }
+    }
+
+    /**
+     * Indica si se pueden seguir encolando datos para el canal o si esta por encima de la marca de agua alta.
+     * Permite a los productores reaccionar antes de que se empiecen a descartar datagramas.
+     */
+    public boolean isWritable(SelectableChannel socket) {
+        OutboundQueue queue = mPendingData.get(socket);
+        return queue == null || queue.isWritable();
+    }
+
+    /** Reenvia el mismo buffer a todas las conexiones sin copiarlo, cada canal recibe su propia vista del buffer */
+    public void send(PooledBuffer buffer) {
+        for (SelectableChannel socket : mConnections) {
+            this.send(socket, buffer.retainedDuplicate());
         }
     }
 
@@ -199,7 +258,8 @@ public abstract class AbstractSelector implements Runnable{
         socketChannel.configureBlocking(false);// Accept the connection and make it non-blocking
 
         // Register the SocketChannel with our Selector, indicating to be notified for READING
-        socketChannel.register(mSelector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // OP_WRITE se registra solo cuando hay datos que enviar (ver send())
+        socketChannel.register(mSelector, SelectionKey.OP_READ, this);
         mConnections.add(socketChannel);
         onClientConnected(socketChannel);
         Log.d(TAG,"Connection Accepted from IP " + socketChannel.socket().getInetAddress().toString() + ":" + socketChannel.socket().getPort());
@@ -212,7 +272,7 @@ public abstract class AbstractSelector implements Runnable{
         try {
             if(socketChannel.finishConnect()) { //Finish connecting.
                 this.mStatusTCP = STATUS_CONNECTED;
-                key.interestOps(SelectionKey.OP_READ);  // Register an interest in reading till send
+                key.interestOps(hasPendingData(socketChannel) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);  // Register an interest in reading till send
                 Log.d(TAG,"Client (" + socketChannel.socket().getLocalAddress() + ") finished connecting...");
                 onClientConnected(socketChannel);
             }
@@ -225,28 +285,84 @@ public abstract class AbstractSelector implements Runnable{
 
     protected void read(SelectionKey key) throws IOException {
         int numRead;
+        SocketAddress source = null;
         SelectableChannel socketChannel = key.channel();
-        mReadBuffer.clear();   //Clear out our read buffer
+        PooledBuffer pooledBuffer = mBufferPool.acquire();
+        ByteBuffer readBuffer = pooledBuffer.getBuffer();
 
-        if (socketChannel instanceof SocketChannel || (socketChannel instanceof DatagramChannel && ((DatagramChannel) socketChannel).isConnected())) {
-            numRead = ((ByteChannel) socketChannel).read(mReadBuffer); // Attempt to read off the channel
-            if (numRead == -1) {
-                throw new IOException("Can not read from socket");
+        try {
+            if (socketChannel instanceof SocketChannel || (socketChannel instanceof DatagramChannel && ((DatagramChannel) socketChannel).isConnected())) {
+                numRead = ((ByteChannel) socketChannel).read(readBuffer); // Attempt to read off the channel
+                if (numRead == -1) {
+                    throw new IOException("Can not read from socket");
+                }
+            } else if(socketChannel instanceof DatagramChannel) {
+                source = ((DatagramChannel) socketChannel).receive(readBuffer);
             }
+            readBuffer.flip();
 
-            mWorker.addData(this, socketChannel, mReadBuffer.array(), numRead);
-        } else if(socketChannel instanceof DatagramChannel) {
-            ((DatagramChannel) socketChannel).receive(mReadBuffer);
-            mReadBuffer.flip();
-
-            if (mReadBuffer.limit() <= 0) {
-                throw new IOException("Read buffer limit under 0");
+            if (readBuffer.limit() <= 0) {
+                pooledBuffer.release();
+                return;
             }
+        } catch (IOException e) {
+            pooledBuffer.release();
+            throw e;
+        }
 
-            mWorker.addData(this, socketChannel, mReadBuffer.array(), mReadBuffer.limit());
+        onDataReceived(socketChannel, pooledBuffer, source);
+    }
+
+    /** Como onDataReceived(channel, buffer), con la direccion de origen si el canal es un DatagramChannel sin conectar */
+    protected void onDataReceived(SelectableChannel channel, PooledBuffer buffer, SocketAddress source) {
+        onDataReceived(channel, buffer);
+    }
+
+    /**
+     * Se llama desde el thread del selector con los datos leidos de un canal. Por defecto los pasa al worker.
+     * Quien lo reimplemente se queda con la referencia del buffer y debe liberarlo.
+     */
+    protected void onDataReceived(SelectableChannel channel, PooledBuffer buffer) {
+        if(!mWorker.addData(this, channel, buffer)) {
+            pauseReading(channel, buffer);
         }
     }
 
+    /**
+     * La cola del worker esta llena y el canal es TCP: en vez de esperar en el thread del reactor, que comparten otros
+     * selectores, se deja de leer del canal (sin OP_READ el control de flujo de TCP frena al emisor) y se guarda lo leido
+     * hasta que el worker avisa de que tiene sitio.
+     */
+    protected void pauseReading(SelectableChannel channel, PooledBuffer buffer) {
+        SelectionKey key = channel.keyFor(mSelector);
+        if(key != null && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        mPausedReads.put(channel, buffer);
+        if(mWorker.onSelectorStalled(this)) resumeReading();
+    }
+
+    /** Lo llama el worker cuando ha vaciado su cola, desde su thread */
+    public void resumeReading() {
+        mReactor.execute(mResumeReadingTask);
+    }
+
+    private void resumePausedReads() {
+        for(Map.Entry<SelectableChannel, PooledBuffer> paused : mPausedReads.entrySet()) {
+            SelectableChannel channel = paused.getKey();
+            if(!mWorker.addData(this, channel, paused.getValue())) {
+                if(mWorker.onSelectorStalled(this)) resumeReading();
+                return;
+            }
+            mPausedReads.remove(channel);
+            SelectionKey key = channel.keyFor(mSelector);
+            if(key != null && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    protected boolean hasPendingData(SelectableChannel channel) {
+        OutboundQueue queue = mPendingData.get(channel);
+        return queue != null && !queue.isEmpty();
+    }
+
 
 
     public void disconnectClient(SelectableChannel channel) {
@@ -266,6 +382,10 @@ public abstract class AbstractSelector implements Runnable{
         } catch (IOException ignored) {}
 
         mConnections.remove(channel);
+        PooledBuffer paused = mPausedReads.remove(channel);
+        if(paused != null) paused.release();
+        OutboundQueue queue = mPendingData.remove(channel);
+        if(queue != null) queue.clear();
         if(notify) onClientDisconnected(channel);
 
         if(printLogs){
@@ -288,12 +408,11 @@ public abstract class AbstractSelector implements Runnable{
     protected void onClientConnected(SelectableChannel socketChannel) {}
     protected void onServerRelease(){}
 
-    protected void write(SelectionKey key){
-        SelectableChannel socketChannel = key.channel();
-
-        Queue<ByteBuffer> queue = mPendingData.get(socketChannel);
-        while (!queue.isEmpty()) {
-            mWriterThread.addWrite(socketChannel, queue.poll());
+    /** Vacia la cola del canal sin bloquear, cuando queda vacia se deja de escuchar OP_WRITE */
+    protected void write(SelectionKey key) throws IOException {
+        OutboundQueue queue = mPendingData.get(key.channel());
+        if (queue == null || queue.flush()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
         }
     }
 
@@ -301,8 +420,8 @@ public abstract class AbstractSelector implements Runnable{
     public void addChangeRequest(ChangeRequest changeRequest) {
         synchronized(this.mPendingChangeRequests) {         // Queue a channel registration
             this.mPendingChangeRequests.add(changeRequest);
-            mSelector.wakeup();
         }
+        mReactor.execute(mChangeRequestsTask);
     }
 
 
@@ -322,8 +441,14 @@ public abstract class AbstractSelector implements Runnable{
                         case ChangeRequest.CHANGE_OPS:
                             changeRequest.getChannel().keyFor(mSelector).interestOps(changeRequest.getOps());
                             break;
+                        case ChangeRequest.ADD_OPS:
+                            SelectionKey key = changeRequest.getChannel().keyFor(mSelector);
+                            if (key != null && key.isValid()) key.interestOps(key.interestOps() | changeRequest.getOps());
+                            break;
                         case ChangeRequest.REGISTER:
-                            changeRequest.getChannel().register(mSelector, changeRequest.getOps());
+                            int ops = changeRequest.getOps();
+                            if (hasPendingData(changeRequest.getChannel())) ops |= SelectionKey.OP_WRITE;
+                            changeRequest.getChannel().register(mSelector, ops, this);
                             break;
                         case ChangeRequest.REMOVE:
                             removeClient(changeRequest.getChannel(), false, true);
@@ -340,90 +465,4 @@ public abstract class AbstractSelector implements Runnable{
             this.mPendingChangeRequests.clear();
         }
     }
-
-    static class WriterThread implements Runnable{
-        private Thread mThread;
-        private final AtomicBoolean mEnabled;
-        private final Queue<SelectableChannel> mPendingChannels;
-        private final Map<SelectableChannel, Queue<ByteBuffer>> mPendingBuffers;
-        private final Lock mLock = new ReentrantLock();
-        private final Condition mDataToWrite = mLock.newCondition();
-        private final AbstractSelector mSelector;
-
-        public WriterThread(AbstractSelector selector){
-            mThread = null;
-            mEnabled = new AtomicBoolean(false);
-            mPendingChannels = new LinkedList<>();
-            mPendingBuffers = new HashMap<>();
-            mSelector = selector;
-        }
-
-        public void start(){
-            if(mEnabled.compareAndSet(false, true)){
-                mThread = new Thread(this);
-                mThread.start();
-            }
-        }
-
-        public void stop(){
-            if(mEnabled.compareAndSet(true, false)){
-                mThread.interrupt();
-                try {
-                    mThread.join();
-                } catch (InterruptedException ignored) {}
-                mThread = null;
-            }
-        }
-
-        public void addWrite(SelectableChannel chan, ByteBuffer buff){
-            mLock.lock();
-            Queue<ByteBuffer> buffers = mPendingBuffers.get(chan);
-            if(buffers == null){
-                buffers = new LinkedList<>();
-                mPendingBuffers.put(chan, buffers);
-                mPendingChannels.add(chan);
-            }
-            buffers.add(buff);
-            mDataToWrite.signal();
-            mLock.unlock();
-        }
-
-        @Override
-        public void run() {
-            try{
-                while(mEnabled.get()){
-                    mLock.lock();
-                    while(mPendingChannels.isEmpty()){
-                        mDataToWrite.await();
-                    }
-                    SelectableChannel chan = mPendingChannels.poll();
-                    Queue<ByteBuffer> buffers = mPendingBuffers.get(chan);
-                    ByteBuffer buff = buffers.peek();
-                    try {
-                        ((ByteChannel) chan).write(buff);
-                        if(buff.remaining() <= 0){
-                            buffers.remove();
-                        }
-                        if(buffers.isEmpty()){
-                            mPendingBuffers.remove(chan);
-                        }
-                        else{
-                            mPendingChannels.add(chan);
-                        }
-                    } catch (IOException e) {
-                        mPendingBuffers.remove(chan);
-                        mSelector.disconnectClient(chan);
-                    }
-                    mLock.unlock();
-                }
-            }
-            catch (InterruptedException ignored){
-                mLock.unlock();
-            }
-            finally {
-                mPendingChannels.clear();
-                mPendingBuffers.clear();
-            }
-        }
-    }
 }
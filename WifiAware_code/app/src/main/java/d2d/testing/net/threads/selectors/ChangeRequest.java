@@ -7,6 +7,7 @@ public class ChangeRequest {
     public static final int CHANGE_OPS = 2;
     public static final int REMOVE = 3;
     public static final int REMOVE_AND_NOTIFY = 4; //Se borra y cierra el canal y se llama a onCLientDisconected
+    public static final int ADD_OPS = 5; //Se añaden las ops a las que ya tiene registradas el canal
 
     private final SelectableChannel mChannel;
     private final int mType;
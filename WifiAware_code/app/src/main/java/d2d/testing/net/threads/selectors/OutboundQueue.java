@@ -0,0 +1,180 @@
+package d2d.testing.net.threads.selectors;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import d2d.testing.net.buffers.PooledBuffer;
+
+/**
+ * Cola de salida de un canal. Cada canal tiene la suya, asi un cliente lento solo retrasa sus propios envios.
+ *
+ * Los productores (worker, selector) encolan con add() y el thread del selector la vacia con flush()
+ * cuando el canal es escribible. requestWrite indica si el selector tiene OP_WRITE registrado para el canal,
+ * se activa al encolar sobre una cola vacia y se desactiva cuando flush() la deja vacia.
+ *
+ * Cuando los bytes encolados superan HIGH_WATERMARK el canal deja de estar disponible (isWritable() == false)
+ * hasta que flush() baja de LOW_WATERMARK. Mientras tanto los datagramas se descartan, ya que RTP tolera perdidas
+ * y encolarlos solo añadiria latencia. Los datos de canales TCP (RTSP) nunca se descartan.
+ *
+ * Un DatagramChannel sin conectar (el del RelaySelector) envia a muchos destinos, cada buffer se encola con el suyo
+ * (add(buffer, target)) y se envia con send(). Si un destino da error se descarta solo ese datagrama.
+ * Ademas se cuentan los bytes encolados por destino: si uno pasa de TARGET_HIGH_WATERMARK (p.e. un suscriptor que recibe
+ * la rafaga del GOP) se descartan solo sus datagramas hasta que baja de TARGET_LOW_WATERMARK, y el resto de destinos sigue igual.
+ */
+public class OutboundQueue {
+    public static final int HIGH_WATERMARK = 512 * 1024;
+    public static final int LOW_WATERMARK = 128 * 1024;
+    public static final int TARGET_HIGH_WATERMARK = 128 * 1024;
+    public static final int TARGET_LOW_WATERMARK = 32 * 1024;
+
+    private final SelectableChannel mChannel;
+    private final ArrayDeque<PooledBuffer> mBuffers = new ArrayDeque<>();
+    private final ArrayDeque<SocketAddress> mTargets = new ArrayDeque<>();
+    // Destinos con datagramas en la cola, se quitan cuando se envia el ultimo
+    private final Map<SocketAddress, TargetState> mTargetStates = new HashMap<>();
+    private long mQueuedBytes = 0;
+    private long mDroppedBuffers = 0;
+    private boolean mWritable = true;
+    private boolean mWriteRequested = false;
+
+    public OutboundQueue(SelectableChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Encola el buffer, la cola se queda con su referencia.
+     * @return true si el selector tiene que registrar OP_WRITE para el canal
+     */
+    public synchronized boolean add(PooledBuffer buffer) {
+        return add(buffer, null);
+    }
+
+    /**
+     * Como add(buffer), para un DatagramChannel sin conectar.
+     * @param target destino del datagrama, null si el canal esta conectado
+     */
+    public synchronized boolean add(PooledBuffer buffer, SocketAddress target) {
+        if(!mWritable && mChannel instanceof DatagramChannel) {
+            mDroppedBuffers++;
+            buffer.release();
+            return false;
+        }
+        int length = buffer.remaining();
+        if(target != null) {
+            TargetState state = mTargetStates.get(target);
+            if(state == null) {
+                state = new TargetState();
+                mTargetStates.put(target, state);
+            }
+            if(state.mBlocked) {
+                mDroppedBuffers++;
+                buffer.release();
+                return false;
+            }
+            state.mQueuedBytes += length;
+            if(state.mQueuedBytes >= TARGET_HIGH_WATERMARK) state.mBlocked = true;
+            mTargets.add(target);
+        }
+        mBuffers.add(buffer);
+        mQueuedBytes += length;
+        if(mQueuedBytes >= HIGH_WATERMARK) mWritable = false;
+        if(mWriteRequested) return false;
+        mWriteRequested = true;
+        return true;
+    }
+
+    /**
+     * Escribe en el canal todo lo que acepte sin bloquear. Solo lo llama el thread del selector.
+     * @return true si la cola ha quedado vacia y hay que quitar OP_WRITE
+     */
+    public synchronized boolean flush() throws IOException {
+        PooledBuffer buffer;
+        while((buffer = mBuffers.peek()) != null) {
+            SocketAddress target = mTargets.peek();
+            if(target != null) {
+                int length = buffer.remaining();
+                try {
+                    if(((DatagramChannel) mChannel).send(buffer.getBuffer(), target) == 0) break; // El buffer del socket esta lleno
+                } catch (IOException e) {
+                    mDroppedBuffers++;
+                }
+                mQueuedBytes -= length;
+                onTargetSent(mTargets.poll(), length);
+                mBuffers.poll().release();
+                continue;
+            }
+            int written = ((ByteChannel) mChannel).write(buffer.getBuffer());
+            mQueuedBytes -= written;
+            if(buffer.remaining() > 0) break; // El buffer del socket esta lleno
+            mBuffers.poll().release();
+        }
+        if(!mWritable && mQueuedBytes <= LOW_WATERMARK) mWritable = true;
+        if(mBuffers.isEmpty()) {
+            mWriteRequested = false;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mBuffers.isEmpty();
+    }
+
+    public synchronized boolean isWritable() {
+        return mWritable;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /** Bytes encolados para un destino de un DatagramChannel sin conectar */
+    public synchronized long getQueuedBytes(SocketAddress target) {
+        TargetState state = mTargetStates.get(target);
+        return state == null ? 0 : state.mQueuedBytes;
+    }
+
+    /** Si se aceptan datagramas para el destino, false mientras esta por encima de su marca de agua */
+    public synchronized boolean isWritable(SocketAddress target) {
+        TargetState state = mTargetStates.get(target);
+        return mWritable && (state == null || !state.mBlocked);
+    }
+
+    public synchronized long getDroppedBuffers() {
+        return mDroppedBuffers;
+    }
+
+    /** Libera todos los buffers pendientes, se llama cuando se cierra el canal */
+    public synchronized void clear() {
+        PooledBuffer buffer;
+        while((buffer = mBuffers.poll()) != null) {
+            buffer.release();
+        }
+        mTargets.clear();
+        mTargetStates.clear();
+        mQueuedBytes = 0;
+        mWriteRequested = false;
+    }
+
+    private void onTargetSent(SocketAddress target, int length) {
+        TargetState state = mTargetStates.get(target);
+        if(state == null) return;
+        state.mQueuedBytes -= length;
+        if(state.mQueuedBytes <= 0) {
+            mTargetStates.remove(target);
+        } else if(state.mBlocked && state.mQueuedBytes <= TARGET_LOW_WATERMARK) {
+            state.mBlocked = false;
+        }
+    }
+
+    private static class TargetState {
+        long mQueuedBytes;
+        boolean mBlocked;
+    }
+}
@@ -1,7 +1,6 @@
 package d2d.testing.net.threads.selectors;
 
 import android.net.ConnectivityManager;
-import android.net.Network;
 
 import androidx.annotation.NonNull;
 import java.io.IOException;
@@ -128,9 +127,6 @@ public class RTSPServerSelector extends AbstractSelector {
 
     }
 
-    public synchronized Network getChannelNetwork(SelectableChannel chan){
-        return mController.getChannelNetwork(chan);
-    }
 
 
 
@@ -0,0 +1,107 @@
+package d2d.testing.net.threads.selectors;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bucle de eventos con un Selector y un thread propio, compartido por varios AbstractSelector.
+ * Cada SelectionKey registrada lleva como attachment el AbstractSelector al que pertenece el canal,
+ * y el reactor le pasa los eventos con processKey(). Los canales sueltos que no son de ningun AbstractSelector
+ * (p.e. el RTCP de cada SenderReport) llevan un KeyHandler.
+ *
+ * Todo lo que modifique el Selector (registros, cambios de ops, cierres) se ejecuta en el thread del reactor
+ * a traves de execute(), que encola la tarea y despierta al Selector.
+ */
+public class Reactor implements Runnable {
+    private static final String TAG = "Reactor";
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final Thread mThread;
+    // Marca los threads de todos los reactores, para no bloquear uno esperando a otro
+    private static final ThreadLocal<Boolean> IS_REACTOR_THREAD = new ThreadLocal<>();
+
+    /** Attachment de un canal registrado directamente en el reactor, se llama desde su thread y no debe bloquear */
+    public interface KeyHandler {
+        void processKey(SelectionKey key);
+    }
+
+    Reactor(int index) throws IOException {
+        mSelector = SelectorProvider.provider().openSelector();
+        mThread = new Thread(this, TAG + "-" + index);
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    public Selector getSelector() {
+        return mSelector;
+    }
+
+    public boolean inReactorThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /** Si el thread actual es el de cualquier reactor del pool */
+    public static boolean isReactorThread() {
+        return IS_REACTOR_THREAD.get() != null;
+    }
+
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        if(!inReactorThread()) mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        IS_REACTOR_THREAD.set(Boolean.TRUE);
+        while(true) {
+            runTasks();
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "Error in select", e);
+                continue;
+            }
+
+            Iterator<SelectionKey> itKeys = mSelector.selectedKeys().iterator();
+            while (itKeys.hasNext()) {
+                SelectionKey key = itKeys.next();
+                itKeys.remove();
+                if (!key.isValid()) continue;
+                Object owner = key.attachment();
+                try {
+                    if (owner instanceof AbstractSelector) {
+                        ((AbstractSelector) owner).processKey(key);
+                    } else if (owner instanceof KeyHandler) {
+                        ((KeyHandler) owner).processKey(key);
+                    } else {
+                        key.cancel();
+                    }
+                } catch (RuntimeException e) {
+                    // Un fallo en un canal no puede parar el resto de canales del reactor
+                    Log.e(TAG, "Error processing key", e);
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error running task", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package d2d.testing.net.threads.selectors;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Conjunto fijo de Reactor, uno por nucleo, que comparten todos los AbstractSelector de la aplicacion.
+ * Asi el numero de threads de red no crece con el numero de streamings o de tracks.
+ *
+ * Cada AbstractSelector se asigna a un reactor con un hash consistente (anillo con nodos virtuales) sobre su clave,
+ * de forma que todos los canales de un mismo selector (p.e. el puerto de un track y sus suscriptores) se atienden
+ * en el mismo thread y el reparto se mantiene aunque cambie el numero de reactores.
+ */
+public class ReactorPool {
+    private static final int VIRTUAL_NODES = 32;
+
+    static private ReactorPool INSTANCE = null;
+
+    private final Reactor[] mReactors;
+    private final TreeMap<Integer, Reactor> mRing = new TreeMap<>();
+
+    public static synchronized ReactorPool getInstance() throws IOException {
+        if(INSTANCE == null) {
+            INSTANCE = new ReactorPool(Runtime.getRuntime().availableProcessors());
+        }
+        return INSTANCE;
+    }
+
+    public ReactorPool(int size) throws IOException {
+        if(size <= 0) throw new IllegalArgumentException("Pool size must be positive");
+        mReactors = new Reactor[size];
+        for(int i = 0; i < size; i++) {
+            mReactors[i] = new Reactor(i);
+            for(int v = 0; v < VIRTUAL_NODES; v++) {
+                mRing.put(mix(i * VIRTUAL_NODES + v), mReactors[i]);
+            }
+        }
+        for(Reactor reactor : mReactors) {
+            reactor.start();
+        }
+    }
+
+    public Reactor getReactor(Object key) {
+        Map.Entry<Integer, Reactor> entry = mRing.ceilingEntry(mix(key.hashCode()));
+        if(entry == null) entry = mRing.firstEntry();
+        return entry.getValue();
+    }
+
+    public int size() {
+        return mReactors.length;
+    }
+
+    /** Finalizador de MurmurHash3, reparte hashes cercanos (identityHashCode, puertos) por todo el anillo */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,175 @@
+package d2d.testing.net.threads.selectors;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import d2d.testing.streaming.rtcp.RtcpRelay;
+import d2d.testing.streaming.rtp.RtpDuplicateFilter;
+import d2d.testing.streaming.rtp.RtpGopCache;
+import d2d.testing.utils.Logger;
+
+/**
+ * Entrada de la tabla de rutas del RelaySelector: una pista que llega a este nodo y los suscriptores a los que se reenvia.
+ * La crea TrackInfo con el SETUP del emisor.
+ *
+ * Se identifica por el SSRC del RTP, que el emisor indica en el Transport del SETUP (ssrc=).
+ * Si no lo indica la ruta queda sin asociar hasta que llega el primer paquete de un SSRC desconocido desde la direccion
+ * del emisor y con el payload type de la pista (ver accepts()).
+ *
+ * Cada suscriptor es un par de direcciones RTP/RTCP. Los RTCP del emisor se reenvian a todos, el RTP solo a los activados
+ * (RelaySelector.activate(), con el PLAY), que antes reciben el GOP de la RtpGopCache.
+ * Los paquetes RTP repetidos (misma secuencia, p.ej. mientras el stream cambia de camino) se descartan con el RtpDuplicateFilter.
+ */
+public class RelayRoute {
+
+    private volatile int mSsrc;
+    private volatile boolean mBound;
+    private final int mPayloadType;
+    private final byte[] mUpstreamAddress;
+    private final RtpGopCache mGopCache;
+    private final RtcpRelay mRtcpRelay;
+    private final RtpDuplicateFilter mDuplicateFilter = new RtpDuplicateFilter();
+
+    private final List<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+    private final List<Subscriber> mActiveSubscribers = new CopyOnWriteArrayList<>();
+    // Suscriptores activados sin GOP en la cache, esperando al siguiente keyframe
+    private final Map<Subscriber, Long> mWaitingForKeyframe = new ConcurrentHashMap<>();
+
+    private long mJoins = 0;
+    private long mJoinLatencyTotal = 0;
+    private volatile long mLastJoinLatency = -1;
+    private volatile long mMaxJoinLatency = -1;
+
+    /**
+     * @param ssrc SSRC de la pista, null si el emisor no lo ha indicado
+     * @param payloadType payload type de la pista segun el SDP, -1 si no se conoce
+     * @param upstream direccion del emisor
+     * @param gopCache null si no se guarda el GOP (pistas de audio)
+     */
+    public RelayRoute(Integer ssrc, int payloadType, InetAddress upstream, RtpGopCache gopCache, RtcpRelay rtcpRelay) {
+        if(ssrc != null) {
+            mSsrc = ssrc;
+            mBound = true;
+        }
+        mPayloadType = payloadType;
+        mUpstreamAddress = upstream != null ? upstream.getAddress() : null;
+        mGopCache = gopCache;
+        mRtcpRelay = rtcpRelay;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    public boolean isBound() {
+        return mBound;
+    }
+
+    /**
+     * Para una ruta sin SSRC, indica si un paquete de un SSRC desconocido es de esta pista.
+     * Se compara la direccion sin el scope, que en las direcciones link-local de Wi-Fi Aware puede no coincidir.
+     */
+    boolean accepts(int payloadType, InetSocketAddress source) {
+        if(mBound || source == null) return false;
+        if(mPayloadType >= 0 && payloadType != mPayloadType) return false;
+        return mUpstreamAddress == null || Arrays.equals(mUpstreamAddress, source.getAddress().getAddress());
+    }
+
+    void bind(int ssrc) {
+        mSsrc = ssrc;
+        mBound = true;
+        Logger.d("RelayRoute: bound to SSRC " + Integer.toHexString(ssrc));
+    }
+
+    RtpGopCache getGopCache() {
+        return mGopCache;
+    }
+
+    RtcpRelay getRtcpRelay() {
+        return mRtcpRelay;
+    }
+
+    RtpDuplicateFilter getDuplicateFilter() {
+        return mDuplicateFilter;
+    }
+
+    /** Paquetes RTP descartados por llegar repetidos */
+    public long getDuplicatePackets() {
+        return mDuplicateFilter.getDuplicates();
+    }
+
+    List<Subscriber> getSubscribers() {
+        return mSubscribers;
+    }
+
+    List<Subscriber> getActiveSubscribers() {
+        return mActiveSubscribers;
+    }
+
+    Map<Subscriber, Long> getWaitingForKeyframe() {
+        return mWaitingForKeyframe;
+    }
+
+    public Subscriber addSubscriber(InetAddress address, int rtpPort, int rtcpPort) {
+        Subscriber subscriber = new Subscriber(new InetSocketAddress(address, rtpPort), new InetSocketAddress(address, rtcpPort));
+        mSubscribers.add(subscriber);
+        return subscriber;
+    }
+
+    public void removeSubscriber(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+        mActiveSubscribers.remove(subscriber);
+        mWaitingForKeyframe.remove(subscriber);
+    }
+
+    void clear() {
+        mSubscribers.clear();
+        mActiveSubscribers.clear();
+        mWaitingForKeyframe.clear();
+    }
+
+    synchronized void recordJoin(long requested, long now, int burst) {
+        long latency = (now - requested) / 1000000L;
+        mJoins++;
+        mJoinLatencyTotal += latency;
+        mLastJoinLatency = latency;
+        if(latency > mMaxJoinLatency) mMaxJoinLatency = latency;
+        Logger.d("RelayRoute: join to first keyframe " + latency + " ms" + (burst > 0 ? " (" + burst + " cached packets)" : ""));
+    }
+
+    /** Milisegundos desde la activacion hasta el primer keyframe del ultimo suscriptor, -1 si aun no hay */
+    public long getLastJoinLatency() {
+        return mLastJoinLatency;
+    }
+
+    public long getMaxJoinLatency() {
+        return mMaxJoinLatency;
+    }
+
+    public synchronized long getAverageJoinLatency() {
+        return mJoins == 0 ? -1 : mJoinLatencyTotal / mJoins;
+    }
+
+    public static class Subscriber {
+        private final InetSocketAddress mRtpAddress;
+        private final InetSocketAddress mRtcpAddress;
+
+        private Subscriber(InetSocketAddress rtpAddress, InetSocketAddress rtcpAddress) {
+            mRtpAddress = rtpAddress;
+            mRtcpAddress = rtcpAddress;
+        }
+
+        public InetSocketAddress getRtpAddress() {
+            return mRtpAddress;
+        }
+
+        public InetSocketAddress getRtcpAddress() {
+            return mRtcpAddress;
+        }
+    }
+}
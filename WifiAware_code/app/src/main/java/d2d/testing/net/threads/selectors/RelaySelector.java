@@ -0,0 +1,437 @@
+package d2d.testing.net.threads.selectors;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import d2d.testing.net.buffers.PooledBuffer;
+import d2d.testing.net.threads.workers.EchoWorker;
+import d2d.testing.streaming.rtcp.RtcpParser;
+import d2d.testing.streaming.rtp.RtpGopCache;
+import d2d.testing.utils.Logger;
+
+/**
+ * Relay RTP/RTCP de todo el nodo. Antes cada pista recibida (TrackInfo) abria dos UDPServerSelector con sus puertos,
+ * y cada suscriptor un DatagramChannel conectado por pista, asi que los sockets crecian con streams x suscriptores.
+ *
+ * Ahora hay un unico par de DatagramChannel sin conectar (RTP y RTCP, porque el SETUP anuncia un par de puertos),
+ * escuchando en todas las interfaces en RELAY_PORT o el siguiente par libre, y atendidos por un solo Reactor.
+ * Lo que llega se busca por SSRC en la tabla de rutas (RelayRoute), que se publica copy-on-write: cada cambio crea un mapa
+ * nuevo con la version siguiente, asi el reactor la consulta sin locks y sin que le afecten los cambios a mitad de un paquete.
+ * -RTP: el SSRC de la cabecera. Si no esta en la tabla se prueba con las rutas aun sin SSRC (por direccion y payload type).
+ * -RTCP: el SSRC del emisor si empieza por un SR, o el del stream sobre el que informa el primer report block si es un RR.
+ * Los RTP repetidos de una ruta (misma secuencia, ver RtpDuplicateFilter) se descartan antes de las estadisticas y del reenvio.
+ * Y se reenvia con send() a las direcciones de los suscriptores de la ruta, desde el mismo canal. Si el socket no acepta
+ * el datagrama en ese momento se encola con su destino en la OutboundQueue del canal.
+ *
+ * Lo que hacian los UDPServerSelector de cada pista se mantiene por ruta: la cache del GOP para los que se unen tarde
+ * y el RtcpRelay con las ReceptionStats, que envia los RR del relay al emisor por el canal del RTCP.
+ * La rafaga del GOP (hasta RtpGopCache.MAX_CACHE_BYTES) no se envia de golpe: como comparte la cola del canal con el resto
+ * de rutas, se envia por tramos (GopBurst) sin pasar de BURST_QUEUE_LIMIT bytes encolados para ese suscriptor,
+ * y se continua cuando el canal vuelve a ser escribible.
+ *
+ * Los canales no se atan a la Network de Wi-Fi Aware (antes cada UDPServerSelector hacia bindProcessToNetwork()
+ * con la red de la conexion RTSP del ANNOUNCE). Un mismo canal atiende rutas y suscriptores de varias redes Aware a la vez,
+ * y un socket solo se puede atar a una. No hace falta: escuchan en la direccion comodin, asi que reciben de todas
+ * las interfaces, y las direcciones del emisor y de los suscriptores salen de sus conexiones RTSP, que en Aware son
+ * IPv6 link-local con el scope de la interfaz de su red, por lo que send() ya sale por esa interfaz.
+ * Ademas bindProcessToNetwork() cambia la red de todo el proceso, y se pisaba con la de los RtspClientWFA.
+ * Todo el procesado de paquetes ocurre en el thread del reactor.
+ */
+public class RelaySelector extends AbstractSelector {
+
+    public static final int RELAY_PORT = 20000;
+    private static final int PORT_ATTEMPTS = 50;
+    // Bytes de la rafaga del GOP que puede haber en la cola para un suscriptor, por debajo de OutboundQueue.TARGET_HIGH_WATERMARK
+    private static final int BURST_QUEUE_LIMIT = 64 * 1024;
+
+    static private RelaySelector INSTANCE = null;
+
+    private final DatagramChannel mRtpChannel;
+    private final DatagramChannel mRtcpChannel;
+    private final int mRtpPort;
+    private volatile Map<Integer, RelayRoute> mRoutes = Collections.emptyMap();
+    private volatile long mRoutesVersion = 0;
+    private final List<RelayRoute> mUnboundRoutes = new CopyOnWriteArrayList<>();
+    private volatile long mUnroutedPackets = 0;
+    // Rafagas del GOP a medias, esperando a que se vacie la cola del canal del RTP. Solo se usa desde el thread del reactor
+    private final List<GopBurst> mBursts = new ArrayList<>();
+
+    public static synchronized RelaySelector getInstance() throws IOException {
+        if (INSTANCE == null) {
+            INSTANCE = new RelaySelector();
+            INSTANCE.start();
+        }
+        return INSTANCE;
+    }
+
+    private RelaySelector() throws IOException {
+        super(null);
+        mWorker = new EchoWorker(this); // No se arranca, los paquetes se procesan en el thread del reactor
+        DatagramChannel rtp = null, rtcp = null;
+        int port = RELAY_PORT;
+        for (int i = 0; i < PORT_ATTEMPTS; i++, port += 2) {
+            try {
+                rtp = DatagramChannel.open();
+                rtp.socket().bind(new InetSocketAddress(port));
+                rtcp = DatagramChannel.open();
+                rtcp.socket().bind(new InetSocketAddress(port + 1));
+                break;
+            } catch (IOException e) {
+                if (rtp != null) rtp.close();
+                if (rtcp != null) rtcp.close();
+                rtp = null;
+                rtcp = null;
+            }
+        }
+        if (rtp == null) throw new IOException("No free port pair for the relay from " + RELAY_PORT);
+        rtp.configureBlocking(false);
+        rtcp.configureBlocking(false);
+        mRtpChannel = rtp;
+        mRtcpChannel = rtcp;
+        mRtpPort = port;
+    }
+
+    public int getRtpPort() {
+        return mRtpPort;
+    }
+
+    public int getRtcpPort() {
+        return mRtpPort + 1;
+    }
+
+    /** Paquetes descartados porque no corresponden a ninguna ruta */
+    public long getUnroutedPackets() {
+        return mUnroutedPackets;
+    }
+
+    /** Bytes en las colas de envio de los dos canales, pendientes de que el socket los acepte */
+    public long getQueuedBytes() {
+        long bytes = 0;
+        OutboundQueue queue = mPendingData.get(mRtpChannel);
+        if (queue != null) bytes += queue.getQueuedBytes();
+        queue = mPendingData.get(mRtcpChannel);
+        if (queue != null) bytes += queue.getQueuedBytes();
+        return bytes;
+    }
+
+    /** Version de la tabla de rutas, cambia con cada ruta que se añade, se asocia a un SSRC o se elimina */
+    public long getRoutesVersion() {
+        return mRoutesVersion;
+    }
+
+    /** @return false si ya hay una ruta con el mismo SSRC */
+    public synchronized boolean addRoute(RelayRoute route) {
+        if (!route.isBound()) {
+            mUnboundRoutes.add(route);
+            return true;
+        }
+        if (mRoutes.containsKey(route.getSsrc())) return false;
+        Map<Integer, RelayRoute> routes = new HashMap<>(mRoutes);
+        routes.put(route.getSsrc(), route);
+        publishRoutes(routes);
+        return true;
+    }
+
+    public synchronized void removeRoute(RelayRoute route) {
+        if (!mUnboundRoutes.remove(route) && mRoutes.get(route.getSsrc()) == route) {
+            Map<Integer, RelayRoute> routes = new HashMap<>(mRoutes);
+            routes.remove(route.getSsrc());
+            publishRoutes(routes);
+        }
+        route.clear();
+    }
+
+    private void publishRoutes(Map<Integer, RelayRoute> routes) {
+        mRoutes = routes;
+        mRoutesVersion++;
+    }
+
+    /**
+     * Empieza a reenviar el RTP de la ruta al suscriptor, normalmente al recibir el PLAY.
+     * Antes se le envia el GOP guardado con los numeros de secuencia reescritos.
+     */
+    public void activate(final RelayRoute route, final RelayRoute.Subscriber subscriber) {
+        final long requested = System.nanoTime();
+        mReactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                join(route, subscriber, requested);
+            }
+        });
+    }
+
+    /** Deja de reenviar el RTP de la ruta al suscriptor, que sigue dado de alta y recibiendo el RTCP */
+    public void deactivate(final RelayRoute route, final RelayRoute.Subscriber subscriber) {
+        mReactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeBurst(subscriber);
+                route.getActiveSubscribers().remove(subscriber);
+                route.getWaitingForKeyframe().remove(subscriber);
+            }
+        });
+    }
+
+    /**
+     * Se ha pedido al emisor de la ruta que deje de enviar. El GOP guardado se descarta, al reanudar seria de hace
+     * tiempo y los que se unan deben esperar al siguiente keyframe.
+     */
+    public void idle(final RelayRoute route) {
+        mReactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (route.getGopCache() != null) route.getGopCache().clear();
+            }
+        });
+    }
+
+    private void join(RelayRoute route, RelayRoute.Subscriber subscriber, long requested) {
+        if (!route.getSubscribers().contains(subscriber) || route.getActiveSubscribers().contains(subscriber)
+                || findBurst(subscriber) != null) return;
+        RtpGopCache gopCache = route.getGopCache();
+        if (gopCache == null || gopCache.getPacketCount() == 0) {
+            route.getActiveSubscribers().add(subscriber);
+            if (gopCache != null) route.getWaitingForKeyframe().put(subscriber, requested);
+            return;
+        }
+        GopBurst burst = new GopBurst(route, subscriber, requested);
+        if (!burst.send()) mBursts.add(burst);
+    }
+
+    private GopBurst findBurst(RelayRoute.Subscriber subscriber) {
+        for (GopBurst burst : mBursts) {
+            if (burst.mSubscriber == subscriber) return burst;
+        }
+        return null;
+    }
+
+    private void removeBurst(RelayRoute.Subscriber subscriber) {
+        GopBurst burst = findBurst(subscriber);
+        if (burst != null) mBursts.remove(burst);
+    }
+
+    /** Continua las rafagas pendientes despues de que el canal del RTP haya vaciado parte de su cola */
+    private void resumeBursts() {
+        for (Iterator<GopBurst> it = mBursts.iterator(); it.hasNext(); ) {
+            if (it.next().send()) it.remove();
+        }
+    }
+
+    @Override
+    protected void initiateConnection() {
+        mStatusUDP = STATUS_LISTENING;
+        this.addChangeRequest(new ChangeRequest(mRtpChannel, ChangeRequest.REGISTER, SelectionKey.OP_READ));
+        this.addChangeRequest(new ChangeRequest(mRtcpChannel, ChangeRequest.REGISTER, SelectionKey.OP_READ));
+        Logger.d("RelaySelector: listening RTP/RTCP on ports " + mRtpPort + "-" + (mRtpPort + 1));
+    }
+
+    /** Un error de lectura o escritura no puede cerrar los canales, los comparten todas las rutas */
+    @Override
+    protected void read(SelectionKey key) {
+        try {
+            super.read(key);
+        } catch (IOException e) {
+            Logger.e("RelaySelector: error reading: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void write(SelectionKey key) {
+        try {
+            super.write(key);
+        } catch (IOException e) {
+            Logger.e("RelaySelector: error writing: " + e.getMessage());
+        }
+        if (key.channel() == mRtpChannel && !mBursts.isEmpty()) resumeBursts();
+    }
+
+    @Override
+    protected void onDataReceived(SelectableChannel channel, PooledBuffer buffer, SocketAddress source) {
+        try {
+            if (channel == mRtpChannel) {
+                onRtpPacket(buffer, (InetSocketAddress) source);
+            } else {
+                onRtcpPacket(buffer, source);
+            }
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private void onRtpPacket(PooledBuffer buffer, InetSocketAddress source) {
+        ByteBuffer data = buffer.getBuffer();
+        int position = data.position();
+        if (data.remaining() < 12 || ((data.get(position) & 0xFF) >> 6) != 2) {
+            mUnroutedPackets++;
+            return;
+        }
+        RelayRoute route = findRoute(data.getInt(position + 8), data.get(position + 1) & 0x7F, source);
+        if (route == null) {
+            mUnroutedPackets++;
+            return;
+        }
+        if (route.getDuplicateFilter().isDuplicate(data.getShort(position + 2))) return;
+        long now = System.nanoTime();
+        route.getRtcpRelay().getReceptionStats().onRtpPacket(data, now);
+        boolean keyframe = route.getGopCache() != null && route.getGopCache().onPacket(data);
+        ByteBuffer view = data.asReadOnlyBuffer();
+        for (RelayRoute.Subscriber subscriber : route.getActiveSubscribers()) {
+            sendTo(mRtpChannel, buffer, view, subscriber.getRtpAddress());
+        }
+        Map<RelayRoute.Subscriber, Long> waiting = route.getWaitingForKeyframe();
+        if (keyframe && !waiting.isEmpty()) {
+            for (Long requested : waiting.values()) route.recordJoin(requested, now, 0);
+            waiting.clear();
+        }
+    }
+
+    private void onRtcpPacket(PooledBuffer buffer, SocketAddress source) {
+        ByteBuffer data = buffer.getBuffer();
+        int position = data.position();
+        if (data.remaining() < 8 || ((data.get(position) & 0xFF) >> 6) != 2) return;
+        int type = data.get(position + 1) & 0xFF;
+        int ssrc;
+        if (type == RtcpParser.SR) {
+            ssrc = data.getInt(position + 4);
+        } else if (type == RtcpParser.RR && (data.get(position) & 0x1F) > 0 && data.remaining() >= 12) {
+            ssrc = data.getInt(position + 8);
+        } else {
+            return; // Sin report blocks no se sabe de que stream es, y tampoco aporta estadisticas
+        }
+        RelayRoute route = mRoutes.get(ssrc);
+        if (route == null) {
+            mUnroutedPackets++;
+            return;
+        }
+        long now = System.nanoTime();
+        if (route.getRtcpRelay().onRtcpPacket(data, source, now)) {
+            ByteBuffer view = data.asReadOnlyBuffer();
+            for (RelayRoute.Subscriber subscriber : route.getSubscribers()) {
+                sendTo(mRtcpChannel, buffer, view, subscriber.getRtcpAddress());
+            }
+        }
+        sendReceiverReport(route, now);
+    }
+
+    private RelayRoute findRoute(int ssrc, int payloadType, InetSocketAddress source) {
+        RelayRoute route = mRoutes.get(ssrc);
+        if (route != null || mUnboundRoutes.isEmpty()) return route;
+        synchronized (this) {
+            route = mRoutes.get(ssrc);
+            if (route != null) return route;
+            for (RelayRoute unbound : mUnboundRoutes) {
+                if (!unbound.accepts(payloadType, source)) continue;
+                mUnboundRoutes.remove(unbound);
+                unbound.bind(ssrc);
+                Map<Integer, RelayRoute> routes = new HashMap<>(mRoutes);
+                routes.put(ssrc, unbound);
+                publishRoutes(routes);
+                return unbound;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Envia el datagrama sin copiarlo, a traves de view, una vista del buffer que se reutiliza para todos los destinos.
+     * Si ya hay datos encolados en el canal, o el socket no lo acepta, se encola para mantener el orden.
+     */
+    private void sendTo(DatagramChannel channel, PooledBuffer buffer, ByteBuffer view, SocketAddress target) {
+        if (hasPendingData(channel)) {
+            this.send(channel, buffer.retainedDuplicate(), target);
+            return;
+        }
+        try {
+            view.position(buffer.getBuffer().position());
+            if (channel.send(view, target) == 0) {
+                this.send(channel, buffer.retainedDuplicate(), target);
+            }
+        } catch (IOException e) {
+            Logger.e("RelaySelector: error sending to " + target + ": " + e.getMessage());
+        }
+    }
+
+    /** El RR del relay sale por el canal del RTCP, que es a donde el emisor envia su RTCP */
+    private void sendReceiverReport(RelayRoute route, long now) {
+        PooledBuffer report = mBufferPool.acquire();
+        try {
+            SocketAddress upstream = route.getRtcpRelay().writeReceiverReport(report.getBuffer(), now);
+            if (upstream == null) return;
+            report.getBuffer().flip();
+            sendTo(mRtcpChannel, report, report.getBuffer(), upstream);
+        } finally {
+            report.release();
+        }
+    }
+
+    @Override
+    protected void onClientDisconnected(SelectableChannel socketChannel) {}
+
+    @Override
+    public void send(byte[] data) {}
+
+    /**
+     * Envio del GOP guardado a un suscriptor que se une. Los paquetes que llegan mientras tanto se añaden al GOP,
+     * asi que la rafaga sigue hasta alcanzarlos y entonces el suscriptor pasa a recibir el directo sin huecos.
+     * Si empieza otro GOP antes de terminar se envia el nuevo desde el principio.
+     */
+    private class GopBurst {
+        private final RelayRoute mRoute;
+        private final RelayRoute.Subscriber mSubscriber;
+        private final long mRequested;
+        private int mGeneration;
+        private int mNext = 0;
+        private int mSent = 0;
+
+        GopBurst(RelayRoute route, RelayRoute.Subscriber subscriber, long requested) {
+            mRoute = route;
+            mSubscriber = subscriber;
+            mRequested = requested;
+            mGeneration = route.getGopCache().getGeneration();
+        }
+
+        /** @return true si ha terminado: el suscriptor esta activo o ya no esta en la ruta */
+        boolean send() {
+            if (!mRoute.getSubscribers().contains(mSubscriber)) return true;
+            RtpGopCache gopCache = mRoute.getGopCache();
+            if (gopCache.getGeneration() != mGeneration) {
+                mGeneration = gopCache.getGeneration();
+                mNext = 0;
+            }
+            InetSocketAddress target = mSubscriber.getRtpAddress();
+            while (mNext < gopCache.getPacketCount()) {
+                OutboundQueue queue = mPendingData.get(mRtpChannel);
+                if (queue != null && queue.getQueuedBytes(target) >= BURST_QUEUE_LIMIT) return false;
+                PooledBuffer packet = mBufferPool.acquire();
+                gopCache.writePacket(mNext++, packet.getBuffer());
+                packet.getBuffer().flip();
+                try {
+                    sendTo(mRtpChannel, packet, packet.getBuffer(), target);
+                } finally {
+                    packet.release();
+                }
+                mSent++;
+            }
+            mRoute.getActiveSubscribers().add(mSubscriber);
+            if (mNext > 0) {
+                mRoute.recordJoin(mRequested, System.nanoTime(), mSent);
+            } else {
+                // Se ha descartado el GOP (idle() o uno demasiado grande), se espera al siguiente keyframe
+                mRoute.getWaitingForKeyframe().put(mSubscriber, mRequested);
+            }
+            return true;
+        }
+    }
+}
@@ -7,25 +7,30 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 
+import d2d.testing.net.buffers.PooledBuffer;
 import d2d.testing.net.threads.workers.EchoWorker;
 import d2d.testing.utils.Logger;
 
+/**
+ * Escucha en un puerto UDP y reenvia cada datagrama recibido a todos los DatagramChannel conectados (mConnections).
+ *
+ * Por defecto el reenvio lo hace el EchoWorker en su propio thread. En modo inline relay (setInlineRelay(true))
+ * el datagrama se escribe directamente desde el thread del selector a cada canal usando una vista de solo lectura
+ * del mismo buffer, y solo los canales que no aceptan el datagrama en ese momento (o que ya tienen datos encolados)
+ * pasan por la cola de envio.
+ *
+ * El selector no tiene thread propio, sus canales se atienden en uno de los Reactor compartidos del ReactorPool.
+ */
 public class UDPServerSelector extends AbstractSelector {
     private DatagramChannel mDatagramChannel;
     private int mPortUDP;
     private InetAddress mLocalAddress;
     private Network mSocketNet;
-    private Map<SelectableChannel, ByteBuffer> mBuffers = new HashMap<>();
+    private volatile boolean mInlineRelay = false;
 
     public UDPServerSelector(InetAddress localAddress, int port, Network net, ConnectivityManager conManager) throws IOException {
         super(conManager);
@@ -34,7 +39,6 @@ public class UDPServerSelector extends AbstractSelector {
         mPortUDP = port;
         mLocalAddress = localAddress;
         mWorker = new EchoWorker(this);
-        mWorker.start();
     }
 
     public UDPServerSelector(InetAddress localAddress, int port) throws IOException {
@@ -42,9 +46,64 @@ public class UDPServerSelector extends AbstractSelector {
     }
 
 
+    /**
+     * Cambia el modo de reenvio, tambien con el selector en marcha. Al pasar a inline se para el thread del EchoWorker,
+     * y los datagramas que tenga aun en su cola se descartan.
+     */
+    public void setInlineRelay(boolean inlineRelay) {
+        mInlineRelay = inlineRelay;
+        if(!mEnabled.get()) return;
+        if(inlineRelay) mWorker.stop();
+        else mWorker.start();
+    }
+
+    @Override
+    public void start() {
+        // En modo inline relay el EchoWorker no se usa, no se crea su thread
+        if(!mInlineRelay) mWorker.start();
+        super.start();
+    }
+
+    public boolean isInlineRelay() {
+        return mInlineRelay;
+    }
+
     @Override
     protected void onClientDisconnected(SelectableChannel socketChannel) {}
 
+    @Override
+    protected void onDataReceived(SelectableChannel channel, PooledBuffer buffer) {
+        if(!mInlineRelay) {
+            super.onDataReceived(channel, buffer);
+            return;
+        }
+        try {
+            relay(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private void relay(PooledBuffer buffer) {
+        ByteBuffer data = buffer.getBuffer().asReadOnlyBuffer();
+        int position = data.position();
+        for (SelectableChannel socket : mConnections) {
+            if(hasPendingData(socket)) { // Se mantiene el orden con lo que ya esta encolado
+                this.send(socket, buffer.retainedDuplicate());
+                continue;
+            }
+            try {
+                data.position(position);
+                if(((DatagramChannel) socket).write(data) == 0) {
+                    data.position(position);
+                    this.send(socket, buffer.retainedDuplicate());
+                }
+            } catch (IOException e) {
+                disconnectClient(socket);
+            }
+        }
+    }
+
     @Override
     protected void initiateConnection() {
         try {
@@ -65,33 +124,13 @@ public class UDPServerSelector extends AbstractSelector {
 
         DatagramChannel datagramChannel =  (DatagramChannel) DatagramChannel.open().configureBlocking(false);
         datagramChannel.connect(new InetSocketAddress(address.getHostAddress(), port));
-        addChangeRequest(new ChangeRequest(datagramChannel, ChangeRequest.REGISTER, SelectionKey.OP_WRITE));
+        addChangeRequest(new ChangeRequest(datagramChannel, ChangeRequest.REGISTER, 0)); // Solo escritura, OP_WRITE se activa al encolar
         mConnections.add(datagramChannel);
         Logger.d("UDPServerSelector: initiateConnection UDP client 'connected' to " + address.getHostAddress() + ":" + port);
 
         return datagramChannel;
     }
 
-    /*
-    @Override
-    public void send(byte[] data) {
-        Logger.d("UDPServerSelector: sending " + data.length + "bytes to " + mConnections.size());
-        for (SelectableChannel socket : mConnections) {
-            mBuffers.put(socket, ByteBuffer.wrap(data));
-        }
-        while(!mBuffers.isEmpty()){
-            for(Iterator<Map.Entry<SelectableChannel, ByteBuffer>> it = mBuffers.entrySet().iterator(); it.hasNext();){
-                Map.Entry<SelectableChannel, ByteBuffer> entry = it.next();
-                try {
-                    ((ByteChannel) entry.getKey()).write(entry.getValue());
-                    if(entry.getValue().remaining() <= 0) it.remove();
-                } catch (IOException ignored) {it.remove();}
-            }
-        }
-
-    }
-
-     */
     @Override
     public void send(byte[] data) {
         Logger.d("UDPServerSelector: sending " + data.length + "bytes to " + mConnections.size());
@@ -1,11 +1,17 @@
 package d2d.testing.net.threads.workers;
 
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import d2d.testing.net.buffers.PooledBuffer;
 import d2d.testing.net.packets.DataReceived;
+import d2d.testing.net.threads.queues.MpscRingQueue;
+import d2d.testing.net.threads.queues.ParkingWaitStrategy;
+import d2d.testing.net.threads.queues.WaitStrategy;
 import d2d.testing.net.threads.selectors.AbstractSelector;
 
 /**
@@ -13,6 +19,15 @@ import d2d.testing.net.threads.selectors.AbstractSelector;
  * Se puede ejecutar en un thread externo o llamando a start se creara un nuevo.
  * La clase recibe los bytes del Selector a traves de la funcion addData() y los mete en una cola.
  * El thread del worker posteriormente se despierta y llama a la funcion parsePackets() para procesar los bytes.
+ * Los bytes llegan en un PooledBuffer que se libera al terminar parsePackets(), si la implementacion
+ * necesita conservarlo (p.e. para reenviarlo) debe tomar su propia referencia con retain()/retainedDuplicate().
+ *
+ * La cola es una MpscRingQueue sin locks, el worker saca hasta BATCH_SIZE elementos cada vez que se despierta.
+ * La forma de esperar cuando no hay datos la decide el WaitStrategy que se pase en el constructor.
+ * addData() lo llama el thread de un Reactor que comparten varios selectores, asi que nunca espera a que haya sitio:
+ * -Si la cola esta llena y los datos son un datagrama se descartan y se cuentan (getDroppedDatagrams()).
+ * -Si son de una conexion TCP se devuelve false, el selector deja de leer del canal (ver AbstractSelector.pauseReading())
+ *  y el worker le avisa con resumeReading() cuando la cola ha bajado de la mitad.
  *
  * La implementacion de la funcion parsePackets() y el mapa mOpenPaketsMap son usadas solamente
  * por el protocolo que idearon para transmitir mensajes y archivos por wifidirect.
@@ -24,14 +39,26 @@ import d2d.testing.net.threads.selectors.AbstractSelector;
  */
 
 public abstract class AbstractWorker implements Runnable {
-    private final List<DataReceived> mDataReceivedQueue;
+    protected static final int QUEUE_CAPACITY = 1024;
+    protected static final int BATCH_SIZE = 32;
+
+    private final MpscRingQueue<DataReceived> mDataReceivedQueue;
+    private final WaitStrategy mWaitStrategy;
 
     private Thread mThread;
     protected AbstractSelector mSelector;
     private final AtomicBoolean mEnabled;
+    private final AtomicLong mDroppedDatagrams = new AtomicLong();
+    // Selectores con canales sin leer porque la cola estaba llena
+    private final Set<AbstractSelector> mStalledSelectors = ConcurrentHashMap.newKeySet();
 
     protected AbstractWorker(AbstractSelector selector) {
-        mDataReceivedQueue = new LinkedList<>();
+        this(selector, new ParkingWaitStrategy());
+    }
+
+    protected AbstractWorker(AbstractSelector selector, WaitStrategy waitStrategy) {
+        mDataReceivedQueue = new MpscRingQueue<>(QUEUE_CAPACITY);
+        mWaitStrategy = waitStrategy;
         mEnabled = new AtomicBoolean(false);
         mSelector = selector;
     }
@@ -55,29 +82,76 @@ public abstract class AbstractWorker implements Runnable {
 
     @Override
     public void run() {
-        DataReceived dataReceived;
+        DataReceived[] batch = new DataReceived[BATCH_SIZE];
 
         while(mEnabled.get()) {                       // Wait for data to become available
-            synchronized(mDataReceivedQueue) {
-                while(mDataReceivedQueue.isEmpty()) {
-                    try {
-                        mDataReceivedQueue.wait();
-                    } catch (InterruptedException ignored) {}
+            mWaitStrategy.await(mDataReceivedQueue, mEnabled);
+            int count = mDataReceivedQueue.drainTo(batch);
+            for(int i = 0; i < count; i++) {
+                try {
+                    this.parsePackets(batch[i]);
+                } finally {
+                    batch[i].release();
+                    batch[i] = null;
                 }
-                dataReceived = mDataReceivedQueue.remove(0);
             }
-            this.parsePackets(dataReceived);
+            if(!mStalledSelectors.isEmpty() && mDataReceivedQueue.size() <= mDataReceivedQueue.capacity() / 2) {
+                resumeStalledSelectors();
+            }
+        }
+
+        DataReceived dataReceived;
+        while((dataReceived = mDataReceivedQueue.poll()) != null) {
+            dataReceived.release();
         }
         onWorkerRelease();
     }
 
-    public void addData(AbstractSelector selectorThread, SelectableChannel socket, byte[] data, int count) {
-        byte[] dataCopy = new byte[count];
-        System.arraycopy(data, 0, dataCopy, 0, count);
-        synchronized(mDataReceivedQueue) {
-            mDataReceivedQueue.add(new DataReceived(selectorThread, socket, dataCopy));
-            mDataReceivedQueue.notify();
+    /**
+     * Encola los datos leidos por el selector sin bloquear su thread.
+     * @return false si la cola esta llena y los datos son de un canal TCP, el buffer sigue siendo del selector.
+     * En el resto de casos el worker se queda con el buffer (lo encola, o lo descarta si es un datagrama o el worker esta parado)
+     */
+    public boolean addData(AbstractSelector selectorThread, SelectableChannel socket, PooledBuffer data) {
+        if(!mEnabled.get()) {
+            data.release();
+            return true;
         }
+        DataReceived dataReceived = new DataReceived(selectorThread, socket, data);
+        if(mDataReceivedQueue.offer(dataReceived)) {
+            mWaitStrategy.signal();
+            return true;
+        }
+        mWaitStrategy.signal();
+        if(socket instanceof DatagramChannel) {
+            mDroppedDatagrams.incrementAndGet();
+            data.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * El selector ha dejado de leer de un canal porque la cola estaba llena. Se le llamara a resumeReading() cuando
+     * el worker haya vaciado la cola hasta la mitad.
+     * @return true si ya hay sitio, el selector puede volver a intentarlo sin esperar
+     */
+    public boolean onSelectorStalled(AbstractSelector selector) {
+        mStalledSelectors.add(selector);
+        mWaitStrategy.signal();
+        // Si el worker ha vaciado la cola antes de ver el selector en mStalledSelectors nadie lo despertaria
+        return mDataReceivedQueue.size() <= mDataReceivedQueue.capacity() / 2 && mStalledSelectors.remove(selector);
+    }
+
+    private void resumeStalledSelectors() {
+        for(AbstractSelector selector : mStalledSelectors) {
+            if(mStalledSelectors.remove(selector)) selector.resumeReading();
+        }
+    }
+
+    /** Datagramas descartados porque la cola estaba llena */
+    public long getDroppedDatagrams() {
+        return mDroppedDatagrams.get();
     }
 
     protected abstract void onWorkerRelease();
@@ -3,13 +3,14 @@ package d2d.testing.net.threads.workers;
 import java.nio.channels.SelectionKey;
 
 import d2d.testing.net.packets.DataReceived;
+import d2d.testing.net.threads.queues.SpinThenParkWaitStrategy;
 import d2d.testing.net.threads.selectors.AbstractSelector;
 import d2d.testing.net.threads.selectors.ChangeRequest;
 
 public class EchoWorker extends AbstractWorker {
 
     public EchoWorker(AbstractSelector selector){
-        super(selector);
+        super(selector, new SpinThenParkWaitStrategy()); // Reenvio RTP, se prioriza la latencia
     }
 
     @Override
@@ -17,7 +18,7 @@ public class EchoWorker extends AbstractWorker {
 
     @Override
     protected void parsePackets(DataReceived dataReceived) {
-        dataReceived.getSelector().send(dataReceived.getData());
+        dataReceived.getSelector().send(dataReceived.getBuffer());
     }
 
 
@@ -9,27 +9,33 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.Socket;
-import java.net.SocketException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import d2d.testing.gui.main.MainFragment;
 import d2d.testing.gui.main.ProofManager;
+import d2d.testing.net.buffers.BufferPool;
 import d2d.testing.net.packets.DataReceived;
+import d2d.testing.net.threads.queues.ParkingWaitStrategy;
 import d2d.testing.net.threads.selectors.RTSPServerSelector;
+import d2d.testing.streaming.RoutingTable;
+import d2d.testing.streaming.StreamCatalog;
 import d2d.testing.streaming.Streaming;
 import d2d.testing.streaming.StreamingRecord;
+import d2d.testing.streaming.rtsp.RtspFramer;
 import d2d.testing.streaming.rtsp.RtspRequest;
+import d2d.testing.streaming.rtsp.RtspRequestParser;
 import d2d.testing.streaming.rtsp.RtspResponse;
+import d2d.testing.streaming.rtsp.RtspServerRequests;
 import d2d.testing.streaming.rtsp.UriParser;
 import d2d.testing.streaming.sessions.RebroadcastSession;
 import d2d.testing.streaming.sessions.ReceiveSession;
@@ -42,22 +48,32 @@ import d2d.testing.utils.Logger;
 /**
  * Esta clase es la encargada de tratar los datos de tipo RTSP del servidor.
  * La funcion principal es parsePackets(). La superclase recibe los bytes del selector, que ha enviado un cliente, y llama a esta funcion reimplementada para procesarlos.
+ * Como una lectura no tiene por que coincidir con una peticion, los bytes pasan antes por el RtspFramer del canal.
  * La funcion parsea los bytes en un objeto RTSPRequest, llama a la funcion processRequest() que modifica el estado del servidor y crea una
  * RTSPResponse para devolver al selector y que la envie al cliente.
  *
  * RTSP define dos modalidades de comunicacion: Reproduccion y Publicacion de un streaming.
  * 1-Publicacion: El cliente activamente solicita al servidor que acepte su streaming y lo distribuya a otros clientes.
  *      -Primero el cliente envia un mensaje ANNOUNCE, describiendo los canales multimedia que ofrece. El servidor contesta con un ACK OK.
+ *      En la cabecera Via trae los nodos por los que ha pasado el stream, y el servidor lo rechaza (403) si es un bucle o si
+ *      ya le llega por un camino igual o mas corto. Si es mas corto sustituye en el RECORD al emisor anterior (ver RoutingTable).
  *      -Luego el cliente envia un mensaje SETUP por cada canal multimedia (Audio, video), en el que principalmente se establecen los puertos que se van a utilizar.
  *      El servidor contesta con ACK OK.
  *      -Por ultimo el cliente envia un mensaje RECORD, indicando que empieza el streaming.
+ *      El cliente no envia RTP hasta que el servidor le envia un PLAY, cuando el stream tiene suscriptores en este nodo o
+ *      en los siguientes, y un PAUSE cuando deja de tenerlos (ver la demanda en RoutingTable).
  * 2-Reproduccion: El cliente solicita al servidor un streaming. Este streaming puede ser producido por la camara del propio dispositivo servidor o
  * por otro cliente que publique el streaming con la modalidad anterior.
  *      -Primero el cliente envia un mensaje DESCRIBE, en el que en funcion de la uri que envie, el servidor contesta con informacion del streaming asociado
  *      -Luego el cliente envia un mensaje SETUP por cada canal en el que este interesado (Audio y video) y especifica como va a ser la transmision.
  *      -Por ultimo el cliente envia un mensaje PLAY, indicando al servidor que empiece a enviar.
  * El mensaje TEARDOWN se envia desde cualquiera de los extremos para finalizar el streaming.
- * El mensaje PAUSE deberia parar el envio de datos.
+ * Las peticiones que envia el servidor (PLAY, PAUSE, TEARDOWN y DESCRIBE) llevan CSeq y el cliente las contesta. Las
+ * respuestas se reconocen en parsePackets() y se reenvian las que no se contestan (ver RtspServerRequests).
+ * El mensaje PAUSE para el reenvio de un stream de otro cliente hasta el siguiente PLAY. Con la camara local no hace nada.
+ * Ademas cada cliente envia con SET_PARAMETER el catalogo de streams que conoce (ver StreamCatalog), sin SDP ni sesiones.
+ * Cuando aqui se pide (DESCRIBE) un stream que solo esta en el catalogo, el servidor envia un DESCRIBE al vecino que lo
+ * anuncia y este lo publica con ANNOUNCE, SETUP y RECORD.
  *
  * En la clase RTSPServer de libstreaming solo esta implementada la modalidad 2, y solo siendo posible la transmision desde la camara del servidor.
  * En esta clase se implementan las dos modalidades, aunque necesitan unos retoques.
@@ -68,41 +84,30 @@ import d2d.testing.utils.Logger;
  * TODO Para hacer la prueba de wifiaware en principio podemos dejarlo como esta
  *
  * Las sesiones se crean y configuran en DESCRIBE y se comienza el stream en SETUP. Yo creo que se deberian configurar en SETUP y comenzar en PLAY.
- * La funcionalidad de pausa no esta.
+ * La pausa solo esta para los streams reenviados.
  * TODO Estudiar si mover las sesiones de metodo
  *
  * Falta estudiar y describir la modalidad de publicacion
  */
-public class RTSPServerWorker extends AbstractWorker {
+public class RTSPServerWorker extends AbstractWorker implements RoutingTable.DemandListener {
 
     private static final String TAG = "RTSPServerWorker";
     // RTSP Server Name
     public static String SERVER_NAME = "D2D RTSP Server";
 
 
-    /** Expresion regular que encaja con la cabecera de todos los mensajes RSTP: "Tipo_de_operacion(ANNOUNCE,PLAY, etc) uri_del_stream(rtsp://...) RTSP"
-     * (\\w+) encaja con una cadena de una o mas letras, numeros y _. Deberia ser ([A-Z]+)
-     * (\\S+) encaja con una cadena de uno o mas caracteres que no sean espacios*/
-    // Parse method & uri
-    public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-
-    // Parse the uri
-    public static final Pattern regexUrlMethod = Pattern.compile("rtsp://(\\S+)/(\\S+)",Pattern.CASE_INSENSITIVE);
-
-    // Parse the uri
-    public static final Pattern regexUrlMethodAux = Pattern.compile("rtsp://(\\S+)/(\\S+)/(\\S+)",Pattern.CASE_INSENSITIVE);
-
-    /** Expresion regular para obtener los argumentos que vienen detras de la cabecera como:
-     * Csec: 3
-     * Session: 543545
-     * */
-    // Parse a request header
-    public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
-
-    protected HashMap<SelectableChannel, Session> mSessions = new HashMap<>();
-    protected HashMap<SelectableChannel, Map<UUID, Streaming>> mServerSessions = new HashMap<>();
-    protected HashMap<SelectableChannel, RebroadcastSession> mRebroadcastSessions = new HashMap<>();
-    protected HashMap<UUID, List<RebroadcastSession>> mRebroadcastSessionsUUIDIndex = new HashMap<>();
+    // Estado de cada conexion RTSP. Lo que hay que buscar por stream (y sus suscriptores) esta en la RoutingTable
+    protected final Map<SelectableChannel, Session> mSessions = new ConcurrentHashMap<>();
+    protected final Map<SelectableChannel, Map<UUID, Streaming>> mServerSessions = new ConcurrentHashMap<>();
+    protected final Map<SelectableChannel, RebroadcastSession> mRebroadcastSessions = new ConcurrentHashMap<>();
+    private final Map<SelectableChannel, RtspFramer> mFramers = new ConcurrentHashMap<>();
+    // Vecinos que envian su catalogo de streams por la conexion (SET_PARAMETER)
+    private final Map<SelectableChannel, StreamCatalog.Source> mCatalogSources = new ConcurrentHashMap<>();
+    // Peticiones enviadas a cada cliente que esperan respuesta, y el hilo que cuenta sus timeouts
+    private final Map<SelectableChannel, RtspServerRequests> mServerRequests = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService mRequestTimer = Executors.newSingleThreadScheduledExecutor();
+    // Solo lo usa el hilo del worker, se rellena de nuevo con cada peticion
+    private final RtspRequest mRequest = new RtspRequest();
 
 
     /** Credentials for Basic Auth */
@@ -112,10 +117,11 @@ public class RTSPServerWorker extends AbstractWorker {
     private final RTSPServerSelector mServerSelector;
 
     public RTSPServerWorker(String username, String password, RTSPServerSelector serverSelector) {
-        super(serverSelector);
+        super(serverSelector, new ParkingWaitStrategy());
         this.mUsername = username;
         this.mPassword = password;
         this.mServerSelector = serverSelector;
+        RoutingTable.getInstance().addDemandListener(this);
     }
 
     public RtspResponse processRequest(RtspRequest request, SelectableChannel channel) throws IllegalStateException, IOException {
@@ -123,7 +129,7 @@ public class RTSPServerWorker extends AbstractWorker {
         ReceiveSession receiveSession = null;
         Map<UUID, Streaming> streamings = mServerSessions.get(channel);
         if(streamings == null){
-            streamings = new HashMap<>();
+            streamings = new ConcurrentHashMap<>();
             mServerSessions.put(channel, streamings);
         }
         else if(!request.path.isEmpty()){
@@ -148,7 +154,7 @@ public class RTSPServerWorker extends AbstractWorker {
             switch (request.method) {
                 case "OPTIONS":
                     response.status = RtspResponse.STATUS_OK;
-                    response.attributes = "Public: DESCRIBE,ANNOUNCE,SETUP,PLAY,RECORD,PAUSE,TEARDOWN\r\n";
+                    response.attributes = "Public: DESCRIBE,ANNOUNCE,SETUP,PLAY,RECORD,PAUSE,TEARDOWN,SET_PARAMETER\r\n";
                     break;
                 case "DESCRIBE":
                     return DESCRIBE(request, channel);
@@ -175,7 +181,11 @@ public class RTSPServerWorker extends AbstractWorker {
                 case "RECORD":
                     return RECORD(receiveSession, channel);
                 case "PAUSE":
+                    if(rebroadcastSession != null)
+                        return PAUSE(rebroadcastSession);
                     return PAUSE();
+                case "SET_PARAMETER":
+                    return SET_PARAMETER(request, channel);
                 case "TEARDOWN":
                     if(requestSession != null) {
                         return TEARDOWN(requestSession, channel);
@@ -206,18 +216,24 @@ public class RTSPServerWorker extends AbstractWorker {
 
         // Si no es stream local es rebroadcast
         if(!isLocalStream) {
+            // Solo lo conocemos por el catalogo: se pide al vecino y el cliente lo vuelve a intentar cuando llegue
+            if(isCatalogOnly(request.path)) {
+                response.status = RtspResponse.STATUS_NOT_FOUND;
+                return response;
+            }
             //if es una session para hacer play a un stream de rebroadcast entonces
             try {
                 RebroadcastSession session = handleRebroadcastRequest(request.path, socket);
                 session.setRtspChannel(channel);
-                mRebroadcastSessions.put(channel, session);
-                UUID sessionUUID = UUID.fromString(request.path);
-                List<RebroadcastSession> rebroadcastSessionList = mRebroadcastSessionsUUIDIndex.get(sessionUUID);
-                if(rebroadcastSessionList == null){
-                    rebroadcastSessionList = new ArrayList<>();
-                    mRebroadcastSessionsUUIDIndex.put(sessionUUID, rebroadcastSessionList);
+                if(!RoutingTable.getInstance().addSubscriber(session.getStreamUUID(), session)) {
+                    response.status = RtspResponse.STATUS_NOT_FOUND; // El stream se ha ido mientras tanto
+                    return response;
+                }
+                RebroadcastSession previous = mRebroadcastSessions.put(channel, session);
+                if(previous != null) {
+                    RoutingTable.getInstance().removeSubscriber(previous.getStreamUUID(), previous);
+                    onRebroadcastSessionDisconnected(previous);
                 }
-                rebroadcastSessionList.add(session);
 
                 // If no exception has been thrown, we reply with OK
                 response.content = session.getSessionDescription();
@@ -258,6 +274,16 @@ public class RTSPServerWorker extends AbstractWorker {
         return response;
     }
 
+    private boolean isCatalogOnly(String path) {
+        UUID streamUUID;
+        try {
+            streamUUID = UUID.fromString(path);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return RoutingTable.getInstance().get(streamUUID) == null && StreamCatalog.getInstance().requestStream(streamUUID);
+    }
+
     // ANNOUNCE Implementation for ServerSessions...
     private RtspResponse ANNOUNCE(RtspRequest request, SelectableChannel channel) throws IOException {
         RtspResponse response = new RtspResponse();
@@ -267,11 +293,20 @@ public class RTSPServerWorker extends AbstractWorker {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
         }
 
+        // Rechaza bucles y caminos no mejores que el que ya tiene el stream, antes de hacer nada mas
+        UUID streamUUID = UUID.fromString(request.path);
+        List<String> via = RoutingTable.parseVia(request.headers.get("via"));
+        int path = RoutingTable.getInstance().checkPath(streamUUID, via);
+        if(path != RoutingTable.PATH_ACCEPTED) {
+            Logger.d("RTSPServerWorker: ANNOUNCE of " + streamUUID + " refused, " + (path == RoutingTable.PATH_LOOP ? "loop" : "longer path") + " (" + via.size() + " hops)");
+            response.status = RtspResponse.STATUS_FORBIDDEN;
+            return response;
+        }
+
         // Parse the requested URI and configure the session
         ReceiveSession session = handleServerRequest(request, socket);
-        session.setReceiveNet(mServerSelector.getChannelNetwork(channel));
-
-        UUID streamUUID = UUID.fromString(request.path);
+        session.setRtspChannel(channel);
+        session.setVia(via);
 
         mServerSessions.get(channel).put(streamUUID, new Streaming(streamUUID, session.getStreamingName(), session));
         response.attributes = "Content-Base: " + socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort() + "/\r\n" +
@@ -286,8 +321,6 @@ public class RTSPServerWorker extends AbstractWorker {
     // SETUP Implementation for live Sessions...
     private RtspResponse SETUP(RtspRequest request, Session session) throws IOException {
         RtspResponse response = new RtspResponse();
-        Pattern p;
-        Matcher m;
         int p2, p1, ssrc, trackId, srcPorts[];
 
         if (session== null) {
@@ -295,35 +328,25 @@ public class RTSPServerWorker extends AbstractWorker {
             return response;
         }
 
-        p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-        m = p.matcher(request.uri);
-
-        if (!m.find()) {
+        if (request.trackId < 0) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             return response;
         }
 
-        trackId = Integer.parseInt(m.group(1));
+        trackId = request.trackId;
 
         if (!session.trackExists(trackId)) {
             response.status = RtspResponse.STATUS_NOT_FOUND;
             return response;
         }
 
-        p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-        m = p.matcher(request.headers.get("transport"));
-
-        if (!m.find()) {
+        if (request.clientRtpPort < 0) {
             int[] ports = session.getTrack(trackId).getDestinationPorts();
             p1 = ports[0];
             p2 = ports[1];
         } else {
-            p1 = Integer.parseInt(m.group(1));
-            if (m.group(2) == null) {
-                p2 = p1+1;
-            } else {
-                p2 = Integer.parseInt(m.group(2));
-            }
+            p1 = request.clientRtpPort;
+            p2 = request.clientRtcpPort;
 
             session.getTrack(trackId).setDestinationPorts(p1, p2);
         }
@@ -351,8 +374,6 @@ public class RTSPServerWorker extends AbstractWorker {
     // SETUP Implementation for ServerSessions...
     private RtspResponse SETUP(RtspRequest request, ReceiveSession session) throws IOException {
         RtspResponse response = new RtspResponse();
-        Pattern p;
-        Matcher m;
         int p2, p1, ssrc, trackId, srcPorts[];
 
         if (session== null) {
@@ -360,42 +381,42 @@ public class RTSPServerWorker extends AbstractWorker {
             return response;
         }
 
-        p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-        m = p.matcher(request.uri);
-
-        if (!m.find()) {
+        if (request.trackId < 0) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             return response;
         }
 
-        trackId = Integer.parseInt(m.group(1));
+        trackId = request.trackId;
         if(!session.trackExists(trackId)) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             return response;
         }
         TrackInfo trackInfo = session.getTrack(trackId);
 
-        p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-        m = p.matcher(request.headers.get("transport"));
+        // Si el stream ya llega por otro camino este emisor usa la misma pista, con su ruta en el relay, y los paquetes
+        // repetidos se descartan hasta que en el RECORD sustituye al anterior
+        RoutingTable.StreamEntry entry = RoutingTable.getInstance().get(UUID.fromString(session.getPath()));
+        if(entry != null && entry.getReceiveSession() != session && entry.getTrack(trackId) != null) {
+            trackInfo = entry.getTrack(trackId);
+            session.adoptTrack(trackId, trackInfo);
+        }
 
-        if (!m.find()) {
+        if (request.clientRtpPort < 0) {
             int[] ports = trackInfo.getRemotePorts();
             p1 = ports[0];
             p2 = ports[1];
         } else {
-            p1 = Integer.parseInt(m.group(1));
-            if (m.group(2) == null) {
-                p2 = p1+1;
-            } else {
-                p2 = Integer.parseInt(m.group(2));
-            }
+            p1 = request.clientRtpPort;
+            p2 = request.clientRtcpPort;
 
             trackInfo.setRemotePorts(p1, p2);
         }
 
+        // El SSRC identifica la pista en el relay del nodo, todas comparten los mismos puertos
+        if (request.ssrc != null) trackInfo.setSSRCHex(request.ssrc);
+        trackInfo.setUpstreamAddress(session.getOriginAddress());
+        trackInfo.startServer();
         srcPorts = trackInfo.getLocalPorts();
-        trackInfo.setLocalAddress(session.getDestinationAddress());
-        trackInfo.startServer(session.getReceiveNet());
 
         response.attributes = "Transport: RTP/AVP/UDP;" + (session.getDestinationAddress().isMulticastAddress() ? "multicast" : "unicast") +
                 ";destination=" + session.getDestinationAddress().getHostAddress() +
@@ -412,8 +433,6 @@ public class RTSPServerWorker extends AbstractWorker {
     // SETUP Implementation for RebroadcastSessions...
     private RtspResponse SETUP(RtspRequest request, RebroadcastSession session) throws IOException {
         RtspResponse response = new RtspResponse();
-        Pattern p;
-        Matcher m;
         int p2, p1, ssrc, trackId, srcPorts[];
 
         if (session== null) {
@@ -421,48 +440,38 @@ public class RTSPServerWorker extends AbstractWorker {
             return response;
         }
 
-        p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-        m = p.matcher(request.uri);
-
-        if (!m.find()) {
+        if (request.trackId < 0) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             return response;
         }
 
-        trackId = Integer.parseInt(m.group(1));
+        trackId = request.trackId;
         if(!session.serverTrackExists(trackId)) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             return response;
         }
         RebroadcastSession.RebroadcastTrackInfo rebroadcastTrackInfo = session.getRebroadcastTrack(trackId);
 
-        p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-        m = p.matcher(request.headers.get("transport"));
-
-        if (!m.find()) {
+        if (request.clientRtpPort < 0) {
             int[] ports = rebroadcastTrackInfo.getRemotePorts();
             p1 = ports[0];
             p2 = ports[1];
         } else {
-            p1 = Integer.parseInt(m.group(1));
-            if (m.group(2) == null) {
-                p2 = p1+1;
-            } else {
-                p2 = Integer.parseInt(m.group(2));
-            }
+            p1 = request.clientRtpPort;
+            p2 = request.clientRtcpPort;
             rebroadcastTrackInfo.setRemotePorts(p1, p2);
         }
 
-        srcPorts = session.getServerTrack(trackId).getLocalPorts();
+        TrackInfo serverTrack = session.getServerTrack(trackId);
+        srcPorts = serverTrack.getLocalPorts();
         session.startTrack(trackId);
 
         response.attributes = "Transport: RTP/AVP/UDP;" + (session.getDestination().isMulticastAddress() ? "multicast" : "unicast") +
                 ";destination=" + session.getDestination() +
                 ";client_port=" + p1 + "-" + p2 +
                 ";server_port=" + srcPorts[0] + "-" + srcPorts[1] +
-                //TODO DO WE NEED SSRC? Number used as identifier of the RTP source
-                // if so we would need to recover it IN SETUP_RECEIVE AND THEN RESEND HERE
-                //";ssrc=" + trackInfo.getSSRCHex() +
+                // El SSRC que indico el emisor en su SETUP, el relay reenvia su RTP sin tocarlo
+                (serverTrack.getSSRCHex() != null ? ";ssrc=" + serverTrack.getSSRCHex() : "") +
                 ";mode=play\r\n" +
                 "Session: " + session.getSessionID() + "\r\n" +
                 "Cache-Control: no-cache\r\n";
@@ -507,6 +516,9 @@ public class RTSPServerWorker extends AbstractWorker {
         response.attributes = requestAttributes.substring(0, requestAttributes.length() - 1)
                 + "\r\nSession: " + rebroadcastSession.getSessionID() +"\r\n";
 
+        rebroadcastSession.play();
+        RoutingTable.getInstance().resumeSubscriber(rebroadcastSession.getStreamUUID(), rebroadcastSession);
+
         // If no exception has been thrown, we reply with OK
         response.status = RtspResponse.STATUS_OK;
 
@@ -521,15 +533,33 @@ public class RTSPServerWorker extends AbstractWorker {
 
 
         UUID streamUUID = UUID.fromString(receiveSession.getPath());
+        Streaming streaming = mServerSessions.get(channel).get(streamUUID);
 
-        if(StreamingRecord.getInstance().streamingExist(streamUUID)) {
-            response.status = RtspResponse.STATUS_FORBIDDEN;
-            receiveSession.stop();
-            mServerSessions.get(channel).remove(UUID.fromString(receiveSession.getPath()));
+        // El stream ya llega por otro camino, en el ANNOUNCE se vio que este es mas corto y sustituye al anterior
+        RoutingTable.StreamEntry entry = RoutingTable.getInstance().get(streamUUID);
+        if(entry != null && entry.getStreaming() == streaming) {
+            return response; // RECORD repetido
+        }
+        if(entry != null) {
+            ReceiveSession previous = entry.getReceiveSession();
+            if(!RoutingTable.getInstance().replaceUpstream(entry.getStreaming(), previous, receiveSession)) {
+                response.status = RtspResponse.STATUS_FORBIDDEN;
+                mServerSessions.get(channel).remove(streamUUID);
+                onReceiveSessionDisconnected(streaming);
+                return response;
+            }
+            mServerSessions.get(channel).put(streamUUID, entry.getStreaming());
+            onUpstreamReplaced(entry.getStreaming(), previous);
             return response;
         }
 
-        StreamingRecord.getInstance().addStreaming(mServerSessions.get(channel).get(UUID.fromString(receiveSession.getPath())), true);
+        if(StreamingRecord.getInstance().streamingExist(streamUUID) || !RoutingTable.getInstance().addStream(streaming)) {
+            response.status = RtspResponse.STATUS_FORBIDDEN;
+            mServerSessions.get(channel).remove(streamUUID);
+            onReceiveSessionDisconnected(streaming);
+            return response;
+        }
+        StreamingRecord.getInstance().addStreaming(streaming, true);
 
         return response;
     }
@@ -548,8 +578,7 @@ public class RTSPServerWorker extends AbstractWorker {
         RtspResponse response = new RtspResponse();
 
         mRebroadcastSessions.remove(channel);
-        List<RebroadcastSession> rebList = mRebroadcastSessionsUUIDIndex.get(UUID.fromString(session.getPath()));
-        if(rebList != null) rebList.remove(session);
+        RoutingTable.getInstance().removeSubscriber(session.getStreamUUID(), session);
 
         onRebroadcastSessionDisconnected(session);
         response.status = RtspResponse.STATUS_OK;
@@ -566,90 +595,189 @@ public class RTSPServerWorker extends AbstractWorker {
         return response;
     }
 
+    /**
+     * Catalogo de streams de un vecino (ver StreamCatalog), completo o con los cambios desde la ultima version que le
+     * confirmamos. Si es un delta sobre una version que no tenemos se contesta 412 y el vecino envia el catalogo completo.
+     */
+    private RtspResponse SET_PARAMETER(RtspRequest request, final SelectableChannel channel) {
+        RtspResponse response = new RtspResponse();
+        String contentType = request.headers.get("content-type");
+        if(request.bodyData == null || contentType == null || !contentType.trim().equals(StreamCatalog.CONTENT_TYPE)) {
+            response.status = RtspResponse.STATUS_OK; // Sin cuerpo es un keep-alive
+            return response;
+        }
+
+        StreamCatalog.Source source = mCatalogSources.get(channel);
+        if(source == null) {
+            source = new StreamCatalog.Source() {
+                @Override
+                public void requestStream(UUID uuid) {
+                    sendDESCRIBE(channel, uuid.toString());
+                }
+            };
+            mCatalogSources.put(channel, source);
+        }
+        switch (StreamCatalog.getInstance().onCatalogReceived(source, request.bodyData, request.bodyOffset, request.bodyLength)) {
+            case StreamCatalog.RECEIVED_OK:
+                response.status = RtspResponse.STATUS_OK;
+                break;
+            case StreamCatalog.RECEIVED_UNKNOWN_BASE:
+                response.status = RtspResponse.STATUS_PRECONDITION_FAILED;
+                break;
+            default:
+                response.status = RtspResponse.STATUS_BAD_REQUEST;
+        }
+        return response;
+    }
+
+    /** Pide al vecino que nos envie un stream de su catalogo, contesta con el ANNOUNCE del stream como en el modo publicacion */
+    private void sendDESCRIBE(SelectableChannel channel, String path){
+        getServerRequests(channel).send("DESCRIBE", requestUri(channel, path), path, "");
+    }
+
+    /** Pide al emisor de un stream que empiece (PLAY) o deje (PAUSE) de enviarlo */
+    @Override
+    public void onDemandChanged(RoutingTable.StreamEntry entry, boolean demanded) {
+        ReceiveSession session = entry.getReceiveSession();
+        SelectableChannel channel = session != null ? session.getRtspChannel() : null;
+        if(channel == null || !mServerSessions.containsKey(channel)) return; // El emisor es de otro worker
+        if(!demanded) {
+            if(session.trackExists(0)) session.getTrack(0).idle();
+            if(session.trackExists(1)) session.getTrack(1).idle();
+        }
+        getServerRequests(channel).send(demanded ? "PLAY" : "PAUSE", requestUri(channel, session.getPath()), session.getPath(),
+                "Session: " + session.getSessionID() + "\r\n");
+    }
+
     private void sendTEARDOWN(SelectableChannel channel, String path, String strSessionID){
+        getServerRequests(channel).send("TEARDOWN", requestUri(channel, path), path,
+                "Session: " + strSessionID + "\r\n" +
+                "Terminate-Reason: Internal-Error" + "\r\n");
+    }
+
+    private static String requestUri(SelectableChannel channel, String path) {
         Socket socket = ((SocketChannel) channel).socket();
-        String request = "TEARDOWN rtsp://"+socket.getLocalAddress().toString()+":"+socket.getLocalPort()+"/"+path+" RTSP/1.0\r\n";
-        request += "Session: " + strSessionID + "\r\n" +
-                "Terminate-Reason: Internal-Error" + "\r\n" + "\r\n";
-        mSelector.send(channel, request.getBytes());
+        return "rtsp://"+socket.getLocalAddress().toString()+":"+socket.getLocalPort()+"/"+path;
+    }
+
+    /** Las peticiones se pueden enviar desde otros hilos (demanda de la RoutingTable, catalogo), mSelector.send() lo admite */
+    private RtspServerRequests getServerRequests(final SelectableChannel channel) {
+        RtspServerRequests requests = mServerRequests.get(channel);
+        if(requests == null) {
+            requests = new RtspServerRequests(new RtspServerRequests.Callback() {
+                @Override
+                public void send(byte[] request) {
+                    mSelector.send(channel, request);
+                }
+
+                @Override
+                public void onRequestFailed(String method, String path, int status) {
+                    Logger.d("RTSPServerWorker: " + method + " " + path + (status < 0 ? " not answered" : " answered with " + status));
+                }
+            }, mRequestTimer);
+            RtspServerRequests previous = mServerRequests.putIfAbsent(channel, requests);
+            if(previous != null) requests = previous;
+        }
+        return requests;
     }
 
+    // PAUSE de la camara local, la sesion sigue enviando
     private RtspResponse PAUSE() {
         RtspResponse response = new RtspResponse();
         response.status = RtspResponse.STATUS_OK;
         return response;
     }
 
+    /**
+     * Deja de reenviar el RTP al suscriptor hasta el siguiente PLAY, sin quitarlo de la pista. Deja de contar como demanda,
+     * y si no queda nadie la RoutingTable pide al emisor con PAUSE que pare despues de IDLE_GRACE_MS.
+     */
+    private RtspResponse PAUSE(RebroadcastSession rebroadcastSession) {
+        RtspResponse response = new RtspResponse();
+        rebroadcastSession.pause();
+        RoutingTable.getInstance().pauseSubscriber(rebroadcastSession.getStreamUUID(), rebroadcastSession);
+        response.attributes = "Session: " + rebroadcastSession.getSessionID() + "\r\n";
+        response.status = RtspResponse.STATUS_OK;
+        return response;
+    }
+
 
+    /**
+     * Los bytes de cada canal se acumulan en su RtspFramer, que devuelve cero o mas peticiones completas por lectura.
+     * Los paquetes RTP/RTCP intercalados en la conexion RTSP se descartan, el servidor solo admite transporte UDP.
+     */
     @Override
     protected void parsePackets(DataReceived dataReceived) {
-        //TODO POSIBILIDAD DE QUE LOS PAQUETES SE QUEDEN ABIERTOS...!!! HAY QUE CONTROLAR
-        RtspResponse response = new RtspResponse();
-        RtspRequest request = new RtspRequest();
-        String line = null;
-        Matcher matcher;
-        Matcher matcherAux;
-
-        BufferedReader inputReader = new BufferedReader(new StringReader(new String(dataReceived.getData())));
-        // Parsing request method & uri
+        SelectableChannel channel = dataReceived.getSocket();
+        RtspFramer framer = mFramers.get(channel);
+        if(framer == null){
+            framer = new RtspFramer();
+            mFramers.put(channel, framer);
+        }
+        framer.feed(dataReceived.getBuffer().getBuffer());
 
         try {
-            if ((line = inputReader.readLine())==null) {
-                throw new SocketException("Client disconnected");
-            }
-
-            matcher = regexMethod.matcher(line);
-            matcher.find();
-            request.method = matcher.group(1);
-            request.uri = matcher.group(2);
-
-            matcher = regexUrlMethod.matcher(request.uri);
-            matcherAux = regexUrlMethodAux.matcher(request.uri);
-            /** Ellos han hecho que cuando el path es rtsp://xxx/ el cliente solicite el stream de la camara del servidor
-             * y cuando es rtsp://xxx/yyy solicite el stream del cliente yyy que proporciona el servidor*/
-            if(matcher.find()) {
-                request.path = matcher.group(2);
-                if(request.path.equals("trackID=0")||request.path.equals("trackID=1")) {
-                    if(matcherAux.find()) request.path = matcherAux.group(2);
+            while (framer.nextFrame()) {
+                if (framer.getFrameType() != RtspFramer.FRAME_REQUEST) {
+                    Log.d(TAG, "Ignoring interleaved frame on channel " + framer.getInterleavedChannel());
+                    continue;
+                }
+                if (RtspRequestParser.isResponse(framer.getArray(), framer.getFrameOffset(), framer.getFrameLength())) {
+                    onResponse(framer.getArray(), framer.getFrameOffset(), framer.getHeaderLength(), channel);
+                    continue;
                 }
-            } else if(matcherAux.find()){
-                request.path = matcherAux.group(2);
+                RtspResponse response = parseRequest(framer.getArray(), framer.getFrameOffset(), framer.getFrameLength(), framer.getHeaderLength(), channel);
+                sendResponse(dataReceived, response);
             }
-            else request.path = "";
-            Log.d(TAG, "path: " + request.path);
+        } catch (IOException e) {
+            Log.e(TAG, "Malformed RTSP message: " + e.getMessage());
+            RtspResponse response = new RtspResponse();
+            response.status = RtspResponse.STATUS_BAD_REQUEST;
+            sendResponse(dataReceived, response);
+        }
+    }
 
-            // Parsing headers of the request
-            while ( (line = inputReader.readLine()) != null && line.length()>3 && (matcher = rexegHeader.matcher(line)).find()) {
-                request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-            }
+    /** Respuesta del cliente a una peticion del servidor, no se contesta */
+    private void onResponse(byte[] data, int offset, int headerLength, SelectableChannel channel) {
+        RtspServerRequests requests = mServerRequests.get(channel);
+        if(!RtspRequestParser.parseResponse(data, offset, headerLength, mRequest) || requests == null ||
+                !requests.onResponse(mRequest.cseq, mRequest.status)) {
+            Log.d(TAG, "Ignoring unexpected response " + mRequest.status + " CSeq " + mRequest.cseq);
+        }
+    }
 
-            if((line = inputReader.readLine()) != null) {
-                request.body = line;
-                while ((line = inputReader.readLine()) != null) {
-                    request.body += "\r\n" + line;
-                }
-            }
+    private void sendResponse(DataReceived dataReceived, RtspResponse response) {
+        // El buffer pasa a la cola de salida del canal, que lo libera cuando termina de escribirlo
+        dataReceived.getSelector().send(dataReceived.getSocket(), response.encode(BufferPool.getInstance()));
+    }
+
+    private RtspResponse parseRequest(byte[] data, int offset, int length, int headerLength, SelectableChannel channel) {
+        RtspResponse response = new RtspResponse();
+        RtspRequest request = mRequest;
 
-            // It's not an error, it's just easier to follow what's happening in logcat with the request in red
-            Logger.e(request.method+" "+request.uri);
-            inputReader.close();
+        /** Ellos han hecho que cuando el path es rtsp://xxx/ el cliente solicite el stream de la camara del servidor
+         * y cuando es rtsp://xxx/yyy solicite el stream del cliente yyy que proporciona el servidor*/
+        if(!RtspRequestParser.parse(data, offset, length, headerLength, request)) {
+            Log.e(TAG, "Malformed request line");
+            response.status = RtspResponse.STATUS_BAD_REQUEST;
+            return response;
+        }
+        Log.d(TAG, "path: " + request.path);
 
-            response = processRequest(request, dataReceived.getSocket());
+        // It's not an error, it's just easier to follow what's happening in logcat with the request in red
+        Logger.e(request.method+" "+request.uri);
 
+        try {
+            response = processRequest(request, channel);
         } catch (IOException e) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             e.printStackTrace();
         } catch (IllegalStateException e) {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
-            Log.e(TAG, "illegal state with line" + line.toString());
+            Log.e(TAG, "illegal state with request " + request.method + " " + request.uri);
             e.printStackTrace();
         }
-
-        try {
-            dataReceived.getSelector().send(dataReceived.getSocket(), response.build().getBytes());
-        } catch (IOException e1) {
-            e1.printStackTrace();
-        }
+        return response;
     }
 
     /**
@@ -776,19 +904,14 @@ public class RTSPServerWorker extends AbstractWorker {
         //Buscar la serverSession que corresponde al path
         RebroadcastSession session = new RebroadcastSession();
 
-        List<Streaming> streamingsList = StreamingRecord.getInstance().getStreamings();
-        ReceiveSession receiveSession = null;
         UUID requestedStream = UUID.fromString(path);
-        for(Streaming streaming : streamingsList){
-            if(streaming.getUUID().equals(requestedStream)){
-                receiveSession = streaming.getReceiveSession();
-            }
-        }
-        session.setServerSession(receiveSession);
-
+        RoutingTable.StreamEntry entry = RoutingTable.getInstance().get(requestedStream);
+        ReceiveSession receiveSession = entry != null ? entry.getReceiveSession() : null;
         if(receiveSession == null) {
             throw new IllegalArgumentException();
         }
+        session.setServerSession(receiveSession);
+        session.setStreamUUID(requestedStream);
 
         session.setNameStreaming(receiveSession.getStreamingName());
 
@@ -807,6 +930,15 @@ public class RTSPServerWorker extends AbstractWorker {
      * @param channel
      */
     public synchronized void onClientDisconnected(SelectableChannel channel) {
+        mFramers.remove(channel);
+        RtspServerRequests requests = mServerRequests.remove(channel);
+        if(requests != null) {
+            requests.close();
+        }
+        StreamCatalog.Source source = mCatalogSources.remove(channel);
+        if(source != null) {
+            StreamCatalog.getInstance().removeSource(source);
+        }
         Session streamingSession = mSessions.remove(channel);
         if(streamingSession != null) {
             onSessionDisconnected(streamingSession);
@@ -822,8 +954,7 @@ public class RTSPServerWorker extends AbstractWorker {
 
         RebroadcastSession rebroadcastSession = mRebroadcastSessions.remove(channel);
         if(rebroadcastSession != null) {
-            List<RebroadcastSession> rebList = mRebroadcastSessionsUUIDIndex.get(UUID.fromString(rebroadcastSession.getPath()));
-            if(rebList != null) rebList.remove(rebroadcastSession);
+            RoutingTable.getInstance().removeSubscriber(rebroadcastSession.getStreamUUID(), rebroadcastSession);
             onRebroadcastSessionDisconnected(rebroadcastSession);
         }
     }
@@ -838,15 +969,17 @@ public class RTSPServerWorker extends AbstractWorker {
     private void onReceiveSessionDisconnected(Streaming streaming){
         ReceiveSession receiveSession = streaming.getReceiveSession();
         if(receiveSession != null) {
-            StreamingRecord.getInstance().removeStreaming(streaming.getUUID());
-
-            List<RebroadcastSession> rebList = mRebroadcastSessionsUUIDIndex.remove(streaming.getUUID());
-            if(rebList != null){
-                for(RebroadcastSession rebroadcastSession : rebList){
+            // Si no llego al RECORD no esta en la tabla ni en StreamingRecord, y el UUID puede ser de otro emisor
+            RoutingTable.StreamEntry entry = RoutingTable.getInstance().removeStream(streaming);
+            if(entry != null){
+                StreamingRecord.getInstance().removeStreaming(streaming.getUUID());
+                for(RebroadcastSession rebroadcastSession : entry.getSubscribers()){
                     sendTEARDOWN(rebroadcastSession.getRtspChannel(), rebroadcastSession.getPath(), rebroadcastSession.getSessionID());
                     mRebroadcastSessions.remove(rebroadcastSession.getRtspChannel());
                     onRebroadcastSessionDisconnected(rebroadcastSession);
                 }
+            } else {
+                RoutingTable.getInstance().forgetPath(streaming.getUUID(), receiveSession.getHopCount());
             }
 
             receiveSession.stop();
@@ -854,6 +987,23 @@ public class RTSPServerWorker extends AbstractWorker {
         }
     }
 
+    /**
+     * El stream ha pasado a llegar por otro emisor: se quita la sesion anterior de su canal y se le envia un TEARDOWN
+     * para que deje de enviarlo. Las pistas ya son de la nueva sesion, asi que parar la anterior no las toca.
+     */
+    private void onUpstreamReplaced(Streaming streaming, ReceiveSession previous){
+        SelectableChannel previousChannel = previous.getRtspChannel();
+        Map<UUID, Streaming> streamings = previousChannel != null ? mServerSessions.get(previousChannel) : null;
+        if(streamings != null && streamings.remove(streaming.getUUID(), streaming)) {
+            sendTEARDOWN(previousChannel, previous.getPath(), previous.getSessionID());
+        }
+        Logger.d("RTSPServerWorker: " + streaming.getUUID() + " now arrives in " + streaming.getReceiveSession().getHopCount() +
+                " hops instead of " + (previous.getHopCount() == Integer.MAX_VALUE ? "?" : String.valueOf(previous.getHopCount())));
+        previous.stop();
+        previous.release();
+        StreamingRecord.getInstance().refreshStreaming(streaming.getUUID());
+    }
+
     private void onRebroadcastSessionDisconnected(RebroadcastSession rebroadcastSession){
         rebroadcastSession.stop();
     }
@@ -861,6 +1011,11 @@ public class RTSPServerWorker extends AbstractWorker {
 
     @Override
     protected synchronized void onWorkerRelease() {
+        RoutingTable.getInstance().removeDemandListener(this);
+        for(StreamCatalog.Source source : mCatalogSources.values()){
+            StreamCatalog.getInstance().removeSource(source);
+        }
+        mCatalogSources.clear();
         for(Session session : mSessions.values()){
             onSessionDisconnected(session);
         }
@@ -876,6 +1031,10 @@ public class RTSPServerWorker extends AbstractWorker {
             onRebroadcastSessionDisconnected(rebroadcastSession);
         }
         mRebroadcastSessions.clear();
-        mRebroadcastSessionsUUIDIndex.clear();
+        for(RtspServerRequests requests : mServerRequests.values()){
+            requests.close();
+        }
+        mServerRequests.clear();
+        mRequestTimer.shutdownNow();
     }
 }
@@ -243,6 +243,21 @@ public abstract class MediaStream implements Stream {
 		return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate(); 
 	}
 
+	/**
+	 * Milisegundos desde el ultimo start() hasta que se envio el primer frame, -1 si aun no se ha enviado.
+	 */
+	public long getTimeToFirstFrame() {
+		return mPacketizer.getRtpSocket().getTimeToFirstFrame();
+	}
+
+	/**
+	 * Para el stream y cierra el socket RTP con su thread de envio. Despues no se puede volver a arrancar.
+	 */
+	public synchronized void release() {
+		stop();
+		mPacketizer.getRtpSocket().close();
+	}
+
 	/**
 	 * Indicates if the {@link MediaStream} is streaming.
 	 * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -277,6 +292,7 @@ public abstract class MediaStream implements Stream {
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
+		mPacketizer.getRtpSocket().startTimeToFirstFrame();
 		
 		if (mMode != MODE_MEDIARECORDER_API) {
 			encodeWithMediaCodec();
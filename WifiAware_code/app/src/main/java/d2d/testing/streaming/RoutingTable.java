@@ -0,0 +1,406 @@
+package d2d.testing.streaming;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import d2d.testing.streaming.sessions.RebroadcastSession;
+import d2d.testing.streaming.sessions.ReceiveSession;
+import d2d.testing.streaming.sessions.TrackInfo;
+
+/**
+ * Tabla de rutas del relay: stream (UUID) -> pistas que llegan del emisor (TrackInfo, cada una con su RelayRoute en el
+ * RelaySelector) -> suscriptores (RebroadcastSession).
+ * Sustituye al indice por UUID que tenia RTSPServerWorker y a la busqueda lineal sobre StreamingRecord.getStreamings(),
+ * que ademas copiaba la lista en cada DESCRIBE.
+ *
+ * El estado se publica como un Snapshot inmutable con un numero de version. Las lecturas (DESCRIBE, SETUP, PLAY)
+ * solo leen el campo volatile, sin locks, y cuestan lo mismo con 2 streams que con 200.
+ * Las escrituras (RECORD, TEARDOWN, desconexiones) son pocas, se serializan y copian la tabla (copy-on-write).
+ * El camino de datos no consulta esta tabla: cada RelayRoute publica sus suscriptores en sus propias listas copy-on-write,
+ * y el RelaySelector su tabla SSRC -> RelayRoute de la misma forma.
+ *
+ * Caminos: cada ANNOUNCE trae en la cabecera Via los nodos por los que ha pasado el stream (formatVia()), y el RtspClient
+ * anade este nodo al reenviarlo. Un stream llega a cada nodo por todos los vecinos que lo tienen, y con checkPath() solo
+ * se acepta el camino mas corto:
+ * -Si el camino pasa por este nodo es un bucle, y si supera MAX_HOPS tampoco se acepta.
+ * -Si el stream ya esta en la tabla, o se ha aceptado otro ANNOUNCE suyo hace menos de SEEN_TTL_MS y aun no ha llegado
+ *  al RECORD, solo se acepta un camino con menos saltos.
+ * Se rechaza en el ANNOUNCE, antes de SETUP y RECORD. Si se acepta un camino mas corto para un stream de la tabla,
+ * en el RECORD sustituye al emisor anterior con replaceUpstream() sin tocar las pistas ni los suscriptores.
+ *
+ * Demanda: el emisor de un stream no envia RTP hasta que se le pide con un PLAY, y el ANNOUNCE/SETUP/RECORD solo dan a
+ * conocer el stream. La demanda de un stream son sus suscriptores (DESCRIBE a este nodo, incluido el reproductor local)
+ * mas los vecinos a los que el RtspClient lo reenvia y que le han enviado PLAY (addDemand()). Cuando pasa de 0 a 1 se
+ * avisa a los DemandListener para que pidan el stream a su emisor, y cuando vuelve a 0 se espera IDLE_GRACE_MS antes de
+ * avisar de que ya no hace falta, por si vuelve a haber suscriptores enseguida. Un suscriptor que envia PAUSE deja de
+ * contar hasta su siguiente PLAY (pauseSubscriber()/resumeSubscriber()). Asi la peticion llega hasta el nodo
+ * que publica el stream y por la malla solo circulan los streams que alguien ve.
+ */
+public class RoutingTable {
+
+    static private RoutingTable INSTANCE = null;
+
+    /** Saltos maximos de un stream, como el TTL de IP */
+    public static final int MAX_HOPS = 8;
+    /** Tiempo que se recuerda el camino de un ANNOUNCE aceptado mientras llega su RECORD */
+    public static final long SEEN_TTL_MS = 10000;
+
+    public static final int PATH_ACCEPTED = 0;
+    public static final int PATH_LOOP = 1;
+    public static final int PATH_WORSE = 2;
+
+    /** Tiempo que sigue llegando un stream sin demanda antes de pedir al emisor que deje de enviarlo */
+    public static final long IDLE_GRACE_MS = 15000;
+
+    private static final String VIA_PROTOCOL = "RTSP/1.0 ";
+
+    private final String mNodeId;
+    private volatile Snapshot mSnapshot = new Snapshot(0, new HashMap<UUID, StreamEntry>());
+    // Mejor camino aceptado por stream que aun no esta en la tabla, con su caducidad
+    private final Map<UUID, SeenPath> mSeen = new HashMap<>();
+    // Vecinos que han pedido con PLAY un stream que les reenviamos
+    private final Map<UUID, Integer> mPushDemand = new HashMap<>();
+    // Suscriptores que han enviado PAUSE, siguen en la tabla pero no cuentan como demanda
+    private final Set<RebroadcastSession> mPausedSubscribers = new HashSet<>();
+    // Streams que se han pedido al emisor, y los que estan en el periodo de gracia sin demanda
+    private final Set<UUID> mPulling = new HashSet<>();
+    private final Map<UUID, ScheduledFuture<?>> mIdleTimers = new HashMap<>();
+    private final List<DemandListener> mDemandListeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService mScheduler;
+
+    public interface DemandListener {
+        /**
+         * El stream necesita que su emisor lo envie (PLAY), o ya no (PAUSE). Se llama con la tabla bloqueada.
+         * Tambien se llama con demanded=true cuando cambia el emisor de un stream que se estaba pidiendo.
+         */
+        void onDemandChanged(StreamEntry entry, boolean demanded);
+    }
+
+    public static synchronized RoutingTable getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new RoutingTable(String.format(Locale.US, "%08x", new SecureRandom().nextInt()));
+        }
+        return INSTANCE;
+    }
+
+    /** @param nodeId identificador de este nodo en las cabeceras Via (varios nodos en los tests) */
+    RoutingTable(String nodeId) {
+        mNodeId = nodeId;
+    }
+
+    /** Estado actual de la tabla, no cambia aunque la tabla se modifique despues */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /** null si este nodo no recibe el stream */
+    public StreamEntry get(UUID uuid) {
+        return mSnapshot.get(uuid);
+    }
+
+    public long getVersion() {
+        return mSnapshot.mVersion;
+    }
+
+    /** Identificador de este nodo en las cabeceras Via, cambia en cada arranque */
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Decide si se acepta el ANNOUNCE de un stream que llega por el camino via.
+     * @return PATH_ACCEPTED, PATH_LOOP o PATH_WORSE
+     */
+    public synchronized int checkPath(UUID uuid, List<String> via) {
+        if (via.contains(mNodeId) || via.size() > MAX_HOPS) return PATH_LOOP;
+        int hops = via.isEmpty() ? Integer.MAX_VALUE : via.size();
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        if (entry != null && hops >= entry.getHopCount()) return PATH_WORSE;
+
+        long now = System.currentTimeMillis();
+        Iterator<SeenPath> it = mSeen.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mExpires <= now) it.remove();
+        }
+        SeenPath seen = mSeen.get(uuid);
+        if (seen != null && hops >= seen.mHops) return PATH_WORSE;
+        mSeen.put(uuid, new SeenPath(hops, now + SEEN_TTL_MS));
+        return PATH_ACCEPTED;
+    }
+
+    /** El ANNOUNCE aceptado con esos saltos no va a llegar al RECORD, deja de bloquear otros caminos */
+    public synchronized void forgetPath(UUID uuid, int hops) {
+        SeenPath seen = mSeen.get(uuid);
+        if (seen != null && seen.mHops == hops) mSeen.remove(uuid);
+    }
+
+    /** @return false si el stream ya estaba en la tabla */
+    public synchronized boolean addStream(Streaming streaming) {
+        if (mSnapshot.mStreams.containsKey(streaming.getUUID())) return false;
+        forgetPath(streaming.getUUID(), streaming.getReceiveSession().getHopCount());
+        Map<UUID, StreamEntry> streams = new HashMap<>(mSnapshot.mStreams);
+        streams.put(streaming.getUUID(), new StreamEntry(streaming, Collections.<RebroadcastSession>emptyList()));
+        publish(streams);
+        return true;
+    }
+
+    /**
+     * Cambia el emisor de un stream de la tabla por session, que llega por un camino mas corto.
+     * El Streaming, sus suscriptores y las rutas del relay se mantienen: session debe haber adoptado las pistas de
+     * previous (ReceiveSession.adoptTrack()), y pasa a ser su duena.
+     * @return false si el stream ya no tiene a previous como emisor o el camino de session no es mas corto
+     */
+    public synchronized boolean replaceUpstream(Streaming streaming, ReceiveSession previous, ReceiveSession session) {
+        StreamEntry entry = mSnapshot.mStreams.get(streaming.getUUID());
+        if (entry == null || entry.mStreaming != streaming || streaming.getReceiveSession() != previous) return false;
+        if (session.getHopCount() >= previous.getHopCount()) return false;
+        forgetPath(streaming.getUUID(), session.getHopCount());
+        session.takeOwnership(previous);
+        streaming.setReceiveSession(session);
+        replace(entry, entry.mSubscribers);
+        if (mPulling.contains(streaming.getUUID())) notifyDemand(mSnapshot.mStreams.get(streaming.getUUID()), true);
+        return true;
+    }
+
+    /**
+     * Elimina el stream si la entrada es de este Streaming, otro canal puede haber anunciado el mismo UUID sin llegar al RECORD.
+     * @return la entrada eliminada, con los suscriptores que tenia en ese momento, o null si no estaba
+     */
+    public synchronized StreamEntry removeStream(Streaming streaming) {
+        StreamEntry entry = mSnapshot.mStreams.get(streaming.getUUID());
+        if (entry == null || entry.mStreaming != streaming) return null;
+        Map<UUID, StreamEntry> streams = new HashMap<>(mSnapshot.mStreams);
+        streams.remove(streaming.getUUID());
+        publish(streams);
+        mPausedSubscribers.removeAll(entry.mSubscribers);
+        updateDemand(streaming.getUUID());
+        return entry;
+    }
+
+    /** @return false si el stream no esta en la tabla */
+    public synchronized boolean addSubscriber(UUID uuid, RebroadcastSession subscriber) {
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        if (entry == null) return false;
+        List<RebroadcastSession> subscribers = new ArrayList<>(entry.mSubscribers);
+        subscribers.add(subscriber);
+        replace(entry, subscribers);
+        updateDemand(uuid);
+        return true;
+    }
+
+    public synchronized void removeSubscriber(UUID uuid, RebroadcastSession subscriber) {
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        if (entry == null || !entry.mSubscribers.contains(subscriber)) return;
+        List<RebroadcastSession> subscribers = new ArrayList<>(entry.mSubscribers);
+        subscribers.remove(subscriber);
+        replace(entry, subscribers);
+        mPausedSubscribers.remove(subscriber);
+        updateDemand(uuid);
+    }
+
+    /** El suscriptor ha enviado PAUSE, si era el ultimo empieza el periodo de gracia */
+    public synchronized void pauseSubscriber(UUID uuid, RebroadcastSession subscriber) {
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        if (entry == null || !entry.mSubscribers.contains(subscriber)) return;
+        if (mPausedSubscribers.add(subscriber)) updateDemand(uuid);
+    }
+
+    /** El suscriptor ha vuelto a enviar PLAY */
+    public synchronized void resumeSubscriber(UUID uuid, RebroadcastSession subscriber) {
+        if (mPausedSubscribers.remove(subscriber)) updateDemand(uuid);
+    }
+
+    /** Un vecino al que reenviamos el stream lo ha pedido con PLAY */
+    public synchronized void addDemand(UUID uuid) {
+        Integer count = mPushDemand.get(uuid);
+        mPushDemand.put(uuid, count == null ? 1 : count + 1);
+        updateDemand(uuid);
+    }
+
+    /** Un vecino que habia pedido el stream ya no lo quiere (PAUSE, TEARDOWN o desconexion) */
+    public synchronized void removeDemand(UUID uuid) {
+        Integer count = mPushDemand.get(uuid);
+        if (count == null) return;
+        if (count > 1) mPushDemand.put(uuid, count - 1);
+        else mPushDemand.remove(uuid);
+        updateDemand(uuid);
+    }
+
+    /** Suscriptores sin pausar mas vecinos que reciben el stream de este nodo */
+    public synchronized int getDemand(UUID uuid) {
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        Integer push = mPushDemand.get(uuid);
+        int subscribers = 0;
+        if (entry != null) {
+            for (RebroadcastSession subscriber : entry.mSubscribers) {
+                if (!mPausedSubscribers.contains(subscriber)) subscribers++;
+            }
+        }
+        return subscribers + (push != null ? push : 0);
+    }
+
+    public void addDemandListener(DemandListener listener) {
+        mDemandListeners.add(listener);
+    }
+
+    public void removeDemandListener(DemandListener listener) {
+        mDemandListeners.remove(listener);
+    }
+
+    private void updateDemand(final UUID uuid) {
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        if (entry == null) {
+            cancelIdleTimer(uuid);
+            mPulling.remove(uuid);
+            return;
+        }
+        if (getDemand(uuid) > 0) {
+            cancelIdleTimer(uuid);
+            if (mPulling.add(uuid)) notifyDemand(entry, true);
+        } else if (mPulling.contains(uuid) && !mIdleTimers.containsKey(uuid)) {
+            if (mScheduler == null) mScheduler = Executors.newSingleThreadScheduledExecutor();
+            mIdleTimers.put(uuid, mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onIdle(uuid);
+                }
+            }, IDLE_GRACE_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private synchronized void onIdle(UUID uuid) {
+        mIdleTimers.remove(uuid);
+        StreamEntry entry = mSnapshot.mStreams.get(uuid);
+        if (entry != null && getDemand(uuid) == 0 && mPulling.remove(uuid)) {
+            notifyDemand(entry, false);
+        }
+    }
+
+    private void cancelIdleTimer(UUID uuid) {
+        ScheduledFuture<?> timer = mIdleTimers.remove(uuid);
+        if (timer != null) timer.cancel(false);
+    }
+
+    private void notifyDemand(StreamEntry entry, boolean demanded) {
+        for (DemandListener listener : mDemandListeners) {
+            listener.onDemandChanged(entry, demanded);
+        }
+    }
+
+    private void replace(StreamEntry entry, List<RebroadcastSession> subscribers) {
+        Map<UUID, StreamEntry> streams = new HashMap<>(mSnapshot.mStreams);
+        streams.put(entry.getUUID(), new StreamEntry(entry.mStreaming, Collections.unmodifiableList(subscribers)));
+        publish(streams);
+    }
+
+    private void publish(Map<UUID, StreamEntry> streams) {
+        mSnapshot = new Snapshot(mSnapshot.mVersion + 1, streams);
+    }
+
+    /** Cabecera Via con los nodos de via, en orden desde el que publica el stream */
+    public static String formatVia(List<String> via) {
+        StringBuilder builder = new StringBuilder();
+        for (String node : via) {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(VIA_PROTOCOL).append(node);
+        }
+        return builder.toString();
+    }
+
+    /** Nodos de una cabecera Via, lista vacia si no la hay */
+    public static List<String> parseVia(String header) {
+        List<String> via = new ArrayList<>();
+        if (header == null) return via;
+        for (String hop : header.split(",")) {
+            hop = hop.trim();
+            int space = hop.lastIndexOf(' ');
+            String node = space < 0 ? hop : hop.substring(space + 1);
+            if (!node.isEmpty()) via.add(node);
+        }
+        return via;
+    }
+
+    private static class SeenPath {
+        private final int mHops;
+        private final long mExpires;
+
+        private SeenPath(int hops, long expires) {
+            mHops = hops;
+            mExpires = expires;
+        }
+    }
+
+    public static class Snapshot {
+        private final long mVersion;
+        private final Map<UUID, StreamEntry> mStreams;
+
+        private Snapshot(long version, Map<UUID, StreamEntry> streams) {
+            mVersion = version;
+            mStreams = Collections.unmodifiableMap(streams);
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public StreamEntry get(UUID uuid) {
+            return mStreams.get(uuid);
+        }
+
+        public Map<UUID, StreamEntry> getStreams() {
+            return mStreams;
+        }
+    }
+
+    /** Entrada inmutable, cada cambio en los suscriptores crea una nueva */
+    public static class StreamEntry {
+        private final Streaming mStreaming;
+        private final List<RebroadcastSession> mSubscribers;
+
+        private StreamEntry(Streaming streaming, List<RebroadcastSession> subscribers) {
+            mStreaming = streaming;
+            mSubscribers = subscribers;
+        }
+
+        public UUID getUUID() {
+            return mStreaming.getUUID();
+        }
+
+        public Streaming getStreaming() {
+            return mStreaming;
+        }
+
+        public ReceiveSession getReceiveSession() {
+            return mStreaming.getReceiveSession();
+        }
+
+        public int getHopCount() {
+            ReceiveSession session = mStreaming.getReceiveSession();
+            return session != null ? session.getHopCount() : Integer.MAX_VALUE;
+        }
+
+        /** Pista que llega del emisor, null si el stream no la tiene */
+        public TrackInfo getTrack(int trackId) {
+            ReceiveSession session = mStreaming.getReceiveSession();
+            return session != null && session.trackExists(trackId) ? session.getTrack(trackId) : null;
+        }
+
+        public List<RebroadcastSession> getSubscribers() {
+            return mSubscribers;
+        }
+    }
+}
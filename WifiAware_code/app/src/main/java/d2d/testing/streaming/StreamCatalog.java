@@ -0,0 +1,405 @@
+package d2d.testing.streaming;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import d2d.testing.streaming.sessions.ReceiveSession;
+import d2d.testing.streaming.sessions.SessionBuilder;
+
+/**
+ * Catalogo de los streams de la malla, que los nodos se intercambian en binario en lugar de enviarse cada stream con un
+ * ANNOUNCE completo (SDP y prueba en Base64) a todos los vecinos.
+ *
+ * Cada entrada es un stream: UUID, nombre, resumen de codecs, saltos hasta el nodo que lo publica y la version del
+ * catalogo en la que cambio por ultima vez. Este nodo anuncia:
+ * -Sus streams (los de StreamingRecord, que los mantiene con setLocalStream()/removeLocalStream()).
+ * -De los que solo conoce por los vecinos, el que llega con menos saltos, sin pasar de RoutingTable.MAX_HOPS.
+ * Cada entrada lleva el nodo del que se aprendio, y un nodo ignora las que aprendio el vecino de el mismo, asi una
+ * entrada no vuelve al nodo que la envio y desaparece en cuanto desaparece el stream (horizonte dividido).
+ *
+ * Sincronizacion por deltas: el RtspClient de cada vecino guarda la ultima version que le ha confirmado el servidor
+ * y con encodeSince() envia solo las entradas que han cambiado desde entonces, mas las eliminadas (tombstones).
+ * Si el servidor no tiene esa version (se ha reiniciado o se han descartado tombstones) se envia el catalogo completo.
+ *
+ * Formato (big endian): 'D' 'C', version del formato, flags (FULL), nodo emisor (4), version base (8), version (8),
+ * numero de entradas (2), y por entrada: UUID (16), flags (REMOVED), saltos (1), nodo del que se aprendio (4),
+ * version (8) y, si no se ha eliminado, nombre y codecs (longitud de 1 byte y UTF-8).
+ *
+ * Los cambios en los streams que este nodo solo conoce por el catalogo se notifican a los StreamingRecordObserver
+ * (remoteStreamingAvailable()/remoteStreamingUnavailable()) fuera del lock del catalogo.
+ */
+public class StreamCatalog {
+
+    static private StreamCatalog INSTANCE = null;
+
+    public static final String CONTENT_TYPE = "application/x-d2d-catalog";
+    /** Resultados de onCatalogReceived() */
+    public static final int RECEIVED_OK = 0;
+    public static final int RECEIVED_UNKNOWN_BASE = 1;
+    public static final int RECEIVED_MALFORMED = 2;
+
+    private static final int MAX_TOMBSTONES = 256;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_FULL = 1;
+    private static final int FLAG_REMOVED = 1;
+    private static final int HEADER_LENGTH = 2 + 1 + 1 + 4 + 8 + 8 + 2;
+    private static final Pattern RTPMAP = Pattern.compile("a=rtpmap:\\d+ ([^/\\s]+)");
+
+    private final int mNodeId;
+    private long mVersion = 0;
+    // Version hasta la que se han descartado tombstones, un vecino que va por detras necesita el catalogo completo
+    private long mPrunedVersion = 0;
+    // Lo que anuncia este nodo, con las entradas eliminadas
+    private final Map<UUID, Entry> mAdvertised = new HashMap<>();
+    private final Map<UUID, Entry> mLocal = new HashMap<>();
+    private final Map<Source, SourceState> mSources = new HashMap<>();
+    // Streams que este nodo solo conoce por el catalogo, los que ven los observers
+    private final Map<UUID, Entry> mRemote = new HashMap<>();
+
+    /** Vecino del que llegan entradas del catalogo */
+    public interface Source {
+        /** Pide al vecino que nos envie el stream (ANNOUNCE, SETUP y RECORD), sin RTP hasta que haya demanda */
+        void requestStream(UUID uuid);
+    }
+
+    public static synchronized StreamCatalog getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new StreamCatalog((int) Long.parseLong(RoutingTable.getInstance().getNodeId(), 16));
+        }
+        return INSTANCE;
+    }
+
+    /** @param nodeId identificador de este nodo en los mensajes, el de RoutingTable (varios nodos en los tests) */
+    StreamCatalog(int nodeId) {
+        mNodeId = nodeId;
+    }
+
+    /**
+     * Stream que tiene este nodo.
+     * @param hops 0 si lo publica este nodo
+     * @param learnedFrom nodo del que llega (el ultimo de su Via), 0 si lo publica este nodo
+     */
+    public void setLocalStream(UUID uuid, String name, String codecs, int hops, int learnedFrom) {
+        List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+            mLocal.put(uuid, new Entry(uuid, name, codecs, hops, learnedFrom, 0, false));
+            update(uuid, events);
+        }
+        dispatch(events);
+    }
+
+    public void removeLocalStream(UUID uuid) {
+        List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+            if (mLocal.remove(uuid) == null) return;
+            update(uuid, events);
+        }
+        dispatch(events);
+    }
+
+    /**
+     * Aplica el catalogo (completo o delta) que ha enviado un vecino.
+     * @return RECEIVED_OK, RECEIVED_UNKNOWN_BASE si es un delta sobre una version que no tenemos, o RECEIVED_MALFORMED
+     */
+    public int onCatalogReceived(Source source, byte[] data, int offset, int length) {
+        List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            try {
+                if (buffer.get() != 'D' || buffer.get() != 'C' || buffer.get() != FORMAT_VERSION) return RECEIVED_MALFORMED;
+                boolean full = (buffer.get() & FLAG_FULL) != 0;
+                int sender = buffer.getInt();
+                long base = buffer.getLong();
+                long version = buffer.getLong();
+                int count = buffer.getShort() & 0xFFFF;
+
+                SourceState state = mSources.get(source);
+                if (!full && (state == null || state.mVersion != base)) return RECEIVED_UNKNOWN_BASE;
+                Map<UUID, Entry> entries = full || state == null ? new HashMap<UUID, Entry>() : new HashMap<>(state.mEntries);
+                Set<UUID> changed = new HashSet<>(state != null ? state.mEntries.keySet() : new HashSet<UUID>());
+                for (int i = 0; i < count; i++) {
+                    UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                    boolean removed = (buffer.get() & FLAG_REMOVED) != 0;
+                    int hops = (buffer.get() & 0xFF) + 1;
+                    int learnedFrom = buffer.getInt();
+                    long entryVersion = buffer.getLong();
+                    String name = removed ? null : readString(buffer);
+                    String codecs = removed ? null : readString(buffer);
+                    changed.add(uuid);
+                    // Lo que el vecino aprendio de este nodo no se usa, y los caminos demasiado largos tampoco
+                    if (removed || learnedFrom == mNodeId || hops > RoutingTable.MAX_HOPS) {
+                        entries.remove(uuid);
+                    } else {
+                        entries.put(uuid, new Entry(uuid, name, codecs, hops, sender, entryVersion, false));
+                    }
+                }
+                mSources.put(source, new SourceState(version, entries));
+                for (UUID uuid : changed) update(uuid, events);
+            } catch (BufferUnderflowException e) {
+                return RECEIVED_MALFORMED;
+            }
+        }
+        dispatch(events);
+        return RECEIVED_OK;
+    }
+
+    /** El vecino se ha desconectado, sus entradas dejan de valer */
+    public void removeSource(Source source) {
+        List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+            SourceState state = mSources.remove(source);
+            if (state == null) return;
+            for (UUID uuid : state.mEntries.keySet()) update(uuid, events);
+        }
+        dispatch(events);
+    }
+
+    /**
+     * Pide el stream al vecino que lo anuncia con menos saltos.
+     * @return false si ningun vecino lo anuncia
+     */
+    public boolean requestStream(UUID uuid) {
+        Source best = null;
+        synchronized (this) {
+            int hops = Integer.MAX_VALUE;
+            for (Map.Entry<Source, SourceState> source : mSources.entrySet()) {
+                Entry entry = source.getValue().mEntries.get(uuid);
+                if (entry != null && entry.mHops < hops) {
+                    hops = entry.mHops;
+                    best = source.getKey();
+                }
+            }
+        }
+        if (best == null) return false;
+        best.requestStream(uuid);
+        return true;
+    }
+
+    /** Streams que este nodo solo conoce por el catalogo */
+    public synchronized List<Entry> getRemoteStreams() {
+        return new ArrayList<>(mRemote.values());
+    }
+
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Mensaje con los cambios desde ackedVersion, o con el catalogo completo si ackedVersion es 0 o ya no se tienen sus
+     * tombstones. La version del mensaje se obtiene con getMessageVersion().
+     * @return null si no hay cambios
+     */
+    public synchronized byte[] encodeSince(long ackedVersion) {
+        if (ackedVersion == mVersion) return null;
+        boolean full = ackedVersion <= 0 || ackedVersion < mPrunedVersion || ackedVersion > mVersion;
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mAdvertised.values()) {
+            if (full ? !entry.mRemoved : entry.mVersion > ackedVersion) entries.add(entry);
+        }
+        List<byte[]> names = new ArrayList<>(entries.size() * 2);
+        int length = HEADER_LENGTH;
+        for (Entry entry : entries) {
+            length += 16 + 1 + 1 + 4 + 8;
+            if (!entry.mRemoved) {
+                byte[] name = truncate(entry.mName);
+                byte[] codecs = truncate(entry.mCodecs);
+                names.add(name);
+                names.add(codecs);
+                length += 2 + name.length + codecs.length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put((byte) 'D').put((byte) 'C').put((byte) FORMAT_VERSION).put((byte) (full ? FLAG_FULL : 0));
+        buffer.putInt(mNodeId);
+        buffer.putLong(full ? 0 : ackedVersion);
+        buffer.putLong(mVersion);
+        buffer.putShort((short) entries.size());
+        Iterator<byte[]> strings = names.iterator();
+        for (Entry entry : entries) {
+            buffer.putLong(entry.mUUID.getMostSignificantBits()).putLong(entry.mUUID.getLeastSignificantBits());
+            buffer.put((byte) (entry.mRemoved ? FLAG_REMOVED : 0));
+            buffer.put((byte) Math.min(entry.mHops, 255));
+            buffer.putInt(entry.mLearnedFrom);
+            buffer.putLong(entry.mVersion);
+            if (!entry.mRemoved) {
+                byte[] name = strings.next();
+                byte[] codecs = strings.next();
+                buffer.put((byte) name.length).put(name);
+                buffer.put((byte) codecs.length).put(codecs);
+            }
+        }
+        return buffer.array();
+    }
+
+    /** Version del catalogo que lleva un mensaje de encodeSince() */
+    public static long getMessageVersion(byte[] message) {
+        return ByteBuffer.wrap(message).getLong(2 + 1 + 1 + 4 + 8);
+    }
+
+    /** Resumen de los codecs de un stream recibido, segun los rtpmap de sus pistas (p.ej. "H264+MPEG4-GENERIC") */
+    public static String codecSummary(ReceiveSession session) {
+        StringBuilder builder = new StringBuilder();
+        for (int id = 1; id >= 0; id--) {
+            if (!session.trackExists(id) || session.getTrack(id).getSessionDescription() == null) continue;
+            Matcher matcher = RTPMAP.matcher(session.getTrack(id).getSessionDescription());
+            if (!matcher.find()) continue;
+            if (builder.length() > 0) builder.append('+');
+            builder.append(matcher.group(1));
+        }
+        return builder.toString();
+    }
+
+    /** Resumen de los codecs del stream local, con los mismos nombres que en el rtpmap */
+    public static String codecSummary(SessionBuilder builder) {
+        String video = builder.getVideoEncoder() == SessionBuilder.VIDEO_H264 ? "H264" :
+                builder.getVideoEncoder() == SessionBuilder.VIDEO_H263 ? "H263-1998" : null;
+        String audio = builder.getAudioEncoder() == SessionBuilder.AUDIO_AAC ? "mpeg4-generic" :
+                builder.getAudioEncoder() == SessionBuilder.AUDIO_AMRNB ? "AMR" : null;
+        if (video == null) return audio != null ? audio : "";
+        return audio != null ? video + "+" + audio : video;
+    }
+
+    /** Recalcula lo que anuncia este nodo de un stream y lo que ven los observers */
+    private void update(UUID uuid, List<Runnable> events) {
+        Entry best = mLocal.get(uuid);
+        boolean local = best != null;
+        if (!local) {
+            for (SourceState state : mSources.values()) {
+                Entry entry = state.mEntries.get(uuid);
+                if (entry != null && (best == null || entry.mHops < best.mHops)) best = entry;
+            }
+        }
+
+        Entry advertised = mAdvertised.get(uuid);
+        if (best != null) {
+            if (advertised == null || advertised.mRemoved || !advertised.sameAs(best)) {
+                mAdvertised.put(uuid, new Entry(uuid, best.mName, best.mCodecs, best.mHops, best.mLearnedFrom, ++mVersion, false));
+            }
+        } else if (advertised != null && !advertised.mRemoved) {
+            mAdvertised.put(uuid, new Entry(uuid, null, null, advertised.mHops, advertised.mLearnedFrom, ++mVersion, true));
+            pruneTombstones();
+        }
+
+        final Entry previous = mRemote.get(uuid);
+        final Entry remote = local ? null : best;
+        if (remote != null && (previous == null || !previous.sameAs(remote))) {
+            mRemote.put(uuid, remote);
+            events.add(new Runnable() {
+                @Override
+                public void run() {
+                    StreamingRecord.getInstance().onRemoteStreamingAvailable(remote);
+                }
+            });
+        } else if (remote == null && previous != null) {
+            mRemote.remove(uuid);
+            events.add(new Runnable() {
+                @Override
+                public void run() {
+                    StreamingRecord.getInstance().onRemoteStreamingUnavailable(previous);
+                }
+            });
+        }
+    }
+
+    private void pruneTombstones() {
+        int tombstones = 0;
+        Entry oldest = null;
+        for (Entry entry : mAdvertised.values()) {
+            if (!entry.mRemoved) continue;
+            tombstones++;
+            if (oldest == null || entry.mVersion < oldest.mVersion) oldest = entry;
+        }
+        if (tombstones > MAX_TOMBSTONES) {
+            mAdvertised.remove(oldest.mUUID);
+            mPrunedVersion = Math.max(mPrunedVersion, oldest.mVersion);
+        }
+    }
+
+    private static void dispatch(List<Runnable> events) {
+        for (Runnable event : events) event.run();
+    }
+
+    private static byte[] truncate(String value) {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= 255) return bytes;
+        byte[] truncated = new byte[255];
+        System.arraycopy(bytes, 0, truncated, 0, 255);
+        return truncated;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.get() & 0xFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class SourceState {
+        private final long mVersion;
+        private final Map<UUID, Entry> mEntries;
+
+        private SourceState(long version, Map<UUID, Entry> entries) {
+            mVersion = version;
+            mEntries = entries;
+        }
+    }
+
+    /** Entrada inmutable del catalogo */
+    public static class Entry {
+        private final UUID mUUID;
+        private final String mName;
+        private final String mCodecs;
+        private final int mHops;
+        private final int mLearnedFrom;
+        private final long mVersion;
+        private final boolean mRemoved;
+
+        private Entry(UUID uuid, String name, String codecs, int hops, int learnedFrom, long version, boolean removed) {
+            mUUID = uuid;
+            mName = name;
+            mCodecs = codecs;
+            mHops = hops;
+            mLearnedFrom = learnedFrom;
+            mVersion = version;
+            mRemoved = removed;
+        }
+
+        private boolean sameAs(Entry other) {
+            return mHops == other.mHops && mLearnedFrom == other.mLearnedFrom &&
+                    String.valueOf(mName).equals(String.valueOf(other.mName)) &&
+                    String.valueOf(mCodecs).equals(String.valueOf(other.mCodecs));
+        }
+
+        public UUID getUUID() {
+            return mUUID;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getCodecs() {
+            return mCodecs;
+        }
+
+        /** Saltos desde el nodo que publica el stream hasta este nodo */
+        public int getHops() {
+            return mHops;
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+    }
+}
@@ -9,6 +9,8 @@ import java.util.Map;
 import java.util.UUID;
 
 import d2d.testing.gui.SaveStream;
+import d2d.testing.streaming.sessions.ReceiveSession;
+import d2d.testing.streaming.sessions.SdpCache;
 import d2d.testing.streaming.sessions.SessionBuilder;
 
 
@@ -53,6 +55,7 @@ public class StreamingRecord {
     public synchronized void addStreaming(Streaming streaming, boolean allowDispatch){
         Record record = new Record(streaming, allowDispatch, null);
         mRecords.put(streaming.getUUID(), record);
+        updateCatalog(streaming, allowDispatch);
         for(StreamingRecordObserver ob : mObservers){
             ob.streamingAvailable(streaming, allowDispatch);
         }
@@ -62,6 +65,7 @@ public class StreamingRecord {
         Record rec = mRecords.get(id);
         if(rec != null){
             rec.mAllowDispatch = allowDispatch;
+            updateCatalog(rec.mStreaming, allowDispatch);
             for(StreamingRecordObserver ob : mObservers){
                 ob.streamingAvailable(rec.mStreaming, allowDispatch);
             }
@@ -98,12 +102,15 @@ public class StreamingRecord {
         mLocalStreamingUUID = id;
         mLocalStreamingName = name;
         mLocalStreamingBuilder = sessionBuilder;
+        StreamCatalog.getInstance().setLocalStream(id, name, StreamCatalog.codecSummary(sessionBuilder), 0, 0);
         for(StreamingRecordObserver ob : mObservers){
             ob.localStreamingAvailable(id, name ,sessionBuilder);
         }
     }
 
     public synchronized void removeLocalStreaming(){
+        SdpCache.getInstance().invalidate(mLocalStreamingUUID);
+        if(mLocalStreamingUUID != null) StreamCatalog.getInstance().removeLocalStream(mLocalStreamingUUID);
         mLocalStreamingUUID = null;
         mLocalStreamingName = null;
         mLocalStreamingBuilder = null;
@@ -134,7 +141,9 @@ public class StreamingRecord {
 
     public synchronized Streaming removeStreaming(UUID id){
         Record rec =  mRecords.remove(id);
+        SdpCache.getInstance().invalidate(id);
         if(rec != null){
+            StreamCatalog.getInstance().removeLocalStream(id);
             for(StreamingRecordObserver ob : mObservers){
                 ob.streamingUnavailable(rec.mStreaming);
             }
@@ -151,6 +160,52 @@ public class StreamingRecord {
         for(Record rec : mRecords.values()){
             ob.streamingAvailable(rec.mStreaming, rec.mAllowDispatch);
         }
+        for(StreamCatalog.Entry entry : StreamCatalog.getInstance().getRemoteStreams()){
+            ob.remoteStreamingAvailable(entry);
+        }
+    }
+
+    /** Stream que un vecino anuncia en su catalogo y que no ha llegado a este nodo */
+    synchronized void onRemoteStreamingAvailable(StreamCatalog.Entry entry){
+        for(StreamingRecordObserver ob : mObservers){
+            ob.remoteStreamingAvailable(entry);
+        }
+    }
+
+    synchronized void onRemoteStreamingUnavailable(StreamCatalog.Entry entry){
+        for(StreamingRecordObserver ob : mObservers){
+            ob.remoteStreamingUnavailable(entry);
+        }
+    }
+
+    /** El stream ha cambiado de emisor (ver RoutingTable.replaceUpstream()), se actualizan sus saltos en el catalogo */
+    public synchronized void refreshStreaming(UUID id){
+        Record rec = mRecords.get(id);
+        if(rec != null) updateCatalog(rec.mStreaming, rec.mAllowDispatch);
+    }
+
+    public synchronized boolean isDispatchable(UUID id){
+        Record rec = mRecords.get(id);
+        return rec != null && rec.mAllowDispatch;
+    }
+
+    //Solo se anuncian en el catalogo los streams que este nodo puede reenviar
+    private void updateCatalog(Streaming streaming, boolean allowDispatch){
+        if(!allowDispatch){
+            StreamCatalog.getInstance().removeLocalStream(streaming.getUUID());
+            return;
+        }
+        ReceiveSession session = streaming.getReceiveSession();
+        List<String> via = session != null ? session.getVia() : null;
+        int learnedFrom = 0;
+        if(via != null && !via.isEmpty()){
+            try {
+                learnedFrom = (int) Long.parseLong(via.get(via.size() - 1), 16);
+            } catch (NumberFormatException ignored) {}
+        }
+        StreamCatalog.getInstance().setLocalStream(streaming.getUUID(), streaming.getName(),
+                session != null ? StreamCatalog.codecSummary(session) : "",
+                via != null ? Math.max(via.size(), 1) : 1, learnedFrom);
     }
 
     public synchronized void removeObserver(StreamingRecordObserver ob){
@@ -10,4 +10,7 @@ public interface StreamingRecordObserver {
     void streamingAvailable(Streaming streaming, boolean bAllowDispatch);
     void streamingUnavailable(Streaming streaming);
     void streamingDownloadStateChanged(Streaming streaming, boolean bIsDownloading);
+    /** Stream que anuncia el catalogo de un vecino, sin sesion multimedia en este nodo */
+    void remoteStreamingAvailable(StreamCatalog.Entry entry);
+    void remoteStreamingUnavailable(StreamCatalog.Entry entry);
 }
@@ -18,7 +18,6 @@ import java.util.Map;
 import d2d.testing.streaming.rtp.AACADTSPacketizer;
 import d2d.testing.streaming.rtp.AACLATMPacketizer;
 import d2d.testing.streaming.rtp.AbstractPacketizer;
-import d2d.testing.streaming.rtp.ByteBufferInputStream;
 import d2d.testing.streaming.rtp.MediaCodecBufferReader;
 import d2d.testing.streaming.rtp.MediaCodecInputStream;
 
@@ -38,7 +37,7 @@ import d2d.testing.streaming.rtp.MediaCodecInputStream;
  *
  * El Writer thread ejecuta un objeto de la clase MediaCodecBufferWriter y el Reader ejecuta MediaCodecBufferReader.
  *
- * El reader lee de un MediaCodecInputStream y distribuye sus datos a los ByteBufferInputStreams de los packetizers.
+ * El reader lee de un MediaCodecInputStream y escribe cada buffer una sola vez en un BroadcastRing, del que leen los ByteBufferInputStreams de los packetizers.
  * La clase MediaCodecInputStream basicamente guarda un buffer interno y cuando se llama a la funcion read del stream, se pide un buffer de salida codificado al MediaCodec
  * y se copia lo que se pueda de el. Si se queda a medias se guarda la copia para la siguiente lectura.
  * Luego este buffer interno se copia en el buffer que se ha pasado en la llamada read del stream.
@@ -62,6 +61,7 @@ public class AudioPacketizerDispatcher {
     private MediaCodec mMediaCodec;
     private final ByteBuffer[] mMediaCodecsBuffers;
     private MediaCodecInputStream mMediaCodecInputStream;
+    private MediaCodecBufferReader mBufferReader;
     private final Map<AbstractPacketizer, InputStream> mPacketizersInputsMap = new HashMap<>();
 
     @SuppressLint("NewApi")
@@ -92,7 +92,8 @@ public class AudioPacketizerDispatcher {
         mMediaCodec.start();
         mMediaCodecInputStream = new MediaCodecInputStream(mMediaCodec);
         mMediaCodecsBuffers = mMediaCodec.getInputBuffers();
-        mReaderThread = new Thread(new MediaCodecBufferReader(mBufferSize,mMediaCodecInputStream,mPacketizersInputsMap));
+        mBufferReader = new MediaCodecBufferReader(mBufferSize,mMediaCodecInputStream);
+        mReaderThread = new Thread(mBufferReader);
         mWriterThread = new Thread(new MediaCodecBufferWriter());
         mReaderThread.start();
         mWriterThread.start();
@@ -171,7 +172,7 @@ public class AudioPacketizerDispatcher {
 
     @SuppressLint("NewApi")
     private void addInternalPacketizer(AbstractPacketizer packetizer) {
-        InputStream packetizerInput = new ByteBufferInputStream();
+        InputStream packetizerInput = mBufferReader.newInputStream();
         packetizer.setInputStream(packetizerInput);
 
         if(packetizer instanceof AACLATMPacketizer) {
@@ -0,0 +1,132 @@
+package d2d.testing.streaming.rtcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estadisticas de recepcion de un stream RTP, calculadas como en el apendice A de RFC 3550:
+ * numero de secuencia extendido (A.1), perdidas totales y del intervalo (A.3) y jitter entre llegadas (A.8).
+ * Con ellas el RtcpRelay escribe el report block de sus RR hacia el emisor.
+ * onRtpPacket() y writeReportBlock() los llama el RelaySelector, esta sincronizado por si se consulta desde otro thread.
+ */
+public class ReceptionStats {
+
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int SEQ_MOD = 1 << 16;
+
+    private final long mClock;
+
+    private boolean mInitialized = false;
+    private int mSsrc;
+    private int mMaxSequence;
+    private long mCycles;
+    private long mBaseSequence;
+    private int mBadSequence;
+    private long mReceived;
+    private long mExpectedPrior;
+    private long mReceivedPrior;
+    private long mTransit;
+    private long mJitter;           // Multiplicado por 16, como en A.8
+    private long mBaseNanos;
+
+    /** @param clock frecuencia del timestamp RTP del stream */
+    public ReceptionStats(long clock) {
+        mClock = clock;
+    }
+
+    /** Paquete RTP entre position y limit, que no se modifican */
+    public synchronized void onRtpPacket(ByteBuffer packet, long arrivalNanos) {
+        int position = packet.position();
+        if (packet.remaining() < 12 || ((packet.get(position) & 0xFF) >> 6) != 2) return;
+        int sequence = packet.getShort(position + 2) & 0xFFFF;
+        long timestamp = packet.getInt(position + 4) & 0xFFFFFFFFL;
+        int ssrc = packet.getInt(position + 8);
+
+        if (!mInitialized || ssrc != mSsrc) {
+            init(ssrc, sequence, arrivalNanos);
+        } else if (!updateSequence(sequence)) {
+            return;
+        }
+        mReceived++;
+
+        long arrival = (arrivalNanos - mBaseNanos) * mClock / 1000000000L;
+        long transit = arrival - timestamp;
+        if (mReceived > 1) {
+            long d = Math.abs(transit - mTransit);
+            // Con la vuelta del timestamp RTP sale un salto enorme que no es jitter
+            if (d < mClock * 10) mJitter += d - ((mJitter + 8) >> 4);
+        }
+        mTransit = transit;
+    }
+
+    public synchronized boolean hasReceived() {
+        return mInitialized && mReceived > 0;
+    }
+
+    public synchronized int getSsrc() {
+        return mSsrc;
+    }
+
+    /**
+     * Escribe en dst un report block de 24 bytes sobre el stream y empieza un intervalo nuevo.
+     * @param lsr los 32 bits centrales del NTP del ultimo SR del emisor, 0 si no hay
+     * @param dlsr tiempo desde que llego ese SR, en 1/65536 s
+     */
+    public synchronized void writeReportBlock(ByteBuffer dst, long lsr, long dlsr) {
+        long extendedMax = mCycles + mMaxSequence;
+        long expected = extendedMax - mBaseSequence + 1;
+        long lost = Math.max(-0x800000, Math.min(0x7FFFFF, expected - mReceived));
+        long expectedInterval = expected - mExpectedPrior;
+        long receivedInterval = mReceived - mReceivedPrior;
+        long lostInterval = expectedInterval - receivedInterval;
+        mExpectedPrior = expected;
+        mReceivedPrior = mReceived;
+        int fraction = expectedInterval == 0 || lostInterval <= 0 ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+
+        dst.putInt(mSsrc);
+        dst.putInt((Math.min(fraction, 255) << 24) | (int) (lost & 0xFFFFFF));
+        dst.putInt((int) extendedMax);
+        dst.putInt((int) (mJitter >> 4));
+        dst.putInt((int) lsr);
+        dst.putInt((int) dlsr);
+    }
+
+    private void init(int ssrc, int sequence, long arrivalNanos) {
+        mInitialized = true;
+        mSsrc = ssrc;
+        mBaseSequence = sequence;
+        mMaxSequence = sequence;
+        mBadSequence = SEQ_MOD + 1;
+        mCycles = 0;
+        mReceived = 0;
+        mExpectedPrior = 0;
+        mReceivedPrior = 0;
+        mJitter = 0;
+        mTransit = 0;
+        mBaseNanos = arrivalNanos;
+    }
+
+    /** A.1 sin el periodo de prueba. Devuelve false si el paquete no cuenta (duplicado muy atrasado o salto) */
+    private boolean updateSequence(int sequence) {
+        int delta = (sequence - mMaxSequence) & 0xFFFF;
+        if (delta < MAX_DROPOUT) {
+            if (sequence < mMaxSequence) mCycles += SEQ_MOD;
+            mMaxSequence = sequence;
+        } else if (delta <= SEQ_MOD - MAX_MISORDER) {
+            if (sequence == mBadSequence) {
+                // Dos paquetes seguidos tras el salto, el emisor se ha reiniciado
+                mBaseSequence = sequence;
+                mMaxSequence = sequence;
+                mCycles = 0;
+                mReceived = 0;
+                mExpectedPrior = 0;
+                mReceivedPrior = 0;
+            } else {
+                mBadSequence = (sequence + 1) & 0xFFFF;
+                return false;
+            }
+        }
+        // Si no, es un duplicado o llega desordenado, se cuenta sin mover el maximo
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+package d2d.testing.streaming.rtcp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser de paquetes RTCP compuestos (RFC 3550): SR, RR, SDES y BYE. Los demas tipos se saltan.
+ * Lee directamente del ByteBuffer (entre position y limit, que no se modifican), no crea objetos salvo el String del CNAME.
+ * Lo usan el SenderReport, para los reports de sus suscriptores, y el RtcpRelay.
+ */
+public class RtcpParser {
+
+    public static final int SR = 200;
+    public static final int RR = 201;
+    public static final int SDES = 202;
+    public static final int BYE = 203;
+
+    private static final int SDES_CNAME = 1;
+    private static final int REPORT_BLOCK_LENGTH = 24;
+
+    /** Se llama por cada elemento del paquete en el orden en que aparecen */
+    public interface Listener {
+        /** @param ntpTimestamp los 64 bits del timestamp NTP */
+        void onSenderReport(SocketAddress source, int ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount);
+
+        /**
+         * @param reporterSsrc SSRC de quien envia el report
+         * @param sourceSsrc SSRC del stream sobre el que informa
+         * @param fractionLost perdidas desde el report anterior, sobre 256
+         * @param cumulativeLost perdidas totales, con signo
+         * @param jitter en unidades del timestamp RTP
+         * @param lsr los 32 bits centrales del NTP del ultimo SR recibido, 0 si no ha recibido ninguno
+         * @param dlsr tiempo desde ese SR, en 1/65536 s
+         */
+        void onReportBlock(SocketAddress source, int reporterSsrc, int sourceSsrc, int fractionLost, int cumulativeLost,
+                           long highestSequence, long jitter, long lsr, long dlsr);
+
+        void onSourceDescription(SocketAddress source, int ssrc, String cname);
+
+        void onBye(SocketAddress source, int ssrc);
+    }
+
+    /**
+     * @param source de donde viene el paquete, solo se pasa al listener
+     * @return numero de paquetes RTCP leidos, 0 si no empieza por un paquete RTCP valido
+     */
+    public static int parse(ByteBuffer data, SocketAddress source, Listener listener) {
+        int offset = data.position();
+        int limit = data.limit();
+        int packets = 0;
+        while (offset + 4 <= limit) {
+            int b0 = data.get(offset) & 0xFF;
+            if ((b0 >> 6) != 2) break;
+            int count = b0 & 0x1F;
+            int type = data.get(offset + 1) & 0xFF;
+            int end = offset + ((data.getShort(offset + 2) & 0xFFFF) + 1) * 4;
+            if (end > limit || type < SR || type > 204) break;
+
+            switch (type) {
+                case SR:
+                    if (offset + 28 > end) break;
+                    int sender = data.getInt(offset + 4);
+                    listener.onSenderReport(source, sender, data.getLong(offset + 8), unsigned(data.getInt(offset + 16)),
+                            unsigned(data.getInt(offset + 20)), unsigned(data.getInt(offset + 24)));
+                    parseReportBlocks(data, source, sender, offset + 28, end, count, listener);
+                    break;
+                case RR:
+                    if (offset + 8 > end) break;
+                    parseReportBlocks(data, source, data.getInt(offset + 4), offset + 8, end, count, listener);
+                    break;
+                case SDES:
+                    parseSourceDescription(data, source, offset + 4, end, count, listener);
+                    break;
+                case BYE:
+                    for (int i = 0, position = offset + 4; i < count && position + 4 <= end; i++, position += 4) {
+                        listener.onBye(source, data.getInt(position));
+                    }
+                    break;
+            }
+            packets++;
+            offset = end;
+        }
+        return packets;
+    }
+
+    private static void parseReportBlocks(ByteBuffer data, SocketAddress source, int reporter, int offset, int end, int count, Listener listener) {
+        for (int i = 0; i < count && offset + REPORT_BLOCK_LENGTH <= end; i++, offset += REPORT_BLOCK_LENGTH) {
+            int lost = data.getInt(offset + 4);
+            // Las perdidas acumuladas son 24 bits con signo
+            int cumulativeLost = (lost << 8) >> 8;
+            listener.onReportBlock(source, reporter, data.getInt(offset), (lost >>> 24) & 0xFF, cumulativeLost,
+                    unsigned(data.getInt(offset + 8)), unsigned(data.getInt(offset + 12)),
+                    unsigned(data.getInt(offset + 16)), unsigned(data.getInt(offset + 20)));
+        }
+    }
+
+    /** Cada chunk es un SSRC y una lista de items (tipo, longitud, texto) terminada en 0 y alineada a 4 bytes */
+    private static void parseSourceDescription(ByteBuffer data, SocketAddress source, int offset, int end, int count, Listener listener) {
+        for (int i = 0; i < count && offset + 4 <= end; i++) {
+            int ssrc = data.getInt(offset);
+            int position = offset + 4;
+            while (position < end && data.get(position) != 0) {
+                if (position + 2 > end) return;
+                int type = data.get(position) & 0xFF;
+                int length = data.get(position + 1) & 0xFF;
+                if (position + 2 + length > end) return;
+                if (type == SDES_CNAME) {
+                    byte[] cname = new byte[length];
+                    for (int j = 0; j < length; j++) cname[j] = data.get(position + 2 + j);
+                    listener.onSourceDescription(source, ssrc, new String(cname, StandardCharsets.UTF_8));
+                }
+                position += 2 + length;
+            }
+            offset += (position - offset + 4) & ~3;
+        }
+    }
+
+    private static long unsigned(int value) {
+        return value & 0xFFFFFFFFL;
+    }
+}
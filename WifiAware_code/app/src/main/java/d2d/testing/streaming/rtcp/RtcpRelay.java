@@ -0,0 +1,137 @@
+package d2d.testing.streaming.rtcp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * RTCP de una pista que se reenvia (TrackInfo). Antes el UDPServerSelector del RTCP reenviaba a todos los suscriptores
+ * cualquier cosa que llegara, tambien los RR de los propios suscriptores, y al emisor no le llegaba ningun RR.
+ *
+ * Ahora:
+ * -Lo que llega del emisor (la direccion desde la que llegan los SR) se sigue reenviando a los suscriptores,
+ *  y se guarda el NTP de los ultimos SR y cuando llegaron.
+ * -Lo que llega de los suscriptores se consume: sus report blocks, SDES y BYE van a RtcpStatistics, con el RTT
+ *  del tramo relay-suscriptor calculado a partir del SR reenviado al que se refiere su LSR.
+ * -Cada REPORT_INTERVAL_MS se genera un RR propio (con SDES) para el emisor con las estadisticas de recepcion
+ *  del RTP que llega a este nodo (ReceptionStats), asi el emisor ve el estado de su enlace con el relay.
+ * Lo usa el thread del reactor del RelaySelector, que lleva el RTP y el RTCP de todas las pistas.
+ */
+public class RtcpRelay implements RtcpParser.Listener {
+
+    public static final long REPORT_INTERVAL_MS = 3000;
+
+    private static final int SENDER_REPORTS = 4;
+
+    private final int mSsrc = new Random().nextInt();
+    private final byte[] mCname;
+    private final long mClock;
+    private final ReceptionStats mReceptionStats;
+
+    private SocketAddress mUpstream = null;
+    private boolean mFromUpstream;
+    // NTP compacto de los ultimos SR del emisor y System.nanoTime() de su llegada
+    private final long[] mSenderReportNtp = new long[SENDER_REPORTS];
+    private final long[] mSenderReportArrival = new long[SENDER_REPORTS];
+    private int mSenderReports = 0;
+    private long mArrival;
+    private long mLastReport = 0;
+
+    /** @param clock frecuencia del timestamp RTP de la pista */
+    public RtcpRelay(long clock) {
+        mClock = clock;
+        mReceptionStats = new ReceptionStats(clock);
+        mCname = ("relay-" + Integer.toHexString(mSsrc)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Hay que pasarle cada paquete RTP de la pista */
+    public ReceptionStats getReceptionStats() {
+        return mReceptionStats;
+    }
+
+    /**
+     * Procesa un paquete RTCP (entre position y limit, que no se modifican).
+     * @param source direccion desde la que llega
+     * @return true si viene del emisor y hay que reenviarlo a los suscriptores
+     */
+    public boolean onRtcpPacket(ByteBuffer packet, SocketAddress source, long arrivalNanos) {
+        int position = packet.position();
+        // El emisor es quien envia SR, los suscriptores solo envian RR
+        if (packet.remaining() > 1 && (packet.get(position + 1) & 0xFF) == RtcpParser.SR) mUpstream = source;
+        mFromUpstream = source != null && source.equals(mUpstream);
+        mArrival = arrivalNanos;
+        RtcpParser.parse(packet, source, this);
+        return mFromUpstream;
+    }
+
+    /**
+     * Si toca, escribe en dst (a partir de su position) un RR con SDES para el emisor.
+     * @return direccion a la que enviarlo, null si no toca o no se conoce el emisor
+     */
+    public SocketAddress writeReceiverReport(ByteBuffer dst, long nowNanos) {
+        if (mUpstream == null || !mReceptionStats.hasReceived()) return null;
+        if (nowNanos - mLastReport < REPORT_INTERVAL_MS * 1000000L) return null;
+        mLastReport = nowNanos;
+
+        long lsr = 0, dlsr = 0;
+        if (mSenderReports > 0) {
+            int last = (mSenderReports - 1) % SENDER_REPORTS;
+            lsr = mSenderReportNtp[last];
+            dlsr = ((nowNanos - mSenderReportArrival[last]) << 16) / 1000000000L;
+        }
+        // RR con un report block: 8 + 24 bytes
+        dst.put((byte) 0x81);
+        dst.put((byte) RtcpParser.RR);
+        dst.putShort((short) 7);
+        dst.putInt(mSsrc);
+        mReceptionStats.writeReportBlock(dst, lsr, dlsr);
+
+        // SDES con el CNAME: cabecera, SSRC, item y el 0 final, alineado a 4 bytes
+        int chunk = (4 + 2 + mCname.length + 1 + 3) & ~3;
+        int start = dst.position();
+        dst.put((byte) 0x81);
+        dst.put((byte) RtcpParser.SDES);
+        dst.putShort((short) (chunk / 4));
+        dst.putInt(mSsrc);
+        dst.put((byte) 1);
+        dst.put((byte) mCname.length);
+        dst.put(mCname);
+        while (dst.position() < start + 4 + chunk) dst.put((byte) 0);
+        return mUpstream;
+    }
+
+    @Override
+    public void onSenderReport(SocketAddress source, int ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount) {
+        if (!mFromUpstream) return;
+        int slot = mSenderReports++ % SENDER_REPORTS;
+        mSenderReportNtp[slot] = (ntpTimestamp >>> 16) & 0xFFFFFFFFL;
+        mSenderReportArrival[slot] = mArrival;
+    }
+
+    @Override
+    public void onReportBlock(SocketAddress source, int reporterSsrc, int sourceSsrc, int fractionLost, int cumulativeLost,
+                              long highestSequence, long jitter, long lsr, long dlsr) {
+        if (mFromUpstream) return;
+        long rtt = -1;
+        for (int i = 0; lsr != 0 && i < Math.min(mSenderReports, SENDER_REPORTS); i++) {
+            if (mSenderReportNtp[i] == lsr) {
+                // Desde que se reenvio el SR hasta ahora, menos lo que el suscriptor tardo en contestar
+                rtt = Math.max(0, (mArrival - mSenderReportArrival[i]) / 1000000L - (dlsr * 1000 >> 16));
+                break;
+            }
+        }
+        RtcpStatistics.getInstance().onReportBlock(source, reporterSsrc, sourceSsrc, fractionLost, cumulativeLost,
+                highestSequence, jitter, mClock, rtt);
+    }
+
+    @Override
+    public void onSourceDescription(SocketAddress source, int ssrc, String cname) {
+        if (!mFromUpstream) RtcpStatistics.getInstance().onSourceDescription(source, ssrc, cname);
+    }
+
+    @Override
+    public void onBye(SocketAddress source, int ssrc) {
+        if (!mFromUpstream) RtcpStatistics.getInstance().onBye(source, ssrc);
+    }
+}
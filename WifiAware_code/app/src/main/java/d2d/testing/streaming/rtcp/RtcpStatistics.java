@@ -0,0 +1,252 @@
+package d2d.testing.streaming.rtcp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tabla con el estado del enlace de cada suscriptor, segun los RTCP que envia: perdidas, jitter y RTT.
+ * Cada entrada se identifica por el SSRC del suscriptor y el canal (la direccion desde la que envia el RTCP),
+ * asi dos suscriptores con el mismo SSRC en distintos nodos no se mezclan.
+ * La alimentan los SenderReport (suscriptores de los streams locales) y los RtcpRelay (suscriptores de los reenvios).
+ * Las entradas que no reciben reports en STALE_MS o que envian BYE se eliminan.
+ * Ademas guarda el tiempo hasta el primer frame de cada stream que envia este nodo (por su SSRC, lo mide RtpSocket),
+ * que se muestra en las entradas de los suscriptores que informan sobre ese stream.
+ * Mientras el servidor RTSP esta arrancado (startLogging()) se escribe la tabla en el log cada LOG_INTERVAL_MS.
+ */
+public class RtcpStatistics {
+
+    private static final String TAG = "RtcpStatistics";
+
+    public static final long STALE_MS = 30000;
+    public static final long LOG_INTERVAL_MS = 10000;
+
+    static private RtcpStatistics INSTANCE = null;
+
+    private final Map<SocketAddress, Map<Integer, Entry>> mEntries = new HashMap<>();
+    // ms hasta el primer frame por SSRC de los streams que envia este nodo
+    private final Map<Integer, Long> mTimeToFirstFrame = new HashMap<>();
+    private ScheduledExecutorService mLogger;
+
+    public static synchronized RtcpStatistics getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new RtcpStatistics();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @param rtt ms, -1 si no se conoce
+     * @param clock frecuencia del timestamp RTP, para pasar el jitter a ms
+     */
+    public synchronized void onReportBlock(SocketAddress channel, int ssrc, int sourceSsrc, int fractionLost, int cumulativeLost,
+                                           long highestSequence, long jitter, long clock, long rtt) {
+        Entry entry = getEntry(channel, ssrc);
+        entry.mSourceSsrc = sourceSsrc;
+        entry.mFractionLost = fractionLost;
+        entry.mCumulativeLost = cumulativeLost;
+        entry.mHighestSequence = highestSequence;
+        entry.mJitter = clock > 0 ? jitter * 1000 / clock : -1;
+        if (rtt >= 0) entry.mRtt = rtt;
+        entry.mReports++;
+    }
+
+    public synchronized void onSourceDescription(SocketAddress channel, int ssrc, String cname) {
+        getEntry(channel, ssrc).mCname = cname;
+    }
+
+    public synchronized void onBye(SocketAddress channel, int ssrc) {
+        Map<Integer, Entry> entries = mEntries.get(channel);
+        if (entries == null) return;
+        entries.remove(ssrc);
+        if (entries.isEmpty()) mEntries.remove(channel);
+    }
+
+    /** Lo llama RtpSocket al enviar el primer frame despues de arrancar o reanudar el stream */
+    public synchronized void onTimeToFirstFrame(int sourceSsrc, long ms) {
+        mTimeToFirstFrame.put(sourceSsrc, ms);
+        Log.i(TAG, "SSRC " + Integer.toHexString(sourceSsrc) + " time to first frame: " + ms + " ms");
+    }
+
+    /** El stream ya no se envia (RtpSocket.close()) */
+    public synchronized void removeSource(int sourceSsrc) {
+        mTimeToFirstFrame.remove(sourceSsrc);
+    }
+
+    /** ms, -1 si el stream aun no ha enviado su primer frame o no es de este nodo */
+    public synchronized long getTimeToFirstFrame(int sourceSsrc) {
+        Long ms = mTimeToFirstFrame.get(sourceSsrc);
+        return ms != null ? ms : -1;
+    }
+
+    /** Copia de las entradas actuales */
+    public synchronized List<Entry> getEntries() {
+        removeStale(SystemClock.elapsedRealtime());
+        List<Entry> result = new ArrayList<>();
+        for (Map<Integer, Entry> entries : mEntries.values()) {
+            for (Entry entry : entries.values()) {
+                Entry copy = new Entry(entry);
+                copy.mTimeToFirstFrame = getTimeToFirstFrame(entry.mSourceSsrc);
+                result.add(copy);
+            }
+        }
+        return result;
+    }
+
+    /** Empieza a escribir las entradas en el log cada LOG_INTERVAL_MS, si ya se estaba haciendo no hace nada */
+    public synchronized void startLogging() {
+        if (mLogger != null) return;
+        mLogger = Executors.newSingleThreadScheduledExecutor();
+        mLogger.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                logEntries();
+            }
+        }, LOG_INTERVAL_MS, LOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopLogging() {
+        if (mLogger == null) return;
+        mLogger.shutdownNow();
+        mLogger = null;
+    }
+
+    private void logEntries() {
+        List<Entry> entries = getEntries();
+        if (entries.isEmpty()) return;
+        StringBuilder builder = new StringBuilder().append(entries.size()).append(" RTCP subscribers");
+        for (Entry entry : entries) builder.append("\n  ").append(entry);
+        Log.i(TAG, builder.toString());
+    }
+
+    private Entry getEntry(SocketAddress channel, int ssrc) {
+        long now = SystemClock.elapsedRealtime();
+        Map<Integer, Entry> entries = mEntries.get(channel);
+        if (entries == null) {
+            removeStale(now);
+            entries = new HashMap<>();
+            mEntries.put(channel, entries);
+        }
+        Entry entry = entries.get(ssrc);
+        if (entry == null) {
+            entry = new Entry(channel, ssrc);
+            entries.put(ssrc, entry);
+        }
+        entry.mLastReport = now;
+        return entry;
+    }
+
+    private void removeStale(long now) {
+        for (Iterator<Map<Integer, Entry>> it = mEntries.values().iterator(); it.hasNext(); ) {
+            Map<Integer, Entry> entries = it.next();
+            for (Iterator<Entry> entryIt = entries.values().iterator(); entryIt.hasNext(); ) {
+                if (now - entryIt.next().mLastReport > STALE_MS) entryIt.remove();
+            }
+            if (entries.isEmpty()) it.remove();
+        }
+    }
+
+    public static class Entry {
+        private final SocketAddress mChannel;
+        private final int mSsrc;
+        private int mSourceSsrc;
+        private String mCname = null;
+        private int mFractionLost = 0;
+        private int mCumulativeLost = 0;
+        private long mHighestSequence = 0;
+        private long mJitter = -1;
+        private long mRtt = -1;
+        private long mReports = 0;
+        private long mLastReport;
+        private long mTimeToFirstFrame = -1;
+
+        private Entry(SocketAddress channel, int ssrc) {
+            mChannel = channel;
+            mSsrc = ssrc;
+        }
+
+        private Entry(Entry entry) {
+            mChannel = entry.mChannel;
+            mSsrc = entry.mSsrc;
+            mSourceSsrc = entry.mSourceSsrc;
+            mCname = entry.mCname;
+            mFractionLost = entry.mFractionLost;
+            mCumulativeLost = entry.mCumulativeLost;
+            mHighestSequence = entry.mHighestSequence;
+            mJitter = entry.mJitter;
+            mRtt = entry.mRtt;
+            mReports = entry.mReports;
+            mLastReport = entry.mLastReport;
+        }
+
+        public SocketAddress getChannel() {
+            return mChannel;
+        }
+
+        public int getSsrc() {
+            return mSsrc;
+        }
+
+        /** SSRC del stream sobre el que informa */
+        public int getSourceSsrc() {
+            return mSourceSsrc;
+        }
+
+        public String getCname() {
+            return mCname;
+        }
+
+        /** Perdidas del ultimo intervalo, en tanto por ciento */
+        public int getLossPercent() {
+            return mFractionLost * 100 / 256;
+        }
+
+        public int getCumulativeLost() {
+            return mCumulativeLost;
+        }
+
+        public long getHighestSequence() {
+            return mHighestSequence;
+        }
+
+        /** ms, -1 si no se conoce */
+        public long getJitter() {
+            return mJitter;
+        }
+
+        /** ms, -1 si no se conoce */
+        public long getRtt() {
+            return mRtt;
+        }
+
+        public long getReports() {
+            return mReports;
+        }
+
+        /** ms hasta el primer frame del stream sobre el que informa, -1 si no se conoce */
+        public long getTimeToFirstFrame() {
+            return mTimeToFirstFrame;
+        }
+
+        /** SystemClock.elapsedRealtime() del ultimo RTCP recibido */
+        public long getLastReport() {
+            return mLastReport;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toHexString(mSsrc) + (mCname != null ? " (" + mCname + ")" : "") + " @ " + mChannel
+                    + ": loss " + getLossPercent() + "%, lost " + mCumulativeLost + ", jitter " + mJitter + " ms, RTT " + mRtt + " ms"
+                    + (mTimeToFirstFrame >= 0 ? ", first frame " + mTimeToFirstFrame + " ms" : "");
+        }
+    }
+}
@@ -18,36 +18,70 @@
 
 package d2d.testing.streaming.rtcp;
 
-import android.os.SystemClock;
+import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+import d2d.testing.net.threads.selectors.Reactor;
+import d2d.testing.net.threads.selectors.ReactorPool;
 
 import static d2d.testing.streaming.rtp.RtpSocket.TRANSPORT_TCP;
 import static d2d.testing.streaming.rtp.RtpSocket.TRANSPORT_UDP;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * Tambien recibe por el mismo socket el RTCP del suscriptor (RtcpParser) en cuanto tiene destino UDP:
+ * los report blocks de este SSRC (perdidas, jitter y RTT), el SDES y el BYE van a RtcpStatistics,
+ * y los report blocks ademas al Callback si hay uno. El socket no es bloqueante y se registra en uno de los Reactor
+ * del ReactorPool, asi que recibir el RTCP de cada suscriptor no cuesta un thread.
+ *
+ * update() se llama por cada paquete RTP desde el thread del RtpSocket, asi que solo suma los contadores y compara
+ * el tiempo que le pasa el RtpSocket con el del proximo report. El SR se escribe con putInt en un ByteBuffer directo
+ * que se reutiliza solo cuando toca enviarlo, y se envia por un DatagramChannel sin crear ningun objeto.
  */
 public class SenderReport {
 
+	/** Se llama desde el thread que recibe el RTCP, por cada report block sobre este SSRC */
+	public interface Callback {
+		/**
+		 * @param ssrc SSRC del stream sobre el que informa el report
+		 * @param fractionLost fraccion de paquetes perdidos desde el report anterior, sobre 256
+		 * @param jitter jitter entre llegadas, en unidades del timestamp RTP
+		 * @param rtt round trip time en ms, -1 si el receptor aun no ha recibido ningun SR
+		 */
+		void onReceptionReport(int ssrc, int fractionLost, long jitter, long rtt);
+	}
+
 	public static final int MTU = 1500;
+	private static final String TAG = "SenderReport";
 
 	private static final int PACKET_LENGTH = 28;
 	
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+	private DatagramChannel mChannel;
+	private SocketAddress mDestination = null;
+	private final ByteBuffer mPacket = ByteBuffer.allocateDirect(PACKET_LENGTH);
 
 	private int mTransport;
 	private OutputStream mOutputStream = null;
-	private byte[] mBuffer = new byte[MTU];
+	private byte[] mTcpBuffer;
 	private int mSSRC, mPort = -1;
-	private int mOctetCount = 0, mPacketCount = 0;
-	private long interval, delta, now, oldnow;
-	private byte[] mTcpHeader;
+	private long mOctetCount = 0, mPacketCount = 0;
+	private long mInterval, mNextReport = 0;
+	private boolean mScheduled = false;
+	private volatile Callback mCallback = null;
+	private Reactor mReactor = null;
+	// Solo lo usa el thread del reactor
+	private ByteBuffer mReceiveBuffer = null;
+	private long mClock = 90000;
+	private long mArrival;
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -57,7 +91,9 @@ public class SenderReport {
 	public SenderReport() {
 
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
+		mTcpBuffer = new byte[4 + PACKET_LENGTH];
+		mTcpBuffer[0] = '$';
+		mTcpBuffer[3] = PACKET_LENGTH;
 		
 		/*							     Version(2)  Padding(0)					 					*/
 		/*									 ^		  ^			PT = 0	    						*/
@@ -66,13 +102,13 @@ public class SenderReport {
 		/*									 | |---------------------								*/
 		/*									 | ||													*/
 		/*									 | ||													*/
-		mBuffer[0] = (byte) Integer.parseInt("10000000",2);
+		mPacket.put(0, (byte) 0x80);
 
 		/* Packet Type PT */
-		mBuffer[1] = (byte) 200;
+		mPacket.put(1, (byte) 200);
 
 		/* Byte 2,3          ->  Length		                     */
-		setLong(PACKET_LENGTH/4-1, 2, 4);
+		mPacket.putShort(2, (short) (PACKET_LENGTH/4-1));
 
 		/* Byte 4,5,6,7      ->  SSRC                            */
 		/* Byte 8,9,10,11    ->  NTP timestamp hb				 */
@@ -82,20 +118,60 @@ public class SenderReport {
 		/* Byte 24,25,26,27  ->  octet count			         */
 
 		try {
-			usock = new MulticastSocket();
+			// No bloqueante: lo atiende un reactor, y si send() no puede enviar un SR ese SR se pierde
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(null);
+			mChannel.configureBlocking(false);
 		} catch (IOException e) {
 			// Very unlikely to happen. Means that all UDP ports are already being used
 			throw new RuntimeException(e.getMessage());
 		}
-		upack = new DatagramPacket(mBuffer, 1);
 
 		// By default we sent one report every 3 secconde
-		interval = 3000;
+		mInterval = 3000 * 1000000L;
 		
 	}
 
 	public void close() {
-		usock.close();
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
+		synchronized (this) {
+			// El socket no se libera hasta que el reactor vuelve del select()
+			if (mReactor != null) mReactor.getSelector().wakeup();
+		}
+	}
+
+	/** Con null se dejan de pasar los reports */
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/** Frecuencia del timestamp RTP, para el jitter de RtcpStatistics */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * Empieza a recibir los RTCP que el suscriptor envia al puerto local de este SenderReport (el server_port del SETUP).
+	 * El canal se registra en un reactor del ReactorPool, y se da de baja con close().
+	 */
+	private synchronized void startReceiving() {
+		if (mReactor != null) return;
+		try {
+			mReactor = ReactorPool.getInstance().getReactor(this);
+		} catch (IOException e) {
+			Log.e(TAG, "No reactor to receive RTCP", e);
+			return;
+		}
+		mReactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mChannel.register(mReactor.getSelector(), SelectionKey.OP_READ, mReceiveHandler);
+				} catch (ClosedChannelException ignore) {}
+			}
+		});
 	}
 
 	/**
@@ -105,47 +181,45 @@ public class SenderReport {
 	 * @param interval The interval in milliseconds
 	 */
 	public void setInterval(long interval) {
-		this.interval = interval;
+		mInterval = interval * 1000000L;
+		mScheduled = false;
 	}	
 
 	/** 
 	 * Updates the number of packets sent, and the total amount of data sent.
 	 * @param length The length of the packet 
-	 * @param rtpts
-	 *            The RTP timestamp.
+	 * @param timestamp timestamp del paquete en ns, se pasa a unidades RTP solo si se envia el SR
+	 * @param now System.nanoTime() del thread que envia, asi no se consulta el reloj por cada paquete
 	 * @throws IOException 
 	 **/
-	public void update(int length, long rtpts) throws IOException {
-		mPacketCount += 1;
+	public void update(int length, long timestamp, long now) throws IOException {
+		mPacketCount++;
 		mOctetCount += length;
-		setLong(mPacketCount, 20, 24);
-		setLong(mOctetCount, 24, 28);
-
-		now = SystemClock.elapsedRealtime();
-		delta += oldnow != 0 ? now-oldnow : 0;
-		oldnow = now;
-		if (interval>0 && delta>=interval) {
-			// We send a Sender Report
-			send(System.nanoTime(), rtpts);
-			delta = 0;
+
+		if (mInterval > 0 && (!mScheduled || now - mNextReport >= 0)) {
+			// El primer paquete solo programa el primer report
+			if (mScheduled) {
+				// We send a Sender Report
+				send(System.nanoTime(), (timestamp/100L)*(mClock/1000L)/10000L);
+			}
+			mNextReport = now + mInterval;
+			mScheduled = true;
 		}
 		
 	}
 
 	public void setSSRC(int ssrc) {
 		this.mSSRC = ssrc; 
-		setLong(ssrc,4,8);
+		mPacket.putInt(4, ssrc);
 		mPacketCount = 0;
 		mOctetCount = 0;
-		setLong(mPacketCount, 20, 24);
-		setLong(mOctetCount, 24, 28);
 	}
 
 	public void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDestination = new InetSocketAddress(dest, dport);
+		startReceiving();
 	}
 
 	/**
@@ -156,7 +230,7 @@ public class SenderReport {
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
 		mOutputStream = os;
-		mTcpHeader[1] = channelIdentifier;
+		mTcpBuffer[1] = channelIdentifier;
 	}	
 	
 	public int getPort() {
@@ -164,7 +238,7 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mChannel.socket().getLocalPort();
 	}
 
 	public int getSSRC() {
@@ -177,17 +251,70 @@ public class SenderReport {
 	public void reset() {
 		mPacketCount = 0;
 		mOctetCount = 0;
-		setLong(mPacketCount, 20, 24);
-		setLong(mOctetCount, 24, 28);
-		delta = now = oldnow = 0;
+		mScheduled = false;
 	}
 	
-	private void setLong(long n, int begin, int end) {
-		for (end--; end >= begin; end--) {
-			mBuffer[end] = (byte) (n % 256);
-			n >>= 8;
+	/** Lee desde el thread del reactor todos los RTCP que haya en el socket */
+	private final Reactor.KeyHandler mReceiveHandler = new Reactor.KeyHandler() {
+		@Override
+		public void processKey(SelectionKey key) {
+			if (mReceiveBuffer == null) mReceiveBuffer = ByteBuffer.allocate(MTU);
+			ByteBuffer data = mReceiveBuffer;
+			try {
+				while (true) {
+					data.clear();
+					SocketAddress source = mChannel.receive(data);
+					if (source == null) return;
+					mArrival = compactNtp(System.nanoTime());
+					data.flip();
+					RtcpParser.parse(data, source, mListener);
+				}
+			} catch (IOException e) {
+				// Cerrado con close() o error del socket, deja de recibir
+				key.cancel();
+			}
 		}
-	}	
+	};
+
+	private final RtcpParser.Listener mListener = new RtcpParser.Listener() {
+		@Override
+		public void onSenderReport(SocketAddress source, int ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount) {}
+
+		@Override
+		public void onReportBlock(SocketAddress source, int reporterSsrc, int sourceSsrc, int fractionLost, int cumulativeLost,
+								  long highestSequence, long jitter, long lsr, long dlsr) {
+			if (sourceSsrc != mSSRC) return;
+			long rtt = -1;
+			if (lsr != 0) {
+				// En unidades de 1/65536 s, negativo (por redondeo) si el RTT es casi 0
+				long delay = (mArrival - lsr - dlsr) & 0xFFFFFFFFL;
+				rtt = delay >= 0x80000000L ? 0 : (delay * 1000) >> 16;
+			}
+			RtcpStatistics.getInstance().onReportBlock(source, reporterSsrc, sourceSsrc, fractionLost, cumulativeLost,
+					highestSequence, jitter, mClock, rtt);
+			Callback callback = mCallback;
+			if (callback != null) {
+				callback.onReceptionReport(mSSRC, fractionLost, jitter, rtt);
+			}
+		}
+
+		@Override
+		public void onSourceDescription(SocketAddress source, int ssrc, String cname) {
+			RtcpStatistics.getInstance().onSourceDescription(source, ssrc, cname);
+		}
+
+		@Override
+		public void onBye(SocketAddress source, int ssrc) {
+			RtcpStatistics.getInstance().onBye(source, ssrc);
+		}
+	};
+
+	/** Los 32 bits centrales del timestamp NTP, el formato de LSR y DLSR, con el mismo reloj que send() */
+	private static long compactNtp(long ntpts) {
+		long hb = ntpts/1000000000;
+		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+		return ((hb & 0xFFFF) << 16) | (lb >>> 16);
+	}
 
 	/**
 	 * Sends the RTCP packet over the network.
@@ -200,17 +327,19 @@ public class SenderReport {
 	private void send(long ntpts, long rtpts) throws IOException {
 		long hb = ntpts/1000000000;
 		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-		setLong(hb, 8, 12);
-		setLong(lb, 12, 16);
-		setLong(rtpts, 16, 20);
+		mPacket.putInt(8, (int) hb);
+		mPacket.putInt(12, (int) lb);
+		mPacket.putInt(16, (int) rtpts);
+		mPacket.putInt(20, (int) mPacketCount);
+		mPacket.putInt(24, (int) mOctetCount);
+		mPacket.clear();
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			if (mDestination != null) mChannel.send(mPacket, mDestination);
 		} else {
 			synchronized (mOutputStream) {
 				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
+					mPacket.get(mTcpBuffer, 4, PACKET_LENGTH);
+					mOutputStream.write(mTcpBuffer);
 				} catch (Exception e) {}
 			}
 		}
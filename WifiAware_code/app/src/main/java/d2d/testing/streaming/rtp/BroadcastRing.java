@@ -0,0 +1,235 @@
+package d2d.testing.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Ring de difusion para la salida de un MediaCodec: cada access unit se escribe una sola vez con publish()
+ * y cada suscriptor lee con su propio Cursor, que solo guarda por que access unit va y cuanto ha leido de el.
+ * No se crea ningun objeto por access unit, los datos van a un array circular y los metadatos a arrays paralelos.
+ *
+ * El escritor nunca espera a los lectores. Si un lector se queda tan atras que su access unit se ha sobrescrito,
+ * salta al primer keyframe que siga disponible (o al siguiente que llegue) y se cuentan los access units perdidos.
+ * Si se queda atras a mitad de un access unit, el resto de ese access unit se descarta: read() devuelve LAPPED una vez
+ * para que el packetizer tire lo que ya tenia de ese access unit, y la siguiente lectura empieza en el keyframe.
+ */
+public class BroadcastRing {
+
+    /** Lo devuelve Cursor.read() cuando el access unit que se estaba leyendo se ha sobrescrito a medias */
+    public static final int LAPPED = -2;
+
+    private byte[] mData;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final long[] mPresentationTimes;
+    private final int[] mFlags;
+    private final boolean[] mKeyframes;
+
+    private long mNext = 0;         // Numero del proximo access unit que se escribe
+    private long mOldest = 0;       // Access unit mas antiguo cuyos datos siguen en el ring
+    private int mWritePosition = 0;
+    private int mReaders = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @param capacity bytes del array circular, crece si llega un access unit mayor
+     * @param slots maximo de access units guardados a la vez
+     */
+    public BroadcastRing(int capacity, int slots) {
+        mData = new byte[capacity];
+        mOffsets = new int[slots];
+        mLengths = new int[slots];
+        mPresentationTimes = new long[slots];
+        mFlags = new int[slots];
+        mKeyframes = new boolean[slots];
+    }
+
+    /**
+     * Escribe el access unit que hay entre position y limit de data (que no se modifican) y despierta a los lectores.
+     * Solo lo llama un thread (el del MediaCodecBufferReader).
+     * @param flags flags del MediaCodec.BufferInfo, los lectores los ven en su BufferInfo
+     * @param keyframe si un lector que se ha quedado atras puede continuar desde aqui
+     */
+    public synchronized void publish(ByteBuffer data, long presentationTimeUs, int flags, boolean keyframe) {
+        int length = data.remaining();
+        if (length > mData.length) {
+            // No cabe: se amplia y se descarta todo lo anterior
+            mData = new byte[Math.max(length, mData.length * 2)];
+            mOldest = mNext;
+            mWritePosition = 0;
+        }
+        int start = mWritePosition;
+        if (start + length > mData.length) {
+            // No cabe al final, se empieza desde 0 y los access units que quedaban al final dejan de ser validos
+            start = 0;
+            while (mOldest < mNext && mOffsets[slot(mOldest)] >= mWritePosition) mOldest++;
+        }
+        int end = start + length;
+        while (mOldest < mNext && (mNext - mOldest >= mOffsets.length || overlaps(slot(mOldest), start, end))) mOldest++;
+
+        int position = data.position();
+        data.get(mData, start, length);
+        data.position(position);
+        int slot = slot(mNext);
+        mOffsets[slot] = start;
+        mLengths[slot] = length;
+        mPresentationTimes[slot] = presentationTimeUs;
+        mFlags[slot] = flags;
+        mKeyframes[slot] = keyframe;
+        mWritePosition = end;
+        mNext++;
+        notifyAll();
+    }
+
+    /** Despierta a los lectores, que a partir de ahora reciben IOException */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /** Numero de cursores abiertos, si no hay ninguno no hace falta publicar */
+    public synchronized int getReaderCount() {
+        return mReaders;
+    }
+
+    /** Crea un cursor que empieza por el proximo access unit que se publique */
+    public synchronized Cursor newCursor() {
+        mReaders++;
+        return new Cursor(mNext);
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % mOffsets.length);
+    }
+
+    private boolean overlaps(int slot, int start, int end) {
+        return mOffsets[slot] < end && start < mOffsets[slot] + mLengths[slot];
+    }
+
+    /** Primer keyframe disponible a partir de from, o mNext si no hay ninguno */
+    private long nextKeyframe(long from) {
+        for (long sequence = Math.max(from, mOldest); sequence < mNext; sequence++) {
+            if (mKeyframes[slot(sequence)]) return sequence;
+        }
+        return mNext;
+    }
+
+    /** Posicion de lectura de un suscriptor. No es thread safe, lo usa solo el thread de su packetizer */
+    public class Cursor {
+        private long mSequence;
+        private int mPosition = 0;
+        private int mLength = -1;           // Longitud del access unit que se esta leyendo, -1 si aun no se ha empezado
+        private long mPresentationTimeUs = 0;
+        private int mFlags = 0;
+        private boolean mWaitingForKeyframe = false;
+        private long mSkipped = 0;
+        private long mTruncated = 0;
+        private boolean mClosed = false;
+
+        private Cursor(long sequence) {
+            mSequence = sequence;
+        }
+
+        /**
+         * Copia en buffer hasta length bytes del access unit actual, nunca mezcla dos access units en la misma llamada.
+         * Espera si no hay datos nuevos.
+         * @return bytes copiados, 0 si se interrumpe el thread, o LAPPED si el access unit del que ya se habia leido una parte
+         * se ha sobrescrito: no se copia nada y el cursor pasa al siguiente keyframe
+         * @throws IOException si se ha cerrado el cursor o el ring
+         */
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            synchronized (BroadcastRing.this) {
+                while (true) {
+                    if (mClosed || BroadcastRing.this.mClosed) throw new IOException("This InputStream was closed");
+
+                    if (mSequence < mOldest) {
+                        // El access unit ya no esta en el ring, si se habia leido una parte el resto se pierde
+                        boolean truncated = mPosition > 0;
+                        skip();
+                        if (truncated) {
+                            mTruncated++;
+                            return LAPPED;
+                        }
+                    }
+
+                    if (mWaitingForKeyframe) {
+                        long target = nextKeyframe(mSequence);
+                        mSkipped += target - mSequence;
+                        mSequence = target;
+                        if (mSequence < mNext) mWaitingForKeyframe = false;
+                    }
+
+                    if (mSequence < mNext) break;
+                    try {
+                        BroadcastRing.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return 0;
+                    }
+                }
+
+                int slot = slot(mSequence);
+                mLength = mLengths[slot];
+                mPresentationTimeUs = mPresentationTimes[slot];
+                mFlags = BroadcastRing.this.mFlags[slot];
+                int min = Math.min(length, mLength - mPosition);
+                System.arraycopy(mData, mOffsets[slot] + mPosition, buffer, offset, min);
+                mPosition += min;
+                if (mPosition >= mLength) {
+                    mSequence++;
+                    mPosition = 0;
+                    mLength = -1;
+                }
+                return min;
+            }
+        }
+
+        /** Bytes que quedan del access unit actual */
+        public int available() {
+            synchronized (BroadcastRing.this) {
+                if (mSequence < mOldest) return 0;
+                if (mSequence >= mNext) return 0;
+                return mLengths[slot(mSequence)] - mPosition;
+            }
+        }
+
+        /** presentationTimeUs del ultimo access unit leido */
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        /** Flags (MediaCodec.BufferInfo) del ultimo access unit leido */
+        public int getFlags() {
+            return mFlags;
+        }
+
+        /** Access units que se ha saltado este lector por ir demasiado lento */
+        public long getSkipped() {
+            return mSkipped;
+        }
+
+        /** Access units que se han cortado porque se sobrescribieron mientras se leian */
+        public long getTruncated() {
+            return mTruncated;
+        }
+
+        public void close() {
+            synchronized (BroadcastRing.this) {
+                if (mClosed) return;
+                mClosed = true;
+                mReaders--;
+                BroadcastRing.this.notifyAll();
+            }
+        }
+
+        /** Con el lock del ring. Salta al siguiente keyframe disponible */
+        private void skip() {
+            long target = nextKeyframe(mOldest);
+            mSkipped += target - mSequence;
+            mSequence = target;
+            mPosition = 0;
+            mLength = -1;
+            mWaitingForKeyframe = target >= mNext;
+        }
+    }
+}
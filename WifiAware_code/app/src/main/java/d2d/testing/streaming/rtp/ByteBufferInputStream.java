@@ -1,102 +1,59 @@
 package d2d.testing.streaming.rtp;
 
-import android.annotation.SuppressLint;
-import android.media.MediaCodec;
-
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.LinkedList;
 
+/**
+ * InputStream de un packetizer suscrito a un MediaCodecBufferReader.
+ * Ya no guarda una copia de cada buffer del encoder: solo tiene un cursor sobre el BroadcastRing del reader,
+ * que comparten todos los suscriptores. getLastBufferInfo() devuelve siempre el mismo BufferInfo actualizado
+ * con el presentationTimeUs y los flags del ultimo access unit leido.
+ * Si el ring sobrescribe el access unit que se estaba leyendo, read() devuelve 0 sin datos, igual que al interrumpirse,
+ * y los packetizers descartan lo que tenian (AACLATMPacketizer hace commitBuffer() sin enviar). La siguiente lectura
+ * empieza en el siguiente keyframe.
+ */
 public class ByteBufferInputStream extends BufferInfoInputStream {
 
     private static final String TAG = "ByteBufferInputStream";
 
-    LinkedList<ByteBufferInfo> mByteBufferInfos = new LinkedList<>();
-    ByteBuffer mByteBuffer = null;
-    private boolean mClosed = false;
+    private final BroadcastRing.Cursor mCursor;
+    private final byte[] mSingleByte = new byte[1];
+
+    public ByteBufferInputStream(BroadcastRing ring) {
+        mCursor = ring.newCursor();
+    }
 
     public int read() throws IOException {
-        return 0;
+        int len;
+        while ((len = read(mSingleByte, 0, 1)) == 0) {
+            if (Thread.currentThread().isInterrupted()) return -1;
+        }
+        return len < 0 ? -1 : mSingleByte[0] & 0xFF;
     }
 
     @Override
     public void close() {
-        mClosed = true;
-    }
-
-    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
-        int min = 0;
-
-        try {
-            while (!Thread.interrupted() && !mClosed && mByteBufferInfos.isEmpty() && mByteBuffer == null) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {}
-            }
-
-            if (mClosed)
-                throw new IOException("This InputStream was closed");
-
-            if(mByteBuffer == null && !mByteBufferInfos.isEmpty()) {
-                //Log.v(TAG,"mByteBufferInfos not empty...!");
-
-                ByteBufferInfo byteBufferInfo = mByteBufferInfos.removeFirst();
-                mByteBuffer = byteBufferInfo.getByteBuffer();
-                mBufferInfo = byteBufferInfo.getBufferInfo();
-            }
-
-            if(mByteBuffer != null){
-                if(mByteBuffer.hasRemaining()) {
-                    min = Math.min(len, mByteBuffer.remaining());
-                    //Log.v(TAG,"byteBuffer has remaining..." + mByteBuffer.remaining() + " reading..." + min + "with offset" + off);
-                    mByteBuffer.get(bytes, off, min);
-                }
-                if(!mByteBuffer.hasRemaining()) {
-                    //Log.v(TAG,"byteBuffer doesnt have remaining... nullifying...!");
-                    mByteBuffer = null;
-                }
-            }
-        } catch (RuntimeException e) {
-            e.printStackTrace();
-        }
-
-        return min;
+        mCursor.close();
     }
 
-    public synchronized int available() {
-        return mByteBuffer.remaining();
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        int read = mCursor.read(bytes, off, len);
+        if (read == BroadcastRing.LAPPED) return 0;
+        mBufferInfo.presentationTimeUs = mCursor.getPresentationTimeUs();
+        mBufferInfo.flags = mCursor.getFlags();
+        return read;
     }
 
-    public synchronized void addBufferInput(byte[] buffer, long presentationTime) {
-        mByteBufferInfos.add(new ByteBufferInfo(ByteBuffer.wrap(buffer), presentationTime));
-        notifyAll();
-        //mByteBuffersMap.put(byteBuffer, bufferInfo);
-        //mByteBuffer = byteBuffer;
-        //mBufferInfo = bufferInfo;
+    public int available() {
+        return mCursor.available();
     }
 
-    @Override
-    public synchronized MediaCodec.BufferInfo getLastBufferInfo() {
-        return mBufferInfo;
+    /** Access units que este packetizer no ha leido por ir demasiado lento */
+    public long getSkipped() {
+        return mCursor.getSkipped();
     }
 
-    public class ByteBufferInfo {
-        @SuppressLint("NewApi")
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        ByteBuffer mByteBuffer;
-
-        @SuppressLint("NewApi")
-        public ByteBufferInfo(ByteBuffer mByteBuffer, long presentationTime) {
-            this.bufferInfo.presentationTimeUs = presentationTime;
-            this.mByteBuffer = mByteBuffer;
-        }
-
-        public MediaCodec.BufferInfo getBufferInfo() {
-            return this.bufferInfo;
-        }
-
-        public ByteBuffer getByteBuffer() {
-            return mByteBuffer;
-        }
+    /** Access units que este packetizer empezo a leer pero se sobrescribieron antes de terminar */
+    public long getTruncated() {
+        return mCursor.getTruncated();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,247 @@
+package d2d.testing.streaming.rtp;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Etapa de empaquetado H264 (RFC 6184) compartida por todos los suscriptores de VideoPacketizerDispatcher.
+ * Antes cada suscriptor tenia su H264Packetizer con su thread, recibia su propia copia de cada buffer del encoder
+ * y volvia a partir las mismas NAL units en FU-A.
+ *
+ * Ahora cada buffer de salida del encoder (un access unit, con sus flags de MediaCodec.BufferInfo) se parte en NAL units
+ * directamente sobre el ByteBuffer del MediaCodec y se fragmenta en payloads RTP una sola vez, sobre un array que se reutiliza. Despues, para cada RtpSocket suscrito solo se copia el payload ya
+ * preparado detras de la cabecera RTP, en la que el propio socket escribe su SSRC, su numero de secuencia y el timestamp.
+ * Asi un suscriptor mas no añade threads, ni copias del access unit, ni trabajo de fragmentacion.
+ *
+ * Se cachean el SPS y el PPS que envia el encoder al arrancar y se mandan en un STAP-A delante de cada IDR,
+ * como hace H264Packetizer, para que los suscriptores que llegan tarde puedan decodificar desde el siguiente IDR.
+ */
+public class H264FanOut {
+
+    public final static String TAG = "H264FanOut";
+
+    private static final int RTP_HEADER_LENGTH = RtpSocket.RTP_HEADER_LENGTH;
+    // Mismo tamaño maximo de paquete que AbstractPacketizer
+    private static final int MAX_PAYLOAD = RtpSocket.MTU - 28 - RTP_HEADER_LENGTH - 2;
+
+    private final CopyOnWriteArrayList<RtpSocket> mSockets = new CopyOnWriteArrayList<>();
+
+    // Payloads del access unit actual, uno detras de otro
+    private byte[] mPayloads = new byte[64000];
+    private int[] mOffsets = new int[64];
+    private int[] mLengths = new int[64];
+    private int mCount = 0;
+    private int mUsed = 0;
+
+    private byte[] mSps = null, mPps = null, mStapA = null;
+    private volatile int mOverflowPolicy = RtpSocket.OVERFLOW_BLOCK;
+
+    public void addSocket(RtpSocket socket) {
+        socket.setOverflowPolicy(mOverflowPolicy);
+        socket.setH264Payload(true);
+        mSockets.addIfAbsent(socket);
+    }
+
+    /**
+     * Politica de desbordamiento de las FIFO de todos los suscriptores (ver RtpSocket.setOverflowPolicy()).
+     * Por defecto OVERFLOW_BLOCK, como antes del fan-out: no se pierde nada, pero como hay un solo thread empaquetando
+     * un suscriptor con la FIFO llena frena a todos. Con OVERFLOW_DROP_NON_REFERENCE el lento descarta sin frenar al resto.
+     */
+    public void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+        for (RtpSocket socket : mSockets) socket.setOverflowPolicy(policy);
+    }
+
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public void removeSocket(RtpSocket socket) {
+        mSockets.remove(socket);
+    }
+
+    public int getSocketCount() {
+        return mSockets.size();
+    }
+
+    /** SPS y PPS conocidos de antemano (MP4Config), solo se usan si el encoder todavia no los ha enviado */
+    public synchronized void setStreamParameters(byte[] pps, byte[] sps) {
+        if (mSps == null && mPps == null && pps != null && sps != null) {
+            updateStapA(sps, pps);
+        }
+    }
+
+    /**
+     * Empaqueta un access unit del encoder y lo encola en todos los sockets suscritos.
+     * Solo la llama el thread del MediaCodecBufferReader. Al terminar accessUnit conserva su position y limit.
+     * @param accessUnit buffer de salida del MediaCodec entre position y limit: NAL units precedidas de 0x000001 o 0x00000001
+     * @param presentationTimeUs presentationTimeUs del MediaCodec.BufferInfo
+     * @param flags flags del MediaCodec.BufferInfo
+     */
+    @SuppressLint("NewApi")
+    public synchronized void packetize(ByteBuffer accessUnit, long presentationTimeUs, int flags) {
+        int position = accessUnit.position();
+        int limit = accessUnit.limit();
+        boolean config = (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyframe = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        boolean hasSps = false;
+        boolean firstSlice = true;
+        mCount = 0;
+        mUsed = 0;
+
+        try {
+            int nalStart = nextNal(accessUnit, position, limit);
+            while (nalStart < limit) {
+                int next = nextStartCode(accessUnit, nalStart, limit);
+                int nalEnd = next < 0 ? limit : next;
+                // Los ceros que siguen a la NAL forman parte del siguiente start code
+                while (nalEnd > nalStart && accessUnit.get(nalEnd - 1) == 0) nalEnd--;
+                if (nalEnd > nalStart) {
+                    int type = accessUnit.get(nalStart) & 0x1F;
+                    if (type == 7) {
+                        hasSps = true;
+                        mSps = copy(accessUnit, nalStart, nalEnd);
+                    } else if (type == 8) {
+                        mPps = copy(accessUnit, nalStart, nalEnd);
+                        if (mSps != null) updateStapA(mSps, mPps);
+                    } else if (type >= 1 && type <= 5 && firstSlice) {
+                        firstSlice = false;
+                        // El encoder no repite el SPS/PPS delante de cada keyframe, se añade el STAP-A
+                        if ((keyframe || type == 5) && !hasSps && mStapA != null) addPayload(mStapA, 0, mStapA.length);
+                    }
+                    fragment(accessUnit, nalStart, nalEnd);
+                }
+                if (next < 0) break;
+                nalStart = nextNal(accessUnit, next, limit);
+            }
+        } finally {
+            accessUnit.limit(limit);
+            accessUnit.position(position);
+        }
+        if (mCount == 0) return;
+        if (config) Log.d(TAG, "Codec config: SPS " + (mSps != null) + " PPS " + (mPps != null));
+
+        long ts = presentationTimeUs * 1000L;
+        for (RtpSocket socket : mSockets) {
+            try {
+                for (int i = 0; i < mCount; i++) {
+                    socket.sendPayload(mPayloads, mOffsets[i], mLengths[i], ts, i == mCount - 1);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending to SSRC " + Integer.toHexString(socket.getSSRC()), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Single NAL unit si cabe en un paquete, si no FU-A */
+    private void fragment(ByteBuffer data, int from, int to) {
+        int naluLength = to - from;
+        if (naluLength <= MAX_PAYLOAD) {
+            int offset = reserve(naluLength);
+            data.position(from);
+            data.get(mPayloads, offset, naluLength);
+            return;
+        }
+        byte nal = data.get(from);
+        byte indicator = (byte) ((nal & 0x60) | 28);
+        byte header = (byte) ((nal & 0x1F) | 0x80);
+        int sum = from + 1;
+        data.position(sum);
+        while (sum < to) {
+            int len = Math.min(MAX_PAYLOAD, to - sum);
+            if (sum + len >= to) header |= 0x40;
+            int offset = reserve(len + 2);
+            mPayloads[offset] = indicator;
+            mPayloads[offset + 1] = header;
+            data.get(mPayloads, offset + 2, len);
+            sum += len;
+            header &= 0x7F;
+        }
+    }
+
+    private void addPayload(byte[] data, int from, int length) {
+        int offset = reserve(length);
+        System.arraycopy(data, from, mPayloads, offset, length);
+    }
+
+    /** Reserva sitio para un payload nuevo y devuelve donde empieza */
+    private int reserve(int length) {
+        if (mUsed + length > mPayloads.length) {
+            byte[] payloads = new byte[Math.max(mPayloads.length * 2, mUsed + length)];
+            System.arraycopy(mPayloads, 0, payloads, 0, mUsed);
+            mPayloads = payloads;
+        }
+        if (mCount == mOffsets.length) {
+            int[] offsets = new int[mCount * 2];
+            int[] lengths = new int[mCount * 2];
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            System.arraycopy(mLengths, 0, lengths, 0, mCount);
+            mOffsets = offsets;
+            mLengths = lengths;
+        }
+        int offset = mUsed;
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mCount++;
+        mUsed += length;
+        return offset;
+    }
+
+    private void updateStapA(byte[] sps, byte[] pps) {
+        // STAP-A NAL header + NALU 1 (SPS) size + NALU 2 (PPS) size = 5 bytes
+        byte[] stapa = new byte[sps.length + pps.length + 5];
+        stapa[0] = 24;
+        stapa[1] = (byte) (sps.length >> 8);
+        stapa[2] = (byte) (sps.length & 0xFF);
+        stapa[sps.length + 3] = (byte) (pps.length >> 8);
+        stapa[sps.length + 4] = (byte) (pps.length & 0xFF);
+        System.arraycopy(sps, 0, stapa, 3, sps.length);
+        System.arraycopy(pps, 0, stapa, 5 + sps.length, pps.length);
+        mStapA = stapa;
+    }
+
+    /** Primer byte de NAL a partir de from: detras del start code que empieza en from, o from si no hay start code */
+    private static int nextNal(ByteBuffer data, int from, int limit) {
+        int i = from;
+        while (i < limit && data.get(i) == 0) i++;
+        if (i - from >= 2 && i < limit && data.get(i) == 1) return i + 1;
+        return from;
+    }
+
+    /**
+     * Posicion del siguiente 0x000001 a partir de from, -1 si no hay.
+     * Se miran 8 bytes de golpe con getLong(): si ninguno es 0 no puede empezar ahi un start code y se saltan todos,
+     * asi dentro de los slices (casi nunca hay ceros) se hace una comparacion por cada 8 bytes en lugar de por byte.
+     */
+    static int nextStartCode(ByteBuffer data, int from, int limit) {
+        int i = from;
+        while (i + 8 <= limit) {
+            long word = data.getLong(i);
+            if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) != 0) {
+                for (int j = i; j < i + 8 && j + 2 < limit; j++) {
+                    if (data.get(j) == 0 && data.get(j + 1) == 0 && data.get(j + 2) == 1) return j;
+                }
+            }
+            i += 8;
+        }
+        for (; i + 2 < limit; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] copy(ByteBuffer data, int from, int to) {
+        byte[] result = new byte[to - from];
+        data.position(from);
+        data.get(result);
+        return result;
+    }
+}
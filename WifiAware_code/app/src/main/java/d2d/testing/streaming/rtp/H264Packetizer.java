@@ -50,6 +50,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	public H264Packetizer() {
 		super();
 		socket.setClockFrequency(90000);
+		socket.setH264Payload(true);
 	}
 
 	public void start() {
@@ -98,6 +99,14 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}	
 
+	public byte[] getPPS() {
+		return pps;
+	}
+
+	public byte[] getSPS() {
+		return sps;
+	}
+
 	public void run() {
 		long duration = 0;
 		Log.d(TAG,"H264 packetizer started !");
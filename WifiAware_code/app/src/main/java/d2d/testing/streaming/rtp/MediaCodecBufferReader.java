@@ -1,54 +1,80 @@
 package d2d.testing.streaming.rtp;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Arrays;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 /**
- * En vez de hacer una nueva copia para cada packetizer, del buffer leido del MediaCodecInputStream, se podria cambiar para hacer solo una (.asReadOnlyBuffer()) y distribuirla a todos.
- * Se puede porque ByteBufferInputStream solo guarda el buffer añadido y hace una copia en el que se pasa a la llamada read que hace cada packetizer.
+ * Lee cada buffer de salida del MediaCodecInputStream entero, como un access unit con su presentationTimeUs y sus flags
+ * (readAccessUnit(), sin pasar por read()), y lo reparte a los suscriptores sin hacer una copia para cada uno.
+ * -Los packetizers leen de un ByteBufferInputStream creado con newInputStream(), que es solo un cursor sobre un BroadcastRing
+ *  en el que cada access unit se escribe una vez. Un packetizer lento salta al siguiente keyframe en lugar de frenar a los demas.
+ * -Con un H264FanOut (video) los access units se empaquetan una sola vez para todos los RtpSocket suscritos.
+ * En regimen estable no se reserva memoria: se trabaja sobre el buffer del MediaCodec y el ring se reutiliza.
  */
 public class MediaCodecBufferReader implements Runnable {
     private String TAG = "MediaCodecBufferReader";
-    private final int mBufferSize;
+
+    // El ring guarda hasta RING_BUFFERS buffers de salida del tamaño pedido
+    private static final int RING_BUFFERS = 32;
+
     private final MediaCodecInputStream mMediaCodecInputStream;
-    private final Map<AbstractPacketizer, InputStream> mPacketizersInputsMap;
+    private final BroadcastRing mRing;
+    private final H264FanOut mFanOut;
+    private boolean mKeyframesOnly = false;
     private boolean mRunning = true;
 
-    public MediaCodecBufferReader(int BuffSize, MediaCodecInputStream mediaCodecInputStream, Map<AbstractPacketizer, InputStream> map){
-        mBufferSize = BuffSize;
+    public MediaCodecBufferReader(int BuffSize, MediaCodecInputStream mediaCodecInputStream){
+        this(BuffSize, mediaCodecInputStream, null);
+    }
+
+    public MediaCodecBufferReader(int BuffSize, MediaCodecInputStream mediaCodecInputStream, H264FanOut fanOut){
         mMediaCodecInputStream = mediaCodecInputStream;
-        mPacketizersInputsMap = map;
+        mRing = new BroadcastRing(RING_BUFFERS * BuffSize, 2 * RING_BUFFERS);
+        mFanOut = fanOut;
+    }
+
+    /**
+     * Con true los lectores que se quedan atras solo pueden continuar en un buffer con BUFFER_FLAG_KEY_FRAME (video).
+     * Por defecto cualquier buffer sirve, como en el audio.
+     */
+    public void setKeyframesOnly(boolean keyframesOnly) {
+        mKeyframesOnly = keyframesOnly;
+    }
+
+    /** Nuevo InputStream para un packetizer, empieza por el proximo buffer que salga del encoder */
+    public ByteBufferInputStream newInputStream() {
+        return new ByteBufferInputStream(mRing);
     }
 
+    @SuppressLint("NewApi")
     @Override
     public void run() {
-        byte[] buffer = new byte[mBufferSize];
-        int read = 0;
         while (!Thread.interrupted() && mRunning) {
             try {
-                read += mMediaCodecInputStream.read(buffer, read, mBufferSize - read);
-                //Log.v(TAG, "readen from MediaCodecInputStream: " + read);
-                //Log.v(TAG, "readen from MediaCodecInputStream: " + mMediaCodecInputStream.getLastBufferInfo().presentationTimeUs);
-
-                if(read > 0) {
-                    //Log.v(TAG, "readen from MediaCodecInputStream >= bufferSize: " + read);
-                    synchronized (mPacketizersInputsMap) {
-                        for(Map.Entry<AbstractPacketizer, InputStream> entry : mPacketizersInputsMap.entrySet()) {
-                            ((ByteBufferInputStream) entry.getValue())
-                                    .addBufferInput(Arrays.copyOfRange(buffer,0, read), mMediaCodecInputStream.getLastBufferInfo().presentationTimeUs);
+                // Access unit entero del encoder, sin copiarlo a un byte[] ni trocearlo en lecturas
+                ByteBuffer accessUnit = mMediaCodecInputStream.readAccessUnit();
+                if (accessUnit == null) break;
+                try {
+                    MediaCodec.BufferInfo info = mMediaCodecInputStream.getLastBufferInfo();
+                    if (accessUnit.hasRemaining()) {
+                        if (mFanOut != null) mFanOut.packetize(accessUnit, info.presentationTimeUs, info.flags);
+                        if (mRing.getReaderCount() > 0) {
+                            boolean keyframe = !mKeyframesOnly || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                            mRing.publish(accessUnit, info.presentationTimeUs, info.flags, keyframe);
                         }
                     }
-                    read = 0;
+                } finally {
+                    mMediaCodecInputStream.releaseAccessUnit();
                 }
             } catch (IOException e) {
                 mRunning = false;
             }
         }
+        mRing.close();
 
         Log.v(TAG, "Thread has been interrupted and its stopping...");
     }
@@ -101,6 +101,46 @@ public class MediaCodecInputStream extends BufferInfoInputStream {
 		return min;
 	}
 	
+	/**
+	 * Espera el siguiente buffer de salida del encoder y lo devuelve entero, sin copiarlo, con position y limit
+	 * ajustados a BufferInfo.offset y size. Los flags y el presentationTimeUs estan en getLastBufferInfo().
+	 * El buffer es del MediaCodec y solo es valido hasta releaseAccessUnit(). No se puede mezclar con read().
+	 * @return null si se interrumpe el thread
+	 */
+	public ByteBuffer readAccessUnit() throws IOException {
+		while (!mClosed) {
+			if (Thread.currentThread().isInterrupted()) return null;
+			try {
+				mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+				if (mIndex >= 0) {
+					mBuffer = mMediaCodec.getOutputBuffer(mIndex);
+					mBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+					mBuffer.position(mBufferInfo.offset);
+					return mBuffer;
+				} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					mMediaFormat = mMediaCodec.getOutputFormat();
+				} else if (mIndex != MediaCodec.INFO_TRY_AGAIN_LATER) {
+					Log.e(TAG,"Message: "+mIndex);
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		throw new IOException("This InputStream was closed");
+	}
+
+	/** Devuelve al MediaCodec el buffer de readAccessUnit() */
+	public void releaseAccessUnit() {
+		if (mBuffer != null) {
+			try {
+				mMediaCodec.releaseOutputBuffer(mIndex, false);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			mBuffer = null;
+		}
+	}
+
 	public int available() {
 		if (mBuffer != null) 
 			return mBufferInfo.size - mBuffer.position();
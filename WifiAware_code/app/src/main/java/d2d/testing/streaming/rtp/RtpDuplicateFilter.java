@@ -0,0 +1,81 @@
+package d2d.testing.streaming.rtp;
+
+import java.util.Arrays;
+
+/**
+ * Detecta paquetes RTP repetidos de una pista por su numero de secuencia (el SSRC ya lo fija la ruta del relay).
+ * Durante el cambio de emisor de un stream a un camino mas corto (ver RoutingTable.replaceUpstream()) llegan por los
+ * dos caminos los mismos paquetes, con el mismo SSRC y la misma secuencia, y solo se debe reenviar una copia.
+ *
+ * Recuerda las ultimas WINDOW secuencias en un mapa de bits circular. Un paquete mas antiguo que la ventana no se
+ * puede comprobar y se da por nuevo, reiniciando la ventana (el emisor puede haber reiniciado la secuencia).
+ * No es thread safe, se usa solo desde el thread del reactor del RelaySelector.
+ */
+public class RtpDuplicateFilter {
+
+    public static final int WINDOW = 1024;
+
+    private final long[] mSeen = new long[WINDOW / 64];
+    private int mHighest = -1;
+    private long mDuplicates = 0;
+
+    /** @return true si ya ha pasado un paquete con esta secuencia, y entonces se debe descartar */
+    public boolean isDuplicate(int sequence) {
+        sequence &= 0xFFFF;
+        if (mHighest < 0) {
+            reset(sequence);
+            return false;
+        }
+        int delta = (sequence - mHighest) & 0xFFFF;
+        if (delta == 0) {
+            mDuplicates++;
+            return true;
+        }
+        if (delta < 0x8000) {
+            // Mas nuevo: se liberan las posiciones de la ventana que pasan a ser de las secuencias intermedias
+            if (delta >= WINDOW) {
+                reset(sequence);
+                return false;
+            }
+            for (int i = 1; i < delta; i++) clear(mHighest + i);
+            mHighest = sequence;
+            mark(sequence);
+            return false;
+        }
+        if (0x10000 - delta >= WINDOW) {
+            reset(sequence);
+            return false;
+        }
+        if (isMarked(sequence)) {
+            mDuplicates++;
+            return true;
+        }
+        mark(sequence);
+        return false;
+    }
+
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    private void reset(int sequence) {
+        Arrays.fill(mSeen, 0);
+        mHighest = sequence;
+        mark(sequence);
+    }
+
+    private void mark(int sequence) {
+        int bit = sequence % WINDOW;
+        mSeen[bit >> 6] |= 1L << (bit & 63);
+    }
+
+    private void clear(int sequence) {
+        int bit = (sequence & 0xFFFF) % WINDOW;
+        mSeen[bit >> 6] &= ~(1L << (bit & 63));
+    }
+
+    private boolean isMarked(int sequence) {
+        int bit = sequence % WINDOW;
+        return (mSeen[bit >> 6] & (1L << (bit & 63))) != 0;
+    }
+}
@@ -0,0 +1,189 @@
+package d2d.testing.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cache del ultimo GOP de una pista H264 (RFC 6184) que se reenvia, para que un suscriptor que llega tarde
+ * reciba enseguida un keyframe en lugar de esperar al siguiente IDR del emisor.
+ *
+ * Lo alimenta el RelaySelector con cada paquete RTP de la pista (onPacket()), antes de reenviarlo.
+ * Guarda una copia de los paquetes desde el ultimo inicio de keyframe (IDR, o el SPS/PPS/STAP-A que lo precede),
+ * mas los ultimos paquetes de SPS/PPS por si el emisor no los repite delante de cada IDR.
+ * Si un GOP no cabe en MAX_CACHE_BYTES se deja de guardar hasta el siguiente keyframe.
+ *
+ * Al unirse un suscriptor se le envian los paquetes con writePacket(), que reescribe los numeros de secuencia
+ * para que el ultimo de la rafaga sea justo el anterior al siguiente paquete en directo.
+ * La rafaga se puede enviar en varias veces mientras siguen llegando paquetes, que se añaden al final del mismo GOP;
+ * si empieza otro GOP cambia getGeneration() y hay que empezar desde el principio.
+ * Asi la secuencia que ve el suscriptor es continua aunque el emisor haya perdido paquetes dentro del GOP.
+ * No es thread safe, se usa solo desde el thread del reactor del RelaySelector.
+ */
+public class RtpGopCache {
+
+    public static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final int INITIAL_CACHE_BYTES = 256 * 1024;
+    private static final int MAX_PARAMETER_SETS = 3;
+
+    private byte[] mData = new byte[INITIAL_CACHE_BYTES];
+    private int[] mOffsets = new int[256];
+    private int[] mLengths = new int[256];
+    private int mCount = 0;
+    private int mUsed = 0;
+    private boolean mValid = false;
+    private boolean mLastWasParameterSet = false;
+
+    private final byte[][] mParameterSets = new byte[MAX_PARAMETER_SETS][];
+    private final int[] mParameterSetLengths = new int[MAX_PARAMETER_SETS];
+    private int mParameterSetCount = 0;
+    private boolean mFirstIsParameterSet = false;
+
+    private int mLastSequence = -1;
+    // Cambia cada vez que se descarta el GOP guardado, los indices de writePacket() dejan de valer
+    private int mGeneration = 0;
+
+    /**
+     * Añade un paquete RTP (entre position y limit, que no se modifican).
+     * @return true si el paquete empieza un keyframe
+     */
+    public boolean onPacket(ByteBuffer packet) {
+        int position = packet.position();
+        int length = packet.remaining();
+        int payload = payloadOffset(packet, position, length);
+        if (payload < 0) return false;
+
+        mLastSequence = packet.getShort(position + 2) & 0xFFFF;
+        int nal = packet.get(position + payload) & 0xFF;
+        int type = nal & 0x1F;
+        boolean parameterSet = type == 7 || type == 8
+                || (type == 24 && payload + 3 < length && ((packet.get(position + payload + 3) & 0x1F) == 7));
+        boolean keyframeStart;
+        if (type == 28) {
+            int fuHeader = payload + 1 < length ? packet.get(position + payload + 1) & 0xFF : 0;
+            keyframeStart = (fuHeader & 0x1F) == 5 && (fuHeader & 0x80) != 0;
+        } else {
+            keyframeStart = type == 5 || parameterSet;
+        }
+
+        if (parameterSet) {
+            if (!mLastWasParameterSet) mParameterSetCount = 0;
+            if (mParameterSetCount < MAX_PARAMETER_SETS) {
+                mParameterSets[mParameterSetCount] = copy(packet, position, length, mParameterSets[mParameterSetCount]);
+                mParameterSetLengths[mParameterSetCount++] = length;
+            }
+        }
+
+        // El PPS o el IDR que siguen al SPS no empiezan otro GOP, ya se empezo con el SPS
+        if (keyframeStart && !mLastWasParameterSet) {
+            mGeneration++;
+            mCount = 0;
+            mUsed = 0;
+            mValid = true;
+            mFirstIsParameterSet = parameterSet;
+        }
+        mLastWasParameterSet = parameterSet;
+
+        if (mValid) {
+            if (mUsed + length > MAX_CACHE_BYTES) {
+                // GOP demasiado grande, hasta el siguiente keyframe no hay nada que enviar
+                mGeneration++;
+                mValid = false;
+                mCount = 0;
+                mUsed = 0;
+            } else {
+                append(packet, position, length);
+            }
+        }
+        return keyframeStart;
+    }
+
+    /** Paquetes que recibiria un suscriptor nuevo: el GOP y, si no empieza por ellos, el SPS/PPS */
+    public int getPacketCount() {
+        if (!mValid || mCount == 0) return 0;
+        return mCount + (mFirstIsParameterSet ? 0 : mParameterSetCount);
+    }
+
+    /** Bytes que ocupa el GOP guardado */
+    public int getCachedBytes() {
+        return mValid ? mUsed : 0;
+    }
+
+    /**
+     * Copia en dst (a partir de su position) el paquete index de la rafaga con el numero de secuencia reescrito.
+     * @param index entre 0 y getPacketCount()-1
+     * @return bytes escritos
+     */
+    public int writePacket(int index, ByteBuffer dst) {
+        int count = getPacketCount();
+        int parameterSets = count - mCount;
+        byte[] data;
+        int offset, length;
+        if (index < parameterSets) {
+            data = mParameterSets[index];
+            offset = 0;
+            length = mParameterSetLengths[index];
+        } else {
+            data = mData;
+            offset = mOffsets[index - parameterSets];
+            length = mLengths[index - parameterSets];
+        }
+        int sequence = (mLastSequence - (count - 1 - index)) & 0xFFFF;
+        int start = dst.position();
+        dst.put(data, offset, length);
+        dst.put(start + 2, (byte) (sequence >> 8));
+        dst.put(start + 3, (byte) sequence);
+        return length;
+    }
+
+    /** Los paquetes de una rafaga solo son del mismo GOP mientras no cambie este valor */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public void clear() {
+        mGeneration++;
+        mCount = 0;
+        mUsed = 0;
+        mValid = false;
+        mParameterSetCount = 0;
+        mLastWasParameterSet = false;
+    }
+
+    private void append(ByteBuffer packet, int position, int length) {
+        if (mUsed + length > mData.length) {
+            mData = Arrays.copyOf(mData, Math.min(MAX_CACHE_BYTES, Math.max(mData.length * 2, mUsed + length)));
+        }
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mCount * 2);
+        }
+        packet.position(position);
+        packet.get(mData, mUsed, length);
+        packet.position(position);
+        mOffsets[mCount] = mUsed;
+        mLengths[mCount] = length;
+        mCount++;
+        mUsed += length;
+    }
+
+    /** Posicion del payload dentro del paquete, -1 si no es un paquete RTP v2 con payload */
+    private static int payloadOffset(ByteBuffer packet, int position, int length) {
+        if (length < RtpSocket.RTP_HEADER_LENGTH + 1) return -1;
+        int b0 = packet.get(position) & 0xFF;
+        if ((b0 >> 6) != 2) return -1;
+        int offset = RtpSocket.RTP_HEADER_LENGTH + 4 * (b0 & 0x0F);
+        if ((b0 & 0x10) != 0) {
+            if (offset + 4 > length) return -1;
+            offset += 4 + 4 * (packet.getShort(position + offset + 2) & 0xFFFF);
+        }
+        return offset < length ? offset : -1;
+    }
+
+    private static byte[] copy(ByteBuffer packet, int position, int length, byte[] reuse) {
+        byte[] data = reuse != null && reuse.length >= length ? reuse : new byte[length];
+        packet.position(position);
+        packet.get(data, 0, length);
+        packet.position(position);
+        return data;
+    }
+}
@@ -24,12 +24,19 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import d2d.testing.streaming.rtcp.RtcpStatistics;
 import d2d.testing.streaming.rtcp.SenderReport;
 
 /**
@@ -42,9 +49,14 @@ import d2d.testing.streaming.rtcp.SenderReport;
 /**
  * Gestiona una lista de datagramas UDP y ofrece una interfaz que proporciona acceso sus buffers internos mediante requestBuffer y commitBuffer.
  * Cuando el packetizer tenga datos solicita un buffer y cuando lo llene hace commit. Al hacer commit lo marca como disponible para enviarse,
- * Tiene un thread para enviar estos datagramas por un socket normal. Cuando pasan 4 segundos sin que haya buffers para enviar, el thread se destruye y se resetean las
- * estructuras. Cuando se haga commit de un nuevo buffer se crea otra vez.
- * Para los envios siempre se descartan 30 buffers/paquetes y luego comienza a enviar los que lleguen. No se exactamente porque, hay que revisarlo en el debug.
+ * Tiene un thread para enviar estos datagramas por un DatagramChannel no bloqueante. En cada vuelta envia como un lote todos los buffers
+ * confirmados que permita el TokenBucket (si hay cache, mCacheSize > 0) en lugar de dormir con Thread.sleep() entre paquete y paquete.
+ * El thread se crea con el primer commit y queda esperando en la FIFO hasta close(), asi no se pierde tiempo recreandolo cada vez que se reanuda el stream.
+ * Con startTimeToFirstFrame() (lo llama MediaStream.start()) el primer paquete que se envia es el inicio de un keyframe, sin pasar por el TokenBucket,
+ * y se mide el tiempo hasta ese primer frame (getTimeToFirstFrame(), que tambien se anota en RtcpStatistics).
+ * La FIFO crece bajo demanda hasta un presupuesto de bytes (setBufferBudget). Al llegar a el se aplica la politica de setOverflowPolicy():
+ * bloquear al packetizer, descartar primero frames que no son de referencia o descartar todo hasta el siguiente IDR,
+ * de forma que con congestion la memoria y la latencia quedan acotadas. Los descartes se cuentan en paquetes y en frames.
  * Los puertos origen de los sockets rtp y rtcp se negocian en el setup de rtsp pero no se guardan. En el setup se deberia comprobar que estan libres y asignarlos
  */
 public class RtpSocket implements Runnable {
@@ -60,23 +72,72 @@ public class RtpSocket implements Runnable {
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
-	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
-	private byte[][] mBuffers;
-	private long[] mTimestamps;
+	/** Cuando la FIFO esta llena el packetizer espera a que se envien paquetes (comportamiento original) */
+	public final static int OVERFLOW_BLOCK = 0;
+	/** Cuando la FIFO esta llena se descartan primero los frames que no son de referencia (H264 nal_ref_idc 0) */
+	public final static int OVERFLOW_DROP_NON_REFERENCE = 1;
+	/** Cuando la FIFO esta llena se vacia y se descarta todo hasta el siguiente IDR (o SPS) */
+	public final static int OVERFLOW_DROP_UNTIL_IDR = 2;
+
+	// Presupuesto por defecto, la misma memoria que los 300 buffers de MTU de antes
+	public static final int DEFAULT_BUFFER_BUDGET = 300 * MTU;
+	// Buffers que se reservan al crear el socket, el resto se crean bajo demanda hasta el presupuesto
+	private static final int INITIAL_SLOTS = 32;
+
+	// El ritmo de envio con cache es un 25% mayor que el bitrate medido, asi la FIFO se vacia aunque lleguen rafagas
+	private static final int PACING_HEADROOM_PERCENT = 125;
+	// Rafaga maxima que se envia de golpe: 5 ms al ritmo de envio y al menos 4 paquetes
+	private static final long PACING_BURST_NANOS = 5000000L;
+	private static final int PACING_MIN_BURST = 4 * MTU;
+	// Si el buffer de envio del socket esta lleno se reintenta durante ~1 ms antes de descartar el paquete
+	private static final long SEND_RETRY_NANOS = 50000L;
+	private static final int SEND_RETRIES = 20;
+
+	private DatagramChannel mChannel;
+	private InetSocketAddress mDestAddress;
 
 	private SenderReport mReport;
-	
-	private Semaphore mBufferRequested, mBufferCommitted;
+
+	// FIFO: los buffers confirmados esperan en mCommitted y los libres en mFreeSlots, todo protegido por mLock
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotFull = mLock.newCondition();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final ArrayDeque<Slot> mCommitted = new ArrayDeque<>();
+	private final ArrayDeque<Slot> mFreeSlots = new ArrayDeque<>();
+	private final ArrayList<Slot> mAllSlots = new ArrayList<>();
+	private Slot[] mBatch = new Slot[INITIAL_SLOTS];
+	// Buffer en el que escribe el packetizer entre requestBuffer() y commitBuffer()
+	private Slot mCurrent;
+	// Buffer que se entrega al packetizer cuando su paquete se va a descartar
+	private final Slot mDiscardSlot;
+	private int mBufferBudget = DEFAULT_BUFFER_BUDGET;
+	private int mMaxSlots;
+	private int mQueuedBytes = 0;
+
+	private int mOverflowPolicy = OVERFLOW_BLOCK;
+	private boolean mH264Payload = false;
+	private boolean mWaitingForKeyframe = false;
+	private long mFrameId = 0;
+	private long mLastFrameTimestamp = -1;
+	private long mDroppingFrameId = -1;
+	private long mOverflowDroppedPackets = 0;
+	private long mOverflowDroppedFrames = 0;
+	private long mLastDroppedFrameId = -1;
+
 	private Thread mThread;
+	private volatile boolean mClosed = false;
+	// Arranque en caliente: hasta el primer keyframe no se encola nada y ese keyframe sale sin esperar al TokenBucket
+	private boolean mWaitingForFirstKeyframe = false;
+	private volatile long mFirstFrameStart = 0;
+	private volatile long mTimeToFirstFrame = -1;
+	private long mFirstFrameId = -1;
 
 	private int mTransport;
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
-	private int mBufferCount, mBufferIn, mBufferOut;
-	private int mCount = 0;
+	private long mDroppedPackets = 0;
 	private byte[] mTcpHeader;
 	protected OutputStream mOutputStream = null;
 	private Network mDestNetwork;
@@ -88,74 +149,95 @@ public class RtpSocket implements Runnable {
 	 * @throws IOException
 	 */
 	public RtpSocket() {
-		
+		this(new SenderReport());
+	}
+
+	/** Con otro SenderReport, para medir el coste por paquete de distintas implementaciones en los tests */
+	RtpSocket(SenderReport report) {
+
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
-		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
-		mReport = new SenderReport();
+		mReport = report;
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
 		mTcpHeader = new byte[] {'$',0,0,0};
-		
-		resetFifo();
-
-		for (int i=0; i<mBufferCount; i++) {
-
-			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
-
-			/*							     Version(2)  Padding(0)					 					*/
-			/*									 ^		  ^			Extension(0)						*/
-			/*									 |		  |				^								*/
-			/*									 | --------				|								*/
-			/*									 | |---------------------								*/
-			/*									 | ||  -----------------------> Source Identifier(0)	*/
-			/*									 | ||  |												*/
-			mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
-
-			/* Payload Type */
-			mBuffers[i][1] = (byte) 96;
-
-			/* Byte 2,3        ->  Sequence Number                   */
-			/* Byte 4,5,6,7    ->  Timestamp                         */
-			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		mDiscardSlot = new Slot();
+		mMaxSlots = maxSlots(mBufferBudget);
 
+		for (int i=0; i<INITIAL_SLOTS; i++) {
+			mFreeSlots.add(newSlot());
 		}
 
 		try {
-		mSocket = new MulticastSocket();
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(null);
+			mChannel.configureBlocking(false);
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage());
 		}
 		
 	}
 
-	private void resetFifo() {
-		mCount = 0;
-		mBufferIn = 0;
-		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
-		mReport.reset();
-		mAverageBitrate.reset();
-	}
-	
-	/** Closes the underlying socket. */
+	/** Closes the underlying socket and stops the sending thread. */
 	public void close() {
-		mSocket.close();
+		mClosed = true;
+		if (mThread != null) mThread.interrupt();
+		mLock.lock();
+		try {
+			while (!mCommitted.isEmpty()) recycle(mCommitted.poll());
+			mQueuedBytes = 0;
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Error closing RTP channel", e);
+		}
+		mReport.close();
+		RtcpStatistics.getInstance().removeSource(mSsrc);
+	}
+
+	/**
+	 * Empieza a medir el tiempo hasta el primer frame y hace que lo primero que se envie sea un keyframe.
+	 * Se llama cada vez que el stream arranca o se reanuda.
+	 */
+	public void startTimeToFirstFrame() {
+		mLock.lock();
+		try {
+			mFirstFrameStart = System.nanoTime();
+			mTimeToFirstFrame = -1;
+			mWaitingForFirstKeyframe = mH264Payload;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Milisegundos desde startTimeToFirstFrame() hasta que se envio el primer frame, -1 si aun no se ha enviado */
+	public long getTimeToFirstFrame() {
+		return mTimeToFirstFrame;
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
-		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+		mLock.lock();
+		try {
+			for (Slot slot : mAllSlots) {
+				setLong(slot.mBuffer, ssrc,8,12);
+			}
+			setLong(mDiscardSlot.mBuffer, ssrc,8,12);
+		} finally {
+			mLock.unlock();
 		}
 		mReport.setSSRC(mSsrc);
 	}
 
+	/** Recibe los Receiver Reports que el suscriptor envia a este socket */
+	public void setReportCallback(SenderReport.Callback callback) {
+		mReport.setCallback(callback);
+	}
+
 	/** Returns the SSRC of the stream. */
 	public int getSSRC() {
 		return mSsrc;
@@ -164,16 +246,50 @@ public class RtpSocket implements Runnable {
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
 		mClock = clock;
+		mReport.setClockFrequency(clock);
 	}
 
 	/** Sets the size of the FIFO in ms. */
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
 	}
+
+	/** Bytes maximos de paquetes pendientes de enviar en la FIFO */
+	public void setBufferBudget(int bytes) {
+		mLock.lock();
+		try {
+			mBufferBudget = Math.max(MTU, bytes);
+			mMaxSlots = maxSlots(mBufferBudget);
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public int getBufferBudget() {
+		return mBufferBudget;
+	}
+
+	/** Una de OVERFLOW_BLOCK, OVERFLOW_DROP_NON_REFERENCE o OVERFLOW_DROP_UNTIL_IDR */
+	public void setOverflowPolicy(int policy) {
+		mOverflowPolicy = policy;
+	}
+
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	/**
+	 * Indica que los paquetes son H264 (RFC 6184), asi la FIFO puede saber que paquetes son de referencia y donde empieza un IDR.
+	 * Sin esto las politicas de descarte solo pueden descartar el paquete que llega.
+	 */
+	public void setH264Payload(boolean h264) {
+		mH264Payload = h264;
+	}
 	
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
-		mSocket.setTimeToLive(ttl);
+		mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
@@ -181,10 +297,7 @@ public class RtpSocket implements Runnable {
 		if (dport != 0 && rtcpPort != 0) {
 			mTransport = TRANSPORT_UDP;
 			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
+			mDestAddress = new InetSocketAddress(dest, dport);
 			mReport.setDestination(dest, rtcpPort);
 		}
 	}
@@ -209,7 +322,7 @@ public class RtpSocket implements Runnable {
 
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannel.socket().getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -218,44 +331,99 @@ public class RtpSocket implements Runnable {
 	/** 
 	 * Returns an available buffer from the FIFO, it can then be modified. 
 	 * Call {@link #commitBuffer(int)} to send it over the network. 
+	 * Si la FIFO ha llegado al presupuesto se aplica la politica de desbordamiento: con OVERFLOW_BLOCK se espera,
+	 * con las demas nunca se bloquea y, si no se puede liberar sitio, el paquete se escribe en un buffer que se descartara.
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
-		return mBuffers[mBufferIn];
+		if (mCurrent == null) {
+			mLock.lock();
+			try {
+				mCurrent = acquireSlot();
+			} finally {
+				mLock.unlock();
+			}
+		}
+		mCurrent.mBuffer[1] &= 0x7F;
+		return mCurrent.mBuffer;
 	}
 
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
+		startThread();
+
+		if (mCurrent == null) return;
+		mLock.lock();
+		try {
+			if (mCurrent != mDiscardSlot) recycle(mCurrent);
+			mCurrent = null;
+		} finally {
+			mLock.unlock();
 		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
 
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
+		if (mCurrent == null) return;
 		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		mCurrent.mLength = length;
 
 		mAverageBitrate.push(length);
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mLock.lock();
+		try {
+			enqueue(mCurrent);
+			mCurrent = null;
+		} finally {
+			mLock.unlock();
+		}
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}		
+		startThread();
 		
 	}
 
+	/**
+	 * Encola un paquete cuyo payload ya esta preparado, lo usa H264FanOut para repartir el mismo access unit a varios sockets.
+	 * Solo se escribe la cabecera (el SSRC ya esta en el buffer, la secuencia y el timestamp son los de este socket) y se copia el payload.
+	 */
+	public void sendPayload(byte[] payload, int offset, int length, long timestamp, boolean marker) throws IOException, InterruptedException {
+		byte[] buffer = requestBuffer();
+		System.arraycopy(payload, offset, buffer, RTP_HEADER_LENGTH, length);
+		updateTimestamp(timestamp);
+		if (marker) markNextPacket();
+		commitBuffer(RTP_HEADER_LENGTH + length);
+	}
+
+	private synchronized void startThread() {
+		if (mThread == null && !mClosed) {
+			mThread = new Thread(this, "RtpSocket-" + Integer.toHexString(mSsrc));
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+	}
+
+	/** Paquetes descartados porque el buffer de envio del socket seguia lleno despues de los reintentos */
+	public long getDroppedPackets() {
+		return mDroppedPackets;
+	}
+
+	/** Paquetes descartados por la politica de desbordamiento de la FIFO */
+	public long getOverflowDroppedPackets() {
+		return mOverflowDroppedPackets;
+	}
+
+	/** Frames de los que se ha descartado al menos un paquete por la politica de desbordamiento */
+	public long getOverflowDroppedFrames() {
+		return mOverflowDroppedFrames;
+	}
+
+	/** Bytes pendientes de enviar en la FIFO */
+	public int getQueuedBytes() {
+		return mQueuedBytes;
+	}
+
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
 	public long getBitrate() {
 		return mAverageBitrate.average();
@@ -263,7 +431,7 @@ public class RtpSocket implements Runnable {
 
 	/** Increments the sequence number. */
 	private void updateSequence() {
-		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+		setLong(mCurrent.mBuffer, ++mSeq, 2, 4);
 	}
 
 	/** 
@@ -271,70 +439,275 @@ public class RtpSocket implements Runnable {
 	 * @param timestamp The new timestamp in ns.
 	 **/
 	public void updateTimestamp(long timestamp) {
-		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		mCurrent.mTimestamp = timestamp;
+		setLong(mCurrent.mBuffer, (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
 	}
 
 	/** Sets the marker in the RTP packet. */
 	public void markNextPacket() {
-		mBuffers[mBufferIn][1] |= 0x80;
+		mCurrent.mBuffer[1] |= 0x80;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/**
+	 * The Thread sends the packets in the FIFO at a constant rate.
+	 * Cada vez que se despierta coge todos los buffers confirmados y los envia seguidos mientras el TokenBucket lo permita,
+	 * si no hay tokens espera con LockSupport.parkNanos() justo el tiempo necesario para el siguiente paquete.
+	 */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
+		TokenBucket bucket = new TokenBucket();
+		int batch;
 		try {
-			// Caches mCacheSize milliseconds of the stream in the FIFO.
-			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+			while ((batch = takeBatch()) > 0) {
+				int released = 0;
+				long now = System.nanoTime();
+				// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
+				if (mCacheSize > 0) {
+					bucket.setRate((long) mAverageBitrate.average() / 8 * PACING_HEADROOM_PERCENT / 100, now);
+				}
+				for (int i = 0; i < batch; i++) {
+					Slot slot = mBatch[i];
+					if (mTimeToFirstFrame < 0 && mFirstFrameStart != 0 && (slot.mKeyframeStart || !mH264Payload)) {
+						mTimeToFirstFrame = (now - mFirstFrameStart) / 1000000L;
+						mFirstFrameId = slot.mFrameId;
+						RtcpStatistics.getInstance().onTimeToFirstFrame(mSsrc, mTimeToFirstFrame);
 					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
+					// El primer frame se envia entero sin esperar
+					if (mCacheSize > 0 && slot.mFrameId != mFirstFrameId) {
+						long wait = bucket.delayNanos(slot.mLength, now);
+						if (wait > 0) {
+							// Se devuelven al packetizer los buffers ya enviados antes de esperar
+							releaseBatch(released, i);
+							released = i;
+							LockSupport.parkNanos(wait);
+							if (Thread.interrupted()) throw new InterruptedException();
+							now = System.nanoTime();
+						}
+						bucket.consume(slot.mLength, now);
 					}
-				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
+					if (mOldTimestamp != 0 && (slot.mTimestamp-mOldTimestamp)<0) {
+						Log.e(TAG, "TS: "+slot.mTimestamp+" OLD: "+mOldTimestamp);
+					}
+					try {
+						mReport.update(slot.mLength, slot.mTimestamp, now);
+						mOldTimestamp = slot.mTimestamp;
+						if (mTransport == TRANSPORT_UDP) {
+							sendUDP(slot);
+						} else {
+							sendTCP(slot);
+						}
+					} catch (IOException e) {
+						if (mClosed) throw e;
+						Log.e(TAG, "Error sending RTP packet", e);
 					}
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				releaseBatch(released, batch);
 			}
+		} catch (InterruptedException ignore) {
 		} catch (Exception e) {
-			e.printStackTrace();
+			if (!mClosed) e.printStackTrace();
+		}
+		Log.d(TAG, "RTP sender thread stopped");
+	}
+
+	/** Espera (aparcado en la condicion, sin limite de tiempo) a que haya paquetes y los pasa todos a mBatch. Devuelve 0 al cerrar */
+	private int takeBatch() throws InterruptedException {
+		mLock.lock();
+		try {
+			while (mCommitted.isEmpty()) {
+				if (mClosed) return 0;
+				mNotEmpty.await();
+			}
+			if (mBatch.length < mCommitted.size()) mBatch = new Slot[Math.max(mBatch.length * 2, mCommitted.size())];
+			int count = 0;
+			while (!mCommitted.isEmpty()) mBatch[count++] = mCommitted.poll();
+			return count;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Devuelve a la lista de libres los buffers del lote entre from y to, ya enviados */
+	private void releaseBatch(int from, int to) {
+		if (from >= to) return;
+		mLock.lock();
+		try {
+			for (int i = from; i < to; i++) {
+				mQueuedBytes -= mBatch[i].mLength;
+				recycle(mBatch[i]);
+				mBatch[i] = null;
+			}
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Con mLock. Devuelve un buffer libre o aplica la politica de desbordamiento */
+	private Slot acquireSlot() throws InterruptedException {
+		while (isFull()) {
+			if (mOverflowPolicy == OVERFLOW_BLOCK) {
+				mNotFull.await();
+				continue;
+			}
+			boolean freed = false;
+			if (mOverflowPolicy == OVERFLOW_DROP_UNTIL_IDR && mH264Payload) {
+				// Lo que hay en la FIFO ya llega tarde, se tira todo y se espera al siguiente IDR
+				freed = dropQueued(false);
+				mWaitingForKeyframe = true;
+			} else if (mOverflowPolicy == OVERFLOW_DROP_NON_REFERENCE && mH264Payload) {
+				freed = dropQueued(true);
+			}
+			// No se ha podido liberar nada (p.e. lo ocupa el lote que se esta enviando), el paquete que viene se descarta
+			if (!freed) return mDiscardSlot;
+		}
+		Slot slot = mFreeSlots.poll();
+		return slot != null ? slot : newSlot();
+	}
+
+	private boolean isFull() {
+		return mQueuedBytes + MTU > mBufferBudget || (mFreeSlots.isEmpty() && mAllSlots.size() >= mMaxSlots);
+	}
+
+	/**
+	 * Con mLock. Descarta paquetes pendientes de la FIFO.
+	 * @param nonReferenceOnly si es true solo el frame no de referencia mas antiguo, si no todos
+	 * @return true si se ha descartado algo
+	 */
+	private boolean dropQueued(boolean nonReferenceOnly) {
+		long frameId = -1;
+		if (nonReferenceOnly) {
+			for (Slot slot : mCommitted) {
+				if (!slot.mReference) {
+					frameId = slot.mFrameId;
+					break;
+				}
+			}
+			if (frameId < 0) return false;
+		}
+		boolean dropped = false;
+		Iterator<Slot> it = mCommitted.iterator();
+		while (it.hasNext()) {
+			Slot slot = it.next();
+			if (nonReferenceOnly && slot.mFrameId != frameId) continue;
+			it.remove();
+			mQueuedBytes -= slot.mLength;
+			countDrop(slot.mFrameId);
+			recycle(slot);
+			dropped = true;
+		}
+		// El resto del frame que se esta descartando tampoco se envia
+		if (nonReferenceOnly) mDroppingFrameId = frameId;
+		return dropped;
+	}
+
+	/** Con mLock. Clasifica el paquete y lo pone en la cola o lo descarta */
+	private void enqueue(Slot slot) {
+		classify(slot);
+		boolean drop = slot == mDiscardSlot || (slot.mFrameId == mDroppingFrameId && !slot.mKeyframeStart);
+		if (mWaitingForFirstKeyframe) {
+			// Arranque: lo anterior al primer keyframe no se puede decodificar, se descarta sin contarlo como desbordamiento
+			if (!slot.mKeyframeStart || slot == mDiscardSlot) {
+				if (slot != mDiscardSlot) recycle(slot);
+				return;
+			}
+			mWaitingForFirstKeyframe = false;
+		}
+		if (mWaitingForKeyframe) {
+			if (slot.mKeyframeStart && !drop) mWaitingForKeyframe = false;
+			else drop = true;
+		}
+		if (drop) {
+			countDrop(slot.mFrameId);
+			// Si se pierde parte de un frame de referencia los siguientes no se pueden decodificar hasta el proximo IDR
+			if (slot.mReference && mH264Payload && mOverflowPolicy != OVERFLOW_BLOCK) mWaitingForKeyframe = true;
+			mDroppingFrameId = slot.mFrameId;
+			if (slot != mDiscardSlot) recycle(slot);
+			return;
+		}
+		mQueuedBytes += slot.mLength;
+		mCommitted.add(slot);
+		mNotEmpty.signal();
+	}
+
+	/** Los paquetes de un mismo frame comparten timestamp, con H264 ademas se mira el tipo de NAL */
+	private void classify(Slot slot) {
+		if (slot.mTimestamp != mLastFrameTimestamp) {
+			mFrameId++;
+			mLastFrameTimestamp = slot.mTimestamp;
+		}
+		slot.mFrameId = mFrameId;
+		slot.mReference = true;
+		slot.mKeyframeStart = false;
+		if (!mH264Payload || slot.mLength <= RTP_HEADER_LENGTH + 1) return;
+
+		byte[] buffer = slot.mBuffer;
+		int nal = buffer[RTP_HEADER_LENGTH];
+		int type = nal & 0x1F;
+		slot.mReference = (nal & 0x60) != 0;
+		if (type == 28) {
+			// FU-A: el tipo real esta en la cabecera FU, el IDR empieza en el fragmento con el bit S
+			int fuType = buffer[RTP_HEADER_LENGTH+1] & 0x1F;
+			slot.mKeyframeStart = fuType == 5 && (buffer[RTP_HEADER_LENGTH+1] & 0x80) != 0;
+		} else if (type == 24) {
+			// STAP-A con SPS y PPS que el packetizer envia justo antes de cada IDR
+			slot.mKeyframeStart = slot.mLength > RTP_HEADER_LENGTH + 3 && (buffer[RTP_HEADER_LENGTH+3] & 0x1F) == 7;
+		} else {
+			slot.mKeyframeStart = type == 5 || type == 7;
+		}
+	}
+
+	private void countDrop(long frameId) {
+		mOverflowDroppedPackets++;
+		if (frameId != mLastDroppedFrameId) {
+			mOverflowDroppedFrames++;
+			mLastDroppedFrameId = frameId;
+		}
+	}
+
+	/** Con mLock */
+	private void recycle(Slot slot) {
+		// Si se ha reducido el presupuesto los buffers sobrantes no vuelven a la lista
+		if (mAllSlots.size() > mMaxSlots) {
+			mAllSlots.remove(slot);
+		} else {
+			mFreeSlots.add(slot);
 		}
-		mThread = null;
-		resetFifo();
 	}
 
-	private void sendTCP() {
+	private Slot newSlot() {
+		Slot slot = new Slot();
+		setLong(slot.mBuffer, mSsrc, 8, 12);
+		mAllSlots.add(slot);
+		return slot;
+	}
+
+	/** Los paquetes ocupan entre una cabecera y un MTU, se permiten el doble de buffers que MTUs caben en el presupuesto */
+	private static int maxSlots(int budget) {
+		return Math.max(INITIAL_SLOTS, 2 * budget / MTU);
+	}
+
+	private void sendUDP(Slot slot) throws IOException {
+		ByteBuffer buffer = slot.mByteBuffer;
+		buffer.limit(slot.mLength).position(0);
+		for (int retries = 0; mChannel.send(buffer, mDestAddress) == 0; retries++) {
+			if (retries == SEND_RETRIES) {
+				mDroppedPackets++;
+				return;
+			}
+			LockSupport.parkNanos(SEND_RETRY_NANOS);
+		}
+	}
+
+	private void sendTCP(Slot slot) {
 		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
+			int len = slot.mLength;
 			Log.d(TAG,"sent "+len);
 			mTcpHeader[2] = (byte) (len>>8);
 			mTcpHeader[3] = (byte) (len&0xFF);
 			try {
 				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
+				mOutputStream.write(slot.mBuffer, 0, len);
 			} catch (Exception e) {}
 		}
 	}
@@ -409,51 +782,79 @@ public class RtpSocket implements Runnable {
 		
 	}
 	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
+	/** Un datagrama RTP de la FIFO con la informacion que necesitan el envio y las politicas de descarte */
+	private static class Slot {
+		final byte[] mBuffer = new byte[MTU];
+		final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+		int mLength = 1;
+		long mTimestamp;
+		long mFrameId;
+		boolean mReference;
+		boolean mKeyframeStart;
+
+		Slot() {
+			/*							     Version(2)  Padding(0)					 					*/
+			/*									 ^		  ^			Extension(0)						*/
+			/*									 |		  |				^								*/
+			/*									 | --------				|								*/
+			/*									 | |---------------------								*/
+			/*									 | ||  -----------------------> Source Identifier(0)	*/
+			/*									 | ||  |												*/
+			mBuffer[0] = (byte) 0x80;
 
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
+			/* Payload Type */
+			mBuffer[1] = (byte) 96;
+
+			/* Byte 2,3        ->  Sequence Number                   */
+			/* Byte 4,5,6,7    ->  Timestamp                         */
+			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
 		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
+	}
+
+	/**
+	 * Token bucket con resolucion de nanosegundos para repartir los envios.
+	 * Los tokens se guardan en bytes*10^9 para que el relleno (nanosegundos * bytes/s) sea aritmetica entera exacta.
+	 * Con rate 0 (todavia no hay bitrate medido) no limita.
+	 */
+	protected static class TokenBucket {
+
+		private static final long NANOS_PER_SECOND = 1000000000L;
+
+		private long mRate = 0;		// bytes/s
+		private long mBurst = 0;	// bytes*10^9
+		private long mTokens = 0;	// bytes*10^9
+		private long mLast = 0;
+
+		public void setRate(long bytesPerSecond, long now) {
+			boolean first = mLast == 0;
+			refill(now);
+			mRate = Math.max(0, bytesPerSecond);
+			mBurst = Math.max(PACING_MIN_BURST, mRate * PACING_BURST_NANOS / NANOS_PER_SECOND) * NANOS_PER_SECOND;
+			// Se empieza con el cubo lleno
+			if (first || mTokens > mBurst) mTokens = mBurst;
 		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
+
+		/** Nanosegundos que faltan para poder enviar length bytes, 0 si se puede enviar ya */
+		public long delayNanos(int length, long now) {
+			if (mRate == 0) return 0;
+			refill(now);
+			long missing = length * NANOS_PER_SECOND - mTokens;
+			return missing <= 0 ? 0 : (missing + mRate - 1) / mRate;
+		}
+
+		public void consume(int length, long now) {
+			if (mRate == 0) return;
+			refill(now);
+			mTokens -= length * NANOS_PER_SECOND;
+		}
+
+		private void refill(long now) {
+			if (mLast != 0 && now > mLast) {
+				long elapsed = now - mLast;
+				// Se evita el desbordamiento tras mucho tiempo parado, basta con llenar el cubo
+				mTokens = elapsed >= NANOS_PER_SECOND ? mBurst : Math.min(mBurst, mTokens + elapsed * mRate);
+			}
+			mLast = now;
 		}
 
 	}
@@ -45,22 +45,33 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipOutputStream;
 
 import d2d.testing.gui.main.INetworkManager;
 import d2d.testing.gui.main.ProofManager;
+import d2d.testing.streaming.RoutingTable;
+import d2d.testing.streaming.StreamCatalog;
 import d2d.testing.streaming.Stream;
 import d2d.testing.streaming.Streaming;
 import d2d.testing.streaming.StreamingRecord;
@@ -117,6 +128,8 @@ public class RtspClient implements StreamingRecordObserver {
 	protected int mState = 0;
 
 	protected final static int MAX_NETWORK_REQUESTS = 100;
+	// Tiempo maximo esperando la respuesta a una peticion, despues se da la conexion por perdida
+	protected final static long RESPONSE_TIMEOUT_MS = 10000;
 
 	protected UUID mLocalStreamingUUID = null;
 	String mLocalStreamingName = null;
@@ -125,6 +138,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 	protected Socket mSocket;
 	protected BufferedReader mBufferedReader;
+	protected ServerReader mServerReader;
 	protected OutputStream mOutputStream;
 	protected Callback mCallback;
 	protected final Handler mMainHandler;
@@ -137,6 +151,11 @@ public class RtspClient implements StreamingRecordObserver {
 	protected Parameters mParameters;
 	protected StreamingState mLocalStreamingState;
 	protected Map<UUID, StreamingState> mRebroadcastStreamingStates;
+	// Streams que el servidor ha pedido (DESCRIBE) y que aun no han llegado a este nodo, se envian al llegar
+	protected Set<UUID> mRequestedStreamings;
+	// Ultima version del catalogo (ver StreamCatalog) que ha confirmado el servidor, 0 si no tiene ninguna
+	protected long mCatalogAcked;
+	protected StreamingState mCatalogState;
 	/**
 	 * The callback interface you need to implement to know what's going on with the
 	 * RTSP server (for example your Wowza Media Server).
@@ -172,6 +191,9 @@ public class RtspClient implements StreamingRecordObserver {
 		public int mCSeq;
 		public String mSessionID;
 		public String mAuthorization;
+		// El servidor ha aceptado el RECORD, y ha pedido el stream con PLAY (ver onServerRequest())
+		public boolean mRecording;
+		public boolean mPlaying;
 		public StreamingState(){
 			mCSeq = 0;
 			mAuthorization = null;
@@ -208,6 +230,8 @@ public class RtspClient implements StreamingRecordObserver {
 
 		mRebroadcastStreamingStates = new HashMap<>();
 		mRebroadcastStreamings = new HashMap<>();
+		mRequestedStreamings = new HashSet<>();
+		mCatalogAcked = 0;
 		mTotalNetworkRequests = 0;
 	}
 
@@ -336,7 +360,9 @@ public class RtspClient implements StreamingRecordObserver {
 						if (mParameters.transport == TRANSPORT_UDP) {
 							mHandler.post(mConnectionMonitor);
 						}
+						startServerReader();
 						StreamingRecord.getInstance().addObserver(RtspClient.this);
+						scheduleCatalog();
 					} catch (IOException e) {
 						Log.e(TAG,"Failed to connect to RTSP server", e);
 						postError(ERROR_CONNECTION_FAILED, e);
@@ -378,16 +404,15 @@ public class RtspClient implements StreamingRecordObserver {
 	}
 
 	private void closeLocalStreaming(){
-		if(mLocalStreamingUUID != null){
+		//Solo se ha enviado si el servidor lo pidio (ver onStreamingRequested())
+		if(mLocalStreamingUUID != null && mLocalStreamingSession != null){
 			try {
 				sendRequestTeardown(mLocalStreamingState, mLocalStreamingUUID.toString());
 			} catch (Exception ignore) {}
-			if(mLocalStreamingSession != null){
-				if (mLocalStreamingSession.isStreaming()) {
-					mLocalStreamingSession.syncStop();
-				}
-				mLocalStreamingSession.release();
+			if (mLocalStreamingSession.isStreaming()) {
+				mLocalStreamingSession.syncStop();
 			}
+			mLocalStreamingSession.release();
 		}
 		mLocalStreamingSession = null;
 		mLocalStreamingState = null;
@@ -397,25 +422,169 @@ public class RtspClient implements StreamingRecordObserver {
 	}
 
 	private void closeStreaming(UUID id){
-		RebroadcastSession session = mRebroadcastStreamings.remove(id);
+		RebroadcastSession session = mRebroadcastStreamings.get(id);
 		if(session != null){
 			try {
-				sendRequestTeardown(mRebroadcastStreamingStates.remove(id), id.toString());
+				sendRequestTeardown(mRebroadcastStreamingStates.get(id), id.toString());
 			} catch (Exception ignore) {}
+			removeStreaming(id);
+		}
+	}
+
+	/** Deja de enviar el stream, y si el servidor lo habia pedido deja de contar como demanda en este nodo */
+	private void removeStreaming(UUID id){
+		RebroadcastSession session = mRebroadcastStreamings.remove(id);
+		StreamingState st = mRebroadcastStreamingStates.remove(id);
+		if(st != null && st.mPlaying){
+			RoutingTable.getInstance().removeDemand(id);
+		}
+		if(session != null){
 			session.stop();
 		}
 	}
 
 	private void closeConnections(){
 		closeLocalStreaming();
-		for(Map.Entry<UUID, RebroadcastSession> entry : mRebroadcastStreamings.entrySet()){
-			try {
-				sendRequestTeardown(mRebroadcastStreamingStates.get(entry.getKey()), entry.getKey().toString());
-			} catch (Exception ignore) {}
-			entry.getValue().stop();
+		// Copia de las claves, leyendo las respuestas a los TEARDOWN se pueden cerrar otros streams (ver readResponse())
+		for(UUID id : new ArrayList<>(mRebroadcastStreamings.keySet())){
+			closeStreaming(id);
 		}
 		mRebroadcastStreamings.clear();
 		mRebroadcastStreamingStates.clear();
+		mRequestedStreamings.clear();
+	}
+
+	/**
+	 * Peticiones que el servidor envia sobre un stream que le enviamos:
+	 * -PLAY: alguien quiere el stream en el servidor o mas alla, se empieza a enviar el RTP. Si es un stream que
+	 *  reenviamos cuenta como demanda en este nodo, que a su vez lo pide a su emisor.
+	 * -PAUSE: ya no hay nadie, se deja de enviar hasta el siguiente PLAY.
+	 * -TEARDOWN: le llega por un camino mas corto, se deja de enviar sin contestar con otro TEARDOWN.
+	 * Y sobre un stream que le anunciamos en el catalogo:
+	 * -DESCRIBE: el servidor lo quiere, se le envia con ANNOUNCE, SETUP y RECORD (ver onStreamingRequested()).
+	 * Las pasa el ServerReader a mHandler en cuanto llegan, asi que nunca hay una peticion nuestra a medias.
+	 * Todas se contestan con su CSeq (ver sendReply()), si no el servidor las reenvia: 400 si el path no es un stream,
+	 * 454 si no le estamos enviando ese stream y 200 en el resto. El DESCRIBE se contesta antes de empezar el ANNOUNCE.
+	 */
+	private void onServerRequest(Response request){
+		String method = request.requestMethod;
+		String path = request.requestPath;
+		UUID id;
+		try {
+			id = UUID.fromString(path);
+		} catch (IllegalArgumentException e) {
+			sendReply(request, RtspResponse.STATUS_BAD_REQUEST);
+			return;
+		}
+		Log.d(TAG, method + " " + path + " from server");
+		if(method.equalsIgnoreCase("DESCRIBE")){
+			sendReply(request, RtspResponse.STATUS_OK);
+			onStreamingRequested(id);
+			return;
+		}
+		if(id.equals(mLocalStreamingUUID) && mLocalStreamingState != null){
+			sendReply(request, RtspResponse.STATUS_OK);
+			onLocalStreamingRequest(method);
+			return;
+		}
+		StreamingState st = mRebroadcastStreamingStates.get(id);
+		RebroadcastSession session = mRebroadcastStreamings.get(id);
+		if(st == null || session == null) {
+			sendReply(request, RtspResponse.STATUS_SESSION_NOT_FOUND);
+			return;
+		}
+		sendReply(request, RtspResponse.STATUS_OK);
+		switch (method.toUpperCase(Locale.US)) {
+			case "PLAY":
+				if(!st.mPlaying){
+					st.mPlaying = true;
+					RoutingTable.getInstance().addDemand(id);
+					if(st.mRecording) session.play();
+				}
+				break;
+			case "PAUSE":
+				if(st.mPlaying){
+					st.mPlaying = false;
+					RoutingTable.getInstance().removeDemand(id);
+					session.pause();
+				}
+				break;
+			case "TEARDOWN":
+				removeStreaming(id);
+				break;
+		}
+	}
+
+	/** Contesta a una peticion del servidor con el CSeq que trae. Sin CSeq (servidores anteriores) no se contesta */
+	private void sendReply(Response request, String status){
+		String cseq = request.headers.get("cseq");
+		if(cseq == null) return;
+		String reply = "RTSP/1.0 " + status + "\r\n" +
+				"CSeq: " + cseq.trim() + "\r\n\r\n";
+		try {
+			mOutputStream.write(reply.getBytes(StandardCharsets.UTF_8));
+			mOutputStream.flush();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not answer " + request.requestMethod + ": " + e.getMessage());
+		}
+	}
+
+	private void onLocalStreamingRequest(String method){
+		switch (method.toUpperCase(Locale.US)) {
+			case "PLAY":
+				mLocalStreamingState.mPlaying = true;
+				if(mLocalStreamingState.mRecording) startLocalStreaming();
+				break;
+			case "PAUSE":
+				mLocalStreamingState.mPlaying = false;
+				if(mLocalStreamingSession != null && mLocalStreamingSession.isStreaming()){
+					mLocalStreamingSession.syncStop();
+				}
+				break;
+			case "TEARDOWN":
+				closeLocalStreaming();
+				break;
+		}
+	}
+
+	/**
+	 * El servidor ha pedido un stream de nuestro catalogo. Si aun no esta en este nodo se pide a su vez al vecino que lo
+	 * anuncia y se envia cuando llegue (ver streamingAvailable()).
+	 */
+	private void onStreamingRequested(UUID id){
+		if(mState != STATE_STARTED) return;
+		if(id.equals(mLocalStreamingUUID) && mLocalStreamingState != null){
+			if(mLocalStreamingSession == null) sendLocalStreaming();
+			return;
+		}
+		if(mRebroadcastStreamingStates.containsKey(id)) return;
+		Streaming streaming = StreamingRecord.getInstance().getStreaming(id);
+		if(streaming != null && StreamingRecord.getInstance().isDispatchable(id)){
+			startStreaming(streaming);
+		} else if(StreamCatalog.getInstance().requestStream(id)){
+			mRequestedStreamings.add(id);
+		}
+	}
+
+	private void startStreaming(Streaming streaming){
+		UUID streamingUUID = streaming.getUUID();
+		RebroadcastSession session = new RebroadcastSession();
+		session.setServerSession(streaming.getReceiveSession());
+
+		mRebroadcastStreamings.put(streamingUUID, session);
+		mRebroadcastStreamingStates.put(streamingUUID, new StreamingState());
+		sendStreaming(streamingUUID);
+	}
+
+	/** Arranca el encoder y el envio del stream local, solo cuando el servidor lo ha pedido */
+	private void startLocalStreaming(){
+		if(mLocalStreamingSession == null || mLocalStreamingSession.isStreaming()) return;
+		try {
+			mLocalStreamingSession.syncStart();
+		} catch (Exception e) { //Se perdio la conexion con el RTSPServer
+			postError(ERROR_CONNECTION_FAILED, e);
+			restartClient();
+		}
 	}
 
 
@@ -426,11 +595,16 @@ public class RtspClient implements StreamingRecordObserver {
 			if(mSocket != null) mSocket.close();
 		} catch (Exception ignore) {}
 		mSocket = null;
+		if(mServerReader != null) mServerReader.interrupt();
+		mServerReader = null;
 		mBufferedReader = null;
 		mOutputStream = null;
 
 		mCallback = null;
+		mCatalogAcked = 0;
+		mCatalogState = null;
 		mHandler.removeCallbacks(mConnectionMonitor);
+		mHandler.removeCallbacks(mCatalogSender);
 	}
 
 	@Override
@@ -442,9 +616,10 @@ public class RtspClient implements StreamingRecordObserver {
 				mSessionBuilder = sessionBuilder;
 				mLocalStreamingName = name;
 				mLocalStreamingState = new StreamingState();
-				sendLocalStreaming();
+				//Solo se anuncia en el catalogo, se envia cuando el servidor lo pida
 			}
 		});
+		scheduleCatalog();
 	}
 
 	@Override
@@ -455,6 +630,7 @@ public class RtspClient implements StreamingRecordObserver {
 				closeLocalStreaming();
 			}
 		});
+		scheduleCatalog();
 	}
 
 
@@ -470,19 +646,12 @@ public class RtspClient implements StreamingRecordObserver {
 						closeStreaming(streamingUUID);
 					}
 				}
-				else{
-					if(st == null){
-						st = new StreamingState();
-						RebroadcastSession session = new RebroadcastSession();
-						session.setServerSession(streaming.getReceiveSession());
-
-						mRebroadcastStreamings.put(streamingUUID, session);
-						mRebroadcastStreamingStates.put(streamingUUID, st);
-						sendStreaming(streamingUUID);
-					}
+				else if(st == null && mRequestedStreamings.remove(streamingUUID)){
+					startStreaming(streaming);
 				}
 			}
 		});
+		scheduleCatalog();
 	}
 
 	@Override
@@ -492,11 +661,13 @@ public class RtspClient implements StreamingRecordObserver {
 			public void run() {
 				UUID streamingUUID = streaming.getUUID();
 				StreamingState st = mRebroadcastStreamingStates.get(streamingUUID);
+				mRequestedStreamings.remove(streamingUUID);
 				if(st != null){
 					closeStreaming(streamingUUID);
 				}
 			}
 		});
+		scheduleCatalog();
 	}
 
 	@Override
@@ -504,6 +675,28 @@ public class RtspClient implements StreamingRecordObserver {
 
 	}
 
+	@Override
+	public void remoteStreamingAvailable(StreamCatalog.Entry entry) {
+		scheduleCatalog();
+	}
+
+	@Override
+	public void remoteStreamingUnavailable(final StreamCatalog.Entry entry) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mRequestedStreamings.remove(entry.getUUID());
+			}
+		});
+		scheduleCatalog();
+	}
+
+	/** Agrupa los cambios del catalogo que llegan seguidos en un solo SET_PARAMETER */
+	protected void scheduleCatalog(){
+		mHandler.removeCallbacks(mCatalogSender);
+		mHandler.postDelayed(mCatalogSender, 200);
+	}
+
 	protected void sendLocalStreaming(){
 		if(mState == STATE_STARTED){
 			try {
@@ -535,16 +728,13 @@ public class RtspClient implements StreamingRecordObserver {
 				return;
 			}
 			catch(RuntimeException e){ //El servidor rechazo el envio
-				//Como de momento solo rechaza por bucles no volvemos a intentar el envio
+				//Rechaza por bucles o porque ya le llega por un camino igual o mas corto, no volvemos a intentar el envio
 				mLocalStreamingSession = null;
 				return;
 			}
-			try {
-				mLocalStreamingSession.syncStart();
-			} catch (Exception e) { //Se perdio la conexion con el RTSPServer
-				postError(ERROR_CONNECTION_FAILED, e);
-				restartClient();
-			}
+			//El encoder no arranca hasta que el servidor pide el stream con PLAY, que puede haber llegado ya
+			mLocalStreamingState.mRecording = true;
+			if(mLocalStreamingState.mPlaying) startLocalStreaming();
 		}
 		else{
 			postError(ERROR_NETWORK_LOST, null);
@@ -568,10 +758,12 @@ public class RtspClient implements StreamingRecordObserver {
 				tryConnection(st, streamUUID.toString(), session);
 				session.startTrack(0);	//0=audio
 				session.startTrack(1);	//1=video
+				//El RTP no se envia hasta que el servidor pide el stream con PLAY, que puede haber llegado ya
+				st.mRecording = true;
+				if(st.mPlaying) session.play();
 			}catch(SecurityException e){ //Credenciales de conexion invalidas
 				postError(ERROR_WRONG_CREDENTIALS, new Exception("Credenciales invalidas para streaming " + streamUUID.toString(), e));
-				mRebroadcastStreamingStates.remove(streamUUID);
-				mRebroadcastStreamings.remove(streamUUID);
+				removeStreaming(streamUUID);
 			}
 			catch (IOException e) { //Se perdio la conexion con el RTSPServer
 				postError(ERROR_CONNECTION_FAILED, e);
@@ -581,10 +773,8 @@ public class RtspClient implements StreamingRecordObserver {
 				restartClient();
 			}
 			catch(RuntimeException e){ //El servidor rechazo el envio
-				//Como de momento solo rechaza por bucles no volvemos a intentar el envio
-				mRebroadcastStreamingStates.remove(streamUUID);
-				mRebroadcastStreamings.remove(streamUUID);
-				session.stop();
+				//Rechaza por bucles o porque ya le llega por un camino igual o mas corto, no volvemos a intentar el envio
+				removeStreaming(streamUUID);
 			}
 		}
 		else{
@@ -603,7 +793,8 @@ public class RtspClient implements StreamingRecordObserver {
 
 //		sendProofFile();
 
-		sendRequestAnnounce(mLocalStreamingState, path, mLocalStreamingSession.getSessionDescription());
+		sendRequestAnnounce(mLocalStreamingState, path, mLocalStreamingSession.getSessionDescription(),
+				Collections.singletonList(RoutingTable.getInstance().getNodeId()));
 		sendRequestSetup(mLocalStreamingState, path, mLocalStreamingSession.getTrack(0), 0);
 		sendRequestSetup(mLocalStreamingState, path, mLocalStreamingSession.getTrack(1), 1);
 		sendRequestRecord(mLocalStreamingState, path);
@@ -611,7 +802,10 @@ public class RtspClient implements StreamingRecordObserver {
 
 	private void tryConnection(StreamingState st, String path, RebroadcastSession session) throws IOException {
 		st.mCSeq = 0;
-		sendRequestAnnounce(st, path, session.getSessionDescription());
+		// Camino por el que nos llega el stream mas este nodo
+		List<String> via = new ArrayList<>(session.getServerSession().getVia());
+		via.add(RoutingTable.getInstance().getNodeId());
+		sendRequestAnnounce(st, path, session.getSessionDescription(), via);
 		sendRequestSetup(st, path, session, 0);
 		sendRequestSetup(st, path, session, 1);
 		sendRequestRecord(st, path);
@@ -656,10 +850,11 @@ public class RtspClient implements StreamingRecordObserver {
 	//IOException fallo de conexion
 	//IllegalStateException fallo en protocolo o configuracion de cliente
 	//
-	private void sendRequestAnnounce(StreamingState st, String path, String sessionDesc) throws SecurityException, IOException, IllegalStateException, RuntimeException{
+	private void sendRequestAnnounce(StreamingState st, String path, String sessionDesc, List<String> via) throws SecurityException, IOException, IllegalStateException, RuntimeException{
 		String body = sessionDesc;
 		String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
 				"CSeq: " + (++st.mCSeq) + "\r\n" +
+				"Via: " + RoutingTable.formatVia(via) + "\r\n" +
 				"Content-Length: " + body.length() + "\r\n" +
 				"Content-Type: application/sdp\r\n\r\n" +
 				body;
@@ -667,7 +862,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
+		Response response = readResponse();
 
 		if (response.headers.containsKey("server")) {
 			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
@@ -708,6 +903,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 			request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
 					"CSeq: " + (++st.mCSeq) + "\r\n" +
+					"Via: " + RoutingTable.formatVia(via) + "\r\n" +
 					"Content-Length: " + body.length() + "\r\n" +
 					"Authorization: " + st.mAuthorization + "\r\n" +
 					"Session: " + st.mSessionID + "\r\n" +
@@ -718,11 +914,12 @@ public class RtspClient implements StreamingRecordObserver {
 
 			mOutputStream.write(request.getBytes("UTF-8"));
 			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
+			response = readResponse();
 
 			if (response.status == 401) throw new SecurityException("Bad credentials !");
 
-		} else if (response.status == 403) {
+		}
+		if (response.status == 403) {
 			Log.d(TAG, "Streaming " + path + " refused by server");
 			throw new RuntimeException("Streaming " + path + " refused by server");
 		}
@@ -734,7 +931,8 @@ public class RtspClient implements StreamingRecordObserver {
 	private void sendRequestSetup(StreamingState st, String path, Stream stream, int trackNo) throws IllegalStateException, IOException {
 		if (stream != null) {
 			String params = mParameters.transport==TRANSPORT_TCP ?
-					("TCP;interleaved="+2*trackNo+"-"+(2*trackNo+1)) : ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+";mode=receive");
+					("TCP;interleaved="+2*trackNo+"-"+(2*trackNo+1)) : ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+
+					";ssrc="+Integer.toHexString(stream.getSSRC())+";mode=receive");
 			String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+"/trackID="+trackNo+" RTSP/1.0\r\n" +
 					"Transport: RTP/AVP/"+params+"\r\n" +
 					addHeaders(st);
@@ -743,7 +941,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 			mOutputStream.write(request.getBytes("UTF-8"));
 			mOutputStream.flush();
-			Response response = Response.parseResponse(mBufferedReader);
+			Response response = readResponse();
 			Matcher m;
 
 			if (response.headers.containsKey("session")) {
@@ -777,9 +975,12 @@ public class RtspClient implements StreamingRecordObserver {
 	 */
 	private void sendRequestSetup(StreamingState st, String path, RebroadcastSession session, int trackNo) throws IllegalStateException, IOException {
 		if (session.serverTrackExists(trackNo)) {
+			// El relay reenvia el RTP sin tocarlo, el SSRC es el que indico el emisor original
+			String ssrc = session.getServerTrack(trackNo).getSSRCHex();
 			String params = mParameters.transport==TRANSPORT_TCP
 					? ("TCP;interleaved="+2*trackNo+"-"+(2*trackNo+1))
-					: ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+";mode=receive");
+					: ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+
+					(ssrc != null ? ";ssrc="+ssrc : "")+";mode=receive");
 			String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+"/trackID="+trackNo+" RTSP/1.0\r\n" +
 					"Transport: RTP/AVP/"+params+"\r\n" +
 					addHeaders(st);
@@ -788,7 +989,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 			mOutputStream.write(request.getBytes("UTF-8"));
 			mOutputStream.flush();
-			Response response = Response.parseResponse(mBufferedReader);
+			Response response = readResponse();
 			Matcher m;
 
 			if (response.headers.containsKey("session")) {
@@ -828,7 +1029,7 @@ public class RtspClient implements StreamingRecordObserver {
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response response =  Response.parseResponse(mBufferedReader);
+		Response response =  readResponse();
 		if (response.status == 403) {
 			Log.d(TAG, "Streaming " + path + " refused by server");
 			throw new RuntimeException("Streaming " + path + " refused by server");
@@ -843,7 +1044,38 @@ public class RtspClient implements StreamingRecordObserver {
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		readResponse();
+	}
+
+	/**
+	 * Envia en un SET_PARAMETER los cambios del catalogo desde la ultima version que ha confirmado el servidor.
+	 * Si el servidor no tiene esa version (412) se vuelve a enviar el catalogo completo.
+	 */
+	private void sendRequestCatalog() throws IOException {
+		if(mCatalogState == null) mCatalogState = new StreamingState();
+		for(int attempt = 0; attempt < 2; attempt++){
+			byte[] body = StreamCatalog.getInstance().encodeSince(mCatalogAcked);
+			if(body == null) return;
+			String header = "SET_PARAMETER rtsp://"+mParameters.host+":"+mParameters.port+"/ RTSP/1.0\r\n" +
+					"CSeq: " + (++mCatalogState.mCSeq) + "\r\n" +
+					"Content-Type: " + StreamCatalog.CONTENT_TYPE + "\r\n" +
+					"Content-Length: " + body.length + "\r\n" +
+					(mCatalogState.mAuthorization != null ? "Authorization: " + mCatalogState.mAuthorization + "\r\n":"") + "\r\n";
+			Log.i(TAG,"SET_PARAMETER catalog " + StreamCatalog.getMessageVersion(body) + " (" + body.length + " bytes)");
+			mOutputStream.write(header.getBytes("UTF-8"));
+			mOutputStream.write(body);
+			mOutputStream.flush();
+			Response response = readResponse();
+			if(response.status == 200){
+				mCatalogAcked = StreamCatalog.getMessageVersion(body);
+				return;
+			}
+			if(response.status != 412){
+				Log.e(TAG, "Catalog refused by server: " + response.status);
+				return;
+			}
+			mCatalogAcked = 0;
+		}
 	}
 
 	/**
@@ -854,7 +1086,17 @@ public class RtspClient implements StreamingRecordObserver {
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		readResponse();
+	}
+
+	/**
+	 * Espera la respuesta a la ultima peticion, que lee el ServerReader. Las peticiones del servidor que lleguen mientras
+	 * tanto se atienden en mHandler cuando termine la peticion actual.
+	 */
+	private Response readResponse() throws IOException {
+		ServerReader reader = mServerReader;
+		if (reader == null) throw new SocketException("Connection lost");
+		return reader.takeResponse();
 	}
 
 	private String addHeaders(StreamingState st) {
@@ -877,6 +1119,8 @@ public class RtspClient implements StreamingRecordObserver {
 					// We poll the RTSP server with OPTION requests
 					StreamingState st = new StreamingState();
 					sendRequestOption(st, "");
+					// Por si se ha perdido algun cambio del catalogo, si el servidor lo tiene todo no se envia nada
+					sendRequestCatalog();
 					mHandler.postDelayed(mConnectionMonitor, 15000);
 				} catch (IOException e) {
 					// Happens if the OPTION request fails
@@ -888,6 +1132,95 @@ public class RtspClient implements StreamingRecordObserver {
 		}
 	};
 
+	/** Envia al servidor los cambios del catalogo de streams, agrupados en 200 ms desde el ultimo cambio */
+	protected Runnable mCatalogSender = new Runnable() {
+		@Override
+		public void run() {
+			if (mState == STATE_STARTED && mOutputStream != null) {
+				try {
+					sendRequestCatalog();
+				} catch (IOException e) {
+					postError(ERROR_CONNECTION_LOST, null);
+					Log.e(TAG, "Connection lost with the server...");
+					restartClient();
+				}
+			}
+		}
+	};
+
+	/** Arranca el ServerReader de la conexion recien abierta, se llama desde start() con mBufferedReader ya creado */
+	protected void startServerReader() {
+		mServerReader = new ServerReader(mBufferedReader);
+		mServerReader.start();
+	}
+
+	/**
+	 * Lee sin pausas todo lo que envia el servidor, en su propio thread. Antes se miraba cada segundo si habia algo,
+	 * y un PLAY podia esperar hasta un segundo a que el stream empezara a enviarse.
+	 * -Las peticiones del servidor (ver onServerRequest()) se pasan a mHandler en cuanto llegan.
+	 * -Las respuestas a nuestras peticiones se dejan en una cola, de la que las saca readResponse() en mHandler.
+	 * Cada conexion tiene su ServerReader, asi lo que quede de la anterior no se mezcla con la nueva.
+	 */
+	protected class ServerReader extends Thread {
+		// Marca en la cola de respuestas de que la conexion se ha cerrado
+		private final Response mConnectionLost = new Response();
+		private final BufferedReader mReader;
+		private final BlockingQueue<Response> mResponses = new LinkedBlockingQueue<>();
+
+		ServerReader(BufferedReader reader) {
+			super("d2d.testing.streaming.RtspClient.ServerReader");
+			mReader = reader;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					final Response message;
+					try {
+						message = Response.parseResponse(mReader);
+					} catch (IllegalStateException e) {
+						Log.e(TAG, "Invalid message from server");
+						continue;
+					}
+					if (message.requestMethod == null) {
+						mResponses.add(message);
+						continue;
+					}
+					mHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (mServerReader == ServerReader.this && mState == STATE_STARTED) {
+								onServerRequest(message);
+							}
+						}
+					});
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "Server reader closed: " + e.getMessage());
+			} finally {
+				mResponses.add(mConnectionLost);
+			}
+		}
+
+		Response takeResponse() throws IOException {
+			Response response;
+			try {
+				response = mResponses.poll(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SocketException("Interrupted waiting for the server");
+			}
+			if (response == null) throw new SocketTimeoutException("No response from server in " + RESPONSE_TIMEOUT_MS + " ms");
+			if (response == mConnectionLost) {
+				mResponses.add(response); // Las siguientes peticiones tambien fallan
+				throw new SocketException("Connection lost");
+			}
+			return response;
+		}
+	}
+
 	final protected static char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
 
 	private static String bytesToHex(byte[] bytes) {
@@ -944,6 +1277,8 @@ public class RtspClient implements StreamingRecordObserver {
 
 		// Parses method & uri
 		public static final Pattern regexStatus = Pattern.compile("RTSP/\\d.\\d (\\d+) (\\w+)",Pattern.CASE_INSENSITIVE);
+		// Parses a request sent by the server
+		public static final Pattern regexRequest = Pattern.compile("(DESCRIBE|PLAY|PAUSE|TEARDOWN) \\S*/([^/\\s]+) RTSP",Pattern.CASE_INSENSITIVE);
 		// Parses a request header
 		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
 		// Parses a WWW-Authenticate header
@@ -958,6 +1293,9 @@ public class RtspClient implements StreamingRecordObserver {
 
 		public int status;
 		public Map<String,String> headers = new HashMap<>();
+		// Metodo y path del stream si no es una respuesta sino una peticion del servidor
+		public String requestMethod;
+		public String requestPath;
 
 		/** Parse the method, URI & headers of a RTSP request */
 		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException, SocketException {
@@ -966,9 +1304,15 @@ public class RtspClient implements StreamingRecordObserver {
 			Matcher matcher;
 			// Parsing request method & URI
 			if ((line = input.readLine())==null) throw new SocketException("Connection lost");
-			matcher = regexStatus.matcher(line);
-			matcher.find();
-			response.status = Integer.parseInt(matcher.group(1));
+			matcher = regexRequest.matcher(line);
+			if (matcher.lookingAt()) {
+				response.requestMethod = matcher.group(1);
+				response.requestPath = matcher.group(2);
+			} else {
+				matcher = regexStatus.matcher(line);
+				matcher.find();
+				response.status = Integer.parseInt(matcher.group(1));
+			}
 
 			// Parsing headers of the request
 			while ( (line = input.readLine()) != null) {
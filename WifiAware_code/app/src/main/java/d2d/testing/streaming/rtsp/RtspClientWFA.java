@@ -135,7 +135,9 @@ public class RtspClientWFA extends RtspClient {
 						if (mParameters.transport == TRANSPORT_UDP) {
 							mHandler.post(mConnectionMonitor);
 						}
+						startServerReader();
 						StreamingRecord.getInstance().addObserver(RtspClientWFA.this);
+						scheduleCatalog();
 					} catch (IOException e) {
 						postError(ERROR_CONNECTION_FAILED, e);
 
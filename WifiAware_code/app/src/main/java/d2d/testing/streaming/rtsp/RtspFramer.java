@@ -0,0 +1,198 @@
+package d2d.testing.streaming.rtsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Separa en mensajes completos los bytes que llegan por una conexion RTSP.
+ * Una lectura de TCP puede traer medio mensaje (p.e. un ANNOUNCE grande con el fichero de prueba en Base64)
+ * o varios seguidos (SETUP encadenados), asi que hay un framer por canal que acumula los bytes con feed()
+ * y devuelve los mensajes completos con nextFrame(), sin crear Strings intermedios.
+ *
+ * Un mensaje termina en la linea vacia (\r\n\r\n) mas los bytes que indique la cabecera Content-Length.
+ * Tambien reconoce los paquetes RTP/RTCP intercalados en la conexion ('$', canal, longitud de 2 bytes, datos).
+ *
+ * Uso:
+ *      framer.feed(buffer);
+ *      while (framer.nextFrame()) {
+ *          framer.getArray(), framer.getFrameOffset(), framer.getFrameLength() ...
+ *      }
+ * Los datos del frame solo son validos hasta la siguiente llamada a nextFrame() o feed().
+ */
+public class RtspFramer {
+    public static final int FRAME_REQUEST = 1;
+    public static final int FRAME_INTERLEAVED = 2;
+
+    private static final int INITIAL_CAPACITY = 8192;
+    private static final int MAX_HEADER_LENGTH = 64 * 1024;
+    private static final int MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mStart = 0;     // Primer byte sin consumir
+    private int mEnd = 0;       // Fin de los datos acumulados
+    private int mScanned = 0;   // Hasta donde se ha buscado ya el fin de cabecera, para no repetir la busqueda
+
+    private int mFrameType;
+    private int mFrameOffset;
+    private int mFrameLength;
+    private int mHeaderLength;
+    private int mInterleavedChannel;
+
+    /** Añade los bytes entre position y limit de data, sin modificar data */
+    public void feed(ByteBuffer data) {
+        int length = data.remaining();
+        ensureCapacity(length);
+        data.duplicate().get(mBuffer, mEnd, length);
+        mEnd += length;
+    }
+
+    /**
+     * Busca el siguiente mensaje completo.
+     * @return true si hay un frame disponible, false si faltan bytes
+     * @throws IOException si la cabecera o el cuerpo superan los limites, en ese caso se descarta todo lo acumulado
+     */
+    public boolean nextFrame() throws IOException {
+        // Los bytes del frame anterior ya se han consumido
+        while (mStart < mEnd && (mBuffer[mStart] == '\r' || mBuffer[mStart] == '\n')) {
+            mStart++;
+        }
+        if (mStart >= mEnd) {
+            mStart = mEnd = mScanned = 0;
+            return false;
+        }
+
+        if (mBuffer[mStart] == '$') {
+            if (mEnd - mStart < 4) return false;
+            int length = ((mBuffer[mStart + 2] & 0xFF) << 8) | (mBuffer[mStart + 3] & 0xFF);
+            if (mEnd - mStart < 4 + length) return false;
+            mFrameType = FRAME_INTERLEAVED;
+            mInterleavedChannel = mBuffer[mStart + 1] & 0xFF;
+            mFrameOffset = mStart + 4;
+            mFrameLength = length;
+            mHeaderLength = 0;
+            consume(4 + length);
+            return true;
+        }
+
+        int headerEnd = findHeaderEnd();
+        if (headerEnd < 0) {
+            if (mEnd - mStart > MAX_HEADER_LENGTH) {
+                reset();
+                throw new IOException("RTSP header too long");
+            }
+            return false;
+        }
+
+        int headerLength = headerEnd - mStart;
+        int contentLength = parseContentLength(mStart, headerEnd);
+        if (contentLength < 0 || contentLength > MAX_CONTENT_LENGTH) {
+            reset();
+            throw new IOException("Invalid RTSP Content-Length");
+        }
+        if (mEnd - mStart < headerLength + contentLength) return false;
+
+        mFrameType = FRAME_REQUEST;
+        mFrameOffset = mStart;
+        mFrameLength = headerLength + contentLength;
+        mHeaderLength = headerLength;
+        consume(mFrameLength);
+        return true;
+    }
+
+    public int getFrameType() {
+        return mFrameType;
+    }
+
+    public byte[] getArray() {
+        return mBuffer;
+    }
+
+    public int getFrameOffset() {
+        return mFrameOffset;
+    }
+
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /** Longitud de la linea de peticion y las cabeceras, incluida la linea vacia final */
+    public int getHeaderLength() {
+        return mHeaderLength;
+    }
+
+    public int getInterleavedChannel() {
+        return mInterleavedChannel;
+    }
+
+    public void reset() {
+        mStart = mEnd = mScanned = 0;
+    }
+
+    private void consume(int length) {
+        mStart += length;
+        mScanned = mStart;
+    }
+
+    /** @return posicion siguiente al \r\n\r\n (o \n\n) que cierra la cabecera, o -1 si todavia no ha llegado */
+    private int findHeaderEnd() {
+        int i = Math.max(mScanned, mStart);
+        for (; i < mEnd; i++) {
+            if (mBuffer[i] != '\n') continue;
+            if (i + 1 < mEnd && mBuffer[i + 1] == '\n') return i + 2;
+            if (i + 2 < mEnd && mBuffer[i + 1] == '\r' && mBuffer[i + 2] == '\n') return i + 3;
+        }
+        // Se deja margen para volver a comprobar el final si llega el resto del terminador
+        mScanned = Math.max(mStart, mEnd - 3);
+        return -1;
+    }
+
+    private int parseContentLength(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((i == from || mBuffer[i - 1] == '\n') && matchesIgnoreCase(i, to, CONTENT_LENGTH)) {
+                int j = i + CONTENT_LENGTH.length;
+                while (j < to && mBuffer[j] == ' ') j++;
+                long value = 0;
+                int digits = 0;
+                while (j < to && mBuffer[j] >= '0' && mBuffer[j] <= '9') {
+                    value = value * 10 + (mBuffer[j] - '0');
+                    if (value > Integer.MAX_VALUE) return -1;
+                    j++;
+                    digits++;
+                }
+                return digits > 0 ? (int) value : -1;
+            }
+        }
+        return 0;
+    }
+
+    private boolean matchesIgnoreCase(int offset, int limit, byte[] lowerCaseToken) {
+        if (limit - offset < lowerCaseToken.length) return false;
+        for (int k = 0; k < lowerCaseToken.length; k++) {
+            int c = mBuffer[offset + k];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != lowerCaseToken[k]) return false;
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mEnd + extra <= mBuffer.length) return;
+        // Primero se recuperan los bytes ya consumidos
+        int pending = mEnd - mStart;
+        if (mStart > 0) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+            mScanned = Math.max(0, mScanned - mStart);
+            mStart = 0;
+            mEnd = pending;
+        }
+        if (mEnd + extra > mBuffer.length) {
+            int capacity = mBuffer.length;
+            while (capacity < mEnd + extra) capacity <<= 1;
+            byte[] buffer = new byte[capacity];
+            System.arraycopy(mBuffer, 0, buffer, 0, mEnd);
+            mBuffer = buffer;
+        }
+    }
+}
@@ -22,9 +22,43 @@ public class RtspRequest {
     public String method;
     public String uri;
     public String path;
+    // Cuerpo como texto, null si no hay cuerpo o si es binario (ver bodyData)
     public String body;
     public Map<String,String> headers = new HashMap<>();
 
+    // Rellenados por RtspRequestParser, -1 o null si la peticion no los trae
+    public int trackId = -1;
+    public int clientRtpPort = -1;
+    public int clientRtcpPort = -1;
+    public String ssrc;
+    public String session;
+    public int cseq = -1;
+    // Codigo de estado si el mensaje es una respuesta (RtspRequestParser.parseResponse()), -1 si es una peticion
+    public int status = -1;
+    // Cuerpo sin decodificar, para los cuerpos binarios (catalogo). Solo es valido mientras se procesa la peticion
+    public byte[] bodyData;
+    public int bodyOffset;
+    public int bodyLength;
+
+    /** Deja la peticion vacia para volver a usarla con RtspRequestParser */
+    public void reset() {
+        method = null;
+        uri = null;
+        path = null;
+        body = null;
+        headers.clear();
+        trackId = -1;
+        clientRtpPort = -1;
+        clientRtcpPort = -1;
+        ssrc = null;
+        session = null;
+        cseq = -1;
+        status = -1;
+        bodyData = null;
+        bodyOffset = 0;
+        bodyLength = 0;
+    }
+
     /** Parse the method, uri & headers of a RTSP request */
     public static RtspRequest parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
         boolean headerEnded = false;
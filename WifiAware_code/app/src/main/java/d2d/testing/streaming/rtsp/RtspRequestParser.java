@@ -0,0 +1,243 @@
+package d2d.testing.streaming.rtsp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Parser de peticiones RTSP que trabaja directamente sobre los bytes que devuelve el RtspFramer,
+ * sin expresiones regulares ni BufferedReader. Rellena un RtspRequest reutilizable con:
+ * -La linea de peticion (method, uri y path, con la misma semantica que las regex que usaba RTSPServerWorker).
+ * -Las cabeceras, con el nombre en minusculas. Los nombres habituales se devuelven como constantes para no crear Strings.
+ * -El trackID de la uri y los puertos client_port y el ssrc de la cabecera Transport.
+ * -El CSeq como numero.
+ * -El cuerpo, si lo hay, sin decodificar, y como texto solo si el Content-Type es de texto (SDP, text/*, o sin tipo).
+ * Tambien lee las respuestas de los clientes a las peticiones que les envia el servidor (parseResponse()).
+ */
+public class RtspRequestParser {
+
+    /** Nombres de cabecera que se reconocen sin crear un String nuevo */
+    private static final String[] KNOWN_HEADERS = {
+            "cseq", "session", "transport", "content-length", "content-type", "content-base",
+            "authorization", "user-agent", "accept", "range", "require", "terminate-reason", "rtp-info", "via"
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] TRACK_ID = "trackid=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLIENT_PORT = "client_port=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SSRC = "ssrc=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RTSP_SCHEME = "rtsp://".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RTSP_VERSION = "rtsp/".getBytes(StandardCharsets.US_ASCII);
+
+    private RtspRequestParser() {}
+
+    /**
+     * @param data bytes de la peticion completa
+     * @param offset inicio de la peticion en data
+     * @param length longitud total de la peticion (cabecera + cuerpo)
+     * @param headerLength longitud de la cabecera incluida la linea vacia final
+     * @param request se vacia y se rellena con la peticion
+     * @return false si la linea de peticion no es valida
+     */
+    public static boolean parse(byte[] data, int offset, int length, int headerLength, RtspRequest request) {
+        request.reset();
+        int end = offset + headerLength;
+
+        // Linea de peticion: METHOD uri RTSP/1.0
+        int lineEnd = lineEnd(data, offset, end);
+        int methodEnd = indexOf(data, offset, lineEnd, (byte) ' ');
+        if (methodEnd <= offset) return false;
+        int uriStart = methodEnd + 1;
+        int uriEnd = indexOf(data, uriStart, lineEnd, (byte) ' ');
+        if (uriEnd <= uriStart || !startsWithIgnoreCase(data, uriEnd + 1, lineEnd, RTSP_VERSION)) return false;
+
+        request.method = new String(data, offset, methodEnd - offset, StandardCharsets.US_ASCII);
+        request.uri = new String(data, uriStart, uriEnd - uriStart, StandardCharsets.UTF_8);
+        request.path = parsePath(request.uri);
+        request.trackId = parseTrackId(data, uriStart, uriEnd);
+
+        parseHeaders(data, nextLine(data, lineEnd, end), end, request);
+
+        if (length > headerLength) {
+            request.bodyData = data;
+            request.bodyOffset = offset + headerLength;
+            request.bodyLength = length - headerLength;
+            if (isTextual(request.headers.get("content-type"))) {
+                request.body = new String(data, offset + headerLength, length - headerLength, StandardCharsets.UTF_8);
+            }
+        }
+        return true;
+    }
+
+    /** Si el mensaje empieza por RTSP/ es una respuesta (del cliente a una peticion del servidor) y no una peticion */
+    public static boolean isResponse(byte[] data, int offset, int length) {
+        return startsWithIgnoreCase(data, offset, offset + length, RTSP_VERSION);
+    }
+
+    /**
+     * Lee una respuesta (RTSP/1.0 codigo texto) y sus cabeceras. El cuerpo, si lo hay, se ignora.
+     * @param response se vacia y se rellenan status y headers
+     * @return false si la linea de estado no es valida
+     */
+    public static boolean parseResponse(byte[] data, int offset, int headerLength, RtspRequest response) {
+        response.reset();
+        int end = offset + headerLength;
+        int lineEnd = lineEnd(data, offset, end);
+        if (!startsWithIgnoreCase(data, offset, lineEnd, RTSP_VERSION)) return false;
+        int codeStart = indexOf(data, offset, lineEnd, (byte) ' ') + 1;
+        if (codeStart <= 0) return false;
+        int status = parseInt(data, codeStart, lineEnd);
+        if (status < 100) return false;
+        response.status = status;
+        parseHeaders(data, nextLine(data, lineEnd, end), end, response);
+        return true;
+    }
+
+    /** Cabeceras: "nombre: valor" desde pos hasta la linea vacia */
+    private static void parseHeaders(byte[] data, int pos, int end, RtspRequest request) {
+        while (pos < end) {
+            int lineEnd = lineEnd(data, pos, end);
+            if (lineEnd == pos) break;
+            int colon = indexOf(data, pos, lineEnd, (byte) ':');
+            if (colon > pos) {
+                int valueStart = colon + 1;
+                while (valueStart < lineEnd && data[valueStart] == ' ') valueStart++;
+                String name = headerName(data, pos, colon);
+                String value = new String(data, valueStart, lineEnd - valueStart, StandardCharsets.UTF_8);
+                request.headers.put(name, value);
+                if (name.equals("transport")) {
+                    parseClientPorts(data, valueStart, lineEnd, request);
+                    parseSsrc(data, valueStart, lineEnd, request);
+                } else if (name.equals("cseq")) {
+                    request.cseq = parseInt(data, valueStart, lineEnd);
+                } else if (name.equals("session")) {
+                    int sessionEnd = indexOf(data, valueStart, lineEnd, (byte) ';');
+                    request.session = new String(data, valueStart, (sessionEnd < 0 ? lineEnd : sessionEnd) - valueStart, StandardCharsets.US_ASCII);
+                }
+            }
+            pos = nextLine(data, lineEnd, end);
+        }
+    }
+
+    /** Los cuerpos binarios, como el catalogo de streams, solo se leen de bodyData y no se pasan a String */
+    private static boolean isTextual(String contentType) {
+        if (contentType == null) return true;
+        String type = contentType.trim().toLowerCase(Locale.US);
+        return type.startsWith("text/") || type.startsWith("application/sdp");
+    }
+
+    /**
+     * Cuando la uri es rtsp://host/yyy el path es yyy, y si es rtsp://host/yyy/trackID=N tambien es yyy.
+     * Si solo hay host el path es "".
+     */
+    static String parsePath(String uri) {
+        if (!uri.regionMatches(true, 0, "rtsp://", 0, RTSP_SCHEME.length)) return "";
+        String rest = uri.substring(RTSP_SCHEME.length);
+        int last = lastSegmentSlash(rest, rest.length());
+        if (last < 0) return "";
+        String path = rest.substring(last + 1);
+        if (path.equals("trackID=0") || path.equals("trackID=1")) {
+            int previous = lastSegmentSlash(rest, last);
+            if (previous >= 0) path = rest.substring(previous + 1, last);
+        }
+        return path;
+    }
+
+    /** Ultima '/' antes de limit que tiene al menos un caracter antes y uno despues */
+    private static int lastSegmentSlash(String s, int limit) {
+        int slash = s.lastIndexOf('/', limit - 2);
+        return slash >= 1 ? slash : -1;
+    }
+
+    private static int parseTrackId(byte[] data, int from, int to) {
+        int i = indexOfIgnoreCase(data, from, to, TRACK_ID);
+        if (i < 0) return -1;
+        return parseInt(data, i + TRACK_ID.length, to);
+    }
+
+    private static void parseClientPorts(byte[] data, int from, int to, RtspRequest request) {
+        int i = indexOfIgnoreCase(data, from, to, CLIENT_PORT);
+        if (i < 0) return;
+        i += CLIENT_PORT.length;
+        int rtp = parseInt(data, i, to);
+        if (rtp < 0) return;
+        while (i < to && data[i] >= '0' && data[i] <= '9') i++;
+        int rtcp = rtp + 1;
+        if (i < to && data[i] == '-') {
+            int value = parseInt(data, i + 1, to);
+            if (value >= 0) rtcp = value;
+        }
+        request.clientRtpPort = rtp;
+        request.clientRtcpPort = rtcp;
+    }
+
+    /** El ssrc son hasta 8 digitos hexadecimales, se guarda tal cual */
+    private static void parseSsrc(byte[] data, int from, int to, RtspRequest request) {
+        int i = indexOfIgnoreCase(data, from, to, SSRC);
+        if (i < 0) return;
+        int start = i + SSRC.length;
+        int end = start;
+        while (end < to && end - start < 8 && Character.digit(data[end], 16) >= 0) end++;
+        if (end > start) request.ssrc = new String(data, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    private static int parseInt(byte[] data, int from, int to) {
+        int value = 0, digits = 0;
+        for (int i = from; i < to && data[i] >= '0' && data[i] <= '9' && digits < 9; i++, digits++) {
+            value = value * 10 + (data[i] - '0');
+        }
+        return digits > 0 ? value : -1;
+    }
+
+    private static String headerName(byte[] data, int from, int to) {
+        for (int k = 0; k < KNOWN_HEADER_BYTES.length; k++) {
+            byte[] known = KNOWN_HEADER_BYTES[k];
+            if (known.length == to - from && startsWithIgnoreCase(data, from, to, known)) return KNOWN_HEADERS[k];
+        }
+        return new String(data, from, to - from, StandardCharsets.US_ASCII).toLowerCase(Locale.US).intern();
+    }
+
+    /** Posicion del \r o \n que termina la linea que empieza en from */
+    private static int lineEnd(byte[] data, int from, int to) {
+        int i = from;
+        while (i < to && data[i] != '\r' && data[i] != '\n') i++;
+        return i;
+    }
+
+    private static int nextLine(byte[] data, int lineEnd, int to) {
+        int i = lineEnd;
+        if (i < to && data[i] == '\r') i++;
+        if (i < to && data[i] == '\n') i++;
+        return i;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int indexOfIgnoreCase(byte[] data, int from, int to, byte[] lowerCaseToken) {
+        for (int i = from; i <= to - lowerCaseToken.length; i++) {
+            if (startsWithIgnoreCase(data, i, to, lowerCaseToken)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] data, int from, int to, byte[] token) {
+        if (from < 0 || to - from < token.length) return false;
+        for (int k = 0; k < token.length; k++) {
+            int c = data[from + k];
+            int t = token[k];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (t >= 'A' && t <= 'Z') t += 'a' - 'A';
+            if (c != t) return false;
+        }
+        return true;
+    }
+}
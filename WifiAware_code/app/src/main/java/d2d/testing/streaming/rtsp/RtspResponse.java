@@ -3,6 +3,10 @@ package d2d.testing.streaming.rtsp;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import d2d.testing.net.buffers.BufferPool;
+import d2d.testing.net.buffers.PooledBuffer;
 
 public class RtspResponse {
     public final static String LOG_TAG = "RtspResponse";
@@ -15,8 +19,18 @@ public class RtspResponse {
     public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
     public static final String STATUS_FORBIDDEN = "403 Forbidden";
     public static final String STATUS_NOT_FOUND = "404 Not Found";
+    public static final String STATUS_PRECONDITION_FAILED = "412 Precondition Failed";
+    public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
     public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
+    private static final String RTSP_VERSION = "RTSP/1.0 ";
+    private static final String SERVER_HEADER = "Server: ";
+    private static final String CSEQ_HEADER = "Cseq: ";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length: ";
+    private static final String CRLF = "\r\n";
+    // Cabe de sobra el mayor int en decimal
+    private static final int MAX_INT_LENGTH = 11;
+
     public String status = STATUS_INTERNAL_SERVER_ERROR;
     public String content = "";
     public String attributes = "";
@@ -33,13 +47,7 @@ public class RtspResponse {
     }
 
     public String build() throws IOException {
-        int seqid = -1;
-
-        try {
-            seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-        } catch (Exception e) {
-            Log.e(LOG_TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
-        }
+        int seqid = getSeqId();
 
         String response = 	"RTSP/1.0 "+status+"\r\n" +
                 "Server: "+SERVER_NAME+"\r\n" +
@@ -49,8 +57,118 @@ public class RtspResponse {
                 "\r\n" +
                 content;
 
-        Log.d(LOG_TAG,response.replace("\r", ""));
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG,response.replace("\r", ""));
 
         return response;
     }
+
+    /**
+     * Escribe la respuesta directamente en un buffer del pool, sin construir el String completo como build().
+     * Content-Length se calcula en bytes UTF-8 del contenido.
+     * El buffer devuelto queda listo para leer (flip) y quien lo recibe debe llamar a release(),
+     * normalmente AbstractSelector.send(channel, PooledBuffer), que se queda con la referencia.
+     */
+    public PooledBuffer encode(BufferPool pool) {
+        int seqid = getSeqId();
+        int contentLength = utf8Length(content);
+        int size = RTSP_VERSION.length() + status.length() + CRLF.length()
+                + SERVER_HEADER.length() + utf8Length(SERVER_NAME) + CRLF.length()
+                + (seqid >= 0 ? CSEQ_HEADER.length() + MAX_INT_LENGTH + CRLF.length() : 0)
+                + CONTENT_LENGTH_HEADER.length() + MAX_INT_LENGTH + CRLF.length()
+                + utf8Length(attributes) + CRLF.length() + contentLength;
+
+        PooledBuffer pooled = pool.acquire(size);
+        ByteBuffer out = pooled.getBuffer();
+        putAscii(out, RTSP_VERSION); putAscii(out, status); putAscii(out, CRLF);
+        putAscii(out, SERVER_HEADER); putUtf8(out, SERVER_NAME); putAscii(out, CRLF);
+        if (seqid >= 0) {
+            putAscii(out, CSEQ_HEADER); putInt(out, seqid); putAscii(out, CRLF);
+        }
+        putAscii(out, CONTENT_LENGTH_HEADER); putInt(out, contentLength); putAscii(out, CRLF);
+        putUtf8(out, attributes);
+        putAscii(out, CRLF);
+        putUtf8(out, content);
+        out.flip();
+
+        // Solo se crea el String para el log si de verdad se va a mostrar
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, RTSP_VERSION + status + " Cseq " + seqid + " (" + out.remaining() + " bytes)");
+        }
+        return pooled;
+    }
+
+    private int getSeqId() {
+        if (mRequest == null) return -1;
+        String cseq = mRequest.headers.get("cseq");
+        if (cseq == null) {
+            Log.e(LOG_TAG, "Error parsing CSeq: missing header");
+            return -1;
+        }
+        int value = 0, digits = 0;
+        for (int i = 0; i < cseq.length(); i++) {
+            char c = cseq.charAt(i);
+            if (c == ' ') continue;
+            if (c < '0' || c > '9' || digits == 9) {
+                Log.e(LOG_TAG, "Error parsing CSeq: " + cseq);
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        return digits > 0 ? value : -1;
+    }
+
+    private static void putAscii(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) out.put((byte) s.charAt(i));
+    }
+
+    private static void putInt(ByteBuffer out, int value) {
+        if (value == 0) {
+            out.put((byte) '0');
+            return;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) out.put((byte) ('0' + (value / divisor) % 10));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) length++;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) length++;
+            else length += 3;
+        }
+        return length;
+    }
+
+    private static void putUtf8(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Los surrogates sueltos se escriben como '?', igual que String.getBytes()
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
 }
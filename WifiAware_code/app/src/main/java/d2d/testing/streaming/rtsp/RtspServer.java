@@ -437,6 +437,7 @@ public class RtspServer extends Service {
 
 			// Streaming stops when client disconnects
 			boolean streaming = isStreaming();
+			if (streaming) Log.i(TAG, "Session " + mSession.getSessionID() + " time to first frame: " + mSession.getTimeToFirstFrame() + " ms");
 			mSession.syncStop();
 			if (streaming && !isStreaming()) {
 				postMessage(MESSAGE_STREAMING_STOPPED);
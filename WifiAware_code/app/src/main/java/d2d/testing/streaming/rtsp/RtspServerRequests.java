@@ -0,0 +1,134 @@
+package d2d.testing.streaming.rtsp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peticiones que envia el servidor a un cliente por su conexion RTSP (PLAY, PAUSE y TEARDOWN de los streams que nos envia,
+ * DESCRIBE de los de su catalogo) esperando la respuesta. Hay una por canal, como el RtspFramer.
+ * Cada peticion lleva su CSeq y el cliente contesta con una linea de estado y el mismo CSeq:
+ * -Si contesta 200 la peticion se olvida.
+ * -Si contesta con un error se avisa al Callback.
+ * -Si no contesta en RESPONSE_TIMEOUT_MS se reenvia con otro CSeq, hasta MAX_ATTEMPTS envios, y despues se avisa al Callback.
+ *  Los TEARDOWN no se reenvian, el cliente puede haber cerrado ya la conexion.
+ * Una peticion nueva sobre el mismo stream sustituye a la pendiente, asi un PLAY sin respuesta no se reenvia despues de un PAUSE.
+ */
+public class RtspServerRequests {
+
+    public static final long RESPONSE_TIMEOUT_MS = 2000;
+    public static final int MAX_ATTEMPTS = 3;
+
+    public interface Callback {
+        /** Envia la peticion por la conexion, no debe bloquear */
+        void send(byte[] request);
+
+        /** @param status codigo de la respuesta, -1 si no ha llegado ninguna */
+        void onRequestFailed(String method, String path, int status);
+    }
+
+    private final Callback mCallback;
+    private final ScheduledExecutorService mScheduler;
+    private final long mTimeoutMs;
+    private final Map<Integer, Pending> mPending = new HashMap<>();
+    private int mCSeq = 0;
+    private boolean mClosed = false;
+
+    public RtspServerRequests(Callback callback, ScheduledExecutorService scheduler) {
+        this(callback, scheduler, RESPONSE_TIMEOUT_MS);
+    }
+
+    RtspServerRequests(Callback callback, ScheduledExecutorService scheduler, long timeoutMs) {
+        mCallback = callback;
+        mScheduler = scheduler;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param headers cabeceras ademas del CSeq, cada una terminada en \r\n
+     * @return CSeq con el que se ha enviado, -1 si ya se ha cerrado
+     */
+    public synchronized int send(String method, String uri, String path, String headers) {
+        if (mClosed) return -1;
+        for (Iterator<Pending> it = mPending.values().iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            if (pending.mPath.equals(path)) {
+                pending.mTimeout.cancel(false);
+                it.remove();
+            }
+        }
+        return transmit(new Pending(method, uri, path, headers));
+    }
+
+    /**
+     * Respuesta del cliente a una peticion.
+     * @return false si no corresponde a ninguna peticion pendiente (ya se habia reenviado o sustituido)
+     */
+    public synchronized boolean onResponse(int cseq, int status) {
+        Pending pending = mPending.remove(cseq);
+        if (pending == null) return false;
+        pending.mTimeout.cancel(false);
+        if (status != 200) mCallback.onRequestFailed(pending.mMethod, pending.mPath, status);
+        return true;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /** La conexion se ha cerrado, se olvidan las peticiones pendientes sin avisar */
+    public synchronized void close() {
+        mClosed = true;
+        for (Pending pending : mPending.values()) {
+            pending.mTimeout.cancel(false);
+        }
+        mPending.clear();
+    }
+
+    private int transmit(Pending pending) {
+        final int cseq = ++mCSeq;
+        pending.mAttempts++;
+        mPending.put(cseq, pending);
+        pending.mTimeout = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(cseq);
+            }
+        }, mTimeoutMs, TimeUnit.MILLISECONDS);
+        String request = pending.mMethod + " " + pending.mUri + " RTSP/1.0\r\n" +
+                "CSeq: " + cseq + "\r\n" +
+                pending.mHeaders + "\r\n";
+        mCallback.send(request.getBytes(StandardCharsets.UTF_8));
+        return cseq;
+    }
+
+    private synchronized void onTimeout(int cseq) {
+        Pending pending = mPending.remove(cseq);
+        if (pending == null || mClosed) return;
+        if (pending.mAttempts < MAX_ATTEMPTS && !pending.mMethod.equals("TEARDOWN")) {
+            transmit(pending);
+        } else {
+            mCallback.onRequestFailed(pending.mMethod, pending.mPath, -1);
+        }
+    }
+
+    private static class Pending {
+        private final String mMethod;
+        private final String mUri;
+        private final String mPath;
+        private final String mHeaders;
+        private int mAttempts = 0;
+        private ScheduledFuture<?> mTimeout;
+
+        private Pending(String method, String uri, String path, String headers) {
+            mMethod = method;
+            mUri = uri;
+            mPath = path;
+            mHeaders = headers;
+        }
+    }
+}
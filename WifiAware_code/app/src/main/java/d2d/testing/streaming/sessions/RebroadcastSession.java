@@ -1,13 +1,12 @@
 package d2d.testing.streaming.sessions;
 
-import android.os.HandlerThread;
-
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.SelectableChannel;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.UUID;
+
+import d2d.testing.net.threads.selectors.RelayRoute;
 
 import static java.util.UUID.randomUUID;
 
@@ -25,12 +24,11 @@ public class RebroadcastSession {
     private RebroadcastTrackInfo mVideoRebroadcastTrackInfo;
     private RebroadcastTrackInfo mAudioRebroadcastTrackInfo;
     private ReceiveSession mReceiveSession;
-    private SelectableChannel rtcpVideoTrackChannel;
-    private SelectableChannel rtpVideoTrackChannel;
-    private SelectableChannel rtcpAudioTrackChannel;
-    private SelectableChannel rtpAudioTrackChannel;
+    private RelayRoute.Subscriber mVideoSubscriber;
+    private RelayRoute.Subscriber mAudioSubscriber;
     private SelectableChannel mRtspChannel;
     public String mStreamingName;
+    private UUID mStreamUUID;
 
     /**
      * Creates a streaming session that can be customized by adding tracks.
@@ -38,9 +36,6 @@ public class RebroadcastSession {
     public RebroadcastSession() {
         long uptime = System.currentTimeMillis();
 
-        HandlerThread thread = new HandlerThread("d2d.testing.streaming.sessions.Session");
-        thread.start();
-
         mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
         try {
             mOrigin = InetAddress.getByName("127.0.0.1");
@@ -74,6 +69,14 @@ public class RebroadcastSession {
         mStreamingName = name;
     }
 
+    public void setStreamUUID(UUID uuid){
+        mStreamUUID = uuid;
+    }
+
+    public UUID getStreamUUID(){
+        return mStreamUUID;
+    }
+
     public String getPath(){
         if(mReceiveSession != null){
             return mReceiveSession.getPath();
@@ -95,9 +98,6 @@ public class RebroadcastSession {
      * @throws IllegalStateException Thrown when {@link #setDestinationAddress(InetAddress, boolean)} (String)} has never been called.
      */
     public String getSessionDescription() {
-        final Pattern regexAudioDescription = Pattern.compile("m=audio (\\d+) (.*)", Pattern.CASE_INSENSITIVE);
-        final Pattern regexVideoDescription = Pattern.compile("m=video (\\d+) (.*)", Pattern.CASE_INSENSITIVE);
-
         StringBuilder sessionDescription = new StringBuilder();
         sessionDescription.append("v=0\r\n");
         // TODO: Add IPV6 support
@@ -112,14 +112,14 @@ public class RebroadcastSession {
         sessionDescription.append("a=recvonly\r\n");
 
         if(serverTrackExists(0)) {
-            Matcher m = regexAudioDescription.matcher(getServerTrack(0).getSessionDescription());
-            sessionDescription.append(m.replaceFirst("m=audio "+getRebroadcastTrack(0).getRemoteRtpPortString()+" $2"));
+            sessionDescription.append(SdpCache.getInstance().getTrackDescription(mStreamUUID, 0, "audio",
+                    getServerTrack(0).getSessionDescription(), getRebroadcastTrack(0).getRemoteRtpPortString()));
             sessionDescription.append("a=control:trackID="+0+"\r\n");
         }
 
         if(serverTrackExists(1)) {
-            Matcher m = regexVideoDescription.matcher(getServerTrack(1).getSessionDescription());
-            sessionDescription.append(m.replaceFirst("m=video "+getRebroadcastTrack(1).getRemoteRtpPortString()+" $2"));
+            sessionDescription.append(SdpCache.getInstance().getTrackDescription(mStreamUUID, 1, "video",
+                    getServerTrack(1).getSessionDescription(), getRebroadcastTrack(1).getRemoteRtpPortString()));
             sessionDescription.append("a=control:trackID="+1+"\r\n");
         }
         return sessionDescription.toString();
@@ -147,14 +147,28 @@ public class RebroadcastSession {
     /** Stops all existing streams. */
     public void stop() {
         if(serverTrackExists(0)) {
-            getServerTrack(0).removeSession(rtcpVideoTrackChannel,rtpVideoTrackChannel);
+            getServerTrack(0).removeSubscriber(mAudioSubscriber);
+            mAudioSubscriber = null;
         }
 
         if(serverTrackExists(1)) {
-            getServerTrack(1).removeSession(rtcpAudioTrackChannel,rtpAudioTrackChannel);
+            getServerTrack(1).removeSubscriber(mVideoSubscriber);
+            mVideoSubscriber = null;
         }
     }
 
+    /** Empieza a reenviar RTP al suscriptor, con el ultimo GOP guardado si la pista lo tiene */
+    public void play() {
+        if(serverTrackExists(0)) getServerTrack(0).activateSubscriber(mAudioSubscriber);
+        if(serverTrackExists(1)) getServerTrack(1).activateSubscriber(mVideoSubscriber);
+    }
+
+    /** Deja de reenviar RTP al suscriptor sin darlo de baja, play() lo reanuda */
+    public void pause() {
+        if(serverTrackExists(0)) getServerTrack(0).deactivateSubscriber(mAudioSubscriber);
+        if(serverTrackExists(1)) getServerTrack(1).deactivateSubscriber(mVideoSubscriber);
+    }
+
     public boolean serverTrackExists(int id) {
         return mReceiveSession.trackExists(id);
     }
@@ -179,28 +193,19 @@ public class RebroadcastSession {
             return mVideoRebroadcastTrackInfo;
     }
 
+    /** Da de alta al destino como suscriptor de la pista en el relay del nodo, no recibe RTP hasta play() */
     public void startTrack(int trackId) {
-        if (trackId == 0 && serverTrackExists(0)){
-            rtcpAudioTrackChannel = getServerTrack(0).addRtcpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(0).getRemoteRctpPort()
-            );
-
-            rtpAudioTrackChannel = getServerTrack(0).addRtpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(0).getRemoteRtpPort()
-            );
-        }
-        if (trackId == 1 && serverTrackExists(1)){
-            rtcpVideoTrackChannel = getServerTrack(1).addRtcpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(1).getRemoteRctpPort()
-            );
-
-            rtpVideoTrackChannel = getServerTrack(1).addRtpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(1).getRemoteRtpPort()
-            );
+        if (!serverTrackExists(trackId)) return;
+        TrackInfo track = getServerTrack(trackId);
+        RebroadcastTrackInfo rebroadcastTrack = getRebroadcastTrack(trackId);
+        RelayRoute.Subscriber subscriber = track.addSubscriber(getDestination(),
+                rebroadcastTrack.getRemoteRtpPort(), rebroadcastTrack.getRemoteRctpPort());
+        if (trackId == 0) {
+            track.removeSubscriber(mAudioSubscriber);
+            mAudioSubscriber = subscriber;
+        } else {
+            track.removeSubscriber(mVideoSubscriber);
+            mVideoSubscriber = subscriber;
         }
     }
 
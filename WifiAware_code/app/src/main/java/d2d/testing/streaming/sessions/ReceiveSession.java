@@ -1,11 +1,12 @@
 package d2d.testing.streaming.sessions;
 
-import android.net.Network;
-import android.os.HandlerThread;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.channels.SelectableChannel;
+import java.util.Collections;
+import java.util.List;
 
 import static java.util.UUID.randomUUID;
 
@@ -22,7 +23,11 @@ public class ReceiveSession {
     private TrackInfo mAudioTrackInfo;
     private String path;
     public String mStreamingName;
-    private Network mReceiveNet;
+    private SelectableChannel mRtspChannel;
+    // Nodos por los que ha pasado el stream hasta aqui (cabecera Via del ANNOUNCE), el ultimo es el emisor de esta sesion
+    private List<String> mVia = Collections.emptyList();
+    // Pistas que son de otra sesion del mismo stream (adoptTrack()), no se paran con esta
+    private final boolean[] mAdoptedTracks = new boolean[2];
 
 
 
@@ -35,14 +40,8 @@ public class ReceiveSession {
      * Creates a streaming session that can be customized by adding tracks.
      */
     public ReceiveSession() {
-        long uptime = System.currentTimeMillis();
-
-        HandlerThread thread = new HandlerThread("d2d.testing.streaming.sessions.Session");
-        thread.start();
-
         mSessionID = randomUUID().toString();
         path = "";
-        mReceiveNet = null;
     }
 
     /**
@@ -86,14 +85,6 @@ public class ReceiveSession {
         return mDestPort;
     }
 
-    public void setReceiveNet(Network net){
-        mReceiveNet = net;
-    }
-
-    public Network getReceiveNet(){
-        return mReceiveNet;
-    }
-
     public String getSessionID() {
         return mSessionID;
     }
@@ -102,6 +93,49 @@ public class ReceiveSession {
         return mDestination;
     }
 
+    public void setRtspChannel(SelectableChannel chan){
+        mRtspChannel = chan;
+    }
+
+    public SelectableChannel getRtspChannel(){
+        return mRtspChannel;
+    }
+
+    public void setVia(List<String> via) {
+        mVia = Collections.unmodifiableList(via);
+    }
+
+    public List<String> getVia() {
+        return mVia;
+    }
+
+    /** Saltos desde el nodo que publica el stream, un emisor que no envia Via cuenta como el camino mas largo */
+    public int getHopCount() {
+        return mVia.isEmpty() ? Integer.MAX_VALUE : mVia.size();
+    }
+
+    /**
+     * Usa la pista de otra sesion del mismo stream, que ya tiene su ruta en el relay, en lugar de la propia.
+     * Es el caso de un emisor que anuncia un camino mas corto para un stream que ya llega por otro.
+     */
+    public void adoptTrack(int id, TrackInfo track) {
+        if (id == 0)
+            mAudioTrackInfo = track;
+        else
+            mVideoTrackInfo = track;
+        mAdoptedTracks[id == 0 ? 0 : 1] = true;
+    }
+
+    /** Esta sesion pasa a ser la duena de las pistas que compartia con previous, que ya no las parara */
+    public void takeOwnership(ReceiveSession previous) {
+        for (int id = 0; id < 2; id++) {
+            if (mAdoptedTracks[id] && previous.getTrack(id) == getTrack(id)) {
+                mAdoptedTracks[id] = false;
+                previous.mAdoptedTracks[id] = true;
+            }
+        }
+    }
+
 
 
 
@@ -118,18 +152,18 @@ public class ReceiveSession {
      **/
     public void start() throws IOException {
         if(trackExists(0)) {
-            mAudioTrackInfo.startServer(mReceiveNet);
+            mAudioTrackInfo.startServer();
         }
         if(trackExists(1)) {
-            mVideoTrackInfo.startServer(mReceiveNet);
+            mVideoTrackInfo.startServer();
         }
     }
     /** Stops all existing streams. */
     public void stop() {
-        if(trackExists(0)) {
+        if(trackExists(0) && !mAdoptedTracks[0]) {
             mAudioTrackInfo.stopServer();
         }
-        if(trackExists(1)) {
+        if(trackExists(1) && !mAdoptedTracks[1]) {
             mVideoTrackInfo.stopServer();
         }
     }
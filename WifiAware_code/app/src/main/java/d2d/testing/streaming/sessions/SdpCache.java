@@ -0,0 +1,130 @@
+package d2d.testing.streaming.sessions;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache de las partes caras de la descripcion SDP de cada stream, indexada por el UUID del stream.
+ * -Las lineas a=proof de los streams locales: el fichero de prueba se lee y se codifica en Base64 una sola vez
+ *  y solo se vuelve a leer si cambia el fichero (ruta, tamaño o fecha de modificacion) o su nombre.
+ * -Las descripciones de pista que reenvian los RebroadcastSession: el SDP que llega en el ANNOUNCE se parte una vez
+ *  alrededor del puerto de la linea m= y en cada DESCRIBE solo se inserta el puerto del suscriptor.
+ *
+ * Las lineas que cambian con cada suscriptor (o=, c=, puertos) las siguen generando las sesiones,
+ * asi el tiempo de un DESCRIBE no depende del tamaño del fichero de prueba.
+ */
+public class SdpCache {
+
+    static private SdpCache INSTANCE = null;
+
+    private final ConcurrentHashMap<UUID, Entry> mEntries = new ConcurrentHashMap<>();
+
+    public static synchronized SdpCache getInstance(){
+        if(INSTANCE == null) {
+            INSTANCE = new SdpCache();
+        }
+        return INSTANCE;
+    }
+
+    private SdpCache() {}
+
+    /**
+     * @return las lineas "a=proof:name=..." y "a=proof:file=..." del stream
+     * @throws IOException si no hay fichero de prueba o no se puede leer
+     */
+    public String getProofDescription(UUID stream, File proofFile, String proofName) throws IOException {
+        if(proofFile == null) throw new IOException("No proof file available");
+        Entry entry = getEntry(stream);
+        synchronized (entry) {
+            long length = proofFile.length();
+            long modified = proofFile.lastModified();
+            if(entry.mProofDescription == null || !proofFile.equals(entry.mProofFile) || length != entry.mProofLength
+                    || modified != entry.mProofModified || !String.valueOf(proofName).equals(entry.mProofName)) {
+                byte[] data = new byte[(int) length];
+                DataInputStream in = new DataInputStream(new FileInputStream(proofFile));
+                try {
+                    in.readFully(data);
+                } finally {
+                    in.close();
+                }
+                entry.mProofDescription = "a=proof:name=" + proofName + "\r\n" +
+                        "a=proof:file=" + Base64.getEncoder().encodeToString(data);
+                entry.mProofFile = proofFile;
+                entry.mProofLength = length;
+                entry.mProofModified = modified;
+                entry.mProofName = String.valueOf(proofName);
+            }
+            return entry.mProofDescription;
+        }
+    }
+
+    /**
+     * Devuelve la descripcion de la pista que envio el emisor con el puerto de la linea "m=<media> <puerto> ..."
+     * sustituido por el del suscriptor. Si la descripcion no tiene linea m= se devuelve sin cambios.
+     * @param trackId 0 audio, 1 video
+     * @param media "audio" o "video"
+     */
+    public String getTrackDescription(UUID stream, int trackId, String media, String upstreamDescription, String port) {
+        Entry entry = getEntry(stream);
+        synchronized (entry) {
+            if(entry.mUpstream[trackId] == null || !entry.mUpstream[trackId].equals(upstreamDescription)) {
+                splitTrackDescription(entry, trackId, media, upstreamDescription);
+            }
+            if(entry.mTrackTail[trackId] == null) return entry.mTrackHead[trackId];
+            return entry.mTrackHead[trackId] + port + entry.mTrackTail[trackId];
+        }
+    }
+
+    /** Se llama cuando el stream deja de estar disponible */
+    public void invalidate(UUID stream) {
+        if(stream != null) mEntries.remove(stream);
+    }
+
+    private Entry getEntry(UUID stream) {
+        // Sesiones sin UUID (p.e. las creadas por UriParser): no se guarda nada
+        if(stream == null) return new Entry();
+        Entry entry = mEntries.get(stream);
+        if(entry == null) {
+            entry = new Entry();
+            Entry previous = mEntries.putIfAbsent(stream, entry);
+            if(previous != null) entry = previous;
+        }
+        return entry;
+    }
+
+    /** Busca "m=<media> <digitos> " (sin distinguir mayusculas) y guarda lo que queda a cada lado del puerto */
+    private static void splitTrackDescription(Entry entry, int trackId, String media, String description) {
+        String token = "m=" + media + " ";
+        entry.mUpstream[trackId] = description;
+        entry.mTrackHead[trackId] = description;
+        entry.mTrackTail[trackId] = null;
+        for(int i = 0; i + token.length() <= description.length(); i++) {
+            if(!description.regionMatches(true, i, token, 0, token.length())) continue;
+            int digitsStart = i + token.length();
+            int digitsEnd = digitsStart;
+            while(digitsEnd < description.length() && description.charAt(digitsEnd) >= '0' && description.charAt(digitsEnd) <= '9') digitsEnd++;
+            if(digitsEnd > digitsStart && digitsEnd < description.length() && description.charAt(digitsEnd) == ' ') {
+                entry.mTrackHead[trackId] = description.substring(0, i) + token;
+                entry.mTrackTail[trackId] = description.substring(digitsEnd);
+                return;
+            }
+        }
+    }
+
+    private static class Entry {
+        File mProofFile;
+        long mProofLength;
+        long mProofModified;
+        String mProofName;
+        String mProofDescription;
+
+        final String[] mUpstream = new String[2];
+        final String[] mTrackHead = new String[2];
+        final String[] mTrackTail = new String[2];
+    }
+}
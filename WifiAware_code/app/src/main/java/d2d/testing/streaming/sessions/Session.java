@@ -20,18 +20,12 @@ package d2d.testing.streaming.sessions;
 
 import android.hardware.Camera.CameraInfo;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Base64;
 import java.util.UUID;
 
 import d2d.testing.gui.main.ProofManager;
@@ -134,10 +128,7 @@ public class Session {
 	public Session() {
 		long uptime = System.currentTimeMillis();
 
-		HandlerThread thread = new HandlerThread("d2d.testing.streaming.sessions.Session");
-		thread.start();
-
-		mHandler = new Handler(thread.getLooper());
+		mHandler = new Handler(SessionScheduler.getInstance().getLooper());
 		mMainHandler = new Handler(Looper.getMainLooper());
 		mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
 		mSessionID = randomUUID().toString();
@@ -204,7 +195,7 @@ public class Session {
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
 	void removeAudioTrack() {
 		if (mAudioStream != null) {
-			mAudioStream.stop();
+			mAudioStream.release();
 			mAudioStream = null;
 		}
 	}
@@ -212,7 +203,7 @@ public class Session {
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
 	void removeVideoTrack() {
 		if (mVideoStream != null) {
-			mVideoStream.stop();
+			mVideoStream.release();
 			mVideoStream = null;
 		}
 	}
@@ -344,29 +335,13 @@ public class Session {
 		}
 
 
-		File proofFile = ProofManager.getInstance().getProofZipFile();
-
 		try {
-			FileInputStream fis = new FileInputStream(proofFile);
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-			byte[] buffer = new byte[1024];
-			int len;
-			while ((len = fis.read(buffer)) > 0) {
-				baos.write(buffer, 0, len);
-			}
-
-			// Encode the byte array as a Base64 string
-			String encodedData = Base64.getEncoder().encodeToString(baos.toByteArray());
-
-			sessionDescription.append("a=proof:name=" + ProofManager.getInstance().getFileName() + "\r\n");
-			sessionDescription.append("a=proof:file=" + encodedData);
-
+			sessionDescription.append(SdpCache.getInstance().getProofDescription(mStreamUUID,
+					ProofManager.getInstance().getProofZipFile(), ProofManager.getInstance().getFileName()));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 
-
 		return sessionDescription.toString();
 	}
 
@@ -388,6 +363,16 @@ public class Session {
 		return sum;
 	}
 
+	/**
+	 * Tiempo hasta el primer frame del ultimo arranque en ms, el de video si hay video y si no el de audio.
+	 * -1 si todavia no se ha enviado nada.
+	 */
+	public long getTimeToFirstFrame() {
+		if (mVideoStream != null) return mVideoStream.getTimeToFirstFrame();
+		if (mAudioStream != null) return mAudioStream.getTimeToFirstFrame();
+		return -1;
+	}
+
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
 		return (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming());
@@ -574,7 +559,8 @@ public class Session {
 	public void release() {
 		removeAudioTrack();
 		removeVideoTrack();
-		mHandler.getLooper().quit();
+		// El Looper es compartido con el resto de sesiones, solo se cancelan las tareas de esta
+		mHandler.removeCallbacksAndMessages(null);
 	}
 
 	private void postPreviewStarted() {
@@ -0,0 +1,34 @@
+package d2d.testing.streaming.sessions;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * Thread compartido en el que se ejecutan las tareas asincronas de todas las sesiones (configure, start, stop,
+ * actualizacion del bitrate). Antes cada Session, ReceiveSession y RebroadcastSession creaba su propio HandlerThread
+ * en el constructor y no se paraba nunca, asi que el numero de threads crecia con cada suscriptor.
+ *
+ * Cada sesion crea su propio Handler sobre este Looper para poder cancelar solo sus tareas al liberarse.
+ */
+public class SessionScheduler {
+
+    static private SessionScheduler INSTANCE = null;
+
+    private final HandlerThread mThread;
+
+    public static synchronized SessionScheduler getInstance(){
+        if(INSTANCE == null) {
+            INSTANCE = new SessionScheduler();
+        }
+        return INSTANCE;
+    }
+
+    private SessionScheduler(){
+        mThread = new HandlerThread("d2d.testing.streaming.sessions.SessionScheduler");
+        mThread.start();
+    }
+
+    public Looper getLooper(){
+        return mThread.getLooper();
+    }
+}
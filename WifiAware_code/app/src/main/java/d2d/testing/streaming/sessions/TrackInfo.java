@@ -1,88 +1,136 @@
 package d2d.testing.streaming.sessions;
 
-import android.net.Network;
-
 import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.channels.SelectableChannel;
 import java.util.Random;
-
-import d2d.testing.net.threads.selectors.UDPServerSelector;
-import d2d.testing.gui.main.WifiAwareViewModel;
-
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import d2d.testing.net.threads.selectors.RelayRoute;
+import d2d.testing.net.threads.selectors.RelaySelector;
+import d2d.testing.streaming.rtcp.RtcpRelay;
+import d2d.testing.streaming.rtp.RtpGopCache;
+
+/**
+ * Pista que este nodo recibe de un emisor y reenvia a sus suscriptores.
+ * El reenvio lo hace el RelaySelector del nodo, la pista solo registra su RelayRoute (por el SSRC que el emisor
+ * indica en el SETUP) y los puertos locales que anuncia son los del relay, los mismos para todas las pistas.
+ */
 public class TrackInfo {
+    private static final Pattern RTPMAP = Pattern.compile("a=rtpmap:\\d+ [^/\\s]+/(\\d+)");
+    private static final Pattern MEDIA = Pattern.compile("m=\\w+ \\d+ \\S+ (\\d+)");
+
     private int mLocalRtpPort;
     private int mLocalRtcpPort;
 
     private int mRemoteRtpPort;
     private int mRemoteRtcpPort;
 
-    private UDPServerSelector mRtpUdpServer;
-    private UDPServerSelector mRtcpUdpServer;
+    private RelayRoute mRoute;
 
-    private InetAddress mLocalAddress;
+    private InetAddress mUpstreamAddress;
 
 
     private String mSSRCHex;
     private String mSessionDescription;
 
     public TrackInfo() {
-        setLocalPorts(16000 + new Random().nextInt(2000));
         setRemotePorts(14000 + new Random().nextInt(2000));
     }
 
-    public void setLocalAddress(InetAddress localAddress){
-        mLocalAddress = localAddress;
+    /** Direccion del emisor, para asociar la ruta al primer paquete si el SETUP no trae el SSRC */
+    public void setUpstreamAddress(InetAddress upstreamAddress){
+        mUpstreamAddress = upstreamAddress;
     }
 
-    public void startServer(Network receiveNet) throws IOException {
-        mRtcpUdpServer = new UDPServerSelector(mLocalAddress, mLocalRtcpPort, receiveNet, WifiAwareViewModel.getConnectivityManager());
-        mRtcpUdpServer.start();
-
-        mRtpUdpServer = new UDPServerSelector(mLocalAddress, mLocalRtpPort, receiveNet, WifiAwareViewModel.getConnectivityManager());
-        mRtpUdpServer.start();
+    /** Registra la pista en el RelaySelector. Falla si el nodo ya reenvia otra pista con el mismo SSRC */
+    public synchronized void startServer() throws IOException {
+        if(mRoute != null) return;
+        RelaySelector relay = RelaySelector.getInstance();
+        // Los que se unen tarde a una pista de video reciben el ultimo GOP
+        RelayRoute route = new RelayRoute(getSSRC(), getPayloadType(), mUpstreamAddress,
+                isH264() ? new RtpGopCache() : null, new RtcpRelay(getClockRate()));
+        if(!relay.addRoute(route)) throw new IOException("SSRC " + mSSRCHex + " is already relayed by this node");
+        mRoute = route;
+        setLocalPorts(relay.getRtpPort(), relay.getRtcpPort());
     }
 
-    public void stopServer() {
-        if(mRtcpUdpServer != null) {
-            mRtcpUdpServer.stop();
-            mRtcpUdpServer = null;
+    public synchronized void stopServer() {
+        if(mRoute != null) {
+            try {
+                RelaySelector.getInstance().removeRoute(mRoute);
+            } catch (IOException ignored) {}
+            mRoute = null;
         }
+    }
 
-        if(mRtpUdpServer != null){
-            mRtpUdpServer.stop();
-            mRtpUdpServer = null;
-        }
+    /** El suscriptor recibe el RTCP del emisor enseguida, y el RTP desde activateSubscriber(), que se llama con el PLAY */
+    public synchronized RelayRoute.Subscriber addSubscriber(InetAddress address, int rtpPort, int rtcpPort) {
+        return mRoute != null ? mRoute.addSubscriber(address, rtpPort, rtcpPort) : null;
     }
 
-    public SelectableChannel addRtcpEchoSession(String address, int rtcpPort) {
-        SelectableChannel channel = null;
+    public synchronized void activateSubscriber(RelayRoute.Subscriber subscriber) {
+        if(mRoute == null || subscriber == null) return;
         try {
-            channel = mRtcpUdpServer.addConnectionUDP(InetAddress.getByName(address), rtcpPort);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return channel;
+            RelaySelector.getInstance().activate(mRoute, subscriber);
+        } catch (IOException ignored) {}
+    }
+
+    public synchronized void deactivateSubscriber(RelayRoute.Subscriber subscriber) {
+        if(mRoute == null || subscriber == null) return;
+        try {
+            RelaySelector.getInstance().deactivate(mRoute, subscriber);
+        } catch (IOException ignored) {}
     }
 
-    public SelectableChannel addRtpEchoSession(String address, int rtpPort) {
-        SelectableChannel channel = null;
+    /** El emisor deja de enviar la pista hasta que vuelva a haber suscriptores */
+    public synchronized void idle() {
+        if(mRoute == null) return;
         try {
-            channel = mRtpUdpServer.addConnectionUDP(InetAddress.getByName(address), rtpPort);
-        } catch (IOException e) {
-            e.printStackTrace();
+            RelaySelector.getInstance().idle(mRoute);
+        } catch (IOException ignored) {}
+    }
+
+    public synchronized void removeSubscriber(RelayRoute.Subscriber subscriber) {
+        if(mRoute != null && subscriber != null) mRoute.removeSubscriber(subscriber);
+    }
+
+    /** Milisegundos hasta el primer keyframe del ultimo suscriptor que se unio, -1 si no se ha medido */
+    public long getJoinLatency() {
+        RelayRoute route = mRoute;
+        return route != null ? route.getLastJoinLatency() : -1;
+    }
+
+    /** SSRC indicado por el emisor en el SETUP, null si no lo indico */
+    private Integer getSSRC() {
+        if(mSSRCHex == null) return null;
+        try {
+            return (int) Long.parseLong(mSSRCHex, 16);
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return channel;
     }
 
-    public void removeSession(SelectableChannel rtcpChannel, SelectableChannel rtpChannel) {
-        if(mRtcpUdpServer != null && rtcpChannel != null) {
-            mRtcpUdpServer.disconnectClient(rtcpChannel);
+    /** Payload type de la linea m= de la descripcion, -1 si no tiene */
+    private int getPayloadType() {
+        if(mSessionDescription != null) {
+            Matcher matcher = MEDIA.matcher(mSessionDescription);
+            if(matcher.find()) return Integer.parseInt(matcher.group(1)) & 0x7F;
         }
+        return -1;
+    }
 
-        if(mRtpUdpServer != null && rtpChannel != null) {
-            mRtpUdpServer.disconnectClient(rtpChannel);
+    /** Frecuencia del timestamp RTP segun el rtpmap de la descripcion, 90000 si no tiene */
+    private long getClockRate() {
+        if(mSessionDescription != null) {
+            Matcher matcher = RTPMAP.matcher(mSessionDescription);
+            if(matcher.find()) return Long.parseLong(matcher.group(1));
         }
+        return 90000;
+    }
+
+    private boolean isH264() {
+        return mSessionDescription != null && mSessionDescription.toUpperCase().contains("H264");
     }
 
     public int[] getRemotePorts() {
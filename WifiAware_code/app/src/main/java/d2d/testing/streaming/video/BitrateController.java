@@ -0,0 +1,145 @@
+package d2d.testing.streaming.video;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import d2d.testing.streaming.rtcp.SenderReport;
+
+/**
+ * Control de congestion del encoder H264 compartido por todos los suscriptores de VideoPacketizerDispatcher.
+ * Recibe los Receiver Reports de todos los suscriptores (perdidas, jitter y RTT) y, como el encoder es uno solo,
+ * ajusta el bitrate al suscriptor que peor esta, entre getMinBitrate() y el bitrate configurado en VideoQuality.
+ *
+ * Las reglas son las del control por perdidas de GCC, con un umbral de bajada mas estricto,
+ * y con histeresis para que el bitrate no oscile:
+ * -Con mas de un 5% de perdidas, o el RTT disparado respecto al minimo visto, se baja a bitrate*(1-perdidas/2).
+ *  Despues de bajar se ignoran los reports durante HOLD_AFTER_DECREASE_MS, aun hablan del bitrate anterior.
+ * -Con menos de un 2% de perdidas y poco jitter durante INCREASE_AFTER evaluaciones seguidas se sube un 5%.
+ * -Entre medias se mantiene el bitrate.
+ */
+public class BitrateController implements SenderReport.Callback {
+
+    private static final String TAG = "BitrateController";
+
+    /** Aplica el bitrate al encoder */
+    public interface Encoder {
+        void setBitrate(int bitrate);
+    }
+
+    private static final int MIN_BITRATE = 100000;
+    private static final int LOSS_DECREASE = 13;           // Sobre 256, ~5%
+    private static final int LOSS_INCREASE = 5;            // Sobre 256, ~2%
+    private static final long JITTER_INCREASE_MS = 30;
+    private static final long RTT_MARGIN_MS = 200;         // RTT por encima del minimo que indica colas llenas
+    private static final int INCREASE_AFTER = 3;
+    private static final long EVALUATE_INTERVAL_MS = 1000;
+    private static final long HOLD_AFTER_DECREASE_MS = 2000;
+    private static final long STALE_REPORT_MS = 10000;
+
+    private final Encoder mEncoder;
+    private final int mMaxBitrate;
+    private final int mMinBitrate;
+    private final long mClock;
+    private final Map<Integer, Report> mReports = new HashMap<>();
+
+    private int mBitrate;
+    private int mGoodEvaluations = 0;
+    private long mLastEvaluation = 0;
+    private long mHoldUntil = 0;
+
+    /**
+     * @param bitrate bitrate inicial y maximo, el de VideoQuality
+     * @param clock frecuencia del timestamp RTP, para pasar el jitter a ms
+     */
+    public BitrateController(int bitrate, long clock, Encoder encoder) {
+        mEncoder = encoder;
+        mMaxBitrate = bitrate;
+        mMinBitrate = Math.min(bitrate, Math.max(MIN_BITRATE, bitrate / 10));
+        mClock = clock;
+        mBitrate = bitrate;
+    }
+
+    @Override
+    public void onReceptionReport(int ssrc, int fractionLost, long jitter, long rtt) {
+        onReceptionReport(ssrc, fractionLost, jitter, rtt, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void onReceptionReport(int ssrc, int fractionLost, long jitter, long rtt, long now) {
+        Report report = mReports.get(ssrc);
+        if (report == null) {
+            report = new Report();
+            mReports.put(ssrc, report);
+        }
+        report.mFractionLost = fractionLost;
+        report.mJitterMs = jitter * 1000 / mClock;
+        report.mRtt = rtt;
+        if (rtt >= 0 && (report.mMinRtt < 0 || rtt < report.mMinRtt)) report.mMinRtt = rtt;
+        report.mTime = now;
+
+        if (now < mHoldUntil || now - mLastEvaluation < EVALUATE_INTERVAL_MS) return;
+        mLastEvaluation = now;
+        evaluate(now);
+    }
+
+    /** El suscriptor se ha ido, sus reports dejan de contar */
+    public synchronized void removeSubscriber(int ssrc) {
+        mReports.remove(ssrc);
+    }
+
+    public synchronized int getBitrate() {
+        return mBitrate;
+    }
+
+    public int getMinBitrate() {
+        return mMinBitrate;
+    }
+
+    private void evaluate(long now) {
+        int worstLoss = 0;
+        long worstJitter = 0;
+        boolean queueing = false;
+        boolean any = false;
+        for (Report report : mReports.values()) {
+            if (now - report.mTime > STALE_REPORT_MS) continue;
+            any = true;
+            worstLoss = Math.max(worstLoss, report.mFractionLost);
+            worstJitter = Math.max(worstJitter, report.mJitterMs);
+            if (report.mRtt >= 0 && report.mMinRtt >= 0 && report.mRtt > report.mMinRtt + RTT_MARGIN_MS) queueing = true;
+        }
+        if (!any) return;
+
+        int bitrate = mBitrate;
+        if (worstLoss > LOSS_DECREASE || queueing) {
+            mGoodEvaluations = 0;
+            // Al menos un 5% menos, aunque el aviso venga solo del RTT
+            int loss = Math.max(worstLoss, 26);
+            bitrate = (int) Math.max(mMinBitrate, (long) mBitrate * (512 - loss) / 512);
+            mHoldUntil = now + HOLD_AFTER_DECREASE_MS;
+        } else if (worstLoss < LOSS_INCREASE && worstJitter < JITTER_INCREASE_MS) {
+            if (++mGoodEvaluations >= INCREASE_AFTER) {
+                mGoodEvaluations = 0;
+                bitrate = (int) Math.min(mMaxBitrate, (long) mBitrate * 21 / 20);
+            }
+        } else {
+            mGoodEvaluations = 0;
+        }
+
+        if (bitrate != mBitrate) {
+            Log.d(TAG, "Bitrate " + mBitrate + " -> " + bitrate + " (loss " + (worstLoss * 100 / 256) + "%, jitter "
+                    + worstJitter + " ms" + (queueing ? ", RTT growing" : "") + ")");
+            mBitrate = bitrate;
+            mEncoder.setBitrate(bitrate);
+        }
+    }
+
+    private static class Report {
+        int mFractionLost;
+        long mJitterMs;
+        long mRtt = -1;
+        long mMinRtt = -1;
+        long mTime;
+    }
+}
@@ -5,6 +5,7 @@ import android.content.SharedPreferences;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
@@ -15,9 +16,11 @@ import java.util.Map;
 
 import d2d.testing.streaming.hw.EncoderDebugger;
 import d2d.testing.streaming.rtp.AbstractPacketizer;
-import d2d.testing.streaming.rtp.ByteBufferInputStream;
+import d2d.testing.streaming.rtp.H264FanOut;
+import d2d.testing.streaming.rtp.H264Packetizer;
 import d2d.testing.streaming.rtp.MediaCodecBufferReader;
 import d2d.testing.streaming.rtp.MediaCodecInputStream;
+import d2d.testing.streaming.rtp.RtpSocket;
 
 public class VideoPacketizerDispatcher{
 
@@ -25,20 +28,33 @@ public class VideoPacketizerDispatcher{
 
     private Thread mReaderThread;
     private static VideoPacketizerDispatcher mInstance;
+    // Politica de desbordamiento para las FIFO de los suscriptores, se guarda para aplicarla tambien tras un start()
+    private static int mOverflowPolicy = RtpSocket.OVERFLOW_BLOCK;
 
     private VideoQuality mQuality;
     private SharedPreferences mSettings;
 
     private MediaCodec mMediaCodec;
     private MediaCodecInputStream mMediaCodecInputStream;
+    private MediaCodecBufferReader mBufferReader;
     private  Surface mEncoderSurface;
     private final Map<AbstractPacketizer, InputStream> mPacketizersInputsMap = new HashMap<>();
+    // Los H264Packetizer no arrancan su thread, el fan-out empaqueta una vez y escribe en sus RtpSocket
+    private final H264FanOut mFanOut = new H264FanOut();
+    // Ajusta el bitrate del encoder con los Receiver Reports de los suscriptores
+    private final BitrateController mBitrateController;
 
 
     private VideoPacketizerDispatcher(SharedPreferences settings, VideoQuality quality) throws IOException {
 
         mSettings = settings;
         mQuality = quality;
+        mBitrateController = new BitrateController(mQuality.bitrate, 90000, new BitrateController.Encoder() {
+            @Override
+            public void setBitrate(int bitrate) {
+                applyBitrate(bitrate);
+            }
+        });
 
         EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
 
@@ -53,7 +69,10 @@ public class VideoPacketizerDispatcher{
         mMediaCodec.start();
 
         mMediaCodecInputStream = new MediaCodecInputStream(mMediaCodec);
-        mReaderThread = new Thread(new MediaCodecBufferReader(64000, mMediaCodecInputStream, mPacketizersInputsMap));
+        mFanOut.setOverflowPolicy(mOverflowPolicy);
+        mBufferReader = new MediaCodecBufferReader(64000, mMediaCodecInputStream, mFanOut);
+        mBufferReader.setKeyframesOnly(true);
+        mReaderThread = new Thread(mBufferReader);
         mReaderThread.start();
     }
 
@@ -99,17 +118,57 @@ public class VideoPacketizerDispatcher{
             mReaderThread = null;
         }
 
-        mMediaCodec.stop();
-        mMediaCodec.release();
-        mEncoderSurface.release();
-        mMediaCodec = null;
-        mEncoderSurface = null;
+        synchronized (this) {
+            mMediaCodec.stop();
+            mMediaCodec.release();
+            mEncoderSurface.release();
+            mMediaCodec = null;
+            mEncoderSurface = null;
+        }
         mMediaCodecInputStream = null;
         mQuality = null;
         mSettings = null;
     }
 
 
+    /**
+     * Activa el descarte en las FIFO de los suscriptores (RtpSocket.OVERFLOW_DROP_NON_REFERENCE u OVERFLOW_DROP_UNTIL_IDR)
+     * para que uno lento no frene al resto. Por defecto OVERFLOW_BLOCK.
+     */
+    public static synchronized void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+        if (mInstance != null) mInstance.mFanOut.setOverflowPolicy(policy);
+    }
+
+    /** Bitrate actual del encoder, -1 si no esta arrancado */
+    public static synchronized int getBitrate() {
+        return mInstance != null ? mInstance.mBitrateController.getBitrate() : -1;
+    }
+
+    /** Lo llama el BitrateController desde el thread que recibe el RTCP */
+    private synchronized void applyBitrate(int bitrate) {
+        if (mMediaCodec == null) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mMediaCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error setting bitrate " + bitrate, e);
+        }
+    }
+
+    /** Pide al encoder que el siguiente frame sea un IDR */
+    private synchronized void requestSyncFrame() {
+        if (mMediaCodec == null) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mMediaCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error requesting sync frame", e);
+        }
+    }
+
     public static synchronized void subscribe(AbstractPacketizer packetizer){
         if (mInstance != null) {
             mInstance.addInternalPacketizer(packetizer);
@@ -123,7 +182,17 @@ public class VideoPacketizerDispatcher{
     }
 
     private void addInternalPacketizer(AbstractPacketizer packetizer) {
-        InputStream packetizerInput = new ByteBufferInputStream();
+        packetizer.getRtpSocket().setReportCallback(mBitrateController);
+        if (packetizer instanceof H264Packetizer) {
+            H264Packetizer h264Packetizer = (H264Packetizer) packetizer;
+            mFanOut.setStreamParameters(h264Packetizer.getPPS(), h264Packetizer.getSPS());
+            mFanOut.addSocket(packetizer.getRtpSocket());
+            // El RtpSocket descarta todo hasta el primer keyframe, se pide uno en vez de esperar a KEY_I_FRAME_INTERVAL
+            requestSyncFrame();
+            Log.e(TAG, "Added RtpSocket to H264 fan-out (" + mFanOut.getSocketCount() + " subscribers)");
+            return;
+        }
+        InputStream packetizerInput = mBufferReader.newInputStream();
         packetizer.setInputStream(packetizerInput);
         synchronized (mPacketizersInputsMap){
             mPacketizersInputsMap.put(packetizer, packetizerInput);
@@ -133,6 +202,13 @@ public class VideoPacketizerDispatcher{
     }
 
     private void removeInternalPacketizer(AbstractPacketizer packetizer) {
+        packetizer.getRtpSocket().setReportCallback(null);
+        mBitrateController.removeSubscriber(packetizer.getRtpSocket().getSSRC());
+        if (packetizer instanceof H264Packetizer) {
+            mFanOut.removeSocket(packetizer.getRtpSocket());
+            Log.e(TAG, "Removed RtpSocket from H264 fan-out!");
+            return;
+        }
         synchronized (mPacketizersInputsMap){
             mPacketizersInputsMap.remove(packetizer);
             packetizer.stop();
@@ -0,0 +1,85 @@
+package d2d.testing.net.buffers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Comprueba que los buffers de mas de DEFAULT_BUFFER_SIZE salen de su clase de tamaño y vuelven a ella.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void smallRequestsUseDefaultSlots() {
+        BufferPool pool = new BufferPool(8192, 4);
+        PooledBuffer buffer = pool.acquire(100);
+        assertEquals(8192, buffer.getBuffer().capacity());
+        assertTrue(buffer.getBuffer().isDirect());
+        assertEquals(3, pool.getFreeCount(8192));
+        buffer.release();
+        assertEquals(4, pool.getFreeCount(8192));
+    }
+
+    @Test
+    public void largeRequestsUseSmallestClassThatFits() {
+        BufferPool pool = new BufferPool(8192, 4);
+        PooledBuffer medium = pool.acquire(20000);
+        PooledBuffer large = pool.acquire(40000);
+        assertEquals(32 * 1024, medium.getBuffer().capacity());
+        assertEquals(64 * 1024, large.getBuffer().capacity());
+        assertTrue(medium.getBuffer().isDirect());
+        assertEquals(BufferPool.LARGE_BUFFER_COUNT - 1, pool.getFreeCount(32 * 1024));
+        assertEquals(2, pool.getInUse());
+        assertEquals(0, pool.getOversizedCount());
+
+        medium.release();
+        large.release();
+        assertEquals(BufferPool.LARGE_BUFFER_COUNT, pool.getFreeCount(32 * 1024));
+        assertEquals(BufferPool.LARGE_BUFFER_COUNT, pool.getFreeCount(64 * 1024));
+        assertEquals(4, pool.getFreeCount(8192));
+        assertEquals(0, pool.getInUse());
+        assertEquals(1.0, pool.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void recycledLargeBufferIsReused() {
+        BufferPool pool = new BufferPool(8192, 4);
+        PooledBuffer first = pool.acquire(30000);
+        first.getBuffer().put((byte) 1);
+        PooledBuffer view = first.retainedDuplicate();
+        first.release();
+        assertEquals(BufferPool.LARGE_BUFFER_COUNT - 1, pool.getFreeCount(32 * 1024));
+        view.release();
+        for (int i = 0; i < BufferPool.LARGE_BUFFER_COUNT * 3; i++) {
+            PooledBuffer again = pool.acquire(30000);
+            assertEquals(0, again.getBuffer().position());
+            assertEquals(32 * 1024, again.getBuffer().limit());
+            again.release();
+        }
+        assertEquals(0, pool.getExhaustedCount());
+    }
+
+    @Test
+    public void exhaustedClassFallsBackToHeap() {
+        BufferPool pool = new BufferPool(8192, 4);
+        PooledBuffer[] held = new PooledBuffer[BufferPool.LARGE_BUFFER_COUNT];
+        for (int i = 0; i < held.length; i++) held[i] = pool.acquire(60000);
+        PooledBuffer extra = pool.acquire(60000);
+        assertFalse(extra.getBuffer().isDirect());
+        assertEquals(64 * 1024, extra.getBuffer().capacity());
+        assertEquals(1, pool.getExhaustedCount());
+        extra.release();
+        for (PooledBuffer buffer : held) buffer.release();
+        assertEquals(BufferPool.LARGE_BUFFER_COUNT, pool.getFreeCount(64 * 1024));
+    }
+
+    @Test
+    public void onlyBiggerThanLargestClassIsOversized() {
+        BufferPool pool = new BufferPool(8192, 4);
+        PooledBuffer huge = pool.acquire(64 * 1024 + 1);
+        assertTrue(huge.getBuffer().capacity() >= 64 * 1024 + 1);
+        assertEquals(1, pool.getOversizedCount());
+        huge.release();
+        assertEquals(0, pool.getFreeCount(64 * 1024 + 1));
+    }
+}
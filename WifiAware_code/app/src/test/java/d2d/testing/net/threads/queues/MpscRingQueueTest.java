@@ -0,0 +1,131 @@
+package d2d.testing.net.threads.queues;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pruebas de la MpscRingQueue: capacidad, vuelta del indice sobre el array, drainTo() por lotes y varios productores
+ * compitiendo con la cola llena y vacia.
+ */
+public class MpscRingQueueTest {
+
+    @Test
+    public void capacityIsRoundedToPowerOfTwo() {
+        assertEquals(1024, new MpscRingQueue<Integer>(1000).capacity());
+        assertEquals(8, new MpscRingQueue<Integer>(8).capacity());
+        assertEquals(1, new MpscRingQueue<Integer>(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new MpscRingQueue<Integer>(0);
+    }
+
+    @Test
+    public void offerFailsWhenFullAndPollReturnsNullWhenEmpty() {
+        MpscRingQueue<Integer> queue = new MpscRingQueue<>(4);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for (int i = 0; i < 4; i++) assertTrue(queue.offer(i));
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        assertFalse(queue.offer(5));
+    }
+
+    @Test
+    public void keepsFifoOrderAcrossWrap() {
+        MpscRingQueue<Integer> queue = new MpscRingQueue<>(8);
+        Integer[] batch = new Integer[3];
+        int next = 0, expected = 0;
+        // Muchas vueltas al array con lotes que no coinciden con la capacidad
+        for (int round = 0; round < 1000; round++) {
+            while (queue.offer(next)) next++;
+            int count = queue.drainTo(batch);
+            assertEquals(3, count);
+            for (int i = 0; i < count; i++) assertEquals(Integer.valueOf(expected++), batch[i]);
+        }
+        Integer e;
+        while ((e = queue.poll()) != null) assertEquals(Integer.valueOf(expected++), e);
+        assertEquals(next, expected);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void drainToStopsAtBatchLength() {
+        MpscRingQueue<Integer> queue = new MpscRingQueue<>(16);
+        for (int i = 0; i < 10; i++) queue.offer(i);
+        Integer[] batch = new Integer[4];
+        assertEquals(4, queue.drainTo(batch));
+        assertEquals(4, queue.drainTo(batch));
+        assertEquals(2, queue.drainTo(batch));
+        assertEquals(0, queue.drainTo(batch));
+    }
+
+    /**
+     * Varios productores llenan una cola pequeña (que esta llena casi siempre) mientras el consumidor la vacia por lotes.
+     * Cada elemento debe llegar una sola vez y en el orden en el que lo inserto su productor.
+     */
+    @Test(timeout = 30000)
+    public void multipleProducersStress() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 200000;
+        final MpscRingQueue<long[]> queue = new MpscRingQueue<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger rejected = new AtomicInteger();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        long[] element = {producer, i};
+                        while (!queue.offer(element)) {
+                            rejected.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] nextExpected = new int[producers];
+        long[][] batch = new long[32][];
+        int received = 0;
+        start.countDown();
+        while (received < producers * perProducer) {
+            int count = queue.drainTo(batch);
+            if (count == 0) {
+                assertTrue(queue.size() <= queue.capacity());
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                int producer = (int) batch[i][0];
+                assertEquals("producer " + producer, nextExpected[producer], batch[i][1]);
+                nextExpected[producer]++;
+                batch[i] = null;
+            }
+            received += count;
+        }
+        for (Thread thread : threads) thread.join();
+
+        for (int p = 0; p < producers; p++) assertEquals(perProducer, nextExpected[p]);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        assertTrue("the queue should have been full at some point", rejected.get() > 0);
+    }
+}
@@ -0,0 +1,110 @@
+package d2d.testing.net.threads.selectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import d2d.testing.net.buffers.PooledBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Marcas de agua por destino de la cola de un DatagramChannel sin conectar: un destino atascado no hace descartar a los demas.
+ */
+public class OutboundQueueTest {
+
+    private DatagramChannel mChannel;
+    private OutboundQueue mQueue;
+    private InetSocketAddress mSlow;
+    private InetSocketAddress mOther;
+
+    @Before
+    public void setUp() throws Exception {
+        mChannel = DatagramChannel.open();
+        mChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mChannel.configureBlocking(false);
+        mQueue = new OutboundQueue(mChannel);
+        mSlow = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000);
+        mOther = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40002);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mQueue.clear();
+        mChannel.close();
+    }
+
+    private static PooledBuffer datagram(int length) {
+        return PooledBuffer.wrap(new byte[length]);
+    }
+
+    @Test
+    public void firstAddRequestsWrite() {
+        assertTrue(mQueue.add(datagram(100), mSlow));
+        assertFalse(mQueue.add(datagram(100), mOther));
+        assertEquals(100, mQueue.getQueuedBytes(mSlow));
+        assertEquals(100, mQueue.getQueuedBytes(mOther));
+        assertEquals(200, mQueue.getQueuedBytes());
+    }
+
+    @Test
+    public void targetAboveWatermarkOnlyDropsItsOwnDatagrams() {
+        int added = 0;
+        while (mQueue.isWritable(mSlow)) {
+            mQueue.add(datagram(1000), mSlow);
+            added += 1000;
+        }
+        assertTrue(added >= OutboundQueue.TARGET_HIGH_WATERMARK);
+        assertTrue(added < OutboundQueue.HIGH_WATERMARK);
+        long dropped = mQueue.getDroppedBuffers();
+        mQueue.add(datagram(1000), mSlow);
+        assertEquals(dropped + 1, mQueue.getDroppedBuffers());
+        assertEquals(added, mQueue.getQueuedBytes(mSlow));
+
+        // El resto de destinos y el canal siguen disponibles
+        assertTrue(mQueue.isWritable());
+        assertTrue(mQueue.isWritable(mOther));
+        mQueue.add(datagram(1000), mOther);
+        assertEquals(1000, mQueue.getQueuedBytes(mOther));
+        assertEquals(dropped + 1, mQueue.getDroppedBuffers());
+    }
+
+    @Test
+    public void flushUnblocksTargetBelowLowWatermark() throws Exception {
+        while (mQueue.isWritable(mSlow)) mQueue.add(datagram(1000), mSlow);
+        while (!mQueue.flush()) {
+            // Loopback sin receptor: los datagramas salen aunque nadie los lea
+        }
+        assertTrue(mQueue.isEmpty());
+        assertEquals(0, mQueue.getQueuedBytes(mSlow));
+        assertTrue(mQueue.isWritable(mSlow));
+        mQueue.add(datagram(1000), mSlow);
+        assertEquals(1000, mQueue.getQueuedBytes(mSlow));
+    }
+
+    @Test
+    public void channelWatermarkStillBoundsAllTargets() {
+        int port = 41000;
+        while (mQueue.isWritable()) {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            for (int i = 0; i < 100 && mQueue.isWritable(); i++) mQueue.add(datagram(1000), target);
+            port += 2;
+        }
+        assertTrue(mQueue.getQueuedBytes() >= OutboundQueue.HIGH_WATERMARK);
+        long dropped = mQueue.getDroppedBuffers();
+        mQueue.add(datagram(100), new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000));
+        assertEquals(dropped + 1, mQueue.getDroppedBuffers());
+    }
+
+    @Test
+    public void clearForgetsTargets() {
+        mQueue.add(datagram(500), mSlow);
+        mQueue.clear();
+        assertEquals(0, mQueue.getQueuedBytes(mSlow));
+        assertTrue(mQueue.isEmpty());
+    }
+}
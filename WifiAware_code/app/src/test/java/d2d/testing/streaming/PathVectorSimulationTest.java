@@ -0,0 +1,198 @@
+package d2d.testing.streaming;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+
+import d2d.testing.streaming.sessions.ReceiveSession;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulacion de la difusion de un stream desde A en una malla de 5 nodos, con retardos aleatorios por enlace.
+ * Cada nodo tiene su propia RoutingTable y los ANNOUNCE llevan la cabecera Via (formatVia()/parseVia()).
+ * Como el RtspClient, cada nodo reenvia el stream a todos sus vecinos al aceptarlo, tambien al que se lo ha enviado.
+ *
+ * Se compara con lo que se hacia antes, sin Via: todos los ANNOUNCE se aceptaban y el stream repetido se rechazaba en el
+ * RECORD (addStream() devuelve false, o el emisor ya lo tiene en StreamingRecord), despues de ANNOUNCE, 2 SETUP y RECORD.
+ * Con checkPath() los bucles y los caminos que no son mas cortos se rechazan en el ANNOUNCE, y cuando se acepta uno mas
+ * corto el RECORD cambia de emisor con replaceUpstream() y se envia TEARDOWN al anterior.
+ *
+ *     A - B - D
+ *      \  |  /|
+ *       \ | / |
+ *         C - E
+ */
+public class PathVectorSimulationTest {
+
+    private static final String[][] EDGES = {
+            {"A", "B"}, {"A", "C"}, {"B", "C"}, {"B", "D"}, {"C", "D"}, {"C", "E"}, {"D", "E"}
+    };
+    private static final String PUBLISHER = "A";
+    private static final int RUNS = 2000;
+    // Saltos minimos hasta A sumados para B, C, D y E
+    private static final int SHORTEST_HOPS = 1 + 1 + 2 + 2;
+    // ANNOUNCE, SETUP de las dos pistas y RECORD
+    private static final int HANDSHAKE_MESSAGES = 4;
+
+    private static final Map<String, List<String>> NEIGHBOURS = new LinkedHashMap<>();
+
+    static {
+        for (String[] edge : EDGES) {
+            neighbours(edge[0]).add(edge[1]);
+            neighbours(edge[1]).add(edge[0]);
+        }
+    }
+
+    private static List<String> neighbours(String node) {
+        List<String> list = NEIGHBOURS.get(node);
+        if (list == null) {
+            list = new ArrayList<>();
+            NEIGHBOURS.put(node, list);
+        }
+        return list;
+    }
+
+    /**
+     * ANNOUNCE que llega a mTo con la cabecera Via que ha puesto el nodo que lo envia.
+     * mPath es el camino real, para medir los saltos tambien cuando no se envia la cabecera.
+     */
+    private static class Event implements Comparable<Event> {
+        final double mTime;
+        final String mTo;
+        final List<String> mPath;
+        final String mVia;
+
+        Event(double time, String to, List<String> path, String via) {
+            mTime = time;
+            mTo = to;
+            mPath = path;
+            mVia = via;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return Double.compare(mTime, other.mTime);
+        }
+    }
+
+    private static class Result {
+        int mControl;
+        int mHops;
+        int mTakeovers;
+        int mReached;
+    }
+
+    private static Result run(boolean pathVector, long seed) {
+        Random random = new Random(seed);
+        UUID uuid = new UUID(seed, 0);
+        Map<String, RoutingTable> tables = new LinkedHashMap<>();
+        for (String node : NEIGHBOURS.keySet()) tables.put(node, new RoutingTable(node));
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        Result result = new Result();
+
+        forward(events, random, 0, PUBLISHER, Collections.singletonList(PUBLISHER), pathVector);
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            RoutingTable table = tables.get(event.mTo);
+            result.mControl++; // ANNOUNCE
+            if (pathVector) {
+                List<String> via = RoutingTable.parseVia(event.mVia);
+                assertEquals(event.mPath, via);
+                if (table.checkPath(uuid, via) != RoutingTable.PATH_ACCEPTED) continue;
+            }
+            result.mControl += HANDSHAKE_MESSAGES - 1; // SETUP x2 + RECORD
+
+            ReceiveSession session = new ReceiveSession();
+            session.setVia(event.mPath);
+            RoutingTable.StreamEntry entry = table.get(uuid);
+            if (event.mTo.equals(PUBLISHER)) {
+                continue; // StreamingRecord.streamingExist(), el emisor no se reenvia su propio stream
+            } else if (entry == null) {
+                if (!table.addStream(new Streaming(uuid, "sim", session))) continue;
+            } else if (!pathVector || !table.replaceUpstream(entry.getStreaming(), entry.getReceiveSession(), session)) {
+                continue;
+            } else {
+                result.mControl++; // TEARDOWN al emisor anterior
+                result.mTakeovers++;
+            }
+
+            List<String> next = new ArrayList<>(event.mPath);
+            next.add(table.getNodeId());
+            forward(events, random, event.mTime, event.mTo, next, pathVector);
+        }
+
+        for (Map.Entry<String, RoutingTable> node : tables.entrySet()) {
+            RoutingTable.StreamEntry entry = node.getValue().get(uuid);
+            if (entry == null) continue;
+            result.mReached++;
+            result.mHops += entry.getHopCount();
+        }
+        return result;
+    }
+
+    /** Envia el ANNOUNCE a todos los vecinos, antes no llevaba Via */
+    private static void forward(PriorityQueue<Event> events, Random random, double time, String from, List<String> via, boolean pathVector) {
+        String header = pathVector ? RoutingTable.formatVia(via) : null;
+        for (String next : NEIGHBOURS.get(from)) {
+            double delay = 0.05 + random.nextDouble() * 1.95;
+            events.add(new Event(time + delay, next, via, header));
+        }
+    }
+
+    @Test
+    public void viaHeaderRoundTrips() {
+        List<String> via = new ArrayList<>();
+        via.add("0a1b2c3d");
+        via.add("deadbeef");
+        assertEquals(via, RoutingTable.parseVia(RoutingTable.formatVia(via)));
+        assertTrue(RoutingTable.parseVia(null).isEmpty());
+    }
+
+    @Test
+    public void pathVectorAlwaysEndsOnShortestPaths() {
+        for (long seed = 0; seed < RUNS; seed++) {
+            Result pathVector = run(true, seed);
+            Result baseline = run(false, seed);
+            // Todos menos el emisor, que no tiene el stream en su tabla
+            assertEquals(NEIGHBOURS.size() - 1, pathVector.mReached);
+            assertEquals(NEIGHBOURS.size() - 1, baseline.mReached);
+            assertEquals(SHORTEST_HOPS, pathVector.mHops);
+            assertTrue(pathVector.mHops <= baseline.mHops);
+            assertEquals(0, baseline.mTakeovers);
+        }
+    }
+
+    @Test
+    public void pathVectorSavesHopsAndControlOnAverage() {
+        long baselineHops = 0, pathVectorHops = 0;
+        long baselineControl = 0, pathVectorControl = 0;
+        long takeovers = 0;
+        for (long seed = 0; seed < RUNS; seed++) {
+            Result baseline = run(false, seed);
+            Result pathVector = run(true, seed);
+            baselineHops += baseline.mHops;
+            pathVectorHops += pathVector.mHops;
+            baselineControl += baseline.mControl;
+            pathVectorControl += pathVector.mControl;
+            takeovers += pathVector.mTakeovers;
+        }
+        System.out.println("PathVectorSimulationTest: " + RUNS + " runs, hops " + baselineHops + " -> " + pathVectorHops
+                + ", control messages " + baselineControl + " -> " + pathVectorControl + ", takeovers " + takeovers);
+        // Con retardos uniformes el primer ANNOUNCE no siempre es el del camino mas corto
+        assertTrue(baselineHops > pathVectorHops);
+        // Los ANNOUNCE rechazados cuestan 1 mensaje en vez de llegar hasta el RECORD, aunque los cambios de emisor
+        // reenvian el stream y envian un TEARDOWN
+        assertTrue(baselineControl > pathVectorControl);
+        // Los cambios de emisor existen pero son pocos, menos de uno por stream de media
+        assertTrue(takeovers > 0);
+        assertTrue(takeovers < RUNS);
+    }
+}
@@ -0,0 +1,88 @@
+package d2d.testing.streaming;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import d2d.testing.streaming.sessions.RebroadcastSession;
+import d2d.testing.streaming.sessions.ReceiveSession;
+
+import static org.junit.Assert.*;
+
+/**
+ * Un suscriptor que envia PAUSE deja de contar como demanda y vuelve a contar con el PLAY.
+ * El aviso de que ya no hay demanda llega despues de IDLE_GRACE_MS, aqui solo se comprueba que no se pide el stream
+ * otra vez al reanudar dentro del periodo de gracia.
+ */
+public class RoutingTableDemandTest {
+
+    private static class Recorder implements RoutingTable.DemandListener {
+        final List<Boolean> changes = new ArrayList<>();
+
+        @Override
+        public void onDemandChanged(RoutingTable.StreamEntry entry, boolean demanded) {
+            changes.add(demanded);
+        }
+    }
+
+    private static Streaming stream(RoutingTable table, UUID uuid) {
+        Streaming streaming = new Streaming(uuid, "test", new ReceiveSession());
+        assertTrue(table.addStream(streaming));
+        return streaming;
+    }
+
+    @Test
+    public void pausedSubscriberIsNotDemand() {
+        RoutingTable table = new RoutingTable("node");
+        Recorder recorder = new Recorder();
+        table.addDemandListener(recorder);
+        UUID uuid = new UUID(1, 1);
+        stream(table, uuid);
+        RebroadcastSession first = new RebroadcastSession();
+        RebroadcastSession second = new RebroadcastSession();
+        table.addSubscriber(uuid, first);
+        table.addSubscriber(uuid, second);
+        assertEquals(2, table.getDemand(uuid));
+
+        table.pauseSubscriber(uuid, first);
+        table.pauseSubscriber(uuid, first);
+        assertEquals(1, table.getDemand(uuid));
+        table.pauseSubscriber(uuid, second);
+        assertEquals(0, table.getDemand(uuid));
+
+        table.resumeSubscriber(uuid, first);
+        assertEquals(1, table.getDemand(uuid));
+        // Solo se ha pedido una vez, el PAUSE ha dejado el stream en el periodo de gracia
+        assertEquals(1, recorder.changes.size());
+        assertTrue(recorder.changes.get(0));
+        table.removeDemandListener(recorder);
+    }
+
+    @Test
+    public void removedSubscriberIsForgotten() {
+        RoutingTable table = new RoutingTable("node");
+        UUID uuid = new UUID(2, 2);
+        Streaming streaming = stream(table, uuid);
+        RebroadcastSession subscriber = new RebroadcastSession();
+        RebroadcastSession other = new RebroadcastSession();
+
+        // Un PAUSE de alguien que no esta suscrito no cambia nada
+        table.pauseSubscriber(uuid, other);
+        table.addSubscriber(uuid, other);
+        assertEquals(1, table.getDemand(uuid));
+
+        table.addSubscriber(uuid, subscriber);
+        table.pauseSubscriber(uuid, subscriber);
+        table.removeSubscriber(uuid, subscriber);
+        table.addSubscriber(uuid, subscriber);
+        assertEquals(2, table.getDemand(uuid));
+
+        table.pauseSubscriber(uuid, subscriber);
+        assertNotNull(table.removeStream(streaming));
+        stream(table, uuid);
+        table.addSubscriber(uuid, subscriber);
+        assertEquals(1, table.getDemand(uuid));
+    }
+}
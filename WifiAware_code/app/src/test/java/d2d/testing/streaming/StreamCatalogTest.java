@@ -0,0 +1,246 @@
+package d2d.testing.streaming;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ida y vuelta de los mensajes de StreamCatalog entre varios nodos: catalogo completo, deltas, tombstones y
+ * horizonte dividido.
+ */
+public class StreamCatalogTest {
+
+    private static final int NODE_A = 0xA;
+    private static final int NODE_B = 0xB;
+    private static final int NODE_C = 0xC;
+    // Cuantos tombstones guarda un nodo antes de descartar el mas antiguo (StreamCatalog.MAX_TOMBSTONES)
+    private static final int MAX_TOMBSTONES = 256;
+
+    private static class TestSource implements StreamCatalog.Source {
+        final List<UUID> mRequested = new ArrayList<>();
+
+        @Override
+        public void requestStream(UUID uuid) {
+            mRequested.add(uuid);
+        }
+    }
+
+    private static int deliver(StreamCatalog to, StreamCatalog.Source from, byte[] message) {
+        return to.onCatalogReceived(from, message, 0, message.length);
+    }
+
+    private static boolean isFull(byte[] message) {
+        return (message[3] & 1) != 0;
+    }
+
+    private static StreamCatalog.Entry find(StreamCatalog catalog, UUID uuid) {
+        for (StreamCatalog.Entry entry : catalog.getRemoteStreams()) {
+            if (entry.getUUID().equals(uuid)) return entry;
+        }
+        return null;
+    }
+
+    @Test
+    public void fullCatalogRoundTrip() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        a.setLocalStream(first, "camara__ana", "H264+mpeg4-generic", 0, 0);
+        a.setLocalStream(second, "pantalla__ana", "H264", 0, 0);
+
+        byte[] message = a.encodeSince(0);
+        assertTrue(isFull(message));
+        assertEquals(a.getVersion(), StreamCatalog.getMessageVersion(message));
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, new TestSource(), message));
+
+        assertEquals(2, b.getRemoteStreams().size());
+        StreamCatalog.Entry entry = find(b, first);
+        assertEquals("camara__ana", entry.getName());
+        assertEquals("H264+mpeg4-generic", entry.getCodecs());
+        assertEquals(1, entry.getHops());
+        assertEquals("H264", find(b, second).getCodecs());
+        // Los streams propios no son remotos
+        assertTrue(a.getRemoteStreams().isEmpty());
+    }
+
+    @Test
+    public void deltaRoundTrip() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        TestSource fromA = new TestSource();
+        UUID first = UUID.randomUUID();
+        a.setLocalStream(first, "camara__ana", "H264", 0, 0);
+        byte[] full = a.encodeSince(0);
+        deliver(b, fromA, full);
+        long acked = StreamCatalog.getMessageVersion(full);
+        assertNull(a.encodeSince(acked));
+
+        UUID second = UUID.randomUUID();
+        a.setLocalStream(second, "pantalla__ana", "H264", 0, 0);
+        byte[] delta = a.encodeSince(acked);
+        assertFalse(isFull(delta));
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, fromA, delta));
+        assertEquals(2, b.getRemoteStreams().size());
+        acked = StreamCatalog.getMessageVersion(delta);
+
+        // Un cambio de nombre y una eliminacion viajan en el mismo delta
+        a.setLocalStream(second, "pantalla__bea", "H264", 0, 0);
+        a.removeLocalStream(first);
+        delta = a.encodeSince(acked);
+        assertFalse(isFull(delta));
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, fromA, delta));
+        assertNull(find(b, first));
+        assertEquals("pantalla__bea", find(b, second).getName());
+        assertEquals(1, b.getRemoteStreams().size());
+    }
+
+    @Test
+    public void deltaOnUnknownBaseIsRejected() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        TestSource fromA = new TestSource();
+        a.setLocalStream(UUID.randomUUID(), "camara__ana", "H264", 0, 0);
+        long acked = a.getVersion();
+        a.setLocalStream(UUID.randomUUID(), "pantalla__ana", "H264", 0, 0);
+
+        // B no ha recibido nunca el catalogo de A
+        byte[] delta = a.encodeSince(acked);
+        assertEquals(StreamCatalog.RECEIVED_UNKNOWN_BASE, deliver(b, fromA, delta));
+        assertTrue(b.getRemoteStreams().isEmpty());
+
+        // Con el completo se sincroniza, y el mismo delta repetido ya no encaja
+        byte[] full = a.encodeSince(0);
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, fromA, full));
+        assertEquals(2, b.getRemoteStreams().size());
+        assertEquals(StreamCatalog.RECEIVED_UNKNOWN_BASE, deliver(b, fromA, delta));
+        assertEquals(2, b.getRemoteStreams().size());
+    }
+
+    @Test
+    public void malformedMessageIsRejected() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        a.setLocalStream(UUID.randomUUID(), "camara__ana", "H264", 0, 0);
+        byte[] message = a.encodeSince(0);
+        assertEquals(StreamCatalog.RECEIVED_MALFORMED, b.onCatalogReceived(new TestSource(), message, 0, message.length - 3));
+        assertEquals(StreamCatalog.RECEIVED_MALFORMED, b.onCatalogReceived(new TestSource(), new byte[]{'D', 'X', 1}, 0, 3));
+        assertTrue(b.getRemoteStreams().isEmpty());
+    }
+
+    @Test
+    public void prunedTombstonesForceFullResync() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        TestSource fromA = new TestSource();
+        UUID kept = UUID.randomUUID();
+        a.setLocalStream(kept, "camara__ana", "H264", 0, 0);
+        byte[] message = a.encodeSince(0);
+        deliver(b, fromA, message);
+        long stale = StreamCatalog.getMessageVersion(message);
+
+        UUID gone = UUID.randomUUID();
+        a.setLocalStream(gone, "pantalla__ana", "H264", 0, 0);
+        message = a.encodeSince(stale);
+        deliver(b, fromA, message);
+        long acked = StreamCatalog.getMessageVersion(message);
+        a.removeLocalStream(gone);
+        // Mas streams efimeros de los que caben en tombstones, el de gone se descarta el primero
+        for (int i = 0; i < MAX_TOMBSTONES; i++) {
+            UUID uuid = UUID.randomUUID();
+            a.setLocalStream(uuid, "efimero__ana", "H264", 0, 0);
+            a.removeLocalStream(uuid);
+        }
+
+        // Un delta ya no podria decir a B que gone se ha eliminado, se envia el catalogo completo
+        message = a.encodeSince(acked);
+        assertTrue(isFull(message));
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, fromA, message));
+        assertEquals(1, b.getRemoteStreams().size());
+        assertNotNull(find(b, kept));
+        assertTrue(isFull(a.encodeSince(stale)));
+
+        // Un vecino al dia sigue recibiendo deltas
+        acked = StreamCatalog.getMessageVersion(message);
+        a.setLocalStream(UUID.randomUUID(), "otra__ana", "H264", 0, 0);
+        message = a.encodeSince(acked);
+        assertFalse(isFull(message));
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, fromA, message));
+        assertEquals(2, b.getRemoteStreams().size());
+    }
+
+    @Test
+    public void tombstonesBelowLimitKeepDeltas() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        TestSource fromA = new TestSource();
+        a.setLocalStream(UUID.randomUUID(), "camara__ana", "H264", 0, 0);
+        byte[] message = a.encodeSince(0);
+        deliver(b, fromA, message);
+        long acked = StreamCatalog.getMessageVersion(message);
+        for (int i = 0; i < MAX_TOMBSTONES; i++) {
+            UUID uuid = UUID.randomUUID();
+            a.setLocalStream(uuid, "efimero__ana", "H264", 0, 0);
+            a.removeLocalStream(uuid);
+        }
+        message = a.encodeSince(acked);
+        assertFalse(isFull(message));
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(b, fromA, message));
+        assertEquals(1, b.getRemoteStreams().size());
+    }
+
+    @Test
+    public void entriesLearnedFromThisNodeAreDropped() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        StreamCatalog c = new StreamCatalog(NODE_C);
+        TestSource fromA = new TestSource();
+        TestSource fromB = new TestSource();
+        TestSource bAtA = new TestSource();
+        UUID uuid = UUID.randomUUID();
+        a.setLocalStream(uuid, "camara__ana", "H264", 0, 0);
+        deliver(b, fromA, a.encodeSince(0));
+
+        // B reenvia lo que aprendio de A: C lo usa a 2 saltos, A lo ignora
+        byte[] relayed = b.encodeSince(0);
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(c, fromB, relayed));
+        assertEquals(2, find(c, uuid).getHops());
+        assertEquals(StreamCatalog.RECEIVED_OK, deliver(a, bAtA, relayed));
+        assertTrue(a.getRemoteStreams().isEmpty());
+
+        // Aunque A deje de publicarlo no lo recupera por B
+        a.removeLocalStream(uuid);
+        assertTrue(a.getRemoteStreams().isEmpty());
+        assertFalse(a.requestStream(uuid));
+    }
+
+    @Test
+    public void requestGoesToClosestSource() {
+        StreamCatalog a = new StreamCatalog(NODE_A);
+        StreamCatalog b = new StreamCatalog(NODE_B);
+        StreamCatalog c = new StreamCatalog(NODE_C);
+        TestSource fromA = new TestSource();
+        TestSource aAtC = new TestSource();
+        TestSource bAtC = new TestSource();
+        UUID uuid = UUID.randomUUID();
+        a.setLocalStream(uuid, "camara__ana", "H264", 0, 0);
+        deliver(b, fromA, a.encodeSince(0));
+        deliver(c, bAtC, b.encodeSince(0));
+        deliver(c, aAtC, a.encodeSince(0));
+        assertEquals(1, find(c, uuid).getHops());
+
+        assertTrue(c.requestStream(uuid));
+        assertEquals(1, aAtC.mRequested.size());
+        assertTrue(bAtC.mRequested.isEmpty());
+
+        // Si se va el vecino mas cercano queda el camino por B
+        c.removeSource(aAtC);
+        assertEquals(2, find(c, uuid).getHops());
+        c.removeSource(bAtC);
+        assertTrue(c.getRemoteStreams().isEmpty());
+    }
+}
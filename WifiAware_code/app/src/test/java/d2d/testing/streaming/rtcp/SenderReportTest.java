@@ -0,0 +1,187 @@
+package d2d.testing.streaming.rtcp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bytes del Sender Report que genera update(): solo cuando toca, y con SSRC, timestamp RTP y contadores correctos.
+ * Con TCP el SR se escribe en el OutputStream (con la cabecera interleaved de 4 bytes), con UDP se recibe en un socket local.
+ */
+public class SenderReportTest {
+
+    private static final long MS = 1000000L;
+    private static final int SSRC = 0x1a2b3c4d;
+
+    private SenderReport mReport;
+    private ByteArrayOutputStream mOutput;
+
+    @Before
+    public void setUp() {
+        mReport = new SenderReport();
+        mReport.setSSRC(SSRC);
+        mReport.setClockFrequency(90000);
+        mReport.setInterval(1000);
+        mOutput = new ByteArrayOutputStream();
+        mReport.setOutputStream(mOutput, (byte) 1);
+    }
+
+    @After
+    public void tearDown() {
+        mReport.close();
+    }
+
+    @Test
+    public void noReportBeforeInterval() throws Exception {
+        long now = 5000 * MS;
+        for (int i = 0; i < 100; i++) {
+            mReport.update(1000, i * 10 * MS, now + i * 9 * MS);
+        }
+        assertEquals(0, mOutput.size());
+    }
+
+    @Test
+    public void reportWhenDue() throws Exception {
+        long now = 5000 * MS;
+        // El primero programa el report para dentro de 1 s
+        mReport.update(100, 0, now);
+        mReport.update(200, 500 * MS, now + 500 * MS);
+        assertEquals(0, mOutput.size());
+        mReport.update(300, 2000 * MS, now + 1000 * MS);
+
+        byte[] data = mOutput.toByteArray();
+        assertEquals(4 + 28, data.length);
+        assertEquals('$', data[0]);
+        assertEquals(1, data[1]);
+        assertEquals(28, ((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+        checkReport(ByteBuffer.wrap(data, 4, 28).slice(), 180000, 3, 600);
+    }
+
+    @Test
+    public void countersKeepGrowingBetweenReports() throws Exception {
+        long now = 5000 * MS;
+        mReport.update(100, 0, now);
+        mReport.update(100, 1000 * MS, now + 1000 * MS);
+        mOutput.reset();
+        for (int i = 1; i < 10; i++) mReport.update(50, (1000 + i) * MS, now + (1000 + i * 10) * MS);
+        assertEquals(0, mOutput.size());
+        mReport.update(50, 3000 * MS, now + 2000 * MS);
+        checkReport(ByteBuffer.wrap(mOutput.toByteArray(), 4, 28).slice(), 270000, 12, 700);
+    }
+
+    @Test
+    public void setSsrcResetsCounters() throws Exception {
+        long now = 5000 * MS;
+        mReport.update(100, 0, now);
+        mReport.update(100, 0, now + 1);
+        mReport.setSSRC(0x55667788);
+        mReport.update(40, 1000 * MS, now + 1000 * MS);
+        ByteBuffer packet = ByteBuffer.wrap(mOutput.toByteArray(), 4, 28).slice();
+        assertEquals(0x55667788, packet.getInt(4));
+        assertEquals(1, packet.getInt(20));
+        assertEquals(40, packet.getInt(24));
+    }
+
+    @Test
+    public void zeroIntervalDisablesReports() throws Exception {
+        mReport.setInterval(0);
+        for (int i = 0; i < 10; i++) mReport.update(100, i * MS, i * 1000 * MS);
+        assertEquals(0, mOutput.size());
+    }
+
+    @Test(timeout = 5000)
+    public void udpReportBytes() throws Exception {
+        DatagramChannel receiver = DatagramChannel.open();
+        try {
+            receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SenderReport report = new SenderReport();
+            try {
+                report.setSSRC(SSRC);
+                report.setClockFrequency(8000);
+                report.setInterval(500);
+                report.setDestination(InetAddress.getLoopbackAddress(), receiver.socket().getLocalPort());
+                report.update(10, 0, 0);
+                report.update(20, 250 * MS, 500 * MS);
+
+                ByteBuffer packet = ByteBuffer.allocate(1500);
+                receiver.receive(packet);
+                packet.flip();
+                assertEquals(28, packet.remaining());
+                // 250 ms a 8 kHz
+                checkReport(packet, 2000, 2, 30);
+            } finally {
+                report.close();
+            }
+        } finally {
+            receiver.close();
+        }
+    }
+
+    /** Los RR de los suscriptores se reciben en los reactores compartidos, sin un thread por SenderReport */
+    @Test(timeout = 5000)
+    public void receiverReportsUseSharedReactors() throws Exception {
+        int threadsBefore = Thread.activeCount();
+        final int reports = 16;
+        SenderReport[] senders = new SenderReport[reports];
+        final CountDownLatch received = new CountDownLatch(reports);
+        final int[] fractionLost = new int[reports];
+        DatagramChannel subscriber = DatagramChannel.open();
+        try {
+            subscriber.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            for (int i = 0; i < reports; i++) {
+                final int index = i;
+                senders[i] = new SenderReport();
+                senders[i].setSSRC(SSRC + i);
+                senders[i].setCallback(new SenderReport.Callback() {
+                    @Override
+                    public void onReceptionReport(int ssrc, int fraction, long jitter, long rtt) {
+                        fractionLost[index] = fraction;
+                        received.countDown();
+                    }
+                });
+                senders[i].setDestination(InetAddress.getLoopbackAddress(), subscriber.socket().getLocalPort());
+            }
+            for (int i = 0; i < reports; i++) {
+                ByteBuffer rr = ByteBuffer.allocate(32);
+                rr.put((byte) 0x81).put((byte) 201).putShort((short) 7).putInt(0x0BADF00D);
+                rr.putInt(SSRC + i).putInt((i + 1) << 24).putInt(1000).putInt(50).putInt(0).putInt(0);
+                rr.flip();
+                subscriber.send(rr, new InetSocketAddress(InetAddress.getLoopbackAddress(), senders[i].getLocalPort()));
+            }
+            received.await();
+            for (int i = 0; i < reports; i++) assertEquals(i + 1, fractionLost[i]);
+            // Solo pueden aparecer los threads del ReactorPool si es el primer test que lo usa
+            assertTrue(Thread.activeCount() - threadsBefore <= Runtime.getRuntime().availableProcessors());
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName(), thread.getName().startsWith("RTCP receiver"));
+            }
+        } finally {
+            for (SenderReport sender : senders) {
+                if (sender != null) sender.close();
+            }
+            subscriber.close();
+        }
+    }
+
+    private static void checkReport(ByteBuffer packet, long rtpTimestamp, int packets, int octets) {
+        assertEquals((byte) 0x80, packet.get(0));
+        assertEquals((byte) 200, packet.get(1));
+        assertEquals(6, packet.getShort(2));
+        assertEquals(SSRC, packet.getInt(4));
+        // El timestamp NTP sale de System.nanoTime() al enviar, como el que usa compactNtp() para el RTT
+        long seconds = System.nanoTime() / 1000000000L;
+        assertTrue(Math.abs(seconds - (packet.getInt(8) & 0xFFFFFFFFL)) <= 1);
+        assertEquals(rtpTimestamp, packet.getInt(16) & 0xFFFFFFFFL);
+        assertEquals(packets, packet.getInt(20));
+        assertEquals(octets, packet.getInt(24));
+    }
+}
@@ -0,0 +1,106 @@
+package d2d.testing.streaming.rtp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lectores lentos del BroadcastRing: nunca reciben bytes que no ha publicado el encoder.
+ */
+public class BroadcastRingTest {
+
+    private static byte[] accessUnit(int length, int value) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (value + i);
+        return data;
+    }
+
+    private static void publish(BroadcastRing ring, byte[] data, long pts, boolean keyframe) {
+        ring.publish(ByteBuffer.wrap(data), pts, keyframe ? 1 : 0, keyframe);
+    }
+
+    @Test
+    public void readsWholeAccessUnitsInOrder() throws Exception {
+        BroadcastRing ring = new BroadcastRing(1000, 8);
+        BroadcastRing.Cursor cursor = ring.newCursor();
+        publish(ring, accessUnit(100, 1), 10, true);
+        publish(ring, accessUnit(50, 2), 20, false);
+        byte[] buffer = new byte[200];
+        assertEquals(100, cursor.read(buffer, 0, buffer.length));
+        assertEquals(10, cursor.getPresentationTimeUs());
+        assertEquals(50, cursor.read(buffer, 0, buffer.length));
+        assertEquals(20, cursor.getPresentationTimeUs());
+        assertEquals(2, buffer[0]);
+    }
+
+    @Test
+    public void lappedMidAccessUnitIsDroppedNotZeroFilled() throws Exception {
+        BroadcastRing ring = new BroadcastRing(400, 8);
+        BroadcastRing.Cursor cursor = ring.newCursor();
+        publish(ring, accessUnit(100, 1), 10, true);
+        byte[] buffer = new byte[300];
+        // Se lee solo la mitad del primer access unit
+        assertEquals(50, cursor.read(buffer, 0, 50));
+        // El escritor da la vuelta y lo sobrescribe
+        publish(ring, accessUnit(150, 2), 20, false);
+        publish(ring, accessUnit(150, 3), 30, false);
+        publish(ring, accessUnit(150, 4), 40, true);
+
+        assertEquals(BroadcastRing.LAPPED, cursor.read(buffer, 0, buffer.length));
+        assertEquals(1, cursor.getTruncated());
+        // La siguiente lectura empieza en el keyframe, entera
+        assertEquals(150, cursor.read(buffer, 0, buffer.length));
+        assertEquals(40, cursor.getPresentationTimeUs());
+        assertArrayEquals(accessUnit(150, 4), Arrays.copyOf(buffer, 150));
+    }
+
+    @Test
+    public void lappedBetweenAccessUnitsSkipsWithoutSignal() throws Exception {
+        BroadcastRing ring = new BroadcastRing(400, 8);
+        BroadcastRing.Cursor cursor = ring.newCursor();
+        publish(ring, accessUnit(150, 1), 10, true);
+        publish(ring, accessUnit(150, 2), 20, false);
+        publish(ring, accessUnit(150, 3), 30, true);
+        publish(ring, accessUnit(150, 4), 40, false);
+        byte[] buffer = new byte[300];
+        assertEquals(150, cursor.read(buffer, 0, buffer.length));
+        assertEquals(30, cursor.getPresentationTimeUs());
+        assertEquals(0, cursor.getTruncated());
+        assertEquals(2, cursor.getSkipped());
+    }
+
+    @Test
+    public void lappedWithoutKeyframeWaitsForNextOne() throws Exception {
+        BroadcastRing ring = new BroadcastRing(400, 8);
+        BroadcastRing.Cursor cursor = ring.newCursor();
+        publish(ring, accessUnit(100, 1), 10, true);
+        byte[] buffer = new byte[300];
+        assertEquals(60, cursor.read(buffer, 0, 60));
+        for (int i = 0; i < 4; i++) publish(ring, accessUnit(150, 10 + i), 20 + i, false);
+        assertEquals(BroadcastRing.LAPPED, cursor.read(buffer, 0, buffer.length));
+        assertEquals(0, cursor.available());
+        // Los access units que no son keyframe no se entregan
+        publish(ring, accessUnit(80, 20), 50, false);
+        publish(ring, accessUnit(90, 30), 60, true);
+        assertEquals(90, cursor.read(buffer, 0, buffer.length));
+        assertEquals(60, cursor.getPresentationTimeUs());
+        assertEquals(30, buffer[0]);
+    }
+
+    @Test
+    public void streamReportsLappedAsEmptyRead() throws Exception {
+        BroadcastRing ring = new BroadcastRing(400, 8);
+        ByteBufferInputStream stream = new ByteBufferInputStream(ring);
+        publish(ring, accessUnit(100, 1), 10, true);
+        byte[] buffer = new byte[300];
+        assertEquals(40, stream.read(buffer, 0, 40));
+        for (int i = 0; i < 3; i++) publish(ring, accessUnit(150, 2 + i), 20 + i, i == 2);
+        assertEquals(0, stream.read(buffer, 0, buffer.length));
+        assertEquals(1, stream.getTruncated());
+        assertEquals(150, stream.read(buffer, 0, buffer.length));
+        stream.close();
+    }
+}
@@ -0,0 +1,120 @@
+package d2d.testing.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ventana de secuencias de RtpDuplicateFilter: vuelta de la secuencia, saltos mayores que la ventana y desorden.
+ */
+public class RtpDuplicateFilterTest {
+
+    @Test
+    public void firstPacketIsNew() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(500));
+        assertTrue(filter.isDuplicate(500));
+        assertEquals(1, filter.getDuplicates());
+    }
+
+    @Test
+    public void sequenceWrapsAtFFFF() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        for (int seq = 0xFFF0; seq <= 0x1000F; seq++) {
+            assertFalse(filter.isDuplicate(seq & 0xFFFF));
+        }
+        // Los dos lados de la vuelta siguen en la ventana
+        assertTrue(filter.isDuplicate(0xFFFF));
+        assertTrue(filter.isDuplicate(0xFFF0));
+        assertTrue(filter.isDuplicate(0));
+        assertTrue(filter.isDuplicate(0x000F));
+        assertEquals(4, filter.getDuplicates());
+    }
+
+    @Test
+    public void reorderedAcrossWrapIsNotDuplicate() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(0xFFFD));
+        assertFalse(filter.isDuplicate(2));
+        // 0xFFFE y 0xFFFF llegan tarde, por detras de la secuencia mas alta
+        assertFalse(filter.isDuplicate(0xFFFF));
+        assertFalse(filter.isDuplicate(0xFFFE));
+        assertTrue(filter.isDuplicate(0xFFFE));
+        assertTrue(filter.isDuplicate(2));
+    }
+
+    @Test
+    public void reorderedDuplicatesInsideWindow() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        // Dos caminos entregan la misma secuencia con distinto orden y retardo
+        int[] first = {100, 101, 103, 102, 106, 104, 105};
+        int[] second = {101, 100, 102, 104, 103, 106, 105};
+        for (int seq : first) assertFalse(filter.isDuplicate(seq));
+        for (int seq : second) assertTrue(filter.isDuplicate(seq));
+        assertEquals(second.length, filter.getDuplicates());
+        assertFalse(filter.isDuplicate(107));
+    }
+
+    @Test
+    public void skippedSequencesAreNotMarked() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(10));
+        assertFalse(filter.isDuplicate(20));
+        // Las intermedias se liberan aunque su posicion circular estuviera usada antes
+        for (int seq = 11; seq < 20; seq++) assertFalse(filter.isDuplicate(seq));
+        assertEquals(0, filter.getDuplicates());
+    }
+
+    @Test
+    public void stalePositionsAreClearedWhenWindowAdvances() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(0));
+        // 0 + WINDOW cae en la misma posicion del mapa de bits que 0
+        assertFalse(filter.isDuplicate(RtpDuplicateFilter.WINDOW - 1));
+        assertFalse(filter.isDuplicate(RtpDuplicateFilter.WINDOW));
+        assertTrue(filter.isDuplicate(RtpDuplicateFilter.WINDOW));
+        assertEquals(1, filter.getDuplicates());
+    }
+
+    @Test
+    public void forwardGapOfWindowResets() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(1000));
+        assertFalse(filter.isDuplicate(1001));
+        // El salto se mide desde la secuencia mas alta
+        assertFalse(filter.isDuplicate(1001 + RtpDuplicateFilter.WINDOW));
+        // Tras reiniciar la ventana lo anterior queda fuera y se da por nuevo
+        assertFalse(filter.isDuplicate(1001));
+        assertEquals(0, filter.getDuplicates());
+    }
+
+    @Test
+    public void forwardGapJustBelowWindowKeepsHistory() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(1000));
+        assertFalse(filter.isDuplicate(1001));
+        assertFalse(filter.isDuplicate(1001 + RtpDuplicateFilter.WINDOW - 1));
+        assertTrue(filter.isDuplicate(1001));
+    }
+
+    @Test
+    public void oldPacketBeyondWindowResets() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        assertFalse(filter.isDuplicate(5000));
+        assertFalse(filter.isDuplicate(5000 - RtpDuplicateFilter.WINDOW));
+        // La ventana se ha movido a la secuencia antigua, 5000 vuelve a ser nuevo una vez
+        assertFalse(filter.isDuplicate(5000));
+        assertTrue(filter.isDuplicate(5000));
+        assertEquals(1, filter.getDuplicates());
+    }
+
+    @Test
+    public void oldPacketAtWindowEdgeIsChecked() {
+        RtpDuplicateFilter filter = new RtpDuplicateFilter();
+        int oldest = 5000 - RtpDuplicateFilter.WINDOW + 1;
+        assertFalse(filter.isDuplicate(oldest));
+        assertFalse(filter.isDuplicate(5000));
+        assertTrue(filter.isDuplicate(oldest));
+        assertFalse(filter.isDuplicate(oldest + 1));
+    }
+}
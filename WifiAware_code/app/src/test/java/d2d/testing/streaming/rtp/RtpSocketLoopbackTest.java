@@ -0,0 +1,169 @@
+package d2d.testing.streaming.rtp;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Envio real de un RtpSocket con ritmo (setCacheSize() > 0) a un DatagramChannel de loopback, con un video de
+ * 720p a 30 fps: cada frame son varios paquetes con el mismo timestamp, confirmados de golpe como hace el packetizer.
+ *
+ * Imprime la tasa conseguida, el jitter entre llegadas de RFC 3550 y los huecos entre paquetes, y falla si se pierden
+ * paquetes o si el ritmo no deja pasar el bitrate del encoder.
+ */
+public class RtpSocketLoopbackTest {
+
+    private static final int CLOCK = 90000;
+    private static final int FPS = 30;
+    private static final int FRAMES = 90;
+    // ~2.5 Mbit/s, lo que da el encoder a 720p
+    private static final int FRAME_BYTES = 10400;
+    private static final long FRAME_NANOS = 1000000000L / FPS;
+    private static final long IDLE_TIMEOUT_NANOS = 2000000000L;
+
+    private static class Result {
+        int packets;
+        long bytes;
+        long firstArrival;
+        long lastArrival;
+        double jitterMs;
+        long[] gapsNs;
+        int outOfOrder;
+    }
+
+    @Test
+    public void pacedStreamKeepsUpWithEncoder() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramChannel receiver = DatagramChannel.open();
+        DatagramChannel rtcp = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(loopback, 0));
+        rtcp.bind(new InetSocketAddress(loopback, 0));
+        receiver.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+
+        final RtpSocket socket = new RtpSocket();
+        socket.setSSRC(0x11223344);
+        socket.setClockFrequency(CLOCK);
+        socket.setCacheSize(400);
+        socket.setDestination(loopback, receiver.socket().getLocalPort(), rtcp.socket().getLocalPort());
+
+        final int packetsPerFrame = (FRAME_BYTES + RtpSocket.MTU - RtpSocket.RTP_HEADER_LENGTH - 1) /
+                (RtpSocket.MTU - RtpSocket.RTP_HEADER_LENGTH);
+        final int expected = FRAMES * packetsPerFrame;
+        Thread encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    for (int frame = 0; frame < FRAMES; frame++) {
+                        long due = start + frame * FRAME_NANOS;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        int left = FRAME_BYTES;
+                        for (int p = 0; p < packetsPerFrame; p++) {
+                            int payload = Math.min(left, RtpSocket.MTU - RtpSocket.RTP_HEADER_LENGTH);
+                            left -= payload;
+                            socket.requestBuffer();
+                            socket.updateTimestamp(frame * FRAME_NANOS);
+                            if (p == packetsPerFrame - 1) socket.markNextPacket();
+                            socket.commitBuffer(RtpSocket.RTP_HEADER_LENGTH + payload);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        Result result;
+        try {
+            encoder.start();
+            result = receive(receiver, expected);
+            encoder.join();
+        } finally {
+            socket.close();
+            receiver.close();
+            rtcp.close();
+        }
+
+        double seconds = (result.lastArrival - result.firstArrival) / 1e9;
+        double offeredBps = (double) FRAME_BYTES * 8 * FPS;
+        double achievedBps = result.bytes * 8 / seconds;
+        Arrays.sort(result.gapsNs);
+        System.out.println(String.format(Locale.US,
+                "720p/%d over loopback: %d/%d packets, offered %.2f Mbit/s, achieved %.2f Mbit/s, " +
+                        "jitter %.3f ms, packet gap p50 %.3f ms p99 %.3f ms max %.3f ms, %d out of order",
+                FPS, result.packets, expected, offeredBps / 1e6, achievedBps / 1e6, result.jitterMs,
+                percentile(result.gapsNs, 0.5) / 1e6, percentile(result.gapsNs, 0.99) / 1e6,
+                percentile(result.gapsNs, 1.0) / 1e6, result.outOfOrder));
+
+        assertEquals(expected, result.packets);
+        assertEquals(0, result.outOfOrder);
+        // El ritmo tiene un 25% de margen sobre el bitrate medio, no puede quedarse por debajo del encoder
+        assertTrue("achieved " + achievedBps + " bit/s for " + offeredBps, achievedBps > offeredBps * 0.9);
+        // Los paquetes de un frame se reparten dentro del intervalo del frame, no se acumulan de un frame a otro
+        assertTrue("jitter " + result.jitterMs + " ms", result.jitterMs < 1000.0 / FPS);
+    }
+
+    /** Recibe hasta tener expected paquetes o hasta que pasa IDLE_TIMEOUT_NANOS sin recibir nada */
+    private static Result receive(DatagramChannel channel, int expected) throws Exception {
+        Result result = new Result();
+        result.gapsNs = new long[expected];
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        ByteBuffer buffer = ByteBuffer.allocate(RtpSocket.MTU + 100);
+        double jitter = 0;
+        long previousArrival = 0;
+        long previousTransit = 0;
+        int previousSeq = -1;
+        long lastActivity = System.nanoTime();
+        try {
+            while (result.packets < expected && System.nanoTime() - lastActivity < IDLE_TIMEOUT_NANOS) {
+                if (selector.select(100) == 0) continue;
+                selector.selectedKeys().clear();
+                buffer.clear();
+                while (channel.receive(buffer) != null) {
+                    long now = System.nanoTime();
+                    lastActivity = now;
+                    int seq = buffer.getShort(2) & 0xFFFF;
+                    long timestamp = buffer.getInt(4) & 0xFFFFFFFFL;
+                    if (result.packets == 0) result.firstArrival = now;
+                    // Transito en unidades del reloj RTP, el jitter de RFC 3550 es la media movil de sus diferencias
+                    long transit = (now - result.firstArrival) * CLOCK / 1000000000L - timestamp;
+                    if (result.packets > 0) {
+                        jitter += (Math.abs(transit - previousTransit) - jitter) / 16;
+                        result.gapsNs[result.packets - 1] = now - previousArrival;
+                        if (seq != ((previousSeq + 1) & 0xFFFF)) result.outOfOrder++;
+                    }
+                    previousTransit = transit;
+                    previousArrival = now;
+                    previousSeq = seq;
+                    result.lastArrival = now;
+                    result.packets++;
+                    result.bytes += buffer.position();
+                    buffer.clear();
+                }
+            }
+        } finally {
+            selector.close();
+        }
+        result.jitterMs = jitter * 1000.0 / CLOCK;
+        result.gapsNs = Arrays.copyOf(result.gapsNs, Math.max(0, result.packets - 1));
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return -1;
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+}
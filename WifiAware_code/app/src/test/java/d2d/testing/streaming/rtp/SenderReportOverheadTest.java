@@ -0,0 +1,136 @@
+package d2d.testing.streaming.rtp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import d2d.testing.streaming.rtcp.SenderReport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coste por paquete de SenderReport.update() en la cadena commitBuffer() -> run() -> update() de un RtpSocket,
+ * con el SenderReport actual y con el anterior (OldSenderReport, copiado del que escribia los contadores byte a byte
+ * con % y >> y leia el reloj en cada paquete).
+ *
+ * Imprime ns/paquete de la cadena completa (enviando por UDP a un socket de loopback que no lee) y de update() solo.
+ * En la cadena manda el envio UDP, asi que solo se exige que el update() actual sea mas barato que el anterior.
+ */
+public class SenderReportOverheadTest {
+
+    private static final int PACKETS = 50000;
+    private static final int PAYLOAD = 1000;
+    private static final int ROUNDS = 5;
+    private static final int UPDATE_ITERATIONS = 2000000;
+    private static final long TIMEOUT_NANOS = 30000000000L;
+
+    /** Lo que hacia por paquete el SenderReport antes de guardar los contadores en primitivos */
+    private static class OldSenderReport extends SenderReport {
+        private final byte[] mBuffer = new byte[MTU];
+        private int mOctetCount = 0, mPacketCount = 0;
+        private long interval = 3000, delta, now, oldnow;
+        private long mReports = 0;
+
+        @Override
+        public void update(int length, long timestamp, long sendTime) {
+            mPacketCount += 1;
+            mOctetCount += length;
+            setLong(mPacketCount, 20, 24);
+            setLong(mOctetCount, 24, 28);
+
+            // SystemClock.elapsedRealtime() en el original
+            now = System.nanoTime() / 1000000L;
+            delta += oldnow != 0 ? now - oldnow : 0;
+            oldnow = now;
+            if (interval > 0 && delta >= interval) {
+                // El original enviaba aqui el SR
+                mReports++;
+                delta = 0;
+            }
+        }
+
+        private void setLong(long n, int begin, int end) {
+            for (end--; end >= begin; end--) {
+                mBuffer[end] = (byte) (n % 256);
+                n >>= 8;
+            }
+        }
+    }
+
+    @Test
+    public void updateOverheadPerPacket() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramChannel sink = DatagramChannel.open();
+        try {
+            sink.bind(new InetSocketAddress(loopback, 0));
+            int port = sink.socket().getLocalPort();
+
+            // Primero un round de cada para calentar, luego se queda el mejor
+            chainNanos(new OldSenderReport(), loopback, port);
+            chainNanos(new SenderReport(), loopback, port);
+            long oldChain = Long.MAX_VALUE, newChain = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                oldChain = Math.min(oldChain, chainNanos(new OldSenderReport(), loopback, port));
+                newChain = Math.min(newChain, chainNanos(new SenderReport(), loopback, port));
+            }
+
+            long oldUpdate = Long.MAX_VALUE, newUpdate = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS + 1; round++) {
+                oldUpdate = Math.min(oldUpdate, updateNanos(new OldSenderReport()));
+                newUpdate = Math.min(newUpdate, updateNanos(new SenderReport()));
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "commitBuffer->run->update over UDP, %d packets: old %.0f ns/packet, new %.0f ns/packet; " +
+                            "update() alone: old %.1f ns/packet, new %.1f ns/packet",
+                    PACKETS, (double) oldChain / PACKETS, (double) newChain / PACKETS,
+                    (double) oldUpdate / UPDATE_ITERATIONS, (double) newUpdate / UPDATE_ITERATIONS));
+
+            assertTrue("update() old " + oldUpdate + " ns vs new " + newUpdate + " ns", newUpdate < oldUpdate);
+        } finally {
+            sink.close();
+        }
+    }
+
+    /** Tiempo desde el primer commitBuffer() hasta que el thread del RtpSocket ha enviado todos los paquetes */
+    private static long chainNanos(SenderReport report, InetAddress destination, int port) throws Exception {
+        RtpSocket socket = new RtpSocket(report);
+        try {
+            socket.setSSRC(0x11223344);
+            socket.setClockFrequency(90000);
+            // Sin ritmo: se mide lo que cuesta cada paquete, no el TokenBucket
+            socket.setCacheSize(0);
+            socket.setDestination(destination, port, port + 1);
+            long start = System.nanoTime();
+            for (int i = 0; i < PACKETS; i++) {
+                socket.requestBuffer();
+                socket.updateTimestamp(i * 1000000L);
+                socket.commitBuffer(RtpSocket.RTP_HEADER_LENGTH + PAYLOAD);
+            }
+            while (socket.getQueuedBytes() > 0) {
+                if (System.nanoTime() - start > TIMEOUT_NANOS) fail("RtpSocket did not drain its FIFO");
+                LockSupport.parkNanos(10000);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static long updateNanos(SenderReport report) throws IOException {
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < UPDATE_ITERATIONS; i++) {
+                report.update(PAYLOAD, i * 1000000L, start + i * 1000L);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            report.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package d2d.testing.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ritmo y rafaga del TokenBucket de RtpSocket, con un reloj simulado en nanosegundos.
+ */
+public class TokenBucketTest {
+
+    private static final long MS = 1000000L;
+    private static final long START = 1000 * MS;
+
+    @Test
+    public void zeroRateDoesNotLimit() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        bucket.setRate(0, START);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, bucket.delayNanos(RtpSocket.MTU, START));
+            bucket.consume(RtpSocket.MTU, START);
+        }
+    }
+
+    @Test
+    public void startsFullWithMinimumBurst() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        // A 100 KB/s 5 ms son 500 bytes, la rafaga minima es de 4 paquetes
+        bucket.setRate(100000, START);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, bucket.delayNanos(RtpSocket.MTU, START));
+            bucket.consume(RtpSocket.MTU, START);
+        }
+        // El quinto tiene que esperar justo lo que se tarda en generar un MTU
+        assertEquals(RtpSocket.MTU * 1000000000L / 100000, bucket.delayNanos(RtpSocket.MTU, START));
+    }
+
+    @Test
+    public void burstScalesWithRate() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        // A 10 MB/s la rafaga es de 5 ms: 50000 bytes
+        bucket.setRate(10000000, START);
+        int sent = 0;
+        while (bucket.delayNanos(1000, START) == 0) {
+            bucket.consume(1000, START);
+            sent += 1000;
+        }
+        assertEquals(50000, sent);
+    }
+
+    @Test
+    public void sustainedRateMatchesConfiguredRate() {
+        long rate = 250000;
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        bucket.setRate(rate, START);
+        long now = START;
+        long sent = 0;
+        // Igual que RtpSocket.run(): si hay que esperar se avanza el reloj lo que pide delayNanos()
+        while (now < START + 2000 * MS) {
+            long wait = bucket.delayNanos(RtpSocket.MTU, now);
+            now += wait;
+            bucket.consume(RtpSocket.MTU, now);
+            sent += RtpSocket.MTU;
+        }
+        long expected = rate * 2 + 4 * RtpSocket.MTU;
+        assertTrue("sent " + sent + " expected ~" + expected, Math.abs(sent - expected) <= RtpSocket.MTU);
+    }
+
+    @Test
+    public void idleTimeOnlyRefillsUpToBurst() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        bucket.setRate(100000, START);
+        bucket.consume(4 * RtpSocket.MTU, START);
+        // Despues de 10 s parado no se acumulan 10 s de tokens, solo la rafaga
+        long later = START + 10000 * MS;
+        int sent = 0;
+        while (bucket.delayNanos(RtpSocket.MTU, later) == 0) {
+            bucket.consume(RtpSocket.MTU, later);
+            sent++;
+        }
+        assertEquals(4, sent);
+    }
+
+    @Test
+    public void partialRefillAfterShortIdle() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        bucket.setRate(1000000, START);
+        bucket.consume(5200, START);
+        // 1 ms a 1 MB/s son 1000 bytes, faltan 300 para un MTU: 300 us
+        long now = START + MS;
+        assertEquals(300000, bucket.delayNanos(RtpSocket.MTU, now));
+        assertEquals(0, bucket.delayNanos(1000, now));
+    }
+
+    @Test
+    public void loweringRateClipsTokensToNewBurst() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        bucket.setRate(10000000, START);
+        bucket.setRate(100000, START);
+        int sent = 0;
+        while (bucket.delayNanos(RtpSocket.MTU, START) == 0) {
+            bucket.consume(RtpSocket.MTU, START);
+            sent++;
+        }
+        assertEquals(4, sent);
+    }
+
+    @Test
+    public void debtIsPaidBeforeNextSend() {
+        RtpSocket.TokenBucket bucket = new RtpSocket.TokenBucket();
+        bucket.setRate(100000, START);
+        // Un envio que no espero (el primer frame) deja el cubo en negativo
+        bucket.consume(20 * RtpSocket.MTU, START);
+        long wait = bucket.delayNanos(RtpSocket.MTU, START);
+        // 16 MTU de deuda mas el propio paquete
+        assertEquals(17L * RtpSocket.MTU * 1000000000L / 100000, wait);
+    }
+}
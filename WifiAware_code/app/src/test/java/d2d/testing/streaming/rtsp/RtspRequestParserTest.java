@@ -0,0 +1,366 @@
+package d2d.testing.streaming.rtsp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import d2d.testing.streaming.RoutingTable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Comprueba que RtspRequestParser da lo mismo que las expresiones regulares que usaba RTSPServerWorker
+ * (copiadas en RegexRequest) con peticiones como las que se envian los nodos, y que no falla con entradas mal formadas.
+ * La unica diferencia buscada es que el valor de las cabeceras ya no lleva el espacio de despues de los dos puntos.
+ * parserIsFasterThanRegex() imprime el tiempo por peticion de los dos con el mismo corpus.
+ */
+public class RtspRequestParserTest {
+
+    private static final int BENCHMARK_ITERATIONS = 1000;
+    private static final int BENCHMARK_WARMUP_ROUNDS = 5;
+    private static final int BENCHMARK_ROUNDS = 10;
+
+    private static final String UUID_PATH = "3f2b8c1e-9d4a-4c7b-a1e2-5b6c7d8e9f00";
+
+    private static final String[] REQUESTS = {
+            "OPTIONS rtsp://192.168.49.1:1234/ RTSP/1.0\r\nCSeq: 1\r\nContent-Length: 0\r\n\r\n",
+            "DESCRIBE rtsp://127.0.0.1:1234/" + UUID_PATH + " RTSP/1.0\r\nCSeq: 2\r\nAccept: application/sdp\r\n" +
+                    "User-Agent: LibVLC/3.0.0 (LIVE555 Streaming Media v2016.11.28)\r\n\r\n",
+            "ANNOUNCE rtsp://fe80::1%wifi-aware0:1234/" + UUID_PATH + " RTSP/1.0\r\nCSeq: 1\r\n" +
+                    "Via: RTSP/1.0 0a1b2c3d, RTSP/1.0 99887766\r\nContent-Length: 62\r\n" +
+                    "Content-Type: application/sdp\r\n\r\n" +
+                    "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=Unnamed\r\nm=video 0 RTP/AVP 96",
+            "SETUP rtsp://192.168.49.1:1234/" + UUID_PATH + "/trackID=1 RTSP/1.0\r\nCSeq: 3\r\n" +
+                    "Transport: RTP/AVP/UDP;unicast;client_port=5006-5007;ssrc=1A2B3C4D;mode=receive\r\n\r\n",
+            "SETUP rtsp://192.168.49.1:1234/" + UUID_PATH + "/trackID=0 RTSP/1.0\r\nCSeq: 4\r\n" +
+                    "Transport: RTP/AVP/UDP;unicast;client_port=5004\r\nSession: 1185d20035702ca;timeout=60\r\n\r\n",
+            "SETUP rtsp://192.168.49.1:1234/trackid=1 RTSP/1.0\r\ncseq: 5\r\nTRANSPORT: RTP/AVP;CLIENT_PORT=6000-6001\r\n\r\n",
+            "PLAY rtsp://192.168.49.1:1234/" + UUID_PATH + " RTSP/1.0\r\nCSeq: 6\r\nSession: 1185d20035702ca\r\nRange: npt=0.000-\r\n\r\n",
+            "RECORD rtsp://192.168.49.1:1234/" + UUID_PATH + " RTSP/1.0\r\nCSeq: 7\r\nSession: 1185d20035702ca\r\n\r\n",
+            "TEARDOWN rtsp://192.168.49.1:1234/a/b/c RTSP/1.0\r\nCSeq: 8\r\nX-Custom-Header: some value\r\n\r\n",
+            "GET_PARAMETER * RTSP/1.0\r\nCSeq: 9\r\n\r\n",
+            "PAUSE rtsp://host RTSP/1.0\nCSeq: 10\nSession: 42\n\n",
+    };
+
+    @Test
+    public void matchesRegexParsing() {
+        RtspRequest request = new RtspRequest();
+        for (String text : REQUESTS) {
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            assertTrue(text, parse(data, request));
+            RegexRequest expected = RegexRequest.parse(text);
+
+            assertEquals(text, expected.method, request.method);
+            assertEquals(text, expected.uri, request.uri);
+            assertEquals(text, expected.path, request.path);
+            assertEquals(text, expected.headers.keySet(), request.headers.keySet());
+            for (Map.Entry<String, String> header : expected.headers.entrySet()) {
+                assertEquals(text, header.getValue().trim(), request.headers.get(header.getKey()));
+            }
+            assertEquals(text, expected.trackId, request.trackId);
+            assertEquals(text, expected.clientRtpPort, request.clientRtpPort);
+            assertEquals(text, expected.clientRtcpPort, request.clientRtcpPort);
+            assertEquals(text, expected.ssrc, request.ssrc);
+            assertEquals(text, expected.session, request.session);
+            assertEquals(text, expected.body, request.body);
+        }
+    }
+
+    @Test
+    public void parsesViaHeader() {
+        RtspRequest request = new RtspRequest();
+        assertTrue(parse(REQUESTS[2].getBytes(StandardCharsets.UTF_8), request));
+        List<String> via = RoutingTable.parseVia(request.headers.get("via"));
+        assertEquals(Arrays.asList("0a1b2c3d", "99887766"), via);
+        assertEquals(via, RoutingTable.parseVia(RoutingTable.formatVia(via)));
+    }
+
+    @Test
+    public void knownHeaderNamesAreShared() {
+        RtspRequest first = new RtspRequest();
+        RtspRequest second = new RtspRequest();
+        parse(REQUESTS[3].getBytes(StandardCharsets.UTF_8), first);
+        parse(REQUESTS[5].getBytes(StandardCharsets.UTF_8), second);
+        assertSame(key(first, "transport"), key(second, "transport"));
+        assertSame(key(first, "cseq"), key(second, "cseq"));
+    }
+
+    @Test
+    public void reusedRequestIsCleared() {
+        RtspRequest request = new RtspRequest();
+        parse(REQUESTS[3].getBytes(StandardCharsets.UTF_8), request);
+        parse(REQUESTS[0].getBytes(StandardCharsets.UTF_8), request);
+        assertEquals("OPTIONS", request.method);
+        assertEquals(-1, request.trackId);
+        assertEquals(-1, request.clientRtpPort);
+        assertNull(request.ssrc);
+        assertNull(request.session);
+        assertNull(request.headers.get("transport"));
+    }
+
+    @Test
+    public void rejectsMalformedRequestLine() {
+        RtspRequest request = new RtspRequest();
+        String[] malformed = {
+                "",
+                "\r\n\r\n",
+                "GARBAGE\r\n\r\n",
+                "DESCRIBE rtsp://host/path\r\n\r\n",
+                "DESCRIBE rtsp://host/path HTTP/1.1\r\n\r\n",
+                " rtsp://host/path RTSP/1.0\r\n\r\n",
+                "DESCRIBE  RTSP/1.0\r\n\r\n",
+        };
+        for (String text : malformed) {
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            assertFalse("'" + text + "'", RtspRequestParser.parse(data, 0, data.length, data.length, request));
+        }
+    }
+
+    @Test
+    public void toleratesBrokenHeadersAndTransport() {
+        RtspRequest request = new RtspRequest();
+        String text = "SETUP rtsp://h/" + UUID_PATH + "/trackID=x RTSP/1.0\r\n" +
+                "no colon here\r\n" +
+                ":empty name\r\n" +
+                "Transport: RTP/AVP;client_port=;ssrc=zz\r\n" +
+                "Session:\r\n\r\n";
+        assertTrue(parse(text.getBytes(StandardCharsets.UTF_8), request));
+        // Como con las regex, solo trackID=0 y trackID=1 se quitan del path
+        assertEquals(RegexRequest.parse(text).path, request.path);
+        assertEquals(-1, request.trackId);
+        assertEquals(-1, request.clientRtpPort);
+        assertNull(request.ssrc);
+        assertEquals("", request.session);
+        assertEquals(2, request.headers.size());
+    }
+
+    /** Una peticion partida en varias lecturas solo se parsea cuando el framer la tiene completa */
+    @Test
+    public void partialInputWaitsForFramer() throws Exception {
+        byte[] data = REQUESTS[2].getBytes(StandardCharsets.UTF_8);
+        RtspFramer framer = new RtspFramer();
+        RtspRequest request = new RtspRequest();
+        int[] cuts = {10, 60, 140, data.length - 5, data.length};
+        int previous = 0;
+        for (int cut : cuts) {
+            framer.feed(ByteBuffer.wrap(data, previous, cut - previous));
+            previous = cut;
+            if (cut < data.length) {
+                assertFalse("frame before byte " + cut, framer.nextFrame());
+            }
+        }
+        assertTrue(framer.nextFrame());
+        assertTrue(RtspRequestParser.parse(framer.getArray(), framer.getFrameOffset(), framer.getFrameLength(),
+                framer.getHeaderLength(), request));
+        assertEquals("ANNOUNCE", request.method);
+        assertEquals(UUID_PATH, request.path);
+        assertEquals(RegexRequest.parse(REQUESTS[2]).body, request.body);
+    }
+
+    /** Las respuestas de los clientes a las peticiones del servidor pasan por el mismo framer */
+    @Test
+    public void parsesClientResponse() throws Exception {
+        byte[] data = "RTSP/1.0 454 Session Not Found\r\nCSeq: 12\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        RtspFramer framer = new RtspFramer();
+        framer.feed(ByteBuffer.wrap(data));
+        assertTrue(framer.nextFrame());
+        assertEquals(RtspFramer.FRAME_REQUEST, framer.getFrameType());
+        assertTrue(RtspRequestParser.isResponse(framer.getArray(), framer.getFrameOffset(), framer.getFrameLength()));
+        RtspRequest response = new RtspRequest();
+        assertTrue(RtspRequestParser.parseResponse(framer.getArray(), framer.getFrameOffset(), framer.getHeaderLength(), response));
+        assertEquals(454, response.status);
+        assertEquals(12, response.cseq);
+        assertNull(response.method);
+
+        byte[] request = REQUESTS[1].getBytes(StandardCharsets.UTF_8);
+        assertFalse(RtspRequestParser.isResponse(request, 0, request.length));
+        assertTrue(parse(request, response));
+        assertEquals(2, response.cseq);
+        assertEquals(-1, response.status);
+        byte[] broken = "RTSP/1.0 OK\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        assertFalse(RtspRequestParser.parseResponse(broken, 0, broken.length, response));
+    }
+
+    /** El cuerpo binario del catalogo se deja en bodyData sin pasarlo a String */
+    @Test
+    public void binaryBodyIsNotDecoded() throws Exception {
+        byte[] head = ("SET_PARAMETER rtsp://192.168.49.1:1234 RTSP/1.0\r\n" +
+                "CSeq: 9\r\n" +
+                "Content-Type: application/x-d2d-catalog\r\n" +
+                "Content-Length: 4\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[head.length + 4];
+        System.arraycopy(head, 0, data, 0, head.length);
+        data[head.length] = (byte) 0xFF;
+        data[head.length + 3] = (byte) 0x80;
+        RtspRequest request = new RtspRequest();
+        assertTrue(parse(data, request));
+        assertNull(request.body);
+        assertSame(data, request.bodyData);
+        assertEquals(head.length, request.bodyOffset);
+        assertEquals(4, request.bodyLength);
+    }
+
+    /**
+     * Tiempo por peticion de los dos parsers con las mismas peticiones. El de regex incluye pasar los bytes a String,
+     * como hacia RTSPServerWorker antes de aplicar las regex.
+     */
+    @Test
+    public void parserIsFasterThanRegex() {
+        byte[][] corpus = new byte[REQUESTS.length][];
+        int[] headerLengths = new int[REQUESTS.length];
+        for (int i = 0; i < REQUESTS.length; i++) {
+            corpus[i] = REQUESTS[i].getBytes(StandardCharsets.UTF_8);
+            headerLengths[i] = headerLength(corpus[i]);
+        }
+        RtspRequest request = new RtspRequest();
+
+        long checksum = 0;
+        for (int round = 0; round < BENCHMARK_WARMUP_ROUNDS; round++) {
+            checksum += parseAllWithParser(corpus, headerLengths, request) + parseAllWithRegex(corpus);
+        }
+        long parserNs = Long.MAX_VALUE;
+        long regexNs = Long.MAX_VALUE;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long start = System.nanoTime();
+            checksum += parseAllWithParser(corpus, headerLengths, request);
+            parserNs = Math.min(parserNs, System.nanoTime() - start);
+            start = System.nanoTime();
+            checksum += parseAllWithRegex(corpus);
+            regexNs = Math.min(regexNs, System.nanoTime() - start);
+        }
+        int requests = corpus.length * BENCHMARK_ITERATIONS;
+        System.out.println(String.format(Locale.US,
+                "RTSP parsing, %d requests per round: RtspRequestParser %.0f ns/request, regex %.0f ns/request (x%.1f)",
+                requests, (double) parserNs / requests, (double) regexNs / requests, (double) regexNs / parserNs));
+
+        assertTrue(checksum != 0);
+        // Se toma el mejor round de cada uno, el margen real es de varias veces
+        assertTrue("parser " + parserNs + " ns vs regex " + regexNs + " ns", parserNs < regexNs);
+    }
+
+    private static long parseAllWithParser(byte[][] corpus, int[] headerLengths, RtspRequest request) {
+        long checksum = 0;
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            for (int i = 0; i < corpus.length; i++) {
+                RtspRequestParser.parse(corpus[i], 0, corpus[i].length, headerLengths[i], request);
+                checksum += request.headers.size() + request.path.length();
+            }
+        }
+        return checksum;
+    }
+
+    private static long parseAllWithRegex(byte[][] corpus) {
+        long checksum = 0;
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            for (byte[] data : corpus) {
+                RegexRequest request = RegexRequest.parse(new String(data, StandardCharsets.UTF_8));
+                checksum += request.headers.size() + request.path.length();
+            }
+        }
+        return checksum;
+    }
+
+    private static boolean parse(byte[] data, RtspRequest request) {
+        int headerLength = headerLength(data);
+        return RtspRequestParser.parse(data, 0, data.length, headerLength, request);
+    }
+
+    /** Hasta la linea vacia incluida, como lo calcula RtspFramer */
+    private static int headerLength(byte[] data) {
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] == '\n' && data[i + 1] == '\n') return i + 2;
+            if (i + 3 < data.length && data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') return i + 4;
+        }
+        return data.length;
+    }
+
+    private static String key(RtspRequest request, String name) {
+        for (String key : request.headers.keySet()) {
+            if (key.equals(name)) return key;
+        }
+        return null;
+    }
+
+    /** Lo que hacia RTSPServerWorker.parseRequest() con las regex, mas las de los SETUP para el trackID y client_port */
+    private static class RegexRequest {
+        static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP", Pattern.CASE_INSENSITIVE);
+        static final Pattern regexUrlMethod = Pattern.compile("rtsp://(\\S+)/(\\S+)", Pattern.CASE_INSENSITIVE);
+        static final Pattern regexUrlMethodAux = Pattern.compile("rtsp://(\\S+)/(\\S+)/(\\S+)", Pattern.CASE_INSENSITIVE);
+        static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)", Pattern.CASE_INSENSITIVE);
+        static final Pattern regexTrackId = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
+        static final Pattern regexClientPort = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+        static final Pattern regexSsrc = Pattern.compile("ssrc=([0-9a-f]{1,8})", Pattern.CASE_INSENSITIVE);
+        static final Pattern regexSession = Pattern.compile("([^;]*)");
+
+        String method, uri, path, body, ssrc, session;
+        int trackId = -1, clientRtpPort = -1, clientRtcpPort = -1;
+        Map<String, String> headers = new HashMap<>();
+
+        static RegexRequest parse(String text) {
+            RegexRequest request = new RegexRequest();
+            String[] lines = text.split("\r?\n", -1);
+            Matcher matcher = regexMethod.matcher(lines[0]);
+            assertTrue(matcher.find());
+            request.method = matcher.group(1);
+            request.uri = matcher.group(2);
+
+            Matcher url = regexUrlMethod.matcher(request.uri);
+            Matcher urlAux = regexUrlMethodAux.matcher(request.uri);
+            if (url.find()) {
+                request.path = url.group(2);
+                if (request.path.equals("trackID=0") || request.path.equals("trackID=1")) {
+                    if (urlAux.find()) request.path = urlAux.group(2);
+                }
+            } else if (urlAux.find()) {
+                request.path = urlAux.group(2);
+            } else {
+                request.path = "";
+            }
+
+            int i = 1;
+            for (; i < lines.length && lines[i].length() > 0; i++) {
+                matcher = rexegHeader.matcher(lines[i]);
+                if (lines[i].length() > 3 && matcher.find()) {
+                    request.headers.put(matcher.group(1).toLowerCase(Locale.US), matcher.group(2));
+                }
+            }
+            StringBuilder body = new StringBuilder();
+            for (i++; i < lines.length; i++) {
+                if (body.length() > 0) body.append("\r\n");
+                body.append(lines[i]);
+            }
+            request.body = body.length() > 0 ? body.toString() : null;
+
+            matcher = regexTrackId.matcher(request.uri);
+            if (matcher.find()) {
+                try {
+                    request.trackId = Integer.parseInt(matcher.group(1));
+                } catch (NumberFormatException ignored) {}
+            }
+            String transport = request.headers.get("transport");
+            if (transport != null) {
+                matcher = regexClientPort.matcher(transport);
+                if (matcher.find()) {
+                    request.clientRtpPort = Integer.parseInt(matcher.group(1));
+                    request.clientRtcpPort = matcher.group(2) == null ? request.clientRtpPort + 1 : Integer.parseInt(matcher.group(2));
+                }
+                matcher = regexSsrc.matcher(transport);
+                if (matcher.find()) request.ssrc = matcher.group(1);
+            }
+            String session = request.headers.get("session");
+            if (session != null) {
+                matcher = regexSession.matcher(session.trim());
+                if (matcher.lookingAt()) request.session = matcher.group(1);
+            }
+            return request;
+        }
+    }
+}
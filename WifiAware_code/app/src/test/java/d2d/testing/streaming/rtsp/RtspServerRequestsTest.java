@@ -0,0 +1,181 @@
+package d2d.testing.streaming.rtsp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Las peticiones del servidor llevan CSeq, se olvidan con la respuesta y se reenvian si no llega.
+ * El timeout de la prueba es corto y se espera a que se cumplan las condiciones, sin dormir tiempos fijos.
+ */
+public class RtspServerRequestsTest {
+
+    private static final long TIMEOUT_MS = 50;
+    private static final long WAIT_MS = 5000;
+    private static final String PATH = "3f2b8c1e-9d4a-4c7b-a1e2-5b6c7d8e9f00";
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /** Guarda lo que se envia y los fallos */
+    private static class Recorder implements RtspServerRequests.Callback {
+        final List<String> sent = new ArrayList<>();
+        final List<String> failed = new ArrayList<>();
+
+        @Override
+        public synchronized void send(byte[] request) {
+            sent.add(new String(request, StandardCharsets.UTF_8));
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onRequestFailed(String method, String path, int status) {
+            failed.add(method + " " + status);
+            notifyAll();
+        }
+
+        synchronized void awaitSent(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (sent.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("only " + sent.size() + " requests sent", left > 0);
+                wait(left);
+            }
+        }
+
+        synchronized void awaitFailed(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (failed.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("only " + failed.size() + " failures", left > 0);
+                wait(left);
+            }
+        }
+    }
+
+    @After
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void requestsCarryIncreasingCSeq() {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, WAIT_MS);
+        assertEquals(1, requests.send("PLAY", "rtsp://h:1/" + PATH, PATH, "Session: 7\r\n"));
+        assertEquals(2, requests.send("DESCRIBE", "rtsp://h:1/other", "other", ""));
+        assertEquals("PLAY rtsp://h:1/" + PATH + " RTSP/1.0\r\nCSeq: 1\r\nSession: 7\r\n\r\n", recorder.sent.get(0));
+        assertEquals("DESCRIBE rtsp://h:1/other RTSP/1.0\r\nCSeq: 2\r\n\r\n", recorder.sent.get(1));
+
+        // Los mensajes se pueden leer con el parser del servidor
+        RtspRequest parsed = new RtspRequest();
+        byte[] data = recorder.sent.get(0).getBytes(StandardCharsets.UTF_8);
+        assertTrue(RtspRequestParser.parse(data, 0, data.length, data.length, parsed));
+        assertEquals(1, parsed.cseq);
+        assertEquals(PATH, parsed.path);
+        requests.close();
+    }
+
+    @Test
+    public void responseClearsRequest() {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, WAIT_MS);
+        int play = requests.send("PLAY", "rtsp://h:1/" + PATH, PATH, "");
+        int describe = requests.send("DESCRIBE", "rtsp://h:1/other", "other", "");
+        assertEquals(2, requests.getPendingCount());
+        assertTrue(requests.onResponse(play, 200));
+        assertTrue(requests.onResponse(describe, 454));
+        assertFalse(requests.onResponse(play, 200));
+        assertFalse(requests.onResponse(99, 200));
+        assertEquals(0, requests.getPendingCount());
+        assertEquals(1, recorder.failed.size());
+        assertEquals("DESCRIBE 454", recorder.failed.get(0));
+        requests.close();
+    }
+
+    @Test
+    public void unansweredRequestIsResentThenFails() throws Exception {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, TIMEOUT_MS);
+        requests.send("PAUSE", "rtsp://h:1/" + PATH, PATH, "Session: 7\r\n");
+        recorder.awaitFailed(1);
+        synchronized (recorder) {
+            assertEquals(RtspServerRequests.MAX_ATTEMPTS, recorder.sent.size());
+            for (int i = 0; i < recorder.sent.size(); i++) {
+                assertTrue(recorder.sent.get(i).contains("CSeq: " + (i + 1) + "\r\n"));
+            }
+            assertEquals("PAUSE -1", recorder.failed.get(0));
+        }
+        assertEquals(0, requests.getPendingCount());
+        requests.close();
+    }
+
+    @Test
+    public void answeredResendIsNotRetried() throws Exception {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, TIMEOUT_MS);
+        requests.send("PLAY", "rtsp://h:1/" + PATH, PATH, "");
+        recorder.awaitSent(2);
+        // La respuesta al primer envio llega tarde y ya no cuenta, la del reenvio si
+        assertFalse(requests.onResponse(1, 200));
+        assertTrue(requests.onResponse(2, 200));
+        assertEquals(0, requests.getPendingCount());
+        requests.close();
+        mScheduler.shutdown();
+        assertTrue(mScheduler.awaitTermination(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, recorder.sent.size());
+        assertTrue(recorder.failed.isEmpty());
+    }
+
+    @Test
+    public void teardownIsNotResent() throws Exception {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, TIMEOUT_MS);
+        requests.send("TEARDOWN", "rtsp://h:1/" + PATH, PATH, "Session: 7\r\n");
+        recorder.awaitFailed(1);
+        assertEquals(1, recorder.sent.size());
+        assertEquals("TEARDOWN -1", recorder.failed.get(0));
+        requests.close();
+    }
+
+    @Test
+    public void newRequestSupersedesPendingOne() throws Exception {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, TIMEOUT_MS);
+        int play = requests.send("PLAY", "rtsp://h:1/" + PATH, PATH, "");
+        int pause = requests.send("PAUSE", "rtsp://h:1/" + PATH, PATH, "");
+        assertEquals(1, requests.getPendingCount());
+        assertFalse(requests.onResponse(play, 200));
+        recorder.awaitFailed(1);
+        synchronized (recorder) {
+            // Solo se reenvia el PAUSE
+            for (String sent : recorder.sent.subList(2, recorder.sent.size())) {
+                assertTrue(sent.startsWith("PAUSE "));
+            }
+            assertEquals("PAUSE -1", recorder.failed.get(0));
+        }
+        assertTrue(pause > play);
+        requests.close();
+    }
+
+    @Test
+    public void closeDropsPendingRequests() throws Exception {
+        Recorder recorder = new Recorder();
+        RtspServerRequests requests = new RtspServerRequests(recorder, mScheduler, TIMEOUT_MS);
+        requests.send("PLAY", "rtsp://h:1/" + PATH, PATH, "");
+        requests.close();
+        assertEquals(0, requests.getPendingCount());
+        assertEquals(-1, requests.send("PLAY", "rtsp://h:1/" + PATH, PATH, ""));
+        mScheduler.shutdown();
+        assertTrue(mScheduler.awaitTermination(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, recorder.sent.size());
+        assertTrue(recorder.failed.isEmpty());
+    }
+}
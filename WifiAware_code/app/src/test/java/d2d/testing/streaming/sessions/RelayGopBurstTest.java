@@ -0,0 +1,199 @@
+package d2d.testing.streaming.sessions;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import d2d.testing.net.threads.selectors.OutboundQueue;
+import d2d.testing.net.threads.selectors.RelaySelector;
+
+import static org.junit.Assert.*;
+
+/**
+ * Un suscriptor que se une a una pista de video con un GOP guardado mucho mayor que OutboundQueue.HIGH_WATERMARK
+ * recibe el GOP entero y enlaza con el directo sin huecos, y el suscriptor que ya estaba no pierde paquetes mientras tanto.
+ * No se duerme en ningun momento: se espera a que los receptores vean las secuencias esperadas y a que el relay
+ * vacie sus colas, y se comprueba la continuidad de las secuencias.
+ */
+public class RelayGopBurstTest {
+
+    private static final int PAYLOAD_TYPE = 96;
+    private static final int SSRC = 0x2a2b2c2d;
+    private static final String DESCRIPTION = "m=video 0 RTP/AVP " + PAYLOAD_TYPE + "\r\n" +
+            "a=rtpmap:" + PAYLOAD_TYPE + " H264/90000\r\n";
+    private static final int PAYLOAD = 1200;
+    // ~1.2 MB de GOP
+    private static final int GOP_PACKETS = 1000;
+    private static final int LIVE_PACKETS = 300;
+    // Paquetes enviados que aun no ha recibido el suscriptor en directo. Limita lo que se acumula en el buffer de
+    // recepcion del relay (~80 KB), que no es lo que se prueba
+    private static final int SEND_WINDOW = 64;
+    private static final long TIMEOUT_MS = 10000;
+
+    /** Recibe en un thread todos los datagramas de un puerto y guarda sus numeros de secuencia */
+    private static class Receiver extends Thread {
+        final DatagramChannel channel;
+        final List<Integer> sequences = new ArrayList<>();
+        final List<Boolean> keyframeStarts = new ArrayList<>();
+
+        Receiver(InetAddress address) throws Exception {
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+            channel.bind(new InetSocketAddress(address, 0));
+            setDaemon(true);
+        }
+
+        int port() {
+            return channel.socket().getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer in = ByteBuffer.allocate(2048);
+            try {
+                while (true) {
+                    in.clear();
+                    channel.receive(in);
+                    synchronized (this) {
+                        sequences.add(in.getShort(2) & 0xFFFF);
+                        keyframeStarts.add((in.get(13) & 0x1F) == 5 && (in.get(13) & 0x80) != 0);
+                        notifyAll();
+                    }
+                }
+            } catch (Exception ignored) {
+                // finish() cierra el canal
+            }
+        }
+
+        synchronized boolean hasReceived() {
+            return !sequences.isEmpty();
+        }
+
+        /** Espera a que llegue el paquete con esa secuencia o una posterior (las secuencias no dan la vuelta en la prueba) */
+        synchronized boolean awaitSequence(int sequence, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (sequences.isEmpty() || sequences.get(sequences.size() - 1) < sequence) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized void assertContinuous(String name, int first, int last) {
+            assertFalse(name + " received nothing", sequences.isEmpty());
+            assertEquals(name + " first sequence", first, (int) sequences.get(0));
+            for (int i = 1; i < sequences.size(); i++) {
+                assertEquals(name + " gap at " + i, sequences.get(i - 1) + 1, (int) sequences.get(i));
+            }
+            assertEquals(name + " last sequence", last, (int) sequences.get(sequences.size() - 1));
+        }
+
+        void finish() throws Exception {
+            channel.close();
+            join(1000);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void joinerGetsWholeGopWithoutStallingOthers() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        RelaySelector relay = RelaySelector.getInstance();
+        TrackInfo track = new TrackInfo();
+        track.setSSRCHex(Integer.toHexString(SSRC));
+        track.setSessionDescription(DESCRIPTION);
+        track.setUpstreamAddress(loopback);
+        ReceiveSession session = new ReceiveSession();
+        session.addVideoTrack(track);
+        session.start();
+
+        Receiver live = new Receiver(loopback);
+        Receiver joiner = new Receiver(loopback);
+        live.start();
+        joiner.start();
+        RebroadcastSession liveSession = subscribe(session, loopback, live.port());
+        RebroadcastSession joinerSession = null;
+        DatagramChannel sender = DatagramChannel.open();
+        try {
+            sender.bind(new InetSocketAddress(loopback, 0));
+            InetSocketAddress target = new InetSocketAddress(loopback, relay.getRtpPort());
+            liveSession.play();
+
+            // La activacion se procesa en el reactor del relay: se envian keyframes sueltos hasta que el suscriptor
+            // en directo recibe uno, y el GOP de la prueba empieza despues
+            int sequence = 1000;
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!live.hasReceived()) {
+                assertTrue("live subscriber never activated", System.currentTimeMillis() < deadline);
+                send(sender, target, sequence++, true);
+                live.awaitSequence(sequence - 1, 20);
+            }
+            int gopStart = sequence;
+
+            for (int i = 0; i < GOP_PACKETS; i++) send(sender, target, live, sequence++, i == 0);
+            assertTrue(live.awaitSequence(sequence - 1, TIMEOUT_MS));
+
+            joinerSession = subscribe(session, loopback, joiner.port());
+            joinerSession.play();
+            // El directo sigue llegando mientras se envia la rafaga
+            for (int i = 0; i < LIVE_PACKETS; i++) send(sender, target, live, sequence++, false);
+            int last = sequence - 1;
+            assertTrue("live subscriber stalled by the burst", live.awaitSequence(last, TIMEOUT_MS));
+            assertTrue("joiner never caught up with the live stream", joiner.awaitSequence(last, TIMEOUT_MS));
+            awaitDrained(relay);
+
+            live.assertContinuous("live", live.sequences.get(0), last);
+            joiner.assertContinuous("joiner", gopStart, last);
+            synchronized (joiner) {
+                assertTrue(joiner.keyframeStarts.get(0));
+            }
+            assertTrue(GOP_PACKETS * PAYLOAD > OutboundQueue.HIGH_WATERMARK);
+        } finally {
+            sender.close();
+            liveSession.stop();
+            if (joinerSession != null) joinerSession.stop();
+            session.stop();
+            live.finish();
+            joiner.finish();
+        }
+    }
+
+    private static RebroadcastSession subscribe(ReceiveSession session, InetAddress address, int port) {
+        RebroadcastSession subscriber = new RebroadcastSession();
+        subscriber.setServerSession(session);
+        subscriber.setDestinationAddress(address, false);
+        subscriber.getRebroadcastTrack(1).setRemotePorts(port, port + 1);
+        subscriber.startTrack(1);
+        return subscriber;
+    }
+
+    /** Envia cuando el suscriptor en directo tiene menos de SEND_WINDOW paquetes por recibir */
+    private static void send(DatagramChannel sender, InetSocketAddress target, Receiver live, int sequence, boolean start) throws Exception {
+        assertTrue("live subscriber stopped receiving", live.awaitSequence(sequence - SEND_WINDOW, TIMEOUT_MS));
+        send(sender, target, sequence, start);
+    }
+
+    /** FU-A de un IDR: el primero con el bit S, el resto continuaciones */
+    private static void send(DatagramChannel sender, InetSocketAddress target, int sequence, boolean start) throws Exception {
+        ByteBuffer packet = ByteBuffer.allocate(12 + 2 + PAYLOAD);
+        packet.put((byte) 0x80).put((byte) PAYLOAD_TYPE).putShort((short) sequence).putInt(0).putInt(SSRC);
+        packet.put((byte) (0x60 | 28)).put((byte) ((start ? 0x80 : 0) | 5));
+        packet.position(packet.capacity());
+        packet.flip();
+        sender.send(packet, target);
+    }
+
+    private static void awaitDrained(RelaySelector relay) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (relay.getQueuedBytes() > 0) {
+            assertTrue("relay queue never drained", System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+}
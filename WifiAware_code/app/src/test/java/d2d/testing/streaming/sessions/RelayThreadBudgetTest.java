@@ -0,0 +1,201 @@
+package d2d.testing.streaming.sessions;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import d2d.testing.net.threads.selectors.RelaySelector;
+
+import static org.junit.Assert.*;
+
+/**
+ * Banco de pruebas del coste en threads de un stream reenviado, con sockets de loopback:
+ * N ReceiveSession (una pista cada una, registrada en el RelaySelector) con M RebroadcastSession suscritas a cada una.
+ * Un emisor envia RTP al relay y un unico receptor lo recibe en los puertos de todos los suscriptores.
+ *
+ * Imprime los threads vivos, los cambios de contexto por segundo (de /proc, solo en Linux) y la latencia
+ * extremo a extremo de los paquetes. Falla si los threads crecen con el numero de suscriptores: antes cada
+ * ReceiveSession y RebroadcastSession arrancaba un HandlerThread propio.
+ */
+public class RelayThreadBudgetTest {
+
+    private static final int STREAMS = 4;
+    private static final int PACKETS_PER_STREAM = 200;
+    private static final int PAYLOAD_TYPE = 97;
+    private static final String DESCRIPTION = "m=audio 0 RTP/AVP " + PAYLOAD_TYPE + "\r\n" +
+            "a=rtpmap:" + PAYLOAD_TYPE + " mpeg4-generic/44100\r\n";
+
+    private static class Result {
+        int threads;
+        long received;
+        long expected;
+        double contextSwitchesPerSecond;
+        long[] latenciesNs;
+
+        long percentile(double p) {
+            if (latenciesNs.length == 0) return -1;
+            return latenciesNs[(int) Math.min(latenciesNs.length - 1, Math.floor(p * latenciesNs.length))];
+        }
+    }
+
+    @Test
+    public void threadCountDoesNotGrowWithSubscribers() throws Exception {
+        RelaySelector.getInstance(); // Arranca el reactor del relay antes de medir
+        Result one = run(STREAMS, 1);
+        Result many = run(STREAMS, 8);
+        report(STREAMS, 1, one);
+        report(STREAMS, 8, many);
+
+        assertTrue("lost too many packets with 1 subscriber", one.received >= one.expected * 9 / 10);
+        assertTrue("lost too many packets with 8 subscribers", many.received >= many.expected * 9 / 10);
+        // Con un thread por sesion serian STREAMS * 7 threads mas
+        assertTrue("threads grow with subscribers: " + one.threads + " -> " + many.threads,
+                many.threads - one.threads <= 2);
+    }
+
+    private static void report(int streams, int subscribers, Result result) {
+        System.out.println(String.format(Locale.US,
+                "%d streams x %d subscribers: %d live threads, %s context switches/s, %d/%d packets, latency p50 %.3f ms p99 %.3f ms",
+                streams, subscribers, result.threads,
+                result.contextSwitchesPerSecond < 0 ? "n/a" : String.format(Locale.US, "%.0f", result.contextSwitchesPerSecond),
+                result.received, result.expected, result.percentile(0.5) / 1e6, result.percentile(0.99) / 1e6));
+    }
+
+    private Result run(int streams, int subscribersPerStream) throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        RelaySelector relay = RelaySelector.getInstance();
+        List<ReceiveSession> sessions = new ArrayList<>();
+        List<RebroadcastSession> subscribers = new ArrayList<>();
+        List<DatagramChannel> receivers = new ArrayList<>();
+        Selector selector = Selector.open();
+        Result result = new Result();
+        try {
+            for (int s = 0; s < streams; s++) {
+                TrackInfo track = new TrackInfo();
+                track.setSSRCHex(String.format("%08x", 0x10000000 + s));
+                track.setSessionDescription(DESCRIPTION);
+                track.setUpstreamAddress(loopback);
+                ReceiveSession session = new ReceiveSession();
+                session.addAudioTrack(track);
+                session.start();
+                sessions.add(session);
+
+                for (int m = 0; m < subscribersPerStream; m++) {
+                    DatagramChannel receiver = DatagramChannel.open();
+                    receiver.socket().bind(new InetSocketAddress(loopback, 0));
+                    receiver.configureBlocking(false);
+                    receiver.register(selector, SelectionKey.OP_READ);
+                    receivers.add(receiver);
+
+                    RebroadcastSession subscriber = new RebroadcastSession();
+                    subscriber.setServerSession(session);
+                    subscriber.setDestinationAddress(loopback, false);
+                    int port = receiver.socket().getLocalPort();
+                    subscriber.getRebroadcastTrack(0).setRemotePorts(port, port + 1);
+                    subscriber.startTrack(0);
+                    subscriber.play();
+                    subscribers.add(subscriber);
+                }
+            }
+            Thread.sleep(100); // Los PLAY se procesan en el reactor del relay
+
+            result.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            result.expected = (long) streams * subscribersPerStream * PACKETS_PER_STREAM;
+            long switchesBefore = contextSwitches();
+            long start = System.nanoTime();
+            List<Long> latencies = new ArrayList<>();
+            result.received = sendAndReceive(relay, loopback, streams, selector, result.expected, latencies);
+            long elapsed = System.nanoTime() - start;
+            long switchesAfter = contextSwitches();
+            result.contextSwitchesPerSecond = switchesBefore < 0 || switchesAfter < 0 ? -1 :
+                    (switchesAfter - switchesBefore) * 1e9 / elapsed;
+            result.latenciesNs = new long[latencies.size()];
+            for (int i = 0; i < latencies.size(); i++) result.latenciesNs[i] = latencies.get(i);
+            Arrays.sort(result.latenciesNs);
+        } finally {
+            for (RebroadcastSession subscriber : subscribers) subscriber.stop();
+            for (ReceiveSession session : sessions) session.stop();
+            for (DatagramChannel receiver : receivers) receiver.close();
+            selector.close();
+        }
+        return result;
+    }
+
+    /** Envia los paquetes de todos los streams intercalados, con el instante de envio en el payload */
+    private static long sendAndReceive(RelaySelector relay, InetAddress loopback, int streams, Selector selector,
+                                       long expected, List<Long> latencies) throws IOException, InterruptedException {
+        InetSocketAddress target = new InetSocketAddress(loopback, relay.getRtpPort());
+        ByteBuffer packet = ByteBuffer.allocate(12 + 8 + 100);
+        ByteBuffer in = ByteBuffer.allocate(2048);
+        long received = 0;
+        try (DatagramChannel sender = DatagramChannel.open()) {
+            sender.socket().bind(new InetSocketAddress(loopback, 0));
+            for (int seq = 0; seq < PACKETS_PER_STREAM; seq++) {
+                for (int s = 0; s < streams; s++) {
+                    packet.clear();
+                    packet.put((byte) 0x80).put((byte) PAYLOAD_TYPE).putShort((short) seq)
+                            .putInt(seq * 1024).putInt(0x10000000 + s).putLong(System.nanoTime());
+                    packet.position(packet.capacity());
+                    packet.flip();
+                    sender.send(packet, target);
+                }
+                received += receive(selector, in, latencies, 1);
+            }
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (received < expected && System.nanoTime() < deadline) {
+                received += receive(selector, in, latencies, 50);
+            }
+        }
+        return received;
+    }
+
+    private static int receive(Selector selector, ByteBuffer in, List<Long> latencies, long timeoutMs) throws IOException {
+        int count = 0;
+        if (selector.select(timeoutMs) == 0) return 0;
+        for (SelectionKey key : selector.selectedKeys()) {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            in.clear();
+            while (channel.receive(in) != null) {
+                long now = System.nanoTime();
+                if (in.position() >= 20) latencies.add(now - in.getLong(12));
+                count++;
+                in.clear();
+            }
+        }
+        selector.selectedKeys().clear();
+        return count;
+    }
+
+    /** Suma de los cambios de contexto de todos los threads del proceso, -1 si no hay /proc */
+    private static long contextSwitches() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) return -1;
+        long total = 0;
+        for (File task : tasks) {
+            try {
+                for (String line : Files.readAllLines(new File(task, "status").toPath(), StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("voluntary_ctxt_switches:") || line.startsWith("nonvoluntary_ctxt_switches:")) {
+                        total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+                // El thread ha terminado mientras se leia
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,180 @@
+package d2d.testing.streaming.video;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulacion de un enlace con perdidas: cada 500 ms llega un Receiver Report con las perdidas que da enviar
+ * el bitrate actual por un enlace de capacidad fija, mas un poco de ruido. El reloj es el parametro now de onReceptionReport().
+ */
+public class BitrateControllerTest {
+
+    private static final int MAX_BITRATE = 2000000;
+    private static final long CLOCK = 90000;
+    private static final long REPORT_INTERVAL_MS = 500;
+
+    /** Guarda cada cambio de bitrate que se pide al encoder */
+    private static class RecordingEncoder implements BitrateController.Encoder {
+        final List<Integer> changes = new ArrayList<>();
+
+        @Override
+        public void setBitrate(int bitrate) {
+            changes.add(bitrate);
+        }
+    }
+
+    /** Enlace con capacidad en bits/s, perdidas de fondo (sobre 256) y RTT base */
+    private static class Link {
+        long capacity;
+        final int baseLoss;
+        final Random random = new Random(42);
+
+        Link(long capacity, int baseLoss) {
+            this.capacity = capacity;
+            this.baseLoss = baseLoss;
+        }
+
+        /** fractionLost del RR (sobre 256) si se envia a bitrate */
+        int fractionLost(int bitrate) {
+            int congestion = bitrate > capacity ? (int) ((bitrate - capacity) * 256 / bitrate) : 0;
+            int noise = baseLoss > 0 ? random.nextInt(baseLoss + 1) : 0;
+            return Math.min(255, congestion + noise);
+        }
+    }
+
+    /** Avanza la simulacion durante durationMs y devuelve el momento final */
+    private static long run(BitrateController controller, Link link, long start, long durationMs) {
+        long now = start;
+        for (; now < start + durationMs; now += REPORT_INTERVAL_MS) {
+            int lost = link.fractionLost(controller.getBitrate());
+            controller.onReceptionReport(1, lost, 5 * CLOCK / 1000, 40, now);
+        }
+        return now;
+    }
+
+    @Test
+    public void convergesAroundLinkCapacity() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        Link link = new Link(800000, 2);
+
+        long now = run(controller, link, 100000, 60000);
+        // Despues de un minuto el bitrate oscila en torno a la capacidad, sin volver al maximo ni hundirse al minimo
+        int min = Integer.MAX_VALUE, max = 0;
+        for (long end = now + 60000; now < end; now += REPORT_INTERVAL_MS) {
+            controller.onReceptionReport(1, link.fractionLost(controller.getBitrate()), 5 * CLOCK / 1000, 40, now);
+            min = Math.min(min, controller.getBitrate());
+            max = Math.max(max, controller.getBitrate());
+        }
+        assertTrue("min " + min, min >= link.capacity * 80 / 100);
+        assertTrue("max " + max, max <= link.capacity * 110 / 100);
+        assertTrue(controller.getBitrate() >= controller.getMinBitrate());
+    }
+
+    @Test
+    public void recoversWhenCapacityReturns() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        Link link = new Link(500000, 0);
+        long now = run(controller, link, 100000, 60000);
+        assertTrue(controller.getBitrate() < 600000);
+
+        link.capacity = 10000000;
+        // De ~500 kbps a 2 Mbps subiendo un 5% cada 3 s son unos 90 s
+        run(controller, link, now, 120000);
+        assertEquals(MAX_BITRATE, controller.getBitrate());
+    }
+
+    @Test
+    public void neverLeavesConfiguredRange() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        long now = 100000;
+        for (int i = 0; i < 200; i++, now += REPORT_INTERVAL_MS) {
+            controller.onReceptionReport(1, 255, 0, 40, now);
+        }
+        assertEquals(controller.getMinBitrate(), controller.getBitrate());
+        for (int change : encoder.changes) {
+            assertTrue(change >= controller.getMinBitrate() && change <= MAX_BITRATE);
+        }
+    }
+
+    /** Con perdidas entre el umbral de subida (2%) y el de bajada (5%) no se toca el bitrate */
+    @Test
+    public void holdsBitrateInsideHysteresisBand() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        long now = 100000;
+        // Primero una bajada para no estar en el maximo
+        controller.onReceptionReport(1, 64, 0, 40, now);
+        int afterDecrease = controller.getBitrate();
+        assertTrue(afterDecrease < MAX_BITRATE);
+        encoder.changes.clear();
+
+        Random random = new Random(7);
+        for (int i = 0; i < 240; i++) {
+            now += REPORT_INTERVAL_MS;
+            controller.onReceptionReport(1, 6 + random.nextInt(7), 5 * CLOCK / 1000, 40, now);
+        }
+        assertTrue(encoder.changes.toString(), encoder.changes.isEmpty());
+        assertEquals(afterDecrease, controller.getBitrate());
+    }
+
+    @Test
+    public void ignoresReportsRightAfterDecrease() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        long now = 100000;
+        controller.onReceptionReport(1, 64, 0, 40, now);
+        assertEquals(1, encoder.changes.size());
+        // Los reports de los siguientes 2 s hablan del bitrate anterior y no vuelven a bajar
+        for (long t = now + 100; t < now + 2000; t += 100) {
+            controller.onReceptionReport(1, 128, 0, 40, t);
+        }
+        assertEquals(1, encoder.changes.size());
+        controller.onReceptionReport(1, 128, 0, 40, now + 2000);
+        assertEquals(2, encoder.changes.size());
+    }
+
+    @Test
+    public void increasesOnlyAfterConsecutiveGoodEvaluations() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        long now = 100000;
+        controller.onReceptionReport(1, 128, 0, 40, now);
+        int low = controller.getBitrate();
+        now += 2000;
+        controller.onReceptionReport(1, 0, 0, 40, now);
+        controller.onReceptionReport(1, 0, 0, 40, now += 1000);
+        // Una evaluacion en la zona intermedia reinicia la cuenta
+        controller.onReceptionReport(1, 8, 0, 40, now += 1000);
+        controller.onReceptionReport(1, 0, 0, 40, now += 1000);
+        controller.onReceptionReport(1, 0, 0, 40, now += 1000);
+        assertEquals(low, controller.getBitrate());
+        controller.onReceptionReport(1, 0, 0, 40, now += 1000);
+        assertEquals((long) low * 21 / 20, controller.getBitrate());
+    }
+
+    @Test
+    public void followsWorstSubscriberAndRisingRtt() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        BitrateController controller = new BitrateController(MAX_BITRATE, CLOCK, encoder);
+        long now = 100000;
+        controller.onReceptionReport(1, 0, 0, 40, now);
+        controller.onReceptionReport(2, 0, 0, 40, now + 1);
+        // El suscriptor 2 empieza a ver colas: RTT muy por encima de su minimo
+        controller.onReceptionReport(2, 0, 0, 400, now + 1000);
+        assertTrue(controller.getBitrate() < MAX_BITRATE);
+
+        // Cuando se va, sus reports ya no cuentan
+        controller.removeSubscriber(2);
+        int bitrate = controller.getBitrate();
+        for (int i = 1; i <= 4; i++) controller.onReceptionReport(1, 0, 0, 40, now + 2000 + i * 1000);
+        assertTrue(controller.getBitrate() > bitrate);
+    }
+}